@@ -0,0 +1,131 @@
+/*
+ *  SmartRoomba - BatchOdometryBenchmark
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.benchmark;
+
+import com.jgelderloos.smartroomba.roomba.RoombaMapData;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.utilities.BatchOdometry;
+import com.jgelderloos.smartroomba.utilities.SensorDataBinaryReader;
+import com.jgelderloos.smartroomba.utilities.SensorDataBinaryWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second through BatchOdometry, for the odometry alone and for a whole binary recording read from a
+ * memory mapped file. The recording drives a figure of eight so straight and turning frames are both measured.
+ * Run with gradle jmh, scores are frames per second per thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchOdometryBenchmark {
+    private static final int FRAMES = 100_000;
+
+    private SensorData[] frames;
+    private Path recording;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        frames = new SensorData[FRAMES];
+        LocalDateTime start = LocalDateTime.of(2018, 6, 1, 12, 0);
+        byte[] data = new byte[SensorData.MAX_SENSOR_BYTES];
+        int left = 0;
+        int right = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            // a lap of each loop every 2000 frames, with a straight stretch between them
+            int phase = i % 4000;
+            left += phase < 2000 ? 12 : (phase < 2200 ? 10 : 8);
+            right += phase < 2000 ? 8 : (phase < 2200 ? 10 : 12);
+            putShort(data, SensorPacket.LEFT_ENCODER_COUNTS.getOffset(), left);
+            putShort(data, SensorPacket.RIGHT_ENCODER_COUNTS.getOffset(), right);
+            frames[i] = new SensorData(data, data.length, start.plusNanos(i * 15_000_000L));
+        }
+
+        recording = Files.createTempFile("odometry", ".srsd");
+        try (OutputStream outputStream = Files.newOutputStream(recording)) {
+            SensorDataBinaryWriter writer = new SensorDataBinaryWriter(outputStream);
+            for (SensorData frame : frames) {
+                writer.write(frame);
+            }
+            writer.flush();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(recording);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void odometry(Blackhole blackhole) {
+        RoombaMapData roombaMapData = new RoombaMapData();
+        roombaMapData.setDebugLogging(false);
+        for (SensorData frame : frames) {
+            roombaMapData.update(frame);
+            blackhole.consume(roombaMapData.getX());
+            blackhole.consume(roombaMapData.getY());
+            blackhole.consume(roombaMapData.getRadians());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long binaryRecording(Blackhole blackhole) throws IOException {
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(recording)) {
+            return BatchOdometry.process(reader, (offsetNanos, x, y, radians) -> {
+                blackhole.consume(x);
+                blackhole.consume(y);
+                blackhole.consume(radians);
+            });
+        }
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
@@ -23,8 +23,8 @@
 package com.jgelderloos.smartroomba;
 
 import com.jgelderloos.smartroomba.roomba.RoombaConstants;
+import com.jgelderloos.smartroomba.roomba.OccupancyGrid;
 import com.jgelderloos.smartroomba.roomba.RoombaInfo;
-import com.jgelderloos.smartroomba.roomba.RoombaUtilities;
 import com.jgelderloos.smartroomba.roombacomm.RoombaCommPlaybackMode;
 import com.jgelderloos.smartroomba.roombacomm.RoombaCommSerial;
 import com.jgelderloos.smartroomba.utilities.DataCSVWriter;
@@ -43,13 +43,13 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 public class RoombaViewer {
     private static final Logger LOGGER = LogManager.getLogger();
 
     public static void main(String[] args) {
-        RoombaUtilities roombaUtilities = new RoombaUtilities();
         List<RoombaInfo> roombaInfoList = new ArrayList<>();
         MainPanel panel = new MainPanel(roombaInfoList);
         //SwingUtilities.invokeLater(RoombaViewer::createAndShowGUI);
@@ -62,21 +62,21 @@ public class RoombaViewer {
         // TODO: the GUI should have a panel/dialog to set information like comport, record, delay
         //String comport = "J:\\JonStuff\\Projects\\SmartRoomba\\data\\ForwardBumpTurnLeft.csv";
         String comport = "COM12";
-        ConcurrentLinkedQueue<RoombaInfo> roombaInfoQueue = new ConcurrentLinkedQueue<>();
-        //SmartRoomba smartRoomba = new SmartRoomba(new RoombaCommPlaybackMode(), comport, 100, false, false, new DataCSVWriter(null), roombaInfoQueue);
-        SmartRoomba smartRoomba = new SmartRoomba(new RoombaCommSerial(), comport, 100, false, false, new DataCSVWriter(null), roombaInfoQueue);
+        BlockingQueue<RoombaInfo> roombaInfoQueue = new LinkedBlockingQueue<>();
+        //SmartRoomba smartRoomba = new SmartRoomba(new RoombaCommPlaybackMode(), comport, 100, false, false, false, null, new DataCSVWriter(null), roombaInfoQueue);
+        SmartRoomba smartRoomba = new SmartRoomba(new RoombaCommSerial(), comport, 100, false, false, false, null, new DataCSVWriter(null), roombaInfoQueue);
         Thread smartRoombaThread = new Thread(smartRoomba);
         smartRoombaThread.start();
 
         boolean running = true;
         while (running) {
-            RoombaInfo roombaInfo = roombaInfoQueue.poll();
-            if (roombaInfo != null) {
-                panel.addRoombaInfo(roombaInfo);
-                //roombaInfoList.add(roombaInfo);
-                roombaUtilities.sleep(100, "waiting for data in RoombaViewer");
-            } else {
-                roombaUtilities.sleep(500, "waiting for data in RoombaViewer");
+            try {
+                // Block until SmartRoomba has new info, then hand it to the GUI thread
+                RoombaInfo roombaInfo = roombaInfoQueue.take();
+                SwingUtilities.invokeLater(() -> panel.addRoombaInfo(roombaInfo));
+            } catch (InterruptedException e) {
+                LOGGER.info("Interrupted while waiting for data in RoombaViewer");
+                running = false;
             }
         }
 
@@ -107,6 +107,7 @@ class MainPanel extends JPanel {
     private Point endMove;
     private Point moved = null;
     private List<RoombaInfo> roombaInfoList;
+    private OccupancyGrid occupancyGrid = new OccupancyGrid();
     private int currentRoombaInfoIndex;
     private int[] zoomLevelMillisPerPixel = {1, 2, 3, 4, 5, 10 ,20, 30};
     private int currentZoomLevel = 2;
@@ -117,6 +118,9 @@ class MainPanel extends JPanel {
     public MainPanel(List<RoombaInfo> roombaInfoList) {
         this.setFocusable(true);
         this.roombaInfoList = roombaInfoList;
+        for (RoombaInfo roombaInfo : roombaInfoList) {
+            occupancyGrid.update(roombaInfo);
+        }
         if (!this.roombaInfoList.isEmpty()) {
             currentRoombaInfoIndex = this.roombaInfoList.size() - 1;
         } else {
@@ -190,6 +194,7 @@ class MainPanel extends JPanel {
 
     public void addRoombaInfo(RoombaInfo roombaInfo) {
         roombaInfoList.add(roombaInfo);
+        occupancyGrid.update(roombaInfo);
         currentRoombaInfoIndex = roombaInfoList.size() - 1;
         repaint();
     }
@@ -290,9 +295,7 @@ class MainPanel extends JPanel {
             paintRoombaPath(graphics, roombaInfo, previousRoombaInfo);
             previousRoombaInfo = roombaInfo;
         }
-        for (RoombaInfo roombaInfo : roombaInfoList) {
-            paintObstacles(graphics, roombaInfo);
-        }
+        paintOccupiedCells(graphics);
         if (!roombaInfoList.isEmpty()) {
             paintFocusedRoomba(graphics, roombaInfoList.get(currentRoombaInfoIndex));
         }
@@ -320,6 +323,20 @@ class MainPanel extends JPanel {
         }
     }
 
+    private void paintOccupiedCells(Graphics graphics) {
+        graphics.setColor(Color.RED);
+        int cellMillimeters = occupancyGrid.getCellMillimeters();
+        int cellPx = Math.max(1, cellMillimeters / millisPerPixel);
+        occupancyGrid.forEachCell((cellX, cellY, logOdds) -> {
+            if (logOdds >= OccupancyGrid.OCCUPIED_LOG_ODDS) {
+                int xPos = (cellX * cellMillimeters / millisPerPixel) + origin.x;
+                int yPos = (-1 * (cellY + 1) * cellMillimeters / millisPerPixel) + origin.y;
+                graphics.fillRect(xPos, yPos, cellPx, cellPx);
+            }
+        });
+        graphics.setColor(Color.BLACK);
+    }
+
     private void paintObstacles(Graphics graphics, RoombaInfo roombaInfo) {
         if (roombaInfo.getSensorData().isBumpLeft() || roombaInfo.getSensorData().isBumpRight()) {
             int xPos = (int)(roombaInfo.getPosition().getPosition().x / millisPerPixel) + origin.x - roombaPxHalfDiameter;
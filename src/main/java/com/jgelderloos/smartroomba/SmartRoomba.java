@@ -22,42 +22,68 @@
 
 package com.jgelderloos.smartroomba;
 
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.BaudRate;
 import com.jgelderloos.smartroomba.roomba.RoombaConstants.OpCodes;
 import com.jgelderloos.smartroomba.roomba.RoombaInfo;
 import com.jgelderloos.smartroomba.roomba.RoombaMapData;
-import com.jgelderloos.smartroomba.roomba.RoombaUtilities;
 import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import com.jgelderloos.smartroomba.roombacomm.ConnectionHealthMonitor;
+import com.jgelderloos.smartroomba.roombacomm.LinkQuality;
 import com.jgelderloos.smartroomba.roombacomm.RoombaComm;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommPlaybackMode;
 import com.jgelderloos.smartroomba.roombacomm.RoombaCommSerial;
-import com.jgelderloos.smartroomba.utilities.DataCSVWriter;
+import com.jgelderloos.smartroomba.roombacomm.SafetyInterlock;
+import com.jgelderloos.smartroomba.roombacomm.SensorDataListener;
+import com.jgelderloos.smartroomba.utilities.AsyncSensorDataWriter;
+import com.jgelderloos.smartroomba.utilities.SensorDataRecorder;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
-import java.time.Duration;
-import java.time.LocalDateTime;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup.P100;
 
 public class SmartRoomba implements Runnable {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final long FULL_REQUESTS_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
     private RoombaComm roombaComm;
     private String comPort;
     private int pauseTime;
-    private DataCSVWriter dataCSVWriter;
+    private boolean stream;
+    private SensorPacketLayout sensorPacketLayout;
+    private BaudRate baudRate;
+    private SensorDataRecorder sensorDataRecorder;
     private Queue<RoombaInfo> roombaInfoQueue;
-    private RoombaUtilities roombaUtilities;
     private RoombaMapData roombaMapData;
+    // set when a playback seeks, until the first frame from the new position is processed
+    private final AtomicReference<PendingSeek> pendingSeek = new AtomicReference<>();
+    private SensorDataListener wakeUpListener;
+    private volatile boolean running = false;
+    private long pauseNanos;
+    private volatile ConnectionHealthMonitor healthMonitor;
+    private SafetyInterlock safetyInterlock;
+    private long nextRequestNanos;
+    private boolean requestsFull = false;
+    private volatile long dataCount = 0;
+    private volatile long unsafeCount = 0;
+    private volatile long stepCount = 0;
 
     public SmartRoomba(RoombaComm roombaComm, String comPort, int pauseTime, boolean debug, boolean hwHandshake,
-                       DataCSVWriter dataCSVWriter, Queue<RoombaInfo> roombaInfoQueue) {
+                       boolean stream, SensorPacketLayout sensorPacketLayout, SensorDataRecorder sensorDataRecorder,
+                       Queue<RoombaInfo> roombaInfoQueue) {
         this.roombaComm = roombaComm;
         this.comPort = comPort;
         this.pauseTime = pauseTime;
-        this.dataCSVWriter = dataCSVWriter;
+        this.stream = stream;
+        this.sensorPacketLayout = sensorPacketLayout;
+        this.sensorDataRecorder = sensorDataRecorder;
         this.roombaInfoQueue = roombaInfoQueue;
-        this.roombaUtilities = new RoombaUtilities();
         this.roombaMapData = new RoombaMapData();
 
         roombaComm.debug = debug;
@@ -71,20 +97,23 @@ public class SmartRoomba implements Runnable {
 
     }
 
+    /**
+     * Switch the link to this baud rate after connecting, only for serial connections
+     */
+    public void setBaudRate(BaudRate baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    /**
+     * Run until return is pressed or stop() is called, on the calling thread.
+     */
     public void run() {
-        if (!roombaComm.connect(comPort)) {
-            LOGGER.info("Couldn't conect to {}", comPort);
+        Thread runThread = Thread.currentThread();
+        if (!start(() -> LockSupport.unpark(runThread))) {
             return;
         }
 
-        LOGGER.info("Roomba startup");
-        //roombaComm.startup();
-        roombaComm.send(OpCodes.START.getId());
-
         LOGGER.info("Press return to exit");
-        int dataCount = 1;
-        LocalDateTime lastSensorUpdate = LocalDateTime.now();
-        boolean running = true;
         while (running) {
             try {
                 if (System.in.available() != 0) {
@@ -95,60 +124,260 @@ public class SmartRoomba implements Runnable {
                 LOGGER.error("Exception while reading keyboard input");
             }
 
-            // TODO: use Stream instead of always requesting packets
-            //boolean rc =  roombaComm.updateSensors();
-            byte[] sensorCmd = {(byte)OpCodes.SENSORS.getId(), (byte)P100.getId()};
-            roombaComm.setReadRequestLength(roombaUtilities.getSensorPacketSize(P100));
-            roombaComm.send(sensorCmd);
+            long waitNanos = step();
+            if (running && waitNanos > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+        }
+        shutdown();
+    }
 
-            // TODO: do we need an end packet for the recorded sensor data so we stop the replay?
+    /**
+     * Connect and get the Roomba ready. After this step() has to be called whenever wakeUp is run and whenever the
+     * time it returns runs out, until shutdown().
+     *
+     * @param wakeUp run on the receiving thread as soon as sensor data arrives
+     * @return false if the connection failed
+     */
+    public boolean start(Runnable wakeUp) {
+        if (!roombaComm.connect(comPort)) {
+            LOGGER.info("Couldn't conect to {}", comPort);
+            return false;
+        }
 
-            boolean dataAvailable = true;
-            while (dataAvailable) {
-                SensorData sensorData = roombaComm.getSensorDataQueue().poll();
-                if (sensorData != null) {
-                    lastSensorUpdate = LocalDateTime.now();
-                    LOGGER.debug("Sensor Data: {} {}", dataCount, lastSensorUpdate);
-                    LOGGER.debug(sensorData.getRawDataAsCSVString());
-                    processData(sensorData);
-                    dataCSVWriter.writeData(sensorData);
-                    dataCount++;
+        LOGGER.info("Roomba startup");
+        //roombaComm.startup();
+        roombaComm.send(OpCodes.START.getId());
+
+        if (baudRate != null && roombaComm instanceof RoombaCommSerial) {
+            RoombaCommSerial serial = (RoombaCommSerial) roombaComm;
+            if (!serial.negotiateBaudRate(baudRate)) {
+                LOGGER.warn("Could not switch to {} baud, staying at {}", baudRate.getRate(), serial.getRate());
+            }
+        }
+
+        if (stream) {
+            LOGGER.info("Starting sensor stream");
+            if (sensorPacketLayout != null) {
+                roombaComm.startStream(sensorPacketLayout);
+            } else {
+                roombaComm.startStream(P100);
+            }
+        }
+
+        // Wake up as soon as sensor data arrives instead of waiting out the pause
+        wakeUpListener = sensorData -> wakeUp.run();
+        roombaComm.addSensorDataListener(wakeUpListener);
+
+        // Stops the Roomba from the receiving thread, processData() only counts the unsafe frames
+        safetyInterlock = new SafetyInterlock(roombaComm);
+        safetyInterlock.start();
+
+        if (roombaComm instanceof RoombaCommPlaybackMode) {
+            ((RoombaCommPlaybackMode) roombaComm).setSeekListener((resumedMapData, replayGeneration) ->
+                    pendingSeek.set(new PendingSeek(resumedMapData, replayGeneration)));
+        }
+
+        healthMonitor = new ConnectionHealthMonitor(roombaComm, comPort);
+        // reopening a playback file or a simulator would start them over, only serial ports are reconnected
+        healthMonitor.setReconnectEnabled(roombaComm instanceof RoombaCommSerial);
+        healthMonitor.start();
+
+        pauseNanos = TimeUnit.MILLISECONDS.toNanos(pauseTime);
+        nextRequestNanos = System.nanoTime();
+        running = true;
+        return true;
+    }
+
+    /**
+     * Send any sensor requests that are due and process all the sensor data that has arrived.
+     *
+     * @return how long until step() should be called again if no sensor data arrives first, in nanoseconds
+     */
+    public long step() {
+        stepCount++;
+        // When streaming the Roomba sends sensor data on its own, otherwise it has to be requested every pause.
+        // Top up the requests waiting for a reply so the serial link stays busy.
+        if (!stream && System.nanoTime() - nextRequestNanos >= 0) {
+            int requestsSent = 0;
+            requestsFull = false;
+            while (!requestsFull && requestsSent < roombaComm.getMaxRequestsInFlight()) {
+                if (sensorPacketLayout != null) {
+                    requestsFull = !roombaComm.requestSensors(sensorPacketLayout);
                 } else {
-                    dataAvailable = false;
+                    requestsFull = !roombaComm.requestSensors(P100);
                 }
+                if (!requestsFull) {
+                    requestsSent++;
+                }
+            }
+            if (requestsSent > 0) {
+                nextRequestNanos = System.nanoTime() + pauseNanos;
             }
+        }
 
-            long timeWithoutSensor = Duration.between(lastSensorUpdate, LocalDateTime.now()).toMillis();
+        // TODO: do we need an end packet for the recorded sensor data so we stop the replay?
 
-            long sensorCheckInterval = 5000;
-            if (timeWithoutSensor > sensorCheckInterval) {
-                lastSensorUpdate = LocalDateTime.now();
-                LOGGER.info("No sensor data in over {} seconds. Make sure the Roomba is on.", sensorCheckInterval/1000);
+        boolean dataAvailable = true;
+        while (dataAvailable) {
+            SensorData sensorData = roombaComm.getSensorDataQueue().poll();
+            if (sensorData != null) {
+                dataCount++;
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Sensor Data: {} {}", dataCount, sensorData.getDateTime());
+                    LOGGER.debug(sensorData.getRawDataAsCSVString());
+                }
+                processData(sensorData);
+                sensorDataRecorder.writeData(sensorData);
+                sensorData.release();
+            } else {
+                dataAvailable = false;
             }
+        }
 
-            roombaUtilities.sleep(pauseTime, "waiting for DSR");
+        // Warns when sensor data stops coming and reconnects serial connections
+        healthMonitor.check();
 
+        // Sleep until sensor data arrives, the next request is due or it is time to check the keyboard again
+        long waitNanos = stream ? pauseNanos : nextRequestNanos - System.nanoTime();
+        if (!stream && requestsFull) {
+            // No room for more requests until a reply arrives, which wakes this thread up
+            waitNanos = Math.max(waitNanos, FULL_REQUESTS_WAIT_NANOS);
+        }
+        return waitNanos;
+    }
+
+    /**
+     * Stop the Roomba and disconnect. Only call this after a successful start(), from the thread calling step().
+     */
+    public void shutdown() {
+        running = false;
+        roombaComm.removeSensorDataListener(wakeUpListener);
+        healthMonitor.stop();
+        LOGGER.info("Link quality: {}", healthMonitor.getLinkQuality());
+        safetyInterlock.stop();
+        if (safetyInterlock.getTripCount() > 0) {
+            LOGGER.info("Safety interlock tripped {} times, slowest reaction {} us", safetyInterlock.getTripCount(),
+                    TimeUnit.NANOSECONDS.toMicros(safetyInterlock.getMaxReactionNanos()));
+        }
+        if (stream) {
+            roombaComm.stopStream();
+        }
+        if (roombaComm.getSensorDataQueue() instanceof SpscRingQueue) {
+            SpscRingQueue<SensorData> sensorDataQueue = (SpscRingQueue<SensorData>) roombaComm.getSensorDataQueue();
+            LOGGER.info("Sensor data dropped: {} queue high water mark: {}/{}", sensorDataQueue.getDropCount(),
+                    sensorDataQueue.getHighWaterMark(), sensorDataQueue.capacity());
         }
         LOGGER.info("Disconnecting");
-        dataCSVWriter.close();
+        sensorDataRecorder.close();
+        if (sensorDataRecorder instanceof AsyncSensorDataWriter) {
+            AsyncSensorDataWriter writer = (AsyncSensorDataWriter) sensorDataRecorder;
+            LOGGER.info("Sensor data recorded: {} dropped: {} queue high water mark: {}", writer.getWrittenCount(),
+                    writer.getDroppedCount(), writer.getHighWaterMark());
+        }
         roombaComm.disconnect();
 
         LOGGER.info("Done");
     }
 
+    /**
+     * Jump a playback to offsetNanos from the start of the recording. The position carries on from the recording's
+     * keyframes instead of being worked out again from the start.
+     *
+     * @return false if this is not playing back a recording that can be seeked
+     */
+    public boolean seek(long offsetNanos) {
+        return roombaComm instanceof RoombaCommPlaybackMode && ((RoombaCommPlaybackMode) roombaComm).seek(offsetNanos);
+    }
+
+    /**
+     * Ask run() to finish, it shuts down the next time it wakes up.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public RoombaComm getRoombaComm() {
+        return roombaComm;
+    }
+
+    /**
+     * @return how well sensor data has been getting through, or null before start()
+     */
+    public LinkQuality getLinkQuality() {
+        ConnectionHealthMonitor monitor = healthMonitor;
+        return monitor == null ? null : monitor.getLinkQuality();
+    }
+
+    /**
+     * @return the number of sensor data frames processed
+     */
+    public long getDataCount() {
+        return dataCount;
+    }
+
+    /**
+     * @return the number of frames where the sensors saw an unsafe condition
+     */
+    public long getUnsafeCount() {
+        return unsafeCount;
+    }
+
+    /**
+     * @return the number of times step() has run
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
     private void processData(SensorData sensorData) {
-        if (!isSafeToContinue(sensorData)) {
-            roombaComm.send(OpCodes.START.getId());
-            LOGGER.warn("Unsafe condition detected by sensors. Stopping Roomba");
-        } else {
-            RoombaInfo roombaInfo = roombaMapData.processSensorData(sensorData);
+        boolean positionFollows = catchUpWithSeek(sensorData);
+        if (sensorData.isUnsafe()) {
+            // the safety interlock has already stopped the Roomba
+            unsafeCount++;
+            LOGGER.debug("Unsafe condition detected by sensors");
+        } else if (!positionFollows) {
+            LOGGER.debug("Skipping sensor data replayed before a seek");
+        } else if (roombaInfoQueue != null) {
+            // The RoombaInfo keeps the sensor data around, so hold on to it instead of letting it be recycled
+            RoombaInfo roombaInfo = roombaMapData.processSensorData(sensorData.retain());
             roombaInfoQueue.add(roombaInfo);
+        } else {
+            roombaMapData.update(sensorData);
+        }
+    }
+
+    /**
+     * Switch to the position a playback seek worked out once the first frame from the new position arrives, which is
+     * the first frame stamped with the seek's replay generation. Frames still queued from before the seek do not
+     * follow on from that position.
+     *
+     * @return false if the frame was replayed before a seek and should not move the position
+     */
+    private boolean catchUpWithSeek(SensorData sensorData) {
+        PendingSeek seek = pendingSeek.get();
+        if (seek == null) {
+            return true;
+        }
+        if (sensorData.getReplayGeneration() < seek.replayGeneration) {
+            return false;
         }
+        roombaMapData = seek.roombaMapData;
+        pendingSeek.compareAndSet(seek, null);
+        return true;
     }
 
-    private boolean isSafeToContinue(SensorData sensorData) {
-        return !sensorData.isCliffLeft() && !sensorData.isCliffRight() && !sensorData.isCliffFrontLeft() && !sensorData.isCliffFrontRight() &&
-                !sensorData.isWheelDropLeft() && !sensorData.isWheelDropRight() && !sensorData.isOverCurrentLeftWheel() &&
-                !sensorData.isOverCurrentRightWheel() && !sensorData.isOverCurrentMainBrush() && !sensorData.isOverCurrentSideBrush();
+    private static class PendingSeek {
+        private final RoombaMapData roombaMapData;
+        private final long replayGeneration;
+
+        PendingSeek(RoombaMapData roombaMapData, long replayGeneration) {
+            this.roombaMapData = roombaMapData;
+            this.replayGeneration = replayGeneration;
+        }
     }
 }
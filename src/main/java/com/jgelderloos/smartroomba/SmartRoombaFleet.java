@@ -0,0 +1,345 @@
+/*
+ *  SmartRoomba - SmartRoombaFleet
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roombacomm.LinkQuality;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs many SmartRoombas in one JVM on a shared scheduler instead of a thread and a JVM each. Each robot's step()
+ * runs on whichever scheduler thread is free, as soon as its sensor data arrives or its next request is due, and never
+ * on two threads at once. Robots are added by name and started and stopped from code.
+ * <p>
+ * The scheduler can be shared with the robots' RoombaComms, for example simulated Roombas ticking on the same threads.
+ */
+public class SmartRoombaFleet implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger(SmartRoombaFleet.class);
+
+    public enum State {
+        ADDED,
+        STARTING,
+        RUNNING,
+        STOPPING,
+        STOPPED,
+        FAILED
+    }
+
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Map<String, Robot> robots = new LinkedHashMap<>();
+
+    /**
+     * @param threads the number of scheduler threads shared by every robot
+     */
+    public SmartRoombaFleet(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        scheduler = new ScheduledThreadPoolExecutor(threads, runnable -> {
+            Thread thread = new Thread(runnable, "SmartRoombaFleet-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // every step cancels the previous timer, do not let them pile up in the queue
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return the scheduler the robots run on, for RoombaComms that can share it
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public synchronized void add(String name, SmartRoomba smartRoomba) {
+        if (robots.containsKey(name)) {
+            throw new IllegalArgumentException("There is already a robot called " + name);
+        }
+        robots.put(name, new Robot(name, smartRoomba));
+    }
+
+    /**
+     * Connect the robot and start running it on the scheduler
+     */
+    public synchronized void start(String name) {
+        getRobot(name).start();
+    }
+
+    public synchronized void startAll() {
+        for (Robot robot : robots.values()) {
+            robot.start();
+        }
+    }
+
+    /**
+     * Shut the robot down and disconnect it
+     *
+     * @return completes once the robot has stopped
+     */
+    public synchronized CompletableFuture<Void> stop(String name) {
+        return getRobot(name).stop();
+    }
+
+    public synchronized CompletableFuture<Void> stopAll() {
+        CompletableFuture<?>[] stopped = robots.values().stream().map(Robot::stop).toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(stopped);
+    }
+
+    public synchronized State getState(String name) {
+        return getRobot(name).state.get();
+    }
+
+    /**
+     * @return a snapshot of every robot's metrics, in the order they were added
+     */
+    public synchronized Map<String, RobotMetrics> getMetrics() {
+        Map<String, RobotMetrics> metrics = new LinkedHashMap<>();
+        for (Robot robot : robots.values()) {
+            metrics.put(robot.name, robot.getMetrics());
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Stop every robot, wait for them to finish and shut the scheduler down
+     */
+    @Override
+    public void close() {
+        try {
+            stopAll().get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOGGER.warn("Not every robot stopped cleanly. ", e);
+        }
+        scheduler.shutdownNow();
+    }
+
+    private Robot getRobot(String name) {
+        Robot robot = robots.get(name);
+        if (robot == null) {
+            throw new IllegalArgumentException("There is no robot called " + name);
+        }
+        return robot;
+    }
+
+    /**
+     * One robot's pipeline. Wake ups are counted so a wake up that comes in while step() is running makes it run
+     * again instead of running it on a second thread.
+     */
+    private class Robot implements Runnable {
+        private final String name;
+        private final SmartRoomba smartRoomba;
+        private final AtomicInteger pendingWakeUps = new AtomicInteger();
+        private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+        private final AtomicReference<State> state = new AtomicReference<>(State.ADDED);
+        private ScheduledFuture<?> timer;
+        private volatile long startNanos = 0;
+        private volatile long stepNanos = 0;
+
+        Robot(String name, SmartRoomba smartRoomba) {
+            this.name = name;
+            this.smartRoomba = smartRoomba;
+        }
+
+        void start() {
+            if (state.compareAndSet(State.ADDED, State.STARTING)) {
+                wakeUp();
+            }
+        }
+
+        CompletableFuture<Void> stop() {
+            if (state.compareAndSet(State.ADDED, State.STOPPED)) {
+                stopped.complete(null);
+            } else if (state.compareAndSet(State.STARTING, State.STOPPING) || state.compareAndSet(State.RUNNING, State.STOPPING)) {
+                wakeUp();
+            }
+            return stopped;
+        }
+
+        void wakeUp() {
+            if (pendingWakeUps.getAndIncrement() == 0) {
+                scheduler.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int seen;
+            do {
+                seen = pendingWakeUps.get();
+                try {
+                    runOnce();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Robot {} failed. ", name, e);
+                    state.set(State.FAILED);
+                    stopped.complete(null);
+                }
+            } while (!pendingWakeUps.compareAndSet(seen, 0));
+        }
+
+        private void runOnce() {
+            switch (state.get()) {
+                case STARTING:
+                    if (smartRoomba.start(this::wakeUp)) {
+                        startNanos = System.nanoTime();
+                        // if stop() came in while connecting it has already queued another run to shut down
+                        if (state.compareAndSet(State.STARTING, State.RUNNING)) {
+                            step();
+                        }
+                    } else {
+                        state.set(State.FAILED);
+                        stopped.complete(null);
+                    }
+                    break;
+                case RUNNING:
+                    step();
+                    break;
+                case STOPPING:
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                    if (smartRoomba.isRunning()) {
+                        smartRoomba.shutdown();
+                    }
+                    state.set(State.STOPPED);
+                    stopped.complete(null);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void step() {
+            long before = System.nanoTime();
+            long waitNanos = smartRoomba.step();
+            stepNanos += System.nanoTime() - before;
+            if (timer != null) {
+                timer.cancel(false);
+            }
+            timer = scheduler.schedule(this::wakeUp, Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+        }
+
+        RobotMetrics getMetrics() {
+            long dropped = 0;
+            if (smartRoomba.getRoombaComm().getSensorDataQueue() instanceof SpscRingQueue) {
+                dropped = ((SpscRingQueue<SensorData>) smartRoomba.getRoombaComm().getSensorDataQueue()).getDropCount();
+            }
+            long runningNanos = startNanos == 0 ? 0 : System.nanoTime() - startNanos;
+            return new RobotMetrics(name, state.get(), smartRoomba.getDataCount(), runningNanos, dropped,
+                    smartRoomba.getUnsafeCount(), smartRoomba.getStepCount(), stepNanos, smartRoomba.getLinkQuality());
+        }
+    }
+
+    /**
+     * What one robot has done since it was started
+     */
+    public static class RobotMetrics {
+        private final String name;
+        private final State state;
+        private final long dataCount;
+        private final long runningNanos;
+        private final long droppedCount;
+        private final long unsafeCount;
+        private final long stepCount;
+        private final long stepNanos;
+        private final LinkQuality linkQuality;
+
+        public RobotMetrics(String name, State state, long dataCount, long runningNanos, long droppedCount, long unsafeCount,
+                            long stepCount, long stepNanos, LinkQuality linkQuality) {
+            this.name = name;
+            this.state = state;
+            this.dataCount = dataCount;
+            this.runningNanos = runningNanos;
+            this.droppedCount = droppedCount;
+            this.unsafeCount = unsafeCount;
+            this.stepCount = stepCount;
+            this.stepNanos = stepNanos;
+            this.linkQuality = linkQuality;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return sensor data frames processed
+         */
+        public long getDataCount() {
+            return dataCount;
+        }
+
+        public double getDataPerSecond() {
+            return runningNanos == 0 ? 0 : dataCount * 1e9 / runningNanos;
+        }
+
+        /**
+         * @return frames dropped because the robot's sensor data queue was full
+         */
+        public long getDroppedCount() {
+            return droppedCount;
+        }
+
+        public long getUnsafeCount() {
+            return unsafeCount;
+        }
+
+        public long getStepCount() {
+            return stepCount;
+        }
+
+        /**
+         * @return the average time spent in one step, in microseconds
+         */
+        public double getMeanStepMicros() {
+            return stepCount == 0 ? 0 : stepNanos / 1e3 / stepCount;
+        }
+
+        /**
+         * @return the robot's link quality, or null if it has not been started
+         */
+        public LinkQuality getLinkQuality() {
+            return linkQuality;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s data: %d (%.1f/s) dropped: %d unsafe: %d steps: %d (%.1f us)", name, state, dataCount,
+                    getDataPerSecond(), droppedCount, unsafeCount, stepCount, getMeanStepMicros());
+        }
+    }
+}
@@ -22,10 +22,18 @@
 
 package com.jgelderloos.smartroomba;
 
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.BaudRate;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
 import com.jgelderloos.smartroomba.roombacomm.RoombaComm;
 import com.jgelderloos.smartroomba.roombacomm.RoombaCommPlaybackMode;
 import com.jgelderloos.smartroomba.roombacomm.RoombaCommSerial;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommSerial.IoModel;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommSimulator;
+import com.jgelderloos.smartroomba.utilities.AsyncSensorDataWriter;
 import com.jgelderloos.smartroomba.utilities.DataCSVWriter;
+import com.jgelderloos.smartroomba.utilities.ReplaySensorDataThread;
+import com.jgelderloos.smartroomba.utilities.SensorDataBinaryWriter;
+import com.jgelderloos.smartroomba.utilities.SensorDataRecorder;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -36,18 +44,19 @@ import org.apache.commons.cli.ParseException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.regex.Pattern;
 
 public class SmartRoombaMain {
     private static final Logger LOGGER = LogManager.getLogger();
+    private static final String BINARY_EXTENSION = ".srsd";
 
     public static void main(String[] args) {
         Options options = new Options();
 
-        Option comportOption = new Option("c", "comport", true, "name of com port to connect to");
+        Option comportOption = new Option("c", "comport", true, "name of com port to connect to, a file to play back or simulator");
         comportOption.setRequired(true);
         options.addOption(comportOption);
 
@@ -63,10 +72,34 @@ public class SmartRoombaMain {
         hwhandshakeOption.setOptionalArg(true);
         options.addOption(hwhandshakeOption);
 
-        Option recordOption = new Option("r", "record", true, "record sensor data");
+        Option streamOption = new Option("s", "stream", false, "stream sensor data instead of requesting it every pause");
+        streamOption.setOptionalArg(true);
+        options.addOption(streamOption);
+
+        Option queryListOption = new Option("q", "querylist", false, "only read the sensor packets needed for odometry and safety");
+        queryListOption.setOptionalArg(true);
+        options.addOption(queryListOption);
+
+        Option inFlightOption = new Option("i", "inflight", true, "number of sensor requests to keep waiting for a reply at once");
+        inFlightOption.setOptionalArg(true);
+        options.addOption(inFlightOption);
+
+        Option baudOption = new Option("b", "baud", true, "baud rate to switch the Roomba to after connecting");
+        baudOption.setOptionalArg(true);
+        options.addOption(baudOption);
+
+        Option ioModelOption = new Option("o", "iomodel", true, "how to read the serial port, event or blocking");
+        ioModelOption.setOptionalArg(true);
+        options.addOption(ioModelOption);
+
+        Option recordOption = new Option("r", "record", true, "record sensor data, in the binary format if the file name ends in " + BINARY_EXTENSION);
         recordOption.setOptionalArg(true);
         options.addOption(recordOption);
 
+        Option speedOption = new Option("x", "speed", true, "replay speed when playing back a file, like 0.5 or 10, or max");
+        speedOption.setOptionalArg(true);
+        options.addOption(speedOption);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd = null;
@@ -85,7 +118,13 @@ public class SmartRoombaMain {
             String pause = cmd.getOptionValue("pause", "500");
             boolean debug = cmd.hasOption("debug");
             boolean hwhandshake = cmd.hasOption("hwhandshake");
+            boolean stream = cmd.hasOption("stream");
+            SensorPacketLayout sensorPacketLayout = cmd.hasOption("querylist") ? SensorPacketLayout.ODOMETRY_AND_SAFETY : null;
             String record = cmd.getOptionValue("record", null);
+            String inFlight = cmd.getOptionValue("inflight", "1");
+            String baud = cmd.getOptionValue("baud", null);
+            String ioModel = cmd.getOptionValue("iomodel", "event");
+            String speed = cmd.getOptionValue("speed", "1");
 
             int pauseTime = 500;
             try {
@@ -94,24 +133,65 @@ public class SmartRoombaMain {
                 LOGGER.error("Pause must be an integer value. See usage for details", e);
             }
 
-            FileWriter fileWriter = null;
+            SensorDataRecorder sensorDataRecorder = new DataCSVWriter(null);
             try {
                 if (record != null) {
-                    fileWriter = new FileWriter(record);
+                    // record on a thread of its own so a slow disk can't hold up the control loop
+                    AsyncSensorDataWriter writer;
+                    if (record.endsWith(BINARY_EXTENSION)) {
+                        writer = new AsyncSensorDataWriter(new SensorDataBinaryWriter(new FileOutputStream(record), null,
+                                sensorPacketLayout));
+                    } else {
+                        writer = new AsyncSensorDataWriter(new FileWriter(record));
+                    }
+                    writer.start();
+                    sensorDataRecorder = writer;
                 }
             } catch (IOException e) {
                 LOGGER.error("Could not open the file for writing. {}", record, e);
             }
-            DataCSVWriter dataCSVWriter = new DataCSVWriter(fileWriter);
             RoombaComm roombaComm;
             Pattern comPortPattern = Pattern.compile("COM\\d+");
             if (comPortPattern.matcher(comport).matches()) {
-                roombaComm = new RoombaCommSerial();
+                RoombaCommSerial serial = new RoombaCommSerial();
+                if ("blocking".equals(ioModel)) {
+                    serial.setIoModel(IoModel.BLOCKING_READ);
+                } else if (!"event".equals(ioModel)) {
+                    LOGGER.error("I/O model must be event or blocking. See usage for details");
+                }
+                roombaComm = serial;
+            } else if (RoombaCommSimulator.PORT_NAME.equals(comport)) {
+                roombaComm = new RoombaCommSimulator();
             } else {
-                roombaComm = new RoombaCommPlaybackMode();
+                RoombaCommPlaybackMode playback = new RoombaCommPlaybackMode();
+                try {
+                    playback.setReplaySpeed("max".equals(speed) ? ReplaySensorDataThread.AS_FAST_AS_POSSIBLE
+                            : Double.parseDouble(speed));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error("Speed must be a number greater than 0 or max. See usage for details", e);
+                }
+                roombaComm = playback;
+            }
+
+            try {
+                roombaComm.setMaxRequestsInFlight(Integer.parseInt(inFlight));
+            } catch (IllegalArgumentException e) {
+                LOGGER.error("In flight must be an integer value from 1 to 32. See usage for details", e);
             }
 
-            SmartRoomba smartRoomba = new SmartRoomba(roombaComm, comport, pauseTime, debug, hwhandshake, dataCSVWriter, new ConcurrentLinkedQueue<>());
+            SmartRoomba smartRoomba = new SmartRoomba(roombaComm, comport, pauseTime, debug, hwhandshake, stream, sensorPacketLayout,
+                    sensorDataRecorder, null);
+            if (baud != null) {
+                try {
+                    BaudRate baudRate = BaudRate.fromRate(Integer.parseInt(baud));
+                    if (baudRate == null) {
+                        LOGGER.error("Baud rate {} is not supported by the Roomba. See usage for details", baud);
+                    }
+                    smartRoomba.setBaudRate(baudRate);
+                } catch (NumberFormatException e) {
+                    LOGGER.error("Baud must be an integer value. See usage for details", e);
+                }
+            }
             Thread smartRoombaThread = new Thread(smartRoomba);
             smartRoombaThread.start();
         }
@@ -0,0 +1,75 @@
+/*
+ *  SmartRoomba - LatencyRecorder
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples in nanoseconds and reports percentiles. Samples past the capacity are counted but not
+ * kept, so a long run can not use up the heap.
+ */
+public class LatencyRecorder {
+    private final long[] samples;
+    private int count = 0;
+    private long droppedCount = 0;
+
+    public LatencyRecorder(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public synchronized void record(long nanos) {
+        if (count < samples.length) {
+            samples[count++] = nanos;
+        } else {
+            droppedCount++;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the sample at the percentile using the nearest rank, or 0 if there are no samples
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * count);
+        return sorted[Math.max(0, Math.min(count - 1, rank - 1))];
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        droppedCount = 0;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *  SmartRoomba - OIResponder
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.benchmark;
+
+import com.jgelderloos.smartroomba.simulator.OISimulator;
+import com.jgelderloos.smartroomba.simulator.SimulatedRoom;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Answers OI commands on the Roomba end of a pseudo terminal with an OISimulator running in real time. Replies are
+ * written as soon as they are ready, the pseudo terminal does not pace them like a real serial link would, so the
+ * benchmark measures the receive path rather than the baud rate. The time every reply or stream frame is written is
+ * kept so it can be matched to the frame when it arrives.
+ */
+public class OIResponder implements AutoCloseable {
+    private static final Logger LOGGER = LogManager.getLogger(OIResponder.class);
+    private static final int WRITE_TIMES_CAPACITY = 4096;
+
+    private final OISimulator simulator;
+    private final FileInputStream input;
+    private final FileOutputStream output;
+    private final TimestampQueue writeTimes = new TimestampQueue(WRITE_TIMES_CAPACITY);
+    private volatile boolean running = false;
+    private Thread readThread;
+    private Thread tickThread;
+
+    public OIResponder(String device, SimulatedRoom room) throws IOException {
+        input = new FileInputStream(device);
+        output = new FileOutputStream(device);
+        simulator = new OISimulator(room, this::write);
+    }
+
+    public void start() {
+        running = true;
+        readThread = new Thread(this::readCommands, "OIResponderRead");
+        tickThread = new Thread(this::tick, "OIResponderTick");
+        readThread.setDaemon(true);
+        tickThread.setDaemon(true);
+        readThread.start();
+        tickThread.start();
+    }
+
+    /**
+     * @return the times replies and stream frames were written, oldest first
+     */
+    public TimestampQueue getWriteTimes() {
+        return writeTimes;
+    }
+
+    /**
+     * @return the ids of the responder's threads, so their CPU time can be left out of the receive path's
+     */
+    public long[] getThreadIds() {
+        return new long[] {readThread.getId(), tickThread.getId()};
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            input.close();
+            output.close();
+        } catch (IOException e) {
+            LOGGER.debug("Error closing the responder's pseudo terminal. ", e);
+        }
+        for (Thread thread : new Thread[] {readThread, tickThread}) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        try {
+            output.write(bytes, offset, length);
+            writeTimes.add(System.nanoTime());
+        } catch (IOException e) {
+            if (running) {
+                LOGGER.error("Error writing to the pseudo terminal. ", e);
+            }
+        }
+    }
+
+    private void readCommands() {
+        byte[] buffer = new byte[256];
+        try {
+            int read;
+            while (running && (read = input.read(buffer)) >= 0) {
+                synchronized (simulator) {
+                    simulator.receive(buffer, 0, read);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                LOGGER.error("Error reading from the pseudo terminal. ", e);
+            }
+        }
+    }
+
+    private void tick() {
+        long tickNanos = OISimulator.DEFAULT_TICK_NANOS;
+        long nextTickNanos = System.nanoTime();
+        while (running) {
+            synchronized (simulator) {
+                simulator.advance(tickNanos);
+            }
+            nextTickNanos += tickNanos;
+            long waitNanos = nextTickNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(this, waitNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  SmartRoomba - PseudoTerminalPair
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pair of connected Linux pseudo terminals made by socat. Whatever is written to one end can be read from the other,
+ * like a null modem cable, so RoombaCommSerial can talk to a responder without a Roomba.
+ */
+public class PseudoTerminalPair implements AutoCloseable {
+    private static final long START_TIMEOUT_MILLIS = 5000;
+
+    private final Process socat;
+    private final Path directory;
+    private final Path hostLink;
+    private final Path roombaLink;
+
+    /**
+     * @param socatCommand the socat executable, on the path or with its full path
+     */
+    public PseudoTerminalPair(String socatCommand) throws IOException {
+        directory = Files.createTempDirectory("roomba-pty");
+        hostLink = directory.resolve("host");
+        roombaLink = directory.resolve("roomba");
+        socat = new ProcessBuilder(socatCommand, "pty,raw,echo=0,link=" + hostLink, "pty,raw,echo=0,link=" + roombaLink)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(START_TIMEOUT_MILLIS);
+        while (!Files.exists(hostLink) || !Files.exists(roombaLink)) {
+            if (!socat.isAlive() || System.nanoTime() - deadline > 0) {
+                close();
+                throw new IOException("socat did not create the pseudo terminals in " + directory);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for socat", e);
+            }
+        }
+    }
+
+    /**
+     * @return the device for RoombaCommSerial to open, like /dev/pts/3
+     */
+    public String getHostDevice() throws IOException {
+        return hostLink.toRealPath().toString();
+    }
+
+    /**
+     * @return the device for the responder to open
+     */
+    public String getRoombaDevice() throws IOException {
+        return roombaLink.toRealPath().toString();
+    }
+
+    @Override
+    public void close() {
+        socat.destroy();
+        try {
+            socat.waitFor(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            Files.deleteIfExists(hostLink);
+            Files.deleteIfExists(roombaLink);
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            // socat removes its links when it exits, anything left in the temp directory is harmless
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ *  SmartRoomba - SerialLoopbackBenchmark
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.benchmark;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.OpCodes;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommSerial;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommSerial.IoModel;
+import com.jgelderloos.smartroomba.roombacomm.SensorDataListener;
+import com.jgelderloos.smartroomba.roombacomm.SensorFrameReceiver;
+import com.jgelderloos.smartroomba.simulator.SimulatedRoom;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup.P100;
+
+/**
+ * Measures the serial receive path without a Roomba. RoombaCommSerial is attached to one end of a pseudo terminal pair
+ * and an OIResponder to the other, then each mode is run for a while and the frames per second, bytes per second, CPU
+ * time per frame and latency percentiles are printed. Latency is from sending the request to the frame reaching the
+ * listeners when polling, and from the responder writing the frame to it reaching the listeners when streaming.
+ * <p>
+ * Run it once with -o event and once with -o blocking to compare the latency and jitter of the two serial I/O models.
+ * Needs Linux, socat and the RXTX native library. Run it with: gradle serialBenchmark -PbenchmarkArgs="-s 10 -i 4"
+ */
+public class SerialLoopbackBenchmark {
+    private static final int LATENCY_SAMPLES = 1 << 20;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SETTLE_MILLIS = 300;
+    // a stamp for every request that can be waiting for a reply
+    private static final int SEND_TIMES_CAPACITY = SensorFrameReceiver.MAX_REQUESTS_IN_FLIGHT;
+
+    public enum Mode {
+        POLL,
+        QUERY_LIST,
+        STREAM
+    }
+
+    private final RoombaCommSerial roombaComm;
+    private final OIResponder responder;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    public SerialLoopbackBenchmark(RoombaCommSerial roombaComm, OIResponder responder) {
+        this.roombaComm = roombaComm;
+        this.responder = responder;
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption(new Option("m", "mode", true, "poll, querylist, stream or all (default all)"));
+        options.addOption(new Option("s", "seconds", true, "seconds to measure each mode for (default 5)"));
+        options.addOption(new Option("w", "warmup", true, "seconds to run each mode before measuring (default 1)"));
+        options.addOption(new Option("i", "inflight", true, "sensor requests to keep waiting for a reply when polling (default 1)"));
+        options.addOption(new Option("o", "iomodel", true, "how to read the serial port, event or blocking (default event)"));
+        options.addOption(new Option("x", "socat", true, "socat executable (default socat)"));
+
+        CommandLine cmd;
+        try {
+            CommandLineParser parser = new DefaultParser();
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println(e.getMessage());
+            new HelpFormatter().printHelp("SerialLoopbackBenchmark", options);
+            System.exit(1);
+            return;
+        }
+
+        List<Mode> modes = new ArrayList<>();
+        String mode = cmd.getOptionValue("mode", "all");
+        if (mode.equals("all")) {
+            for (Mode value : Mode.values()) {
+                modes.add(value);
+            }
+        } else {
+            modes.add(Mode.valueOf(mode.toUpperCase().replace("QUERYLIST", "QUERY_LIST")));
+        }
+        long measureNanos = TimeUnit.SECONDS.toNanos(Integer.parseInt(cmd.getOptionValue("seconds", "5")));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Integer.parseInt(cmd.getOptionValue("warmup", "1")));
+        int inFlight = Integer.parseInt(cmd.getOptionValue("inflight", "1"));
+        IoModel ioModel = "blocking".equals(cmd.getOptionValue("iomodel")) ? IoModel.BLOCKING_READ : IoModel.EVENT_LISTENER;
+
+        try (PseudoTerminalPair pseudoTerminalPair = new PseudoTerminalPair(cmd.getOptionValue("socat", "socat"))) {
+            String hostDevice = pseudoTerminalPair.getHostDevice();
+            // RXTX only looks for ports it knows about, this has to be set before it scans for ports
+            System.setProperty("gnu.io.rxtx.SerialPorts", hostDevice);
+
+            try (OIResponder responder = new OIResponder(pseudoTerminalPair.getRoombaDevice(), new SimulatedRoom(5000, 4000))) {
+                responder.start();
+                RoombaCommSerial roombaComm = new RoombaCommSerial();
+                roombaComm.setProtocol("OI");
+                roombaComm.setIoModel(ioModel);
+                if (!roombaComm.connect(hostDevice)) {
+                    System.err.println("Could not open " + hostDevice + ", is the RXTX native library installed?");
+                    System.exit(1);
+                }
+                roombaComm.setMaxRequestsInFlight(inFlight);
+                roombaComm.send(OpCodes.START.getId());
+
+                SerialLoopbackBenchmark benchmark = new SerialLoopbackBenchmark(roombaComm, responder);
+                System.out.println("I/O model: " + ioModel + ", requests in flight: " + inFlight);
+                System.out.println(String.format("%-10s %10s %12s %12s %10s %10s %10s %10s %8s",
+                        "mode", "frames/s", "bytes/s", "cpu us/frm", "p50 us", "p90 us", "p99 us", "max us", "lost"));
+                for (Mode benchmarkMode : modes) {
+                    System.out.println(benchmark.run(benchmarkMode, warmupNanos, measureNanos));
+                }
+                roombaComm.disconnect();
+            }
+        } catch (IOException e) {
+            System.err.println("Could not set up the pseudo terminals: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run one mode and measure it after the warm up.
+     */
+    public Result run(Mode mode, long warmupNanos, long measureNanos) {
+        TimestampQueue sendTimes = mode == Mode.STREAM ? responder.getWriteTimes() : new TimestampQueue(SEND_TIMES_CAPACITY);
+        LatencyRecorder latencyRecorder = new LatencyRecorder(LATENCY_SAMPLES);
+        AtomicBoolean measuring = new AtomicBoolean(false);
+        AtomicLong frameCount = new AtomicLong();
+        // requests that timed out whose stamps have been thrown away
+        AtomicLong skippedTimeouts = new AtomicLong(roombaComm.getRequestTimeoutCount());
+        Thread driverThread = Thread.currentThread();
+        SensorDataListener listener = sensorData -> {
+            if (mode != Mode.STREAM) {
+                // a request that timed out never gets a reply, so its stamp would be paired with the next reply
+                long timeouts = roombaComm.getRequestTimeoutCount();
+                while (skippedTimeouts.get() < timeouts) {
+                    sendTimes.poll();
+                    skippedTimeouts.incrementAndGet();
+                }
+            }
+            long sentNanos = sendTimes.poll();
+            if (measuring.get()) {
+                if (sentNanos != TimestampQueue.EMPTY) {
+                    latencyRecorder.record(System.nanoTime() - sentNanos);
+                }
+                frameCount.incrementAndGet();
+            }
+            LockSupport.unpark(driverThread);
+        };
+
+        responder.getWriteTimes().clear();
+        roombaComm.addSensorDataListener(listener);
+        if (mode == Mode.STREAM) {
+            roombaComm.startStream(P100);
+        }
+        long timeoutsBefore = 0;
+        long checksumErrorsBefore = 0;
+        long cpuBefore = 0;
+        long startNanos = System.nanoTime();
+        long measureStartNanos = startNanos + warmupNanos;
+        long endNanos = measureStartNanos + measureNanos;
+        long now;
+        while ((now = System.nanoTime()) - endNanos < 0) {
+            if (!measuring.get() && now - measureStartNanos >= 0) {
+                timeoutsBefore = roombaComm.getRequestTimeoutCount();
+                checksumErrorsBefore = roombaComm.getChecksumErrorCount();
+                cpuBefore = getReceiveCpuNanos();
+                measuring.set(true);
+            }
+            if (mode != Mode.STREAM) {
+                sendRequests(mode, sendTimes);
+            }
+            drainSensorData();
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        measuring.set(false);
+        long cpuNanos = getReceiveCpuNanos() - cpuBefore;
+        long lost = roombaComm.getRequestTimeoutCount() - timeoutsBefore + roombaComm.getChecksumErrorCount() - checksumErrorsBefore;
+
+        if (mode == Mode.STREAM) {
+            roombaComm.stopStream();
+        }
+        settle();
+        roombaComm.removeSensorDataListener(listener);
+        drainSensorData();
+
+        return new Result(mode, frameCount.get(), getFrameLength(mode), measureNanos, cpuNanos, latencyRecorder, lost);
+    }
+
+    private void sendRequests(Mode mode, TimestampQueue sendTimes) {
+        boolean sent = true;
+        while (sent) {
+            // stamp before sending so the reply can not arrive before its stamp
+            sendTimes.add(System.nanoTime());
+            if (mode == Mode.POLL) {
+                sent = roombaComm.requestSensors(P100);
+            } else {
+                sent = roombaComm.requestSensors(SensorPacketLayout.ODOMETRY_AND_SAFETY);
+            }
+            if (!sent) {
+                sendTimes.removeNewest();
+            }
+        }
+    }
+
+    private void drainSensorData() {
+        SensorData sensorData;
+        while ((sensorData = roombaComm.getSensorDataQueue().poll()) != null) {
+            sensorData.release();
+        }
+    }
+
+    private void settle() {
+        try {
+            Thread.sleep(SETTLE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private int getFrameLength(Mode mode) {
+        switch (mode) {
+            case QUERY_LIST:
+                return SensorPacketLayout.ODOMETRY_AND_SAFETY.getReplyLength();
+            case STREAM:
+                // header, length, packet id and checksum around the packet
+                return P100.getReplyLength() + 4;
+            default:
+                return P100.getReplyLength();
+        }
+    }
+
+    /**
+     * @return the CPU time used by the whole process except the responder
+     */
+    private long getReceiveCpuNanos() {
+        long cpuNanos = 0;
+        java.lang.management.OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean) {
+            cpuNanos = ((com.sun.management.OperatingSystemMXBean) operatingSystem).getProcessCpuTime();
+        }
+        for (long threadId : responder.getThreadIds()) {
+            long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+            if (threadCpuNanos > 0) {
+                cpuNanos -= threadCpuNanos;
+            }
+        }
+        return cpuNanos;
+    }
+
+    public static class Result {
+        private final Mode mode;
+        private final long frames;
+        private final int frameLength;
+        private final long measureNanos;
+        private final long cpuNanos;
+        private final LatencyRecorder latencyRecorder;
+        private final long lost;
+
+        Result(Mode mode, long frames, int frameLength, long measureNanos, long cpuNanos, LatencyRecorder latencyRecorder, long lost) {
+            this.mode = mode;
+            this.frames = frames;
+            this.frameLength = frameLength;
+            this.measureNanos = measureNanos;
+            this.cpuNanos = cpuNanos;
+            this.latencyRecorder = latencyRecorder;
+            this.lost = lost;
+        }
+
+        public double getFramesPerSecond() {
+            return frames * 1e9 / measureNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return getFramesPerSecond() * frameLength;
+        }
+
+        public double getCpuMicrosPerFrame() {
+            return frames == 0 ? 0 : cpuNanos / 1e3 / frames;
+        }
+
+        public long getLatencyMicros(double percentile) {
+            return TimeUnit.NANOSECONDS.toMicros(latencyRecorder.getPercentile(percentile));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %10.1f %12.0f %12.1f %10d %10d %10d %10d %8d", mode, getFramesPerSecond(), getBytesPerSecond(),
+                    getCpuMicrosPerFrame(), getLatencyMicros(50), getLatencyMicros(90), getLatencyMicros(99),
+                    getLatencyMicros(100), lost);
+        }
+    }
+}
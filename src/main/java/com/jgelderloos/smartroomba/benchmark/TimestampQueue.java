@@ -0,0 +1,80 @@
+/*
+ *  SmartRoomba - TimestampQueue
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.benchmark;
+
+/**
+ * A bounded first in first out queue of System.nanoTime() stamps that does not box them. Once full the oldest stamp
+ * is dropped to make room.
+ */
+public class TimestampQueue {
+    public static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[] stamps;
+    private int head = 0;
+    private int count = 0;
+
+    public TimestampQueue(int capacity) {
+        stamps = new long[capacity];
+    }
+
+    public synchronized void add(long nanos) {
+        if (count == stamps.length) {
+            head = (head + 1) % stamps.length;
+            count--;
+        }
+        stamps[(head + count) % stamps.length] = nanos;
+        count++;
+    }
+
+    /**
+     * @return the oldest stamp, or EMPTY if there is none
+     */
+    public synchronized long poll() {
+        if (count == 0) {
+            return EMPTY;
+        }
+        long nanos = stamps[head];
+        head = (head + 1) % stamps.length;
+        count--;
+        return nanos;
+    }
+
+    /**
+     * Take back the newest stamp, for when the thing it was stamping did not happen after all
+     */
+    public synchronized void removeNewest() {
+        if (count > 0) {
+            count--;
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ *  SmartRoomba - OccupancyGrid
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import java.util.Arrays;
+
+/**
+ * A map of what is around the Roomba, built up from the bumpers, light bumpers and cliff sensors in each RoombaInfo.
+ * <p>
+ * The floor is split into square cells, each holding the log-odds that it is blocked in twentieths of a nat, from
+ * -LOG_ODDS_LIMIT (surely free) through 0 (unknown) to LOG_ODDS_LIMIT (surely blocked). Cells under the Roomba are
+ * seen as free, cells at the edge of the bumper where it was hit, in front of a light bumper that sees something and
+ * past a cliff sensor that finds no floor are seen as blocked.
+ * <p>
+ * Cells are kept in tiles of TILE_SIZE by TILE_SIZE bytes which are only created where the Roomba has been, found
+ * through an open addressing table so looking up a cell is O(1) and does not allocate. At most maxTiles tiles are
+ * created, updates that would need more are dropped and counted, so the memory used stays bounded however far the
+ * Roomba goes. This class is not thread safe.
+ */
+public class OccupancyGrid {
+    public static final int DEFAULT_CELL_MILLIMETERS = 20;
+    public static final int DEFAULT_MAX_TILES = 1024;
+    public static final int TILE_SIZE = 64;
+    public static final int LOG_ODDS_LIMIT = 100;
+    public static final int OCCUPIED_LOG_ODDS = 30;
+    public static final int FREE_LOG_ODDS = -30;
+    /**
+     * radius of the round body of the Roomba, in millimeters
+     */
+    public static final double ROBOT_RADIUS = 170;
+
+    private static final int TILE_BITS = 6;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int HIT = 17;
+    private static final int MISS = -8;
+    private static final double BUMP_ARC = Math.toRadians(90);
+    private static final double[] LIGHT_BUMP_RADIANS = {Math.toRadians(65), Math.toRadians(38), Math.toRadians(12),
+            Math.toRadians(-12), Math.toRadians(-38), Math.toRadians(-65)};
+    private static final SensorPacket[] LIGHT_BUMP_SIGNALS = {SensorPacket.LIGHT_BUMP_LEFT_SIGNAL,
+            SensorPacket.LIGHT_BUMP_FRONT_LEFT_SIGNAL, SensorPacket.LIGHT_BUMP_CENTER_LEFT_SIGNAL,
+            SensorPacket.LIGHT_BUMP_CENTER_RIGHT_SIGNAL, SensorPacket.LIGHT_BUMP_FRONT_RIGHT_SIGNAL,
+            SensorPacket.LIGHT_BUMP_RIGHT_SIGNAL};
+    private static final int LIGHT_BUMP_MIN_SIGNAL = 100;
+    private static final int LIGHT_BUMP_FULL_SIGNAL = 1000;
+    private static final double LIGHT_BUMP_RANGE = 60;
+    private static final double[] CLIFF_RADIANS = {Math.toRadians(60), Math.toRadians(20), Math.toRadians(-20),
+            Math.toRadians(-60)};
+
+    private final int cellMillimeters;
+    private final int maxTiles;
+    private final byte[][] tiles;
+    private final int[] tileX;
+    private final int[] tileY;
+    private int tileCount = 0;
+    // open addressing table from a tile's coordinates to its index in tiles, -1 for an empty slot
+    private final long[] slotKeys;
+    private final int[] slotTiles;
+    private final int slotMask;
+    private final int slotShift;
+    private long lastKey;
+    private byte[] lastTile = null;
+    private long droppedUpdateCount = 0;
+
+    /**
+     * Visits the cells of the grid, see forEachCell().
+     */
+    public interface CellVisitor {
+        void cell(int cellX, int cellY, int logOdds);
+    }
+
+    public OccupancyGrid() {
+        this(DEFAULT_CELL_MILLIMETERS, DEFAULT_MAX_TILES);
+    }
+
+    /**
+     * @param cellMillimeters the width of a cell
+     * @param maxTiles the most tiles of TILE_SIZE by TILE_SIZE cells to create
+     */
+    public OccupancyGrid(int cellMillimeters, int maxTiles) {
+        if (cellMillimeters < 1 || maxTiles < 1) {
+            throw new IllegalArgumentException("Cell size and max tiles must be at least 1, were " + cellMillimeters
+                    + " and " + maxTiles);
+        }
+        this.cellMillimeters = cellMillimeters;
+        this.maxTiles = maxTiles;
+        tiles = new byte[maxTiles][];
+        tileX = new int[maxTiles];
+        tileY = new int[maxTiles];
+        // keep the table at most half full
+        int slots = Integer.highestOneBit(maxTiles) << 2;
+        slotKeys = new long[slots];
+        slotTiles = new int[slots];
+        Arrays.fill(slotTiles, -1);
+        slotMask = slots - 1;
+        slotShift = 64 - Integer.numberOfTrailingZeros(slots);
+    }
+
+    /**
+     * Add what the sensors saw at the position in the RoombaInfo.
+     */
+    public void update(RoombaInfo roombaInfo) {
+        RoombaPosition position = roombaInfo.getPosition();
+        update(position.getPosition().x, position.getPosition().y, position.getRadians(), roombaInfo.getSensorData());
+    }
+
+    /**
+     * Add what the sensors saw with the center of the Roomba at x, y in millimeters facing radians.
+     */
+    public void update(double x, double y, double radians, SensorData sensorData) {
+        markFootprint(x, y);
+
+        boolean bumpLeft = sensorData.isBumpLeft();
+        boolean bumpRight = sensorData.isBumpRight();
+        if (bumpLeft || bumpRight) {
+            // a hit on both sides is in the middle of the bumper
+            double from = bumpRight ? -BUMP_ARC : 0;
+            double to = bumpLeft ? BUMP_ARC : 0;
+            if (bumpLeft && bumpRight) {
+                from = -BUMP_ARC / 3;
+                to = BUMP_ARC / 3;
+            }
+            markArc(x, y, radians + from, radians + to, ROBOT_RADIUS + cellMillimeters / 2.0, HIT);
+        }
+
+        for (int i = 0; i < LIGHT_BUMP_SIGNALS.length; i++) {
+            int signal = sensorData.getValue(LIGHT_BUMP_SIGNALS[i]);
+            if (signal >= LIGHT_BUMP_MIN_SIGNAL) {
+                // a stronger reflection is a closer obstacle, and more certain
+                double strength = Math.min(1, (double) signal / LIGHT_BUMP_FULL_SIGNAL);
+                double distance = ROBOT_RADIUS + cellMillimeters / 2.0 + LIGHT_BUMP_RANGE * (1 - strength);
+                double angle = radians + LIGHT_BUMP_RADIANS[i];
+                add(x - distance * Math.sin(angle), y + distance * Math.cos(angle), (int) Math.ceil(HIT * strength));
+            }
+        }
+
+        markCliff(x, y, radians + CLIFF_RADIANS[0], sensorData.isCliffLeft());
+        markCliff(x, y, radians + CLIFF_RADIANS[1], sensorData.isCliffFrontLeft());
+        markCliff(x, y, radians + CLIFF_RADIANS[2], sensorData.isCliffFrontRight());
+        markCliff(x, y, radians + CLIFF_RADIANS[3], sensorData.isCliffRight());
+    }
+
+    /**
+     * @return the log-odds that the cell holding the point in millimeters is blocked, 0 if nothing is known about it
+     */
+    public int getLogOdds(double x, double y) {
+        return getCellLogOdds(toCell(x), toCell(y));
+    }
+
+    /**
+     * @return the log-odds that the cell is blocked, 0 if nothing is known about it
+     */
+    public int getCellLogOdds(int cellX, int cellY) {
+        byte[] tile = findTile(cellX >> TILE_BITS, cellY >> TILE_BITS);
+        return tile == null ? 0 : tile[((cellY & TILE_MASK) << TILE_BITS) | (cellX & TILE_MASK)];
+    }
+
+    public boolean isOccupied(double x, double y) {
+        return getLogOdds(x, y) >= OCCUPIED_LOG_ODDS;
+    }
+
+    public boolean isFree(double x, double y) {
+        return getLogOdds(x, y) <= FREE_LOG_ODDS;
+    }
+
+    /**
+     * @return the cell holding the coordinate in millimeters
+     */
+    public int toCell(double millimeters) {
+        return (int) Math.floor(millimeters / cellMillimeters);
+    }
+
+    /**
+     * Visit every cell that is not unknown, tile by tile.
+     */
+    public void forEachCell(CellVisitor visitor) {
+        for (int i = 0; i < tileCount; i++) {
+            byte[] tile = tiles[i];
+            int baseX = tileX[i] << TILE_BITS;
+            int baseY = tileY[i] << TILE_BITS;
+            for (int cell = 0; cell < tile.length; cell++) {
+                if (tile[cell] != 0) {
+                    visitor.cell(baseX + (cell & TILE_MASK), baseY + (cell >> TILE_BITS), tile[cell]);
+                }
+            }
+        }
+    }
+
+    public int getCellMillimeters() {
+        return cellMillimeters;
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    public int getMaxTiles() {
+        return maxTiles;
+    }
+
+    /**
+     * @return the number of cell updates dropped because they needed more than maxTiles tiles
+     */
+    public long getDroppedUpdateCount() {
+        return droppedUpdateCount;
+    }
+
+    private void markFootprint(double x, double y) {
+        // only the cells entirely under the Roomba, the edge is left for the bumper
+        double radius = ROBOT_RADIUS - cellMillimeters;
+        int minX = toCell(x - radius);
+        int maxX = toCell(x + radius);
+        int minY = toCell(y - radius);
+        int maxY = toCell(y + radius);
+        double limit = (radius - cellMillimeters / 2.0) * (radius - cellMillimeters / 2.0);
+        for (int cellY = minY; cellY <= maxY; cellY++) {
+            double dy = (cellY + 0.5) * cellMillimeters - y;
+            for (int cellX = minX; cellX <= maxX; cellX++) {
+                double dx = (cellX + 0.5) * cellMillimeters - x;
+                if (dx * dx + dy * dy <= limit) {
+                    addCell(cellX, cellY, MISS);
+                }
+            }
+        }
+    }
+
+    private void markCliff(double x, double y, double angle, boolean cliff) {
+        if (cliff) {
+            // the floor ends just past the sensor
+            double distance = ROBOT_RADIUS + cellMillimeters / 2.0;
+            add(x - distance * Math.sin(angle), y + distance * Math.cos(angle), HIT);
+        }
+    }
+
+    private void markArc(double x, double y, double from, double to, double radius, int change) {
+        // about one step per cell along the arc, a cell hit twice by neighbouring steps is only marked once
+        int steps = Math.max(1, (int) Math.ceil((to - from) * radius / cellMillimeters));
+        int lastX = Integer.MIN_VALUE;
+        int lastY = Integer.MIN_VALUE;
+        for (int i = 0; i <= steps; i++) {
+            double angle = from + (to - from) * i / steps;
+            int cellX = toCell(x - radius * Math.sin(angle));
+            int cellY = toCell(y + radius * Math.cos(angle));
+            if (cellX != lastX || cellY != lastY) {
+                addCell(cellX, cellY, change);
+                lastX = cellX;
+                lastY = cellY;
+            }
+        }
+    }
+
+    private void add(double x, double y, int change) {
+        addCell(toCell(x), toCell(y), change);
+    }
+
+    private void addCell(int cellX, int cellY, int change) {
+        byte[] tile = findOrCreateTile(cellX >> TILE_BITS, cellY >> TILE_BITS);
+        if (tile == null) {
+            droppedUpdateCount++;
+            return;
+        }
+        int cell = ((cellY & TILE_MASK) << TILE_BITS) | (cellX & TILE_MASK);
+        tile[cell] = (byte) Math.max(-LOG_ODDS_LIMIT, Math.min(LOG_ODDS_LIMIT, tile[cell] + change));
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> slotShift);
+    }
+
+    private byte[] findTile(int x, int y) {
+        long key = key(x, y);
+        if (lastTile != null && key == lastKey) {
+            return lastTile;
+        }
+        for (int slot = slot(key); slotTiles[slot] >= 0; slot = (slot + 1) & slotMask) {
+            if (slotKeys[slot] == key) {
+                lastKey = key;
+                lastTile = tiles[slotTiles[slot]];
+                return lastTile;
+            }
+        }
+        return null;
+    }
+
+    private byte[] findOrCreateTile(int x, int y) {
+        byte[] tile = findTile(x, y);
+        if (tile != null || tileCount == maxTiles) {
+            return tile;
+        }
+        long key = key(x, y);
+        int slot = slot(key);
+        while (slotTiles[slot] >= 0) {
+            slot = (slot + 1) & slotMask;
+        }
+        tile = new byte[TILE_SIZE * TILE_SIZE];
+        tiles[tileCount] = tile;
+        tileX[tileCount] = x;
+        tileY[tileCount] = y;
+        slotKeys[slot] = key;
+        slotTiles[slot] = tileCount;
+        tileCount++;
+        lastKey = key;
+        lastTile = tile;
+        return tile;
+    }
+}
@@ -41,6 +41,11 @@ public class RoombaConstants {
 
     public static final int MAX_ENCODER_COUNT = 65535;
 
+    /**
+     * first byte of every frame sent by the Roomba while streaming
+     */
+    public static final int STREAM_HEADER = 19;
+
     public enum Side {
         LEFT,
         RIGHT;
@@ -51,34 +56,180 @@ public class RoombaConstants {
         BACKWARDS;
     }
 
+    /**
+     * Sensor packet groups, each one is the packets from the first to the last packet id back to back. The layout of
+     * each group is worked out once, so a reply to any group decodes to the same SensorData offsets as packet 100.
+     */
     public enum SensorPacketGroup {
-        P0(0),
-        P1(1),
-        P2(2),
-        P3(3),
-        P4(4),
-        P5(5),
-        P6(6),
-        P100(100),
-        P101(101),
-        P106(106),
-        P107(107);
+        P0(0, 7, 26),
+        P1(1, 7, 16),
+        P2(2, 17, 20),
+        P3(3, 21, 26),
+        P4(4, 27, 34),
+        P5(5, 35, 42),
+        P6(6, 7, 42),
+        // The spec says packet 100 is 80 in length but 93 bytes are returned
+        P100(100, 7, 58, 93),
+        P101(101, 43, 58),
+        P106(106, 46, 51),
+        P107(107, 54, 58);
+
+        private static final SensorPacketGroup[] BY_ID = new SensorPacketGroup[256];
+
+        static {
+            for (SensorPacketGroup group : values()) {
+                BY_ID[group.id] = group;
+            }
+        }
 
         private int id;
+        private int firstPacketId;
+        private int lastPacketId;
+        private SensorPacketLayout layout;
+
+        SensorPacketGroup(int id, int firstPacketId, int lastPacketId) {
+            this(id, firstPacketId, lastPacketId, 0);
+        }
 
-        SensorPacketGroup(int id) {
+        SensorPacketGroup(int id, int firstPacketId, int lastPacketId, int replyLength) {
             this.id = id;
+            this.firstPacketId = firstPacketId;
+            this.lastPacketId = lastPacketId;
+            layout = SensorPacketLayout.ofRange(firstPacketId, lastPacketId, replyLength);
         }
 
         public int getId() {
             return id;
         }
+
+        public int getFirstPacketId() {
+            return firstPacketId;
+        }
+
+        public int getLastPacketId() {
+            return lastPacketId;
+        }
+
+        /**
+         * @return the number of bytes the Roomba sends for this group
+         */
+        public int getReplyLength() {
+            return layout.getReplyLength();
+        }
+
+        /**
+         * @return how to decode a reply to this group
+         */
+        public SensorPacketLayout getLayout() {
+            return layout;
+        }
+
+        /**
+         * @return the group with the given id, or null if there is no such group
+         */
+        public static SensorPacketGroup fromId(int id) {
+            return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+        }
+    }
+
+    /**
+     * Which sensor packets each generation of Roomba knows about. The 4xx models speak SCI and only have groups 0 to
+     * 3, the 5xx models speak OI with packets up to 42 and the 6xx models add the encoders, light bumper and motor
+     * currents up to packet 58 along with groups 100 to 107.
+     */
+    public enum Model {
+        SCI_400(3, 0),
+        OI_500(6, 42),
+        OI_600(107, 58);
+
+        private int lastGroupId;
+        private int lastPacketId;
+
+        Model(int lastGroupId, int lastPacketId) {
+            this.lastGroupId = lastGroupId;
+            this.lastPacketId = lastPacketId;
+        }
+
+        /**
+         * @return true if the model answers a SENSORS request for the group
+         */
+        public boolean supports(SensorPacketGroup group) {
+            return group.getId() <= lastGroupId;
+        }
+
+        /**
+         * @return true if the packet can be asked for on its own, with SENSORS, QUERY_LIST or STREAM
+         */
+        public boolean supports(SensorPacket packet) {
+            return packet.getId() <= lastPacketId;
+        }
+
+        /**
+         * @return true if every packet in the layout can be asked for on its own
+         */
+        public boolean supports(SensorPacketLayout layout) {
+            for (SensorPacket packet : layout.getPackets()) {
+                if (!supports(packet)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Baud rates the Roomba can be switched to with the BAUD opcode, with the code that selects each one
+     */
+    public enum BaudRate {
+        B300(0, 300),
+        B600(1, 600),
+        B1200(2, 1200),
+        B2400(3, 2400),
+        B4800(4, 4800),
+        B9600(5, 9600),
+        B14400(6, 14400),
+        B19200(7, 19200),
+        B28800(8, 28800),
+        B38400(9, 38400),
+        B57600(10, 57600),
+        B115200(11, 115200);
+
+        private int code;
+        private int rate;
+
+        BaudRate(int code, int rate) {
+            this.code = code;
+            this.rate = rate;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        /**
+         * @return the baud rate with the given bits per second, or null if the Roomba does not support it
+         */
+        public static BaudRate fromRate(int rate) {
+            for (BaudRate baudRate : values()) {
+                if (baudRate.rate == rate) {
+                    return baudRate;
+                }
+            }
+            return null;
+        }
     }
 
     public enum OpCodes {
         START(128),
         BAUD(129),
-        SENSORS(142);
+        SENSORS(142),
+        STREAM(148),
+        QUERY_LIST(149),
+        PAUSE_RESUME_STREAM(150);
 
         private int id;
 
@@ -22,27 +22,54 @@
 
 package com.jgelderloos.smartroomba.roomba;
 
-import com.jgelderloos.smartroomba.roomba.RoombaConstants.Direction;
-import com.jgelderloos.smartroomba.roomba.RoombaConstants.Side;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.awt.geom.Point2D;
 
+/**
+ * Tracks the position of the Roomba by integrating the wheel encoder counts from each frame of sensor data.
+ * <p>
+ * Each update integrates the wheel movement as an arc in closed form, which covers going straight, turning and
+ * spinning in place forwards or backwards without special cases. The position is kept in primitive fields and
+ * update() does not allocate, processSensorData() additionally takes a RoombaInfo snapshot of the new position for
+ * consumers that want to keep a history.
+ */
 public class RoombaMapData {
     private static final Logger LOGGER = LogManager.getLogger();
-    private Point2D.Double position = new Point2D.Double(0, 0);
+    private static final double MILLIMETERS_PER_COUNT = Math.PI * RoombaConstants.MILLIMETERS_PER_WHEEL_TURN
+            / RoombaConstants.ENCODER_COUNTS_PER_WHEEL_TURN;
+    private static final double HALF_MILLIMETERS_PER_COUNT = MILLIMETERS_PER_COUNT / 2;
+    private static final double RADIANS_PER_COUNT = MILLIMETERS_PER_COUNT / RoombaConstants.WHEELBASE;
+    private double x = 0;
+    private double y = 0;
     private double radians = 0;
     private int lastLeftEncoderCount = 0;
     private int lastRightEncoderCount = 0;
     private boolean processedFirstSensorData = false;
+    private boolean debugLogging = true;
     private RoombaUtilities roombaUtilities = new RoombaUtilities();
 
     public RoombaInfo processSensorData(SensorData sensorData) {
-        short distance = sensorData.getDistance();
-        short sensorAngle = sensorData.getAngle();
+        update(sensorData);
+        return new RoombaInfo(new RoombaPosition(new Point2D.Double(x, y), radians, Math.toDegrees(radians), sensorData.getDateTime()), sensorData);
+    }
+
+    /**
+     * Turn off the debug output for every frame, for batch processing where it would be most of the work. It is on by
+     * default and only logged when debug is enabled.
+     */
+    public void setDebugLogging(boolean debugLogging) {
+        this.debugLogging = debugLogging;
+    }
+
+    /**
+     * Move the position based on the change in encoder counts since the last sensor data.
+     */
+    public void update(SensorData sensorData) {
         int currentLeftEncoderCount = sensorData.getLeftEncoderCount();
         int currentRightEncoderCount = sensorData.getRightEncoderCount();
+        boolean debug = debugLogging && LOGGER.isDebugEnabled();
 
         if (!processedFirstSensorData) {
             processedFirstSensorData = true;
@@ -53,76 +80,74 @@ public class RoombaMapData {
             lastLeftEncoderCount = currentLeftEncoderCount;
             int changeInRightEncoderCounts = roombaUtilities.getChangeInEncoderCounts(lastRightEncoderCount, currentRightEncoderCount);
             lastRightEncoderCount = currentRightEncoderCount;
-            double changeInLeftDistance = roombaUtilities.getMilimetersFromEncoderCounts(changeInLeftEncoderCounts);
-            double changeInRightDistance = roombaUtilities.getMilimetersFromEncoderCounts(changeInRightEncoderCounts);
 
-            if ((changeInLeftDistance + changeInRightDistance) / 2 != distance) {
-                LOGGER.debug("Detected difference in encoder counts and distance. Left distance: {}, right distance: {}, total distance: {}",
-                        changeInLeftDistance, changeInRightDistance, distance);
+            // The center of the Roomba moves along an arc of length d while turning by changeInRadians, whichever way
+            // each wheel turned. The straight line from the start to the end of the arc is the chord
+            // d * sin(half) / half, pointing halfway through the turn. Going straight is the limit where half is 0.
+            double changeInCenterDistance = (changeInLeftEncoderCounts + changeInRightEncoderCounts) * HALF_MILLIMETERS_PER_COUNT;
+            double changeInRadians = (changeInRightEncoderCounts - changeInLeftEncoderCounts) * RADIANS_PER_COUNT;
+            double half = changeInRadians * 0.5;
+            double chord = half == 0 ? changeInCenterDistance : changeInCenterDistance * Math.sin(half) / half;
+            double midRadians = radians + half;
+
+            x -= chord * Math.sin(midRadians);
+            y += chord * Math.cos(midRadians);
+            radians += changeInRadians;
+
+            if (debug) {
+                logDifferences(sensorData, changeInLeftEncoderCounts, changeInRightEncoderCounts, changeInRadians);
+                LOGGER.debug("Position updated to: {}, {} radians: {}, degrees: {}", x, y, radians, Math.toDegrees(radians));
             }
+        }
+    }
 
-            double changeInRadians = roombaUtilities.getRadiansFromWheelDistance(changeInLeftDistance, changeInRightDistance);
-
-            if (sensorAngle != changeInRadians) {
-                LOGGER.debug("Detected difference in calculated angle and sensor angle. Calculated change in angle: {} sensor angle: {}",
-                        changeInRadians, sensorAngle);
-            }
+    private void logDifferences(SensorData sensorData, int changeInLeftEncoderCounts, int changeInRightEncoderCounts,
+                                double changeInRadians) {
+        short distance = sensorData.getDistance();
+        short sensorAngle = sensorData.getAngle();
+        double changeInLeftDistance = roombaUtilities.getMilimetersFromEncoderCounts(changeInLeftEncoderCounts);
+        double changeInRightDistance = roombaUtilities.getMilimetersFromEncoderCounts(changeInRightEncoderCounts);
 
-            double changeInStraightDistance = changeInLeftDistance;
-            if (changeInRadians != 0) {
-
-                // The smaller distance is the inside of the the turn
-                double outerDistance;
-                RoombaConstants.Direction direction;
-                // TODO: handle negative distances
-                if (changeInLeftDistance > changeInRightDistance) {
-                    if (changeInLeftDistance > 0 && changeInRightDistance > 0) {
-                        outerDistance = changeInLeftDistance;
-                        direction = Direction.FORWARDS;
-                    } else {
-                        outerDistance = changeInRightDistance;
-                        direction = Direction.BACKWARDS;
-                    }
-                } else {
-                    if (changeInLeftDistance > 0 && changeInRightDistance > 0) {
-                        outerDistance = changeInRightDistance;
-                        direction = Direction.FORWARDS;
-                    } else {
-                        outerDistance = changeInLeftDistance;
-                        direction = Direction.BACKWARDS;
-                    }
-                }
-
-                double outerRadius = roombaUtilities.getRadius(Math.abs(changeInRadians), Math.abs(outerDistance));
-                double centerRadius = outerRadius - (RoombaConstants.WHEELBASE / 2);
-
-                // TODO: this will be used in the total distance traveled
-                double changeInCenterDistance = roombaUtilities.getArcDistance(Math.abs(changeInRadians), centerRadius);
-
-                changeInStraightDistance = roombaUtilities.getStraightDistance(Math.abs(changeInRadians), centerRadius);
-
-                // TODO: not sure this is needed for anything
-                double turnRadians = roombaUtilities.getTurnRadians(changeInRadians, changeInStraightDistance, centerRadius);
-
-                Side side = changeInRadians < 0 ? Side.RIGHT : Side.LEFT;
-                // Get the point on the turn circle prior to the turn (radians)
-                Point2D.Double beforeTurnPoint = roombaUtilities.getPointOnCircle(radians, centerRadius, side, direction);
-
-                // Get the point on the turn circle after the turn (radians + changeInRadians)
-                Point2D.Double afterTurnPoint = roombaUtilities.getPointOnCircle(radians + changeInRadians, centerRadius, side, direction);
-
-                // Find the difference
-                Point2D.Double positionChange = new Point2D.Double(afterTurnPoint.x - beforeTurnPoint.x, afterTurnPoint.y - beforeTurnPoint.y);
-
-                radians += changeInRadians;
-                position.setLocation(position.getX() + positionChange.x, position.getY() + positionChange.y);
-            } else {
-                double changeInX = roombaUtilities.getFarSideLength(radians, changeInStraightDistance);
-                double changeInY = roombaUtilities.getNearSideLength(radians, changeInStraightDistance);
-                position.setLocation(position.getX() + changeInX, position.getY() + changeInY);
-            }
-            LOGGER.debug("Position updated to: {} radians: {}, degrees: {}", position.toString(), radians, Math.toDegrees(radians));
+        if ((changeInLeftDistance + changeInRightDistance) / 2 != distance) {
+            LOGGER.debug("Detected difference in encoder counts and distance. Left distance: {}, right distance: {}, total distance: {}",
+                    changeInLeftDistance, changeInRightDistance, distance);
         }
-        return new RoombaInfo(new RoombaPosition(new Point2D.Double(position.x, position.y), radians, Math.toDegrees(radians), sensorData.getDateTime()), sensorData);
+        if (sensorAngle != changeInRadians) {
+            LOGGER.debug("Detected difference in calculated angle and sensor angle. Calculated change in angle: {} sensor angle: {}",
+                    changeInRadians, sensorAngle);
+        }
+    }
+
+    /**
+     * Pick up from a position worked out earlier, as if the frame with the given encoder counts had just been
+     * processed. Used to resume from a keyframe instead of integrating a recording from the start.
+     */
+    public void restore(double x, double y, double radians, int leftEncoderCount, int rightEncoderCount) {
+        this.x = x;
+        this.y = y;
+        this.radians = radians;
+        lastLeftEncoderCount = leftEncoderCount;
+        lastRightEncoderCount = rightEncoderCount;
+        processedFirstSensorData = true;
+    }
+
+    public int getLastLeftEncoderCount() {
+        return lastLeftEncoderCount;
+    }
+
+    public int getLastRightEncoderCount() {
+        return lastRightEncoderCount;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getRadians() {
+        return radians;
     }
 }
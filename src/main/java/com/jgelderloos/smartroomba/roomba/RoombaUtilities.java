@@ -22,35 +22,15 @@
 
 package com.jgelderloos.smartroomba.roomba;
 
-import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
 import com.jgelderloos.smartroomba.roomba.RoombaConstants.Direction;
 import com.jgelderloos.smartroomba.roomba.RoombaConstants.Side;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.awt.geom.Point2D;
-import java.util.HashMap;
-import java.util.Map;
 
 public class RoombaUtilities {
     private static final Logger LOGGER = LogManager.getLogger(RoombaUtilities.class);
-    private Map<SensorPacketGroup,Integer> sensorPackSizeMap;
-
-    public RoombaUtilities() {
-        sensorPackSizeMap = new HashMap<>();
-        sensorPackSizeMap.put(SensorPacketGroup.P0, 26);
-        sensorPackSizeMap.put(SensorPacketGroup.P1, 10);
-        sensorPackSizeMap.put(SensorPacketGroup.P2, 6);
-        sensorPackSizeMap.put(SensorPacketGroup.P3, 10);
-        sensorPackSizeMap.put(SensorPacketGroup.P4, 14);
-        sensorPackSizeMap.put(SensorPacketGroup.P5, 12);
-        sensorPackSizeMap.put(SensorPacketGroup.P6, 52);
-        // The spec says pack 100 is 80 in length but 90 bytes are returned
-        sensorPackSizeMap.put(SensorPacketGroup.P100, 93);
-        sensorPackSizeMap.put(SensorPacketGroup.P101, 28);
-        sensorPackSizeMap.put(SensorPacketGroup.P106, 12);
-        sensorPackSizeMap.put(SensorPacketGroup.P107, 9);
-    }
 
     public void sleep(int millis, String whileString) {
         try {
@@ -60,10 +40,6 @@ public class RoombaUtilities {
             Thread.currentThread().interrupt();
         }
     }
-    // TODO: null handling
-    public int getSensorPacketSize(SensorPacketGroup packet) {
-        return sensorPackSizeMap.get(packet);
-    }
 
     public double getMilimetersFromEncoderCounts(int encoderCounts) {
         return encoderCounts * (Math.PI * RoombaConstants.MILLIMETERS_PER_WHEEL_TURN / RoombaConstants.ENCODER_COUNTS_PER_WHEEL_TURN);
@@ -100,11 +76,18 @@ public class RoombaUtilities {
     }
 
     public Point2D.Double getPointOnCircle(double radians, double radius, RoombaConstants.Side side, RoombaConstants.Direction direction) {
-        double radiansToUse = radians;
+        double radiansToUse = getRadiansOnCircle(radians, side, direction);
+        return new Point2D.Double(getLength(radiansToUse, radius), getHeight(radiansToUse, radius));
+    }
+
+    /**
+     * The angle from the center of the turn circle to the roomba, given the direction the roomba is facing.
+     */
+    public double getRadiansOnCircle(double radians, RoombaConstants.Side side, RoombaConstants.Direction direction) {
         if ((side == Side.RIGHT && direction == Direction.FORWARDS) || (side == Side.LEFT && direction == Direction.BACKWARDS)) {
-            radiansToUse += Math.PI;
+            return radians + Math.PI;
         }
-        return new Point2D.Double(getLength(radiansToUse, radius), getHeight(radiansToUse, radius));
+        return radians;
     }
 
     public double getHeight(double radians, double radius) {
@@ -23,7 +23,24 @@
 package com.jgelderloos.smartroomba.roomba;
 
 import java.time.LocalDateTime;
-
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * The raw bytes of one sensor reply along with when it was received. The arrival time is a System.nanoTime() value,
+ * the wall clock time is only worked out from the SessionClock when getDateTime() is called.
+ * <p>
+ * SensorData can come from a SensorDataPool so the receive path does not allocate a new frame every time. A pooled
+ * frame starts with a reference count of one. Anyone holding on to it past the current call should retain() it and
+ * everyone done with it should release() it, when the count gets back to zero it goes back to the pool to be
+ * refilled. Frames that are never released are simply garbage collected, so a consumer that keeps frames around
+ * forever just doesn't release them. The pool then has to create a new frame in their place, so the receive path
+ * only avoids allocating when nothing keeps frames, see SensorDataPool.
+ * <p>
+ * The fields are decoded from the raw bytes once, on first access or by calling decode(), into a bit per boolean
+ * field and primitive fields for the rest. Every accessor after that reads the decoded value, and isUnsafe() checks
+ * every safety condition with a single mask.
+ */
 public class SensorData {
     public static final int MAX_SENSOR_BYTES = 93; // 93 bytes returned when requesting all packets
 
@@ -49,6 +66,36 @@ public class SensorData {
     private static final int LIGHT_BUMPER_FRONT_LEFT_MASK = 0x02;
     private static final int LIGHT_BUMPER_LEFT_MASK = 0x01;
 
+    // Bits in getFlags()
+    public static final int BUMP_LEFT = 1;
+    public static final int BUMP_RIGHT = 1 << 1;
+    public static final int WHEEL_DROP_LEFT = 1 << 2;
+    public static final int WHEEL_DROP_RIGHT = 1 << 3;
+    public static final int CLIFF_LEFT = 1 << 4;
+    public static final int CLIFF_FRONT_LEFT = 1 << 5;
+    public static final int CLIFF_FRONT_RIGHT = 1 << 6;
+    public static final int CLIFF_RIGHT = 1 << 7;
+    public static final int VIRTUAL_WALL = 1 << 8;
+    public static final int OVER_CURRENT_LEFT_WHEEL = 1 << 9;
+    public static final int OVER_CURRENT_RIGHT_WHEEL = 1 << 10;
+    public static final int OVER_CURRENT_MAIN_BRUSH = 1 << 11;
+    public static final int OVER_CURRENT_SIDE_BRUSH = 1 << 12;
+    public static final int CLEAN_BUTTON = 1 << 13;
+    public static final int SPOT_BUTTON = 1 << 14;
+    public static final int DOCK_BUTTON = 1 << 15;
+    public static final int LIGHT_BUMPER_LEFT = 1 << 16;
+    public static final int LIGHT_BUMPER_FRONT_LEFT = 1 << 17;
+    public static final int LIGHT_BUMPER_CENTER_LEFT = 1 << 18;
+    public static final int LIGHT_BUMPER_CENTER_RIGHT = 1 << 19;
+    public static final int LIGHT_BUMPER_FRONT_RIGHT = 1 << 20;
+    public static final int LIGHT_BUMPER_RIGHT = 1 << 21;
+    /**
+     * Any of these means the Roomba should be stopped
+     */
+    public static final int UNSAFE_FLAGS = WHEEL_DROP_LEFT | WHEEL_DROP_RIGHT | CLIFF_LEFT | CLIFF_FRONT_LEFT
+            | CLIFF_FRONT_RIGHT | CLIFF_RIGHT | OVER_CURRENT_LEFT_WHEEL | OVER_CURRENT_RIGHT_WHEEL
+            | OVER_CURRENT_MAIN_BRUSH | OVER_CURRENT_SIDE_BRUSH;
+
     // Sensor packet indicies
     public enum PacketOffsets {
         BUMPS_WHEEL_DROPS,
@@ -146,25 +193,89 @@ public class SensorData {
         UNKNOWN13
     }
 
+    private static final AtomicIntegerFieldUpdater<SensorData> REFERENCE_COUNT_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(SensorData.class, "referenceCount");
+
     private byte[] sensorData;
-    private LocalDateTime dateTime;
+    private long timestampNanos;
+    private long replayGeneration = 0;
+    private SessionClock sessionClock;
+    private SensorDataPool pool;
+    private volatile int referenceCount = 1;
+    // Decoded from sensorData on first access and thrown away when the data changes
+    private volatile boolean decoded = false;
+    private int flags;
+    private short distance;
+    private short angle;
+    private int leftEncoderCount;
+    private int rightEncoderCount;
 
     public SensorData(byte[] data, int dataLength) {
-        dateTime = LocalDateTime.now();
+        timestampNanos = System.nanoTime();
+        sessionClock = SessionClock.getDefault();
         sensorData = new byte[MAX_SENSOR_BYTES];
         System.arraycopy(data, 0, sensorData, 0, dataLength);
     }
 
+    SensorData(SensorDataPool pool, SessionClock sessionClock) {
+        this.pool = pool;
+        this.sessionClock = sessionClock;
+        sensorData = new byte[MAX_SENSOR_BYTES];
+    }
+
     public SensorData(byte[] data, int dataLength, LocalDateTime dateTimeToSet) {
+        sessionClock = SessionClock.getDefault();
         if (dateTimeToSet == null) {
-            dateTime = LocalDateTime.now();
+            timestampNanos = System.nanoTime();
         } else {
-            dateTime = dateTimeToSet;
+            timestampNanos = sessionClock.toNanoTime(dateTimeToSet);
         }
         sensorData = new byte[MAX_SENSOR_BYTES];
         System.arraycopy(data, 0, sensorData, 0, dataLength);
     }
 
+    /**
+     * Refill this frame with new data, any bytes past dataLength are cleared.
+     *
+     * @param timestampNanos System.nanoTime() when the first byte of the data arrived
+     */
+    public SensorData set(byte[] data, int offset, int dataLength, long timestampNanos) {
+        this.timestampNanos = timestampNanos;
+        replayGeneration = 0;
+        System.arraycopy(data, offset, sensorData, 0, dataLength);
+        Arrays.fill(sensorData, dataLength, MAX_SENSOR_BYTES, (byte) 0);
+        decoded = false;
+        return this;
+    }
+
+    /**
+     * Hold on to this frame so it is not recycled until a matching release().
+     */
+    public SensorData retain() {
+        REFERENCE_COUNT_UPDATER.incrementAndGet(this);
+        return this;
+    }
+
+    /**
+     * Done with this frame. Once every holder has released it a pooled frame goes back to its pool and must not be
+     * used any more.
+     */
+    public void release() {
+        int count = REFERENCE_COUNT_UPDATER.decrementAndGet(this);
+        if (count == 0) {
+            if (pool != null) {
+                pool.recycle(this);
+            }
+        } else if (count < 0) {
+            referenceCount = 0;
+            throw new IllegalStateException("SensorData released more times than it was retained");
+        }
+    }
+
+    void resetReferenceCount() {
+        referenceCount = 1;
+    }
+
     public String getRawDataAsCSVString() {
         StringBuilder stringBuilder = new StringBuilder();
         int i = 0;
@@ -178,8 +289,40 @@ public class SensorData {
         return stringBuilder.toString();
     }
 
+    /**
+     * Copy the raw bytes, MAX_SENSOR_BYTES of them, to the destination.
+     */
+    public void copyRawData(byte[] destination, int offset) {
+        System.arraycopy(sensorData, 0, destination, offset, MAX_SENSOR_BYTES);
+    }
+
+    /**
+     * @return System.nanoTime() when the first byte of this data arrived
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return how many times the replay this frame came from had been seeked when it was replayed, 0 for live data
+     */
+    public long getReplayGeneration() {
+        return replayGeneration;
+    }
+
+    public void setReplayGeneration(long replayGeneration) {
+        this.replayGeneration = replayGeneration;
+    }
+
     public LocalDateTime getDateTime() {
-        return dateTime;
+        return sessionClock.toLocalDateTime(timestampNanos);
+    }
+
+    /**
+     * @return getDateTime() as nanoseconds from 1970-01-01T00:00, worked out without allocating
+     */
+    public long getLocalEpochNanos() {
+        return sessionClock.toLocalEpochNanos(timestampNanos);
     }
 
     public String getDataHeaderAsCSVString() {
@@ -194,144 +337,193 @@ public class SensorData {
         return stringBuilder.toString();
     }
 
-    private byte getBumpsAndWheelDrops() {
-        return sensorData[PacketOffsets.BUMPS_WHEEL_DROPS.ordinal()];
+    /**
+     * @return the packet's value, signed or not as the packet is
+     */
+    public int getValue(SensorPacket packet) {
+        return packet.getValue(sensorData);
+    }
+
+    /**
+     * Decode the fields from the raw bytes now instead of on first access, for example on the thread that received
+     * the data.
+     */
+    public void decode() {
+        int bumpsAndWheelDrops = sensorData[PacketOffsets.BUMPS_WHEEL_DROPS.ordinal()];
+        int wheelOverCurrents = sensorData[PacketOffsets.WHEEL_OVER_CURRENTS.ordinal()];
+        int buttons = sensorData[PacketOffsets.BUTTONS.ordinal()];
+        int lightBumper = sensorData[PacketOffsets.LIGHT_BUMPER.ordinal()];
+        int decodedFlags = 0;
+        decodedFlags |= flag(bumpsAndWheelDrops, BUMPER_LEFT_MASK, BUMP_LEFT);
+        decodedFlags |= flag(bumpsAndWheelDrops, BUMPER_RIGHT_MASK, BUMP_RIGHT);
+        decodedFlags |= flag(bumpsAndWheelDrops, WHEEL_DROP_LEFT_MASK, WHEEL_DROP_LEFT);
+        decodedFlags |= flag(bumpsAndWheelDrops, WHEEL_DROP_RIGHT_MASK, WHEEL_DROP_RIGHT);
+        decodedFlags |= flag(sensorData[PacketOffsets.CLIFF_LEFT.ordinal()], CLIFF_MASK, CLIFF_LEFT);
+        decodedFlags |= flag(sensorData[PacketOffsets.CLIFF_FRONT_LEFT.ordinal()], CLIFF_MASK, CLIFF_FRONT_LEFT);
+        decodedFlags |= flag(sensorData[PacketOffsets.CLIFF_FRONT_RIGHT.ordinal()], CLIFF_MASK, CLIFF_FRONT_RIGHT);
+        decodedFlags |= flag(sensorData[PacketOffsets.CLIFF_RIGHT.ordinal()], CLIFF_MASK, CLIFF_RIGHT);
+        decodedFlags |= flag(sensorData[PacketOffsets.VIRTUAL_WALL.ordinal()], VIRTUAL_WALL_MASK, VIRTUAL_WALL);
+        decodedFlags |= flag(wheelOverCurrents, OVER_CURRENT_LEFT_WHEEL_MASK, OVER_CURRENT_LEFT_WHEEL);
+        decodedFlags |= flag(wheelOverCurrents, OVER_CURRENT_RIGHT_WHEEL_MASK, OVER_CURRENT_RIGHT_WHEEL);
+        decodedFlags |= flag(wheelOverCurrents, OVER_CURRENT_MAIN_BRUSH_MASK, OVER_CURRENT_MAIN_BRUSH);
+        decodedFlags |= flag(wheelOverCurrents, OVER_CURRENT_SIDE_BRUSH_MASK, OVER_CURRENT_SIDE_BRUSH);
+        decodedFlags |= flag(buttons, CLEAN_BUTTON_MASK, CLEAN_BUTTON);
+        decodedFlags |= flag(buttons, SPOT_BUTTON_MASK, SPOT_BUTTON);
+        decodedFlags |= flag(buttons, DOCK_BUTTON_MASK, DOCK_BUTTON);
+        decodedFlags |= flag(lightBumper, LIGHT_BUMPER_LEFT_MASK, LIGHT_BUMPER_LEFT);
+        decodedFlags |= flag(lightBumper, LIGHT_BUMPER_FRONT_LEFT_MASK, LIGHT_BUMPER_FRONT_LEFT);
+        decodedFlags |= flag(lightBumper, LIGHT_BUMPER_CENTER_LEFT_MASK, LIGHT_BUMPER_CENTER_LEFT);
+        decodedFlags |= flag(lightBumper, LIGHT_BUMPER_CENTER_RIGHT_MASK, LIGHT_BUMPER_CENTER_RIGHT);
+        decodedFlags |= flag(lightBumper, LIGHT_BUMPER_FRONT_RIGHT_MASK, LIGHT_BUMPER_FRONT_RIGHT);
+        decodedFlags |= flag(lightBumper, LIGHT_BUMPER_RIGHT_MASK, LIGHT_BUMPER_RIGHT);
+        flags = decodedFlags;
+        distance = (short) SensorPacket.DISTANCE.getValue(sensorData);
+        angle = (short) SensorPacket.ANGLE.getValue(sensorData);
+        leftEncoderCount = SensorPacket.LEFT_ENCODER_COUNTS.getValue(sensorData);
+        rightEncoderCount = SensorPacket.RIGHT_ENCODER_COUNTS.getValue(sensorData);
+        // written last so a thread that sees decoded also sees the fields
+        decoded = true;
+    }
+
+    /**
+     * @return every decoded boolean field, one bit each, see the flag constants
+     */
+    public int getFlags() {
+        if (!decoded) {
+            decode();
+        }
+        return flags;
     }
 
-    public boolean isBumpLeft() {
-        return (getBumpsAndWheelDrops() & BUMPER_LEFT_MASK) != 0;
+    /**
+     * @return true if a cliff, wheel drop or over current was seen
+     */
+    public boolean isUnsafe() {
+        return (getFlags() & UNSAFE_FLAGS) != 0;
     }
 
-    public boolean isBumpRight() {
-        return (getBumpsAndWheelDrops() & BUMPER_RIGHT_MASK) != 0;
+    private boolean isFlagSet(int flag) {
+        return (getFlags() & flag) != 0;
     }
 
-    public boolean isWheelDropLeft() {
-        return (getBumpsAndWheelDrops() & WHEEL_DROP_LEFT_MASK) != 0;
+    private static int flag(int value, int mask, int flag) {
+        return (value & mask) != 0 ? flag : 0;
     }
 
-    public boolean isWheelDropRight() {
-        return (getBumpsAndWheelDrops() & WHEEL_DROP_RIGHT_MASK) != 0;
+    public boolean isBumpLeft() {
+        return isFlagSet(BUMP_LEFT);
     }
 
-    private byte getCliffLeft() {
-        return sensorData[PacketOffsets.CLIFF_LEFT.ordinal()];
+    public boolean isBumpRight() {
+        return isFlagSet(BUMP_RIGHT);
     }
 
-    public boolean isCliffLeft() {
-        return (getCliffLeft() & CLIFF_MASK) != 0;
+    public boolean isWheelDropLeft() {
+        return isFlagSet(WHEEL_DROP_LEFT);
     }
 
-    private byte getCliffFrontLeft() {
-        return sensorData[PacketOffsets.CLIFF_FRONT_LEFT.ordinal()];
+    public boolean isWheelDropRight() {
+        return isFlagSet(WHEEL_DROP_RIGHT);
     }
 
-    public boolean isCliffFrontLeft() {
-        return (getCliffFrontLeft() & CLIFF_MASK) != 0;
+    public boolean isCliffLeft() {
+        return isFlagSet(CLIFF_LEFT);
     }
 
-    private byte getCliffFrontRight() {
-        return sensorData[PacketOffsets.CLIFF_FRONT_RIGHT.ordinal()];
+    public boolean isCliffFrontLeft() {
+        return isFlagSet(CLIFF_FRONT_LEFT);
     }
 
     public boolean isCliffFrontRight() {
-        return (getCliffFrontRight() & CLIFF_MASK) != 0;
-    }
-
-    private byte getCliffRight() {
-        return sensorData[PacketOffsets.CLIFF_RIGHT.ordinal()];
+        return isFlagSet(CLIFF_FRONT_RIGHT);
     }
 
     public boolean isCliffRight() {
-        return (getCliffRight() & CLIFF_MASK) != 0;
-    }
-
-    private byte getVirtualWall() {
-        return sensorData[PacketOffsets.VIRTUAL_WALL.ordinal()];
+        return isFlagSet(CLIFF_RIGHT);
     }
 
     public boolean isVirtualWall() {
-        return (getVirtualWall() & VIRTUAL_WALL_MASK) != 0;
-    }
-
-    private byte getWheelOverCurrents() {
-        return sensorData[PacketOffsets.WHEEL_OVER_CURRENTS.ordinal()];
+        return isFlagSet(VIRTUAL_WALL);
     }
 
     public boolean isOverCurrentLeftWheel() {
-        return (getWheelOverCurrents() & OVER_CURRENT_LEFT_WHEEL_MASK) != 0;
+        return isFlagSet(OVER_CURRENT_LEFT_WHEEL);
     }
 
     public boolean isOverCurrentRightWheel() {
-        return (getWheelOverCurrents() & OVER_CURRENT_RIGHT_WHEEL_MASK) != 0;
+        return isFlagSet(OVER_CURRENT_RIGHT_WHEEL);
     }
 
     public boolean isOverCurrentMainBrush() {
-        return (getWheelOverCurrents() & OVER_CURRENT_MAIN_BRUSH_MASK) != 0;
+        return isFlagSet(OVER_CURRENT_MAIN_BRUSH);
     }
 
     public boolean isOverCurrentSideBrush() {
-        return (getWheelOverCurrents() & OVER_CURRENT_SIDE_BRUSH_MASK) != 0;
-    }
-
-    private byte getButtons() {
-        return (sensorData[PacketOffsets.BUTTONS.ordinal()]);
+        return isFlagSet(OVER_CURRENT_SIDE_BRUSH);
     }
 
     public boolean isCleanButton() {
-        return (getButtons() & CLEAN_BUTTON_MASK) != 0;
+        return isFlagSet(CLEAN_BUTTON);
     }
 
     public boolean isSpotButton() {
-        return (getButtons() & SPOT_BUTTON_MASK) != 0;
+        return isFlagSet(SPOT_BUTTON);
     }
 
     public boolean isDockButton() {
-        return (getButtons() & DOCK_BUTTON_MASK) != 0;
+        return isFlagSet(DOCK_BUTTON);
     }
 
     public short getDistance() {
-        return (short) ((sensorData[PacketOffsets.DISTANCE_HI.ordinal()] << 8) | sensorData[PacketOffsets.DISTANCE_LO.ordinal()]);
+        if (!decoded) {
+            decode();
+        }
+        return distance;
     }
 
     public short getAngle() {
-        return (short) ((sensorData[PacketOffsets.ANGLE_HI.ordinal()] << 8) | sensorData[PacketOffsets.ANGLE_LO.ordinal()]);
+        if (!decoded) {
+            decode();
+        }
+        return angle;
     }
 
     public int getLeftEncoderCount() {
-        return (((sensorData[PacketOffsets.LEFT_ENCODER_COUNTS_HI.ordinal()] & 0xFF) << 8) | (sensorData[PacketOffsets.LEFT_ENCODER_COUNTS_LO.ordinal()] & 0xff));
+        if (!decoded) {
+            decode();
+        }
+        return leftEncoderCount;
     }
 
     public int getRightEncoderCount() {
-        return (((sensorData[PacketOffsets.RIGHT_ENCODER_COUNTS_HI.ordinal()] & 0xFF) << 8) | (sensorData[PacketOffsets.RIGHT_ENCODER_COUNTS_LO.ordinal()] & 0xFF));
-    }
-
-    private byte getLightBumper() {
-        return sensorData[PacketOffsets.LIGHT_BUMPER.ordinal()];
+        if (!decoded) {
+            decode();
+        }
+        return rightEncoderCount;
     }
 
     public boolean isLightBumperRight() {
-        return (getLightBumper() & LIGHT_BUMPER_RIGHT_MASK) != 0;
+        return isFlagSet(LIGHT_BUMPER_RIGHT);
     }
 
     public boolean isLightBumperFrontRight() {
-        return (getLightBumper() & LIGHT_BUMPER_FRONT_RIGHT_MASK) != 0;
+        return isFlagSet(LIGHT_BUMPER_FRONT_RIGHT);
     }
 
     public boolean isLightBumperCenterRight() {
-        return (getLightBumper() & LIGHT_BUMPER_CENTER_RIGHT_MASK) != 0;
+        return isFlagSet(LIGHT_BUMPER_CENTER_RIGHT);
     }
 
     public boolean isLightBumperCenterLeft() {
-        return (getLightBumper() & LIGHT_BUMPER_CENTER_LEFT_MASK) != 0;
+        return isFlagSet(LIGHT_BUMPER_CENTER_LEFT);
     }
 
     public boolean isLightBumperFrontLeft() {
-        return (getLightBumper() & LIGHT_BUMPER_FRONT_LEFT_MASK) != 0;
+        return isFlagSet(LIGHT_BUMPER_FRONT_LEFT);
     }
 
     public boolean isLightBumperLeft() {
-        return (getLightBumper() & LIGHT_BUMPER_LEFT_MASK) != 0;
+        return isFlagSet(LIGHT_BUMPER_LEFT);
     }
 
 }
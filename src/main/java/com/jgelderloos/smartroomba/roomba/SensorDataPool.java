@@ -0,0 +1,102 @@
+/*
+ *  SmartRoomba - SensorDataPool
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of recyclable SensorData frames. Frames are acquired on the receive thread and released on whatever
+ * thread consumes them, so the free list is an array backed queue that does not allocate on offer or poll.
+ * <p>
+ * When the pool is empty a new frame is created, and when it is full a released frame is left for the garbage
+ * collector, so a consumer that holds on to frames only costs allocations, never correctness.
+ * <p>
+ * The receive path only stays free of allocations while every frame is released soon after it is handed over. When
+ * SmartRoomba is given a RoombaInfo queue, each processed frame is retained by the RoombaInfo made from it and kept
+ * by whoever takes the RoombaInfo, like the RoombaViewer. Those frames never come back, so the pool creates a new one
+ * for nearly every frame and getCreatedCount() keeps growing.
+ */
+public class SensorDataPool {
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final ArrayBlockingQueue<SensorData> freeFrames;
+    private final SessionClock sessionClock;
+    // read from any thread, for example by whoever reports on the pool
+    private final AtomicLong createdCount = new AtomicLong();
+
+    public SensorDataPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SensorDataPool(int capacity) {
+        this(capacity, SessionClock.getDefault());
+    }
+
+    public SensorDataPool(int capacity, SessionClock sessionClock) {
+        freeFrames = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.sessionClock = sessionClock;
+    }
+
+    /**
+     * @return a frame with a reference count of one, filled with the given data and stamped with the current time
+     */
+    public SensorData acquire(byte[] data, int offset, int dataLength) {
+        return acquire(data, offset, dataLength, System.nanoTime());
+    }
+
+    /**
+     * @param timestampNanos System.nanoTime() when the first byte of the data arrived
+     * @return a frame with a reference count of one, filled with the given data
+     */
+    public SensorData acquire(byte[] data, int offset, int dataLength, long timestampNanos) {
+        SensorData sensorData = freeFrames.poll();
+        if (sensorData == null) {
+            createdCount.incrementAndGet();
+            sensorData = new SensorData(this, sessionClock);
+        } else {
+            sensorData.resetReferenceCount();
+        }
+        return sensorData.set(data, offset, dataLength, timestampNanos);
+    }
+
+    /**
+     * @return the number of frames that have been created because the pool was empty. This stops growing once the
+     * pool has warmed up unless frames are not being released.
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public SessionClock getSessionClock() {
+        return sessionClock;
+    }
+
+    public int getFreeCount() {
+        return freeFrames.size();
+    }
+
+    void recycle(SensorData sensorData) {
+        freeFrames.offer(sensorData);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *  SmartRoomba - SensorPacket
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+/**
+ * Every individual sensor packet from the OI spec with its id, how many bytes of data it returns, whether the value is
+ * signed and what unit it is in. The packets are in id order, which is also the order they appear in the packet 100
+ * group, so the offset of each packet is where its data lives in a full SensorData. Two byte values are sent high
+ * byte first.
+ */
+public enum SensorPacket {
+    BUMPS_WHEEL_DROPS(7, 1, false, Unit.NONE),
+    WALL(8, 1, false, Unit.NONE),
+    CLIFF_LEFT(9, 1, false, Unit.NONE),
+    CLIFF_FRONT_LEFT(10, 1, false, Unit.NONE),
+    CLIFF_FRONT_RIGHT(11, 1, false, Unit.NONE),
+    CLIFF_RIGHT(12, 1, false, Unit.NONE),
+    VIRTUAL_WALL(13, 1, false, Unit.NONE),
+    WHEEL_OVER_CURRENTS(14, 1, false, Unit.NONE),
+    DIRT_DETECT(15, 1, false, Unit.NONE),
+    UNUSED_1(16, 1, false, Unit.NONE),
+    INFRARED_CHARACTER_OMNI(17, 1, false, Unit.NONE),
+    BUTTONS(18, 1, false, Unit.NONE),
+    DISTANCE(19, 2, true, Unit.MILLIMETERS),
+    ANGLE(20, 2, true, Unit.DEGREES),
+    CHARGING_STATE(21, 1, false, Unit.NONE),
+    VOLTAGE(22, 2, false, Unit.MILLIVOLTS),
+    CURRENT(23, 2, true, Unit.MILLIAMPS),
+    TEMPERATURE(24, 1, true, Unit.DEGREES_CELSIUS),
+    BATTERY_CHARGE(25, 2, false, Unit.MILLIAMP_HOURS),
+    BATTERY_CAPACITY(26, 2, false, Unit.MILLIAMP_HOURS),
+    WALL_SIGNAL(27, 2, false, Unit.NONE),
+    CLIFF_LEFT_SIGNAL(28, 2, false, Unit.NONE),
+    CLIFF_FRONT_LEFT_SIGNAL(29, 2, false, Unit.NONE),
+    CLIFF_FRONT_RIGHT_SIGNAL(30, 2, false, Unit.NONE),
+    CLIFF_RIGHT_SIGNAL(31, 2, false, Unit.NONE),
+    UNUSED_2(32, 1, false, Unit.NONE),
+    UNUSED_3(33, 2, false, Unit.NONE),
+    CHARGING_SOURCES_AVAILABLE(34, 1, false, Unit.NONE),
+    OI_MODE(35, 1, false, Unit.NONE),
+    SONG_NUMBER(36, 1, false, Unit.NONE),
+    SONG_PLAYING(37, 1, false, Unit.NONE),
+    NUMBER_OF_STREAM_PACKETS(38, 1, false, Unit.NONE),
+    REQUESTED_VELOCITY(39, 2, true, Unit.MILLIMETERS_PER_SECOND),
+    REQUESTED_RADIUS(40, 2, true, Unit.MILLIMETERS),
+    REQUESTED_RIGHT_VELOCITY(41, 2, true, Unit.MILLIMETERS_PER_SECOND),
+    REQUESTED_LEFT_VELOCITY(42, 2, true, Unit.MILLIMETERS_PER_SECOND),
+    LEFT_ENCODER_COUNTS(43, 2, false, Unit.COUNTS),
+    RIGHT_ENCODER_COUNTS(44, 2, false, Unit.COUNTS),
+    LIGHT_BUMPER(45, 1, false, Unit.NONE),
+    LIGHT_BUMP_LEFT_SIGNAL(46, 2, false, Unit.NONE),
+    LIGHT_BUMP_FRONT_LEFT_SIGNAL(47, 2, false, Unit.NONE),
+    LIGHT_BUMP_CENTER_LEFT_SIGNAL(48, 2, false, Unit.NONE),
+    LIGHT_BUMP_CENTER_RIGHT_SIGNAL(49, 2, false, Unit.NONE),
+    LIGHT_BUMP_FRONT_RIGHT_SIGNAL(50, 2, false, Unit.NONE),
+    LIGHT_BUMP_RIGHT_SIGNAL(51, 2, false, Unit.NONE),
+    INFRARED_CHARACTER_LEFT(52, 1, false, Unit.NONE),
+    INFRARED_CHARACTER_RIGHT(53, 1, false, Unit.NONE),
+    LEFT_MOTOR_CURRENT(54, 2, true, Unit.MILLIAMPS),
+    RIGHT_MOTOR_CURRENT(55, 2, true, Unit.MILLIAMPS),
+    MAIN_BRUSH_MOTOR_CURRENT(56, 2, true, Unit.MILLIAMPS),
+    SIDE_BRUSH_MOTOR_CURRENT(57, 2, true, Unit.MILLIAMPS),
+    STASIS(58, 1, false, Unit.NONE);
+
+    public enum Unit {
+        NONE,
+        MILLIMETERS,
+        DEGREES,
+        MILLIVOLTS,
+        MILLIAMPS,
+        DEGREES_CELSIUS,
+        MILLIAMP_HOURS,
+        MILLIMETERS_PER_SECOND,
+        COUNTS
+    }
+
+    private static final SensorPacket[] BY_ID = new SensorPacket[256];
+
+    static {
+        int offset = 0;
+        for (SensorPacket packet : values()) {
+            packet.offset = offset;
+            offset += packet.size;
+            BY_ID[packet.id] = packet;
+        }
+    }
+
+    private final int id;
+    private final int size;
+    private final boolean signed;
+    private final Unit unit;
+    private int offset;
+
+    SensorPacket(int id, int size, boolean signed, Unit unit) {
+        this.id = id;
+        this.size = size;
+        this.signed = signed;
+        this.unit = unit;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the number of data bytes the Roomba sends for this packet
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return where this packet's data starts in a full SensorData
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public Unit getUnit() {
+        return unit;
+    }
+
+    /**
+     * Read this packet's value from data laid out like a full SensorData.
+     */
+    public int getValue(byte[] data) {
+        if (size == 1) {
+            return signed ? data[offset] : data[offset] & 0xFF;
+        }
+        int value = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        return signed ? (short) value : value;
+    }
+
+    /**
+     * @return the packet with the id, or null if it is not an individual sensor packet
+     */
+    public static SensorPacket fromId(int id) {
+        return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ *  SmartRoomba - SensorPacketLayout
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * An ordered list of sensor packets to ask for with QUERY_LIST (149) or STREAM (148). The Roomba replies with the data
+ * of each packet back to back in the requested order, so the reply length is known up front. Replies are decoded by
+ * copying each packet's bytes to its packet 100 offset, so SensorData reads the same fields no matter which packets
+ * were requested and anything that was not requested reads as zero. Packets that sit next to each other in both the
+ * reply and packet 100 are worked out up front as a single run, so decoding a packet group is one copy.
+ */
+public class SensorPacketLayout {
+    /**
+     * The packets needed to keep track of where the Roomba is and to stop it when something is wrong: bumps, cliffs,
+     * wheel drops, over currents, the light bumper and the wheel encoders. This is 11 bytes instead of the 93 in a
+     * full packet 100 reply.
+     */
+    public static final SensorPacketLayout ODOMETRY_AND_SAFETY = new SensorPacketLayout(EnumSet.of(
+            SensorPacket.BUMPS_WHEEL_DROPS, SensorPacket.CLIFF_LEFT, SensorPacket.CLIFF_FRONT_LEFT,
+            SensorPacket.CLIFF_FRONT_RIGHT, SensorPacket.CLIFF_RIGHT, SensorPacket.WHEEL_OVER_CURRENTS,
+            SensorPacket.LEFT_ENCODER_COUNTS, SensorPacket.RIGHT_ENCODER_COUNTS, SensorPacket.LIGHT_BUMPER));
+
+    private final List<SensorPacket> packets;
+    private final int packetDataLength;
+    private final int replyLength;
+    private final int dataExtent;
+    // each run copies runLengths[i] bytes from runSources[i] in the reply to runTargets[i] in the SensorData
+    private final int[] runSources;
+    private final int[] runTargets;
+    private final int[] runLengths;
+
+    public SensorPacketLayout(SensorPacket... packets) {
+        this(Arrays.asList(packets));
+    }
+
+    /**
+     * @param packets the packets in the order they are requested, an EnumSet gives them in id order
+     */
+    public SensorPacketLayout(Collection<SensorPacket> packets) {
+        this(packets, 0);
+    }
+
+    /**
+     * @param padding extra bytes the Roomba sends after the last packet, kept right after it in the SensorData
+     */
+    private SensorPacketLayout(Collection<SensorPacket> packets, int padding) {
+        if (packets.isEmpty() || packets.size() > 255) {
+            throw new IllegalArgumentException("A layout must have between 1 and 255 packets, had " + packets.size());
+        }
+        this.packets = Collections.unmodifiableList(Arrays.asList(packets.toArray(new SensorPacket[0])));
+        int[] sources = new int[this.packets.size()];
+        int[] targets = new int[this.packets.size()];
+        int[] lengths = new int[this.packets.size()];
+        int runs = 0;
+        int length = 0;
+        for (SensorPacket packet : this.packets) {
+            if (runs > 0 && targets[runs - 1] + lengths[runs - 1] == packet.getOffset()) {
+                lengths[runs - 1] += packet.getSize();
+            } else {
+                sources[runs] = length;
+                targets[runs] = packet.getOffset();
+                lengths[runs] = packet.getSize();
+                runs++;
+            }
+            length += packet.getSize();
+        }
+        lengths[runs - 1] += padding;
+        int extent = 0;
+        for (int i = 0; i < runs; i++) {
+            extent = Math.max(extent, targets[i] + lengths[i]);
+        }
+        if (extent > SensorData.MAX_SENSOR_BYTES) {
+            throw new IllegalArgumentException("A layout can reach at most " + SensorData.MAX_SENSOR_BYTES
+                    + " bytes of sensor data, reached " + extent);
+        }
+        packetDataLength = length;
+        replyLength = length + padding;
+        dataExtent = extent;
+        runSources = Arrays.copyOf(sources, runs);
+        runTargets = Arrays.copyOf(targets, runs);
+        runLengths = Arrays.copyOf(lengths, runs);
+    }
+
+    /**
+     * The layout of a packet group reply, the packets from the first to the last id back to back.
+     *
+     * @param replyLength the number of bytes the Roomba actually sends, anything past the last packet is padding
+     */
+    static SensorPacketLayout ofRange(int firstPacketId, int lastPacketId, int replyLength) {
+        List<SensorPacket> packets = new ArrayList<>();
+        int length = 0;
+        for (int id = firstPacketId; id <= lastPacketId; id++) {
+            SensorPacket packet = SensorPacket.fromId(id);
+            packets.add(packet);
+            length += packet.getSize();
+        }
+        return new SensorPacketLayout(packets, Math.max(0, replyLength - length));
+    }
+
+    public List<SensorPacket> getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return the number of data bytes in a QUERY_LIST reply
+     */
+    public int getReplyLength() {
+        return replyLength;
+    }
+
+    /**
+     * @return the value of n in a stream frame, every packet's data plus a byte for each packet id
+     */
+    public int getStreamDataLength() {
+        return packetDataLength + packets.size();
+    }
+
+    /**
+     * @return how many bytes of a full SensorData the decoded packets reach
+     */
+    public int getDataExtent() {
+        return dataExtent;
+    }
+
+    /**
+     * @return the SensorData flags that can be set in a frame decoded with this layout, the rest always read as clear
+     */
+    public int getDecodedFlags() {
+        int flags = 0;
+        for (SensorPacket packet : packets) {
+            switch (packet) {
+                case BUMPS_WHEEL_DROPS:
+                    flags |= SensorData.BUMP_LEFT | SensorData.BUMP_RIGHT | SensorData.WHEEL_DROP_LEFT
+                            | SensorData.WHEEL_DROP_RIGHT;
+                    break;
+                case CLIFF_LEFT:
+                    flags |= SensorData.CLIFF_LEFT;
+                    break;
+                case CLIFF_FRONT_LEFT:
+                    flags |= SensorData.CLIFF_FRONT_LEFT;
+                    break;
+                case CLIFF_FRONT_RIGHT:
+                    flags |= SensorData.CLIFF_FRONT_RIGHT;
+                    break;
+                case CLIFF_RIGHT:
+                    flags |= SensorData.CLIFF_RIGHT;
+                    break;
+                case VIRTUAL_WALL:
+                    flags |= SensorData.VIRTUAL_WALL;
+                    break;
+                case WHEEL_OVER_CURRENTS:
+                    flags |= SensorData.OVER_CURRENT_LEFT_WHEEL | SensorData.OVER_CURRENT_RIGHT_WHEEL
+                            | SensorData.OVER_CURRENT_MAIN_BRUSH | SensorData.OVER_CURRENT_SIDE_BRUSH;
+                    break;
+                case BUTTONS:
+                    flags |= SensorData.CLEAN_BUTTON | SensorData.SPOT_BUTTON | SensorData.DOCK_BUTTON;
+                    break;
+                case LIGHT_BUMPER:
+                    flags |= SensorData.LIGHT_BUMPER_LEFT | SensorData.LIGHT_BUMPER_FRONT_LEFT
+                            | SensorData.LIGHT_BUMPER_CENTER_LEFT | SensorData.LIGHT_BUMPER_CENTER_RIGHT
+                            | SensorData.LIGHT_BUMPER_FRONT_RIGHT | SensorData.LIGHT_BUMPER_RIGHT;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return flags;
+    }
+
+    /**
+     * @param opCode QUERY_LIST or STREAM
+     * @return the command asking for these packets: [opCode][number of packets][packet ids...]
+     */
+    public byte[] getCommand(int opCode) {
+        byte[] command = new byte[packets.size() + 2];
+        command[0] = (byte) opCode;
+        command[1] = (byte) packets.size();
+        for (int i = 0; i < packets.size(); i++) {
+            command[i + 2] = (byte) packets.get(i).getId();
+        }
+        return command;
+    }
+
+    /**
+     * @return the number of copies decode() makes
+     */
+    public int getRunCount() {
+        return runLengths.length;
+    }
+
+    /**
+     * @return where run i starts in the reply
+     */
+    public int getRunSource(int run) {
+        return runSources[run];
+    }
+
+    /**
+     * @return where run i goes in a full SensorData
+     */
+    public int getRunTarget(int run) {
+        return runTargets[run];
+    }
+
+    public int getRunLength(int run) {
+        return runLengths[run];
+    }
+
+    /**
+     * Copy each packet's data from a reply to its packet 100 offset in sensorData.
+     */
+    public void decode(byte[] reply, int offset, byte[] sensorData) {
+        for (int i = 0; i < runLengths.length; i++) {
+            System.arraycopy(reply, offset + runSources[i], sensorData, runTargets[i], runLengths[i]);
+        }
+    }
+}
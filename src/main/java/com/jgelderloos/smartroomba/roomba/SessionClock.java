@@ -0,0 +1,109 @@
+/*
+ *  SmartRoomba - SessionClock
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ties System.nanoTime() to the wall clock for one session. Sensor data is stamped with nanoTime, which has sub
+ * millisecond resolution and never jumps, and the wall clock time is only worked out from the anchor when someone asks
+ * for it. Since the anchor is taken once, later changes to the system clock do not move timestamps within a session.
+ */
+public class SessionClock {
+    private static final SessionClock DEFAULT = new SessionClock();
+
+    private final long anchorEpochNanos;
+    private final long anchorNanoTime;
+    private final ZoneId zoneId;
+    // the zone offset from the last toLocalEpochNanos() call, so it is only looked up again when it may have changed
+    private volatile OffsetSpan offsetSpan;
+
+    public SessionClock() {
+        this(Instant.now(), System.nanoTime(), ZoneId.systemDefault());
+    }
+
+    public SessionClock(Instant anchorInstant, long anchorNanoTime, ZoneId zoneId) {
+        this.anchorEpochNanos = TimeUnit.SECONDS.toNanos(anchorInstant.getEpochSecond()) + anchorInstant.getNano();
+        this.anchorNanoTime = anchorNanoTime;
+        this.zoneId = zoneId;
+    }
+
+    /**
+     * @return the clock shared by everything that was not given a clock of its own
+     */
+    public static SessionClock getDefault() {
+        return DEFAULT;
+    }
+
+    public LocalDateTime toLocalDateTime(long nanoTime) {
+        long epochNanos = anchorEpochNanos + (nanoTime - anchorNanoTime);
+        Instant instant = Instant.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L),
+                Math.floorMod(epochNanos, 1_000_000_000L));
+        return LocalDateTime.ofInstant(instant, zoneId);
+    }
+
+    /**
+     * The same time as toLocalDateTime() as a number, without allocating anything unless the zone offset changed since
+     * the last call.
+     *
+     * @return nanoseconds from 1970-01-01T00:00 to the local date and time at nanoTime
+     */
+    public long toLocalEpochNanos(long nanoTime) {
+        long epochNanos = anchorEpochNanos + (nanoTime - anchorNanoTime);
+        long epochSecond = Math.floorDiv(epochNanos, 1_000_000_000L);
+        OffsetSpan span = offsetSpan;
+        if (span == null || epochSecond < span.fromEpochSecond || epochSecond >= span.untilEpochSecond) {
+            span = new OffsetSpan(zoneId.getRules(), epochSecond);
+            offsetSpan = span;
+        }
+        return epochNanos + span.offsetNanos;
+    }
+
+    public long toNanoTime(LocalDateTime dateTime) {
+        Instant instant = dateTime.atZone(zoneId).toInstant();
+        long epochNanos = TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+        return anchorNanoTime + (epochNanos - anchorEpochNanos);
+    }
+
+    /**
+     * A zone offset and the seconds it holds for, from the first time it was looked up to the next transition
+     */
+    private static class OffsetSpan {
+        private final long fromEpochSecond;
+        private final long untilEpochSecond;
+        private final long offsetNanos;
+
+        OffsetSpan(ZoneRules rules, long epochSecond) {
+            Instant instant = Instant.ofEpochSecond(epochSecond);
+            ZoneOffsetTransition next = rules.nextTransition(instant);
+            fromEpochSecond = epochSecond;
+            untilEpochSecond = next == null ? Long.MAX_VALUE : next.toEpochSecond();
+            offsetNanos = TimeUnit.SECONDS.toNanos(rules.getOffset(instant).getTotalSeconds());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  SmartRoomba - BlockingSerialReader
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the serial input on its own thread with blocking bulk reads and hands what it reads to a SensorFrameReceiver,
+ * instead of waiting for the serial library to send a data available event. The read should be set up to return
+ * after a receive timeout even when nothing arrives, so the reader notices when it has been stopped. The lock is held
+ * while frames are handed off but never while blocked in a read.
+ */
+public class BlockingSerialReader implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(BlockingSerialReader.class);
+    public static final int DEFAULT_READ_SIZE = 1024;
+
+    private final InputStream input;
+    private final SensorFrameReceiver sensorFrameReceiver;
+    private final Object lock;
+    private final byte[] readBuffer;
+    private volatile boolean running = true;
+    private volatile long readCount = 0;
+    private volatile long byteCount = 0;
+
+    public BlockingSerialReader(InputStream input, SensorFrameReceiver sensorFrameReceiver, Object lock) {
+        this(input, sensorFrameReceiver, lock, DEFAULT_READ_SIZE);
+    }
+
+    public BlockingSerialReader(InputStream input, SensorFrameReceiver sensorFrameReceiver, Object lock, int readSize) {
+        this.input = input;
+        this.sensorFrameReceiver = sensorFrameReceiver;
+        this.lock = lock;
+        this.readBuffer = new byte[readSize];
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                int read = input.read(readBuffer);
+                if (read < 0) {
+                    LOGGER.info("Serial input closed");
+                    break;
+                }
+                if (read > 0) {
+                    // the time the read returned is the closest there is to when the first byte arrived
+                    long nanos = System.nanoTime();
+                    synchronized (lock) {
+                        sensorFrameReceiver.receive(readBuffer, 0, read, nanos);
+                    }
+                    readCount++;
+                    byteCount += read;
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                LOGGER.error("Error reading serial input. ", e);
+            }
+        }
+        running = false;
+    }
+
+    /**
+     * Stop after the current read returns
+     */
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of reads that returned data
+     */
+    public long getReadCount() {
+        return readCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+}
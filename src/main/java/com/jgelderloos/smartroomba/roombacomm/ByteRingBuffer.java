@@ -0,0 +1,226 @@
+/*
+ *  SmartRoomba - ByteRingBuffer
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A bounded ring of received bytes. Bytes are read into it in bulk straight from an InputStream and frames are
+ * inspected and cut out of it by offset from the oldest byte, so nothing is copied until a frame is complete.
+ * <p>
+ * The ring also remembers the System.nanoTime() at which each chunk of bytes was read, so a frame can be stamped with
+ * the arrival of its first byte rather than the time it was finally complete.
+ * <p>
+ * If the ring is full when more data arrives the oldest bytes are dropped to make room. This is not thread safe, it
+ * is only used from the thread reading the serial port.
+ */
+public class ByteRingBuffer {
+    private static final int MAX_ARRIVAL_MARKS = 64;
+
+    private final byte[] buffer;
+    private final int mask;
+    private long readPosition = 0;
+    private long writePosition = 0;
+    private long overflowByteCount = 0;
+    // position of the first byte of each chunk and when it was read, oldest first
+    private final long[] markPositions = new long[MAX_ARRIVAL_MARKS];
+    private final long[] markNanos = new long[MAX_ARRIVAL_MARKS];
+    private int markHead = 0;
+    private int markCount = 0;
+
+    /**
+     * @param capacity size of the ring, rounded up to the next power of two
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30, was " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int size() {
+        return (int) (writePosition - readPosition);
+    }
+
+    public boolean isEmpty() {
+        return writePosition == readPosition;
+    }
+
+    /**
+     * @return the number of bytes dropped because the ring was full
+     */
+    public long getOverflowByteCount() {
+        return overflowByteCount;
+    }
+
+    /**
+     * Read up to maxBytes from the stream with as few read calls as possible. At most two reads are made, one for the
+     * free space up to the end of the backing array and one for the free space after wrapping.
+     *
+     * @return the number of bytes read, or -1 if the stream has ended
+     */
+    public int readFrom(InputStream inputStream, int maxBytes) throws IOException {
+        int total = 0;
+        long nanos = System.nanoTime();
+        while (total < maxBytes) {
+            if (size() == buffer.length) {
+                skip(Math.min(maxBytes - total, buffer.length));
+                overflowByteCount += Math.min(maxBytes - total, buffer.length);
+            }
+            int writeIndex = (int) (writePosition & mask);
+            int contiguous = Math.min(buffer.length - size(), buffer.length - writeIndex);
+            int read = inputStream.read(buffer, writeIndex, Math.min(contiguous, maxBytes - total));
+            if (read < 0) {
+                return total == 0 ? -1 : total;
+            }
+            if (read == 0) {
+                break;
+            }
+            mark(writePosition, nanos);
+            writePosition += read;
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Copy bytes into the ring, dropping the oldest bytes if there is not enough room.
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        write(bytes, offset, length, System.nanoTime());
+    }
+
+    /**
+     * Copy bytes into the ring that arrived at the given System.nanoTime(), dropping the oldest bytes if there is not
+     * enough room.
+     */
+    public void write(byte[] bytes, int offset, int length, long nanos) {
+        if (length <= 0) {
+            return;
+        }
+        if (length > buffer.length) {
+            overflowByteCount += length - buffer.length;
+            offset += length - buffer.length;
+            length = buffer.length;
+        }
+        int free = buffer.length - size();
+        if (length > free) {
+            skip(length - free);
+            overflowByteCount += length - free;
+        }
+        int writeIndex = (int) (writePosition & mask);
+        int firstPart = Math.min(length, buffer.length - writeIndex);
+        System.arraycopy(bytes, offset, buffer, writeIndex, firstPart);
+        System.arraycopy(bytes, offset + firstPart, buffer, 0, length - firstPart);
+        mark(writePosition, nanos);
+        writePosition += length;
+    }
+
+    /**
+     * @param offset offset from the oldest byte in the ring
+     * @return the System.nanoTime() when the byte was read into the ring
+     */
+    public long getArrivalNanos(int offset) {
+        if (markCount == 0) {
+            return System.nanoTime();
+        }
+        long position = readPosition + offset;
+        for (int i = markCount - 1; i > 0; i--) {
+            int index = (markHead + i) & (MAX_ARRIVAL_MARKS - 1);
+            if (markPositions[index] <= position) {
+                return markNanos[index];
+            }
+        }
+        return markNanos[markHead];
+    }
+
+    /**
+     * @param offset offset from the oldest byte in the ring
+     * @return the unsigned value of the byte
+     */
+    public int peek(int offset) {
+        return buffer[(int) ((readPosition + offset) & mask)] & 0xFF;
+    }
+
+    /**
+     * @return the sum of length bytes starting at offset
+     */
+    public int sum(int offset, int length) {
+        int sum = 0;
+        int index = (int) ((readPosition + offset) & mask);
+        for (int i = 0; i < length; i++) {
+            sum += buffer[index];
+            index = (index + 1) & mask;
+        }
+        return sum;
+    }
+
+    /**
+     * Copy length bytes starting at offset out of the ring without removing them.
+     */
+    public void copy(int offset, byte[] destination, int destinationOffset, int length) {
+        int readIndex = (int) ((readPosition + offset) & mask);
+        int firstPart = Math.min(length, buffer.length - readIndex);
+        System.arraycopy(buffer, readIndex, destination, destinationOffset, firstPart);
+        System.arraycopy(buffer, 0, destination, destinationOffset + firstPart, length - firstPart);
+    }
+
+    /**
+     * Remove the oldest bytes from the ring.
+     */
+    public void skip(int length) {
+        readPosition += Math.min(length, size());
+        // drop the marks of chunks that have been completely read
+        while (markCount > 1 && markPositions[(markHead + 1) & (MAX_ARRIVAL_MARKS - 1)] <= readPosition) {
+            markHead = (markHead + 1) & (MAX_ARRIVAL_MARKS - 1);
+            markCount--;
+        }
+    }
+
+    public void clear() {
+        readPosition = writePosition;
+        markCount = 0;
+    }
+
+    private void mark(long position, long nanos) {
+        if (markCount == MAX_ARRIVAL_MARKS) {
+            // out of marks, the oldest chunk is reported as arriving with the one after it
+            markHead = (markHead + 1) & (MAX_ARRIVAL_MARKS - 1);
+            markCount--;
+        }
+        int index = (markHead + markCount) & (MAX_ARRIVAL_MARKS - 1);
+        markPositions[index] = position;
+        markNanos[index] = nanos;
+        markCount++;
+    }
+}
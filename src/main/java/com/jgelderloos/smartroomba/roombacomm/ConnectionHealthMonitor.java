@@ -0,0 +1,212 @@
+/*
+ *  SmartRoomba - ConnectionHealthMonitor
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.OpCodes;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the sensor data coming in over a RoombaComm and brings the connection back when it stops. Every frame is
+ * timed to track the gaps between frames. When no frame has arrived for the frame timeout the port is closed and
+ * reopened, START is sent again and the stream that was running is restarted. If that fails the next attempt waits
+ * twice as long, up to the longest backoff, until a frame arrives again.
+ * <p>
+ * Nothing happens on a thread of its own, check() has to be called regularly, for example from SmartRoomba.step().
+ * With reconnecting turned off a timeout is only logged.
+ */
+public class ConnectionHealthMonitor implements SensorDataListener {
+    private static final Logger LOGGER = LogManager.getLogger(ConnectionHealthMonitor.class);
+    public static final long DEFAULT_FRAME_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    public static final long DEFAULT_INITIAL_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    public static final long DEFAULT_MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    public enum State {
+        CONNECTED,
+        RECONNECTING
+    }
+
+    private final RoombaComm roombaComm;
+    private final String portId;
+    private long frameTimeoutNanos = DEFAULT_FRAME_TIMEOUT_NANOS;
+    private long initialBackoffNanos = DEFAULT_INITIAL_BACKOFF_NANOS;
+    private long maxBackoffNanos = DEFAULT_MAX_BACKOFF_NANOS;
+    private boolean reconnectEnabled = true;
+
+    private State state = State.CONNECTED;
+    private long backoffNanos = DEFAULT_INITIAL_BACKOFF_NANOS;
+    private long nextAttemptNanos;
+    private long lastFrameNanos;
+    private boolean frameSeen = false;
+    private long frameCount = 0;
+    private long gapCount = 0;
+    private long gapTotalNanos = 0;
+    private long maxGapNanos = 0;
+    private long timeoutCount = 0;
+    private long reconnectAttemptCount = 0;
+    private long reconnectCount = 0;
+
+    /**
+     * @param portId what to pass to connect() when reconnecting
+     */
+    public ConnectionHealthMonitor(RoombaComm roombaComm, String portId) {
+        this.roombaComm = roombaComm;
+        this.portId = portId;
+        lastFrameNanos = System.nanoTime();
+        nextAttemptNanos = lastFrameNanos;
+    }
+
+    public synchronized void setFrameTimeoutNanos(long frameTimeoutNanos) {
+        this.frameTimeoutNanos = frameTimeoutNanos;
+    }
+
+    /**
+     * @param initialBackoffNanos the wait after the first failed reconnect
+     * @param maxBackoffNanos the longest wait between reconnect attempts
+     */
+    public synchronized void setBackoffNanos(long initialBackoffNanos, long maxBackoffNanos) {
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+        backoffNanos = initialBackoffNanos;
+    }
+
+    public synchronized void setReconnectEnabled(boolean reconnectEnabled) {
+        this.reconnectEnabled = reconnectEnabled;
+    }
+
+    /**
+     * Start listening for frames, the frame timeout starts now
+     */
+    public void start() {
+        synchronized (this) {
+            lastFrameNanos = System.nanoTime();
+        }
+        roombaComm.addSensorDataListener(this);
+    }
+
+    public void stop() {
+        roombaComm.removeSensorDataListener(this);
+    }
+
+    @Override
+    public void sensorDataReceived(SensorData sensorData) {
+        frameReceived(System.nanoTime());
+    }
+
+    /**
+     * Record a frame that arrived at the given System.nanoTime()
+     */
+    public synchronized void frameReceived(long nanos) {
+        if (frameSeen) {
+            long gap = nanos - lastFrameNanos;
+            gapCount++;
+            gapTotalNanos += gap;
+            maxGapNanos = Math.max(maxGapNanos, gap);
+        }
+        frameSeen = true;
+        lastFrameNanos = nanos;
+        frameCount++;
+        // the link works again
+        backoffNanos = initialBackoffNanos;
+    }
+
+    public void check() {
+        check(System.nanoTime());
+    }
+
+    /**
+     * Look for a frame timeout and reconnect when it is time to. The connection is only touched outside this
+     * monitor's lock, since the RoombaComm calls sensorDataReceived() while holding its own.
+     *
+     * @param nanos the current System.nanoTime()
+     */
+    public void check(long nanos) {
+        synchronized (this) {
+            if (state == State.CONNECTED && nanos - lastFrameNanos > frameTimeoutNanos) {
+                timeoutCount++;
+                LOGGER.warn("No sensor data in over {} ms. Make sure the Roomba is on.", TimeUnit.NANOSECONDS.toMillis(frameTimeoutNanos));
+                if (reconnectEnabled) {
+                    state = State.RECONNECTING;
+                    if (frameSeen) {
+                        // the link was working, try straight away
+                        nextAttemptNanos = nanos;
+                    }
+                    // otherwise the port reopened but nothing came through, keep waiting out the backoff
+                } else {
+                    // warn again after another timeout
+                    lastFrameNanos = nanos;
+                }
+            }
+            if (state != State.RECONNECTING || nanos - nextAttemptNanos < 0) {
+                return;
+            }
+            reconnectAttemptCount++;
+            LOGGER.info("Reconnecting to {}, attempt {}", portId, reconnectAttemptCount);
+        }
+
+        roombaComm.disconnect();
+        boolean connected = roombaComm.connect(portId);
+        if (connected) {
+            roombaComm.send(OpCodes.START.getId());
+            roombaComm.restoreStream();
+        }
+
+        synchronized (this) {
+            if (connected) {
+                reconnectCount++;
+                state = State.CONNECTED;
+                // give the Roomba a full timeout to start talking again, the gap across the outage is not a link gap
+                lastFrameNanos = nanos;
+                frameSeen = false;
+                LOGGER.info("Reconnected to {}", portId);
+            } else {
+                LOGGER.warn("Could not reconnect to {}, trying again in {} ms", portId, TimeUnit.NANOSECONDS.toMillis(backoffNanos));
+            }
+            // keep backing off until a frame shows the link really works
+            nextAttemptNanos = nanos + backoffNanos;
+            backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return a snapshot of the link quality so far
+     */
+    public LinkQuality getLinkQuality() {
+        long checksumErrorCount = roombaComm.getChecksumErrorCount();
+        long requestTimeoutCount = roombaComm.getRequestTimeoutCount();
+        long discardedByteCount = roombaComm.getDiscardedByteCount();
+        synchronized (this) {
+            return new LinkQuality(state, frameCount, gapCount == 0 ? 0 : gapTotalNanos / gapCount, maxGapNanos,
+                    checksumErrorCount, requestTimeoutCount, discardedByteCount, timeoutCount, reconnectAttemptCount,
+                    reconnectCount);
+        }
+    }
+}
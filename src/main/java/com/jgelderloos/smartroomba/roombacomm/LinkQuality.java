@@ -0,0 +1,118 @@
+/*
+ *  SmartRoomba - LinkQuality
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+/**
+ * A snapshot of how well sensor data has been getting through, from a ConnectionHealthMonitor.
+ */
+public class LinkQuality {
+    private final ConnectionHealthMonitor.State state;
+    private final long frameCount;
+    private final long meanGapNanos;
+    private final long maxGapNanos;
+    private final long checksumErrorCount;
+    private final long requestTimeoutCount;
+    private final long discardedByteCount;
+    private final long frameTimeoutCount;
+    private final long reconnectAttemptCount;
+    private final long reconnectCount;
+
+    public LinkQuality(ConnectionHealthMonitor.State state, long frameCount, long meanGapNanos, long maxGapNanos,
+                       long checksumErrorCount, long requestTimeoutCount, long discardedByteCount, long frameTimeoutCount,
+                       long reconnectAttemptCount, long reconnectCount) {
+        this.state = state;
+        this.frameCount = frameCount;
+        this.meanGapNanos = meanGapNanos;
+        this.maxGapNanos = maxGapNanos;
+        this.checksumErrorCount = checksumErrorCount;
+        this.requestTimeoutCount = requestTimeoutCount;
+        this.discardedByteCount = discardedByteCount;
+        this.frameTimeoutCount = frameTimeoutCount;
+        this.reconnectAttemptCount = reconnectAttemptCount;
+        this.reconnectCount = reconnectCount;
+    }
+
+    public ConnectionHealthMonitor.State getState() {
+        return state;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return the average time between frames, not counting the gap across a reconnect
+     */
+    public long getMeanGapNanos() {
+        return meanGapNanos;
+    }
+
+    public long getMaxGapNanos() {
+        return maxGapNanos;
+    }
+
+    /**
+     * @return stream frames dropped because of a bad checksum
+     */
+    public long getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+
+    /**
+     * @return sensor requests whose reply never arrived or arrived short
+     */
+    public long getRequestTimeoutCount() {
+        return requestTimeoutCount;
+    }
+
+    /**
+     * @return received bytes that were not part of a valid frame
+     */
+    public long getDiscardedByteCount() {
+        return discardedByteCount;
+    }
+
+    /**
+     * @return how many times no frame arrived within the frame timeout
+     */
+    public long getFrameTimeoutCount() {
+        return frameTimeoutCount;
+    }
+
+    public long getReconnectAttemptCount() {
+        return reconnectAttemptCount;
+    }
+
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s frames: %d gap mean/max: %.1f/%.1f ms checksum errors: %d request timeouts: %d "
+                        + "discarded bytes: %d frame timeouts: %d reconnects: %d/%d", state, frameCount, meanGapNanos / 1e6,
+                maxGapNanos / 1e6, checksumErrorCount, requestTimeoutCount, discardedByteCount, frameTimeoutCount,
+                reconnectCount, reconnectAttemptCount);
+    }
+}
@@ -1,40 +1,26 @@
 package com.jgelderloos.smartroomba.roombacomm;
 
 import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.utilities.ReplaySensorDataThread;
 
-import java.time.Duration;
-import java.time.LocalDateTime;
 import java.util.Queue;
 
+/**
+ * Replays the frames in fileDataQueue into sensorDataQueue on a thread of its own, see ReplaySensorDataThread.
+ */
 public class PlaybackThread extends Thread {
-    private boolean running = false;
-    private Queue<SensorData> sensorDataQueue;
-    private Queue<SensorData> fileDataQuete;
-    private LocalDateTime threadStartTime;
-    private LocalDateTime dataStartTime;
+    private final ReplaySensorDataThread replaySensorDataThread;
 
     public PlaybackThread(Queue<SensorData> sensorDataQueue, Queue<SensorData> fildDataQueue) {
-        this.sensorDataQueue = sensorDataQueue;
-        this.fileDataQuete = fildDataQueue;
+        this(new ReplaySensorDataThread(sensorDataQueue, fildDataQueue));
     }
 
-    public void run() {
-        running = true;
-        threadStartTime = LocalDateTime.now();
-
-        while (fileDataQuete.peek() != null) {
-            SensorData currentData = fileDataQuete.peek();
-            if (dataStartTime == null) {
-                dataStartTime = currentData.getDateTime();
-            }
-
-            Duration threadRunTime = Duration.between(threadStartTime, LocalDateTime.now());
-            Duration nextDataTime = Duration.between(dataStartTime, currentData.getDateTime());
+    private PlaybackThread(ReplaySensorDataThread replaySensorDataThread) {
+        super(replaySensorDataThread);
+        this.replaySensorDataThread = replaySensorDataThread;
+    }
 
-            if (nextDataTime.compareTo(threadRunTime) == 1) {
-                currentData = fileDataQuete.poll();
-                sensorDataQueue.add(currentData);
-            }
-        }
+    public void setSpeed(double speed) {
+        replaySensorDataThread.setSpeed(speed);
     }
 }
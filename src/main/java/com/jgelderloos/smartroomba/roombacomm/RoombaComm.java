@@ -23,10 +23,14 @@
 
 package com.jgelderloos.smartroomba.roombacomm;
 
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
 import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
 import com.jgelderloos.smartroomba.songs.Note;
 
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.jgelderloos.smartroomba.roomba.RoombaConstants.MILLIMETERS_PER_DEGREE;
 import static com.jgelderloos.smartroomba.roomba.RoombaConstants.MILLIMETERS_PER_RADIAN;
@@ -80,6 +84,12 @@ public abstract class RoombaComm {
 	/** default update time in ms for auto sensors update */
 	public static final int defaultSensorsUpdateTime = 200;
 
+	/**
+	 * how many sensor frames the sensor data queue holds before the oldest are
+	 * dropped, about a second of stream data
+	 */
+	public static final int defaultSensorDataQueueCapacity = 64;
+
 	/** current mode, if known */
 	int mode;
 
@@ -105,6 +115,20 @@ public abstract class RoombaComm {
 	/** connected to a serial port or not, not necessarily to roomba */
 	boolean connected = false;
 
+	/** how many sensor requests may be waiting for a reply at once */
+	int maxRequestsInFlight = 1;
+
+
+	/** what is being streamed, so the stream can be restarted after reconnecting */
+	private volatile SensorPacketGroup streamPacketGroup;
+	private volatile SensorPacketLayout streamLayout;
+
+	/** the packets the latest frames are decoded from, null if not known */
+	private volatile SensorPacketLayout sensorLayout;
+
+	/** told about every frame put on the sensor data queue */
+	private final List<SensorDataListener> sensorDataListeners = new CopyOnWriteArrayList<>();
+
 	public RoombaComm() {
 		connected = false;
 		mode = MODE_UNKNOWN;
@@ -191,7 +215,45 @@ public abstract class RoombaComm {
 	// TODO: utils
 	public abstract boolean updateSensors();
 
+	/**
+	 * @return the bounded queue sensor data is delivered on, once it is full
+	 * the oldest frames are dropped so consumers always see fresh data
+	 */
 	public abstract Queue<SensorData> getSensorDataQueue();
+
+	/**
+	 * Be told as soon as sensor data arrives instead of polling the sensor
+	 * data queue
+	 */
+	public void addSensorDataListener(SensorDataListener listener) {
+		sensorDataListeners.add(listener);
+	}
+
+	public void removeSensorDataListener(SensorDataListener listener) {
+		sensorDataListeners.remove(listener);
+	}
+
+	/**
+	 * Put sensor data on the sensor data queue and tell the listeners about
+	 * it. The data is held until every listener has seen it, even if a
+	 * consumer has already taken it off the queue.
+	 * <p>
+	 * The caller's reference to the frame is handed over to the queue, the
+	 * caller must not release it afterwards. The consumer releases it after
+	 * taking it off the queue, or the queue releases it if it is dropped.
+	 * Listeners that keep the frame past sensorDataReceived() retain it.
+	 */
+	protected void publishSensorData(SensorData sensorData) {
+		sensorData.retain();
+		try {
+			getSensorDataQueue().offer(sensorData);
+			for (SensorDataListener listener : sensorDataListeners) {
+				listener.sensorDataReceived(sensorData);
+			}
+		} finally {
+			sensorData.release();
+		}
+	}
 	/**
 	 * Wake's Roomba up, if possible, thus optional To wake up the Roomba
 	 * requires twiddling its DD line, often hooked up to the RS-232 DTR line,
@@ -325,6 +387,101 @@ public abstract class RoombaComm {
 	    this.readRequestLength = readRequestLength;
     }
 
+	/**
+	 * Send the STREAM command for a single packet group. Once started the Roomba
+	 * sends a frame with the packet group every 15 ms until the stream is
+	 * stopped, so there is no need to keep requesting sensor data. This is a
+	 * roomba 5xx and newer only command.
+	 *
+	 * @param packetGroup
+	 *            the packet group to include in every frame
+	 */
+	public void startStream(SensorPacketGroup packetGroup) {
+		streamPacketGroup = packetGroup;
+		streamLayout = null;
+		sensorLayout = packetGroup.getLayout();
+		byte cmd[] = { (byte) STREAM, 1, (byte) packetGroup.getId() };
+		send(cmd);
+	}
+
+	/**
+	 * Send the STREAM command for a list of individual packets, every frame
+	 * holds just those packets
+	 *
+	 * @param layout
+	 *            the packets to include in every frame, in order
+	 */
+	public void startStream(SensorPacketLayout layout) {
+		streamPacketGroup = null;
+		streamLayout = layout;
+		sensorLayout = layout;
+		send(layout.getCommand(STREAM));
+	}
+
+	/**
+	 * Pause a stream started with startStream()
+	 */
+	public void stopStream() {
+		streamPacketGroup = null;
+		streamLayout = null;
+		byte cmd[] = { (byte) STOPSTARTSTREAM, 0 };
+		send(cmd);
+	}
+
+	/**
+	 * @return the packet group last passed to startStream(), or null if a
+	 *         layout or nothing is being streamed
+	 */
+	public SensorPacketGroup getStreamPacketGroup() {
+		return streamPacketGroup;
+	}
+
+	/**
+	 * @return the layout last passed to startStream(), or null if a packet
+	 *         group or nothing is being streamed
+	 */
+	public SensorPacketLayout getStreamLayout() {
+		return streamLayout;
+	}
+
+	/**
+	 * Send the same STREAM command again, for when the Roomba has forgotten it
+	 * after a reconnect
+	 */
+	public void restoreStream() {
+		SensorPacketGroup packetGroup = streamPacketGroup;
+		SensorPacketLayout layout = streamLayout;
+		if (packetGroup != null) {
+			startStream(packetGroup);
+		} else if (layout != null) {
+			startStream(layout);
+		}
+	}
+
+	/**
+	 * @return the number of stream frames dropped because of a bad checksum,
+	 *         0 if this connection does not check them
+	 */
+	public long getChecksumErrorCount() {
+		return 0;
+	}
+
+	/**
+	 * @return the number of sensor requests given up on because no complete
+	 *         reply arrived in time
+	 */
+	public long getRequestTimeoutCount() {
+		return 0;
+	}
+
+	/**
+	 * @return the number of received bytes thrown away because they were not
+	 *         part of a valid frame
+	 */
+	public long getDiscardedByteCount() {
+		return 0;
+	}
+
 	/**
 	 * Send the SENSORS command with one of the SENSORS_ arguments Typically,
 	 * one does "sensors(SENSORS_ALL)" to get all sensor data
@@ -441,27 +598,78 @@ public abstract class RoombaComm {
 	*/
 
 	/**
-	 * Query a list of sensors. This is a roomba 5xx only command.
+	 * Query a list of sensors. This is a roomba 5xx only command. The reply
+	 * length is worked out from the packets in the layout and the reply is
+	 * decoded to the same SensorData offsets as a full packet 100 reply.
 	 * 
-	 * @param sensorList
-	 *            A byte array containing the sensor groups requested to be read
-	 * @param returnLen
-	 *            The number of bytes of data expected to be returned from
-	 *            roomba
+	 * @param layout
+	 *            the packets to read, in the order they should be returned
 	 */
-	// TODO: interface
-	/*
-	public void queryList(byte[] sensorList, int returnLen) {
-		int i = 0;
-
-		readRequestLength = returnLen;
-		byte cmd[] = new byte[1 + sensorList.length];
-		cmd[i++] = (byte) QUERYLIST;
-		for (i = 0; i < sensorList.length; i++)
-			cmd[i + 1] = sensorList[i];
-		send(cmd);
+	public void queryList(SensorPacketLayout layout) {
+		requestSensors(layout);
+	}
+
+	/**
+	 * Request a packet group with the SENSORS command. Implementations that
+	 * match replies to requests refuse to send once maxRequestsInFlight
+	 * requests are waiting for a reply.
+	 *
+	 * @return true if the request was sent
+	 */
+	public boolean requestSensors(SensorPacketGroup packetGroup) {
+		setReplyLayout(packetGroup.getLayout());
+		byte cmd[] = { (byte) SENSORS, (byte) packetGroup.getId() };
+		return send(cmd);
+	}
+
+	/**
+	 * Request a list of packets with the QUERY_LIST command. Implementations
+	 * that match replies to requests refuse to send once maxRequestsInFlight
+	 * requests are waiting for a reply.
+	 *
+	 * @return true if the request was sent
+	 */
+	public boolean requestSensors(SensorPacketLayout layout) {
+		setReplyLayout(layout);
+		return send(layout.getCommand(QUERYLIST));
+	}
+
+	/**
+	 * Let up to maxRequestsInFlight sensor requests wait for replies at once.
+	 * Keeping several requests in flight keeps the serial link busy instead
+	 * of waiting a round trip between each request.
+	 */
+	public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+		this.maxRequestsInFlight = maxRequestsInFlight;
+	}
+
+	public int getMaxRequestsInFlight() {
+		return maxRequestsInFlight;
+	}
+
+	/**
+	 * Expect replies with the packets in the layout from now on
+	 */
+	public void setReplyLayout(SensorPacketLayout layout) {
+		this.readRequestLength = layout.getReplyLength();
+		sensorLayout = layout;
+	}
+
+	/**
+	 * Note the packets the coming frames are decoded from, for implementations
+	 * that set up the decoding themselves
+	 */
+	protected void setSensorLayout(SensorPacketLayout layout) {
+		sensorLayout = layout;
+	}
+
+	/**
+	 * @return the packets the latest stream or request asked for, or null if
+	 *         not known. Flags from packets outside it always read as clear.
+	 */
+	public SensorPacketLayout getSensorLayout() {
+		return sensorLayout;
 	}
-	*/
 
 	//
 	// basic functions
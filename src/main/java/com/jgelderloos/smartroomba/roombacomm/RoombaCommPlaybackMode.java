@@ -1,34 +1,39 @@
 package com.jgelderloos.smartroomba.roombacomm;
 
+import com.jgelderloos.smartroomba.roomba.RoombaMapData;
 import com.jgelderloos.smartroomba.roomba.SensorData;
-import com.jgelderloos.smartroomba.utilities.DataCSVReader;
+import com.jgelderloos.smartroomba.utilities.PoseKeyframeIndex;
 import com.jgelderloos.smartroomba.utilities.ReplaySensorDataThread;
+import com.jgelderloos.smartroomba.utilities.SensorDataBinaryReader;
+import com.jgelderloos.smartroomba.utilities.SensorDataSource;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue.OverflowPolicy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 public class RoombaCommPlaybackMode extends RoombaComm {
     private static final Logger LOGGER = LogManager.getLogger(RoombaCommSerial.class);
-    private Queue<SensorData> sensorDataQueue;
-    private Queue<SensorData> fileDataQueue;
-    private DataCSVReader dataCSVReader;
+    private SpscRingQueue<SensorData> sensorDataQueue;
     private Thread replaySensorDataThread;
+    private ReplaySensorDataThread replay;
+    private double replaySpeed = 1.0;
+    private Path recording;
+    private SensorDataBinaryReader replayReader;
+    // a second mapping of the recording for working out poses, replayReader belongs to the replay thread
+    private SensorDataBinaryReader seekReader;
+    private PoseKeyframeIndex keyframeIndex;
+    private final Object seekMonitor = new Object();
+    private volatile SeekListener seekListener;
 
     public RoombaCommPlaybackMode() {
         super();
-        sensorDataQueue = new ConcurrentLinkedQueue<>();
-        fileDataQueue = new ConcurrentLinkedQueue<>();
-        dataCSVReader = new DataCSVReader();
-        replaySensorDataThread = new Thread(new ReplaySensorDataThread(sensorDataQueue, fileDataQueue));
+        // replayed data never goes stale, so wait for the consumer instead of dropping frames when it falls behind
+        sensorDataQueue = new SpscRingQueue<>(defaultSensorDataQueueCapacity, OverflowPolicy.BLOCK, SensorData::release);
     }
 
     public String[] listPorts() {
@@ -37,57 +42,109 @@ public class RoombaCommPlaybackMode extends RoombaComm {
         return portString;
     }
 
-    public Queue<SensorData> getSensorDataQueue() {
+    public SpscRingQueue<SensorData> getSensorDataQueue() {
         return sensorDataQueue;
     }
 
-    public boolean connect(String portId) {
-        List<String> fileData = new ArrayList<>();
+    /**
+     * @param replaySpeed how many times faster than recorded to replay, or ReplaySensorDataThread.AS_FAST_AS_POSSIBLE
+     */
+    public void setReplaySpeed(double replaySpeed) {
+        if (!(replaySpeed > 0)) {
+            throw new IllegalArgumentException("Replay speed must be greater than 0, was " + replaySpeed);
+        }
+        this.replaySpeed = replaySpeed;
+    }
 
-        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(portId))) {
-            dataCSVReader = new DataCSVReader(bufferedReader);
-            fileData = dataCSVReader.readData();
-        } catch (FileNotFoundException e) {
+    /**
+     * Start replaying a CSV or binary recording. Frames are read from the file as they are replayed, so playback
+     * starts right away and long recordings are never held in memory.
+     */
+    public boolean connect(String portId) {
+        SensorDataSource source;
+        try {
+            recording = Paths.get(portId);
+            source = SensorDataSource.open(recording);
+        } catch (NoSuchFileException e) {
             LOGGER.error("Could not find file. {}", portId, e);
+            return false;
         } catch (IOException e) {
-            LOGGER.error("Could not close file. {}", portId, e);
+            LOGGER.error("Could not read file. {}", portId, e);
+            return false;
         }
 
-        boolean isFirstLine = true;
-        for (String currentLine : fileData) {
-            // Skip the file header on the first line
-            if (isFirstLine) {
-                isFirstLine = false;
-            } else {
-                LocalDateTime dateTime = null;
-                String[] splitLine = currentLine.split(",");
-                byte[] byteArray = new byte[splitLine.length - 1];
-                boolean isFirstByte = true;
-                int dataByteNumber = 0;
-                for (String dataByte : splitLine) {
-                    if (isFirstByte) {
-                        isFirstByte = false;
-
-                        String dateTimeString = splitLine[0];
-                        dateTime = LocalDateTime.parse(dateTimeString);
-                    } else {
-                        byte currentByte = (byte)(int) Integer.decode(dataByte);
-                        byteArray[dataByteNumber] = currentByte;
-                        dataByteNumber++;
-                    }
+        replayReader = source instanceof SensorDataBinaryReader ? (SensorDataBinaryReader) source : null;
+        replay = ReplaySensorDataThread.toSink(this::publishSensorData, source);
+        replay.setSpeed(replaySpeed);
+        replaySensorDataThread = new Thread(replay, "ReplaySensorData");
+        replaySensorDataThread.start();
+        return true;
+    }
+
+    /**
+     * Told where the replay jumped to, before any frame from the new position is replayed
+     */
+    public interface SeekListener {
+        /**
+         * @param roombaMapData the position after the last frame before the new position
+         * @param replayGeneration the replay generation frames from the new position are stamped with, roombaMapData
+         *                         carries on from the first of them
+         */
+        void seeked(RoombaMapData roombaMapData, long replayGeneration);
+    }
+
+    public void setSeekListener(SeekListener seekListener) {
+        this.seekListener = seekListener;
+    }
 
+    /**
+     * Jump the replay to offsetNanos from the first frame and work out the pose there from the nearest keyframe. Only
+     * binary recordings can be seeked, the keyframe index is loaded from its sidecar file or built on the first seek.
+     * It is fine to call this from the thread that takes frames off the sensor data queue, frames still queued from
+     * before the seek carry an older replay generation.
+     *
+     * @return false if the recording can not be seeked
+     */
+    public boolean seek(long offsetNanos) {
+        // not synchronized on this, the reposition runs under the replay's seek lock
+        synchronized (seekMonitor) {
+            if (replayReader == null || replayReader.getFrameCount() < 2) {
+                return false;
+            }
+            try {
+                if (seekReader == null) {
+                    seekReader = new SensorDataBinaryReader(recording);
+                    keyframeIndex = PoseKeyframeIndex.forRecording(recording, seekReader);
                 }
-                SensorData sensorData = new SensorData(byteArray, splitLine.length - 1, dateTime);
-                fileDataQueue.add(sensorData);
+            } catch (IOException e) {
+                LOGGER.error("Could not open {} to seek in it", recording, e);
+                return false;
             }
+            // leave at least one frame to replay after the seek
+            int frameIndex = Math.min(seekReader.findFrame(offsetNanos), seekReader.getFrameCount() - 2);
+            RoombaMapData roombaMapData = new RoombaMapData();
+            keyframeIndex.restore(seekReader, frameIndex, roombaMapData);
+            SeekListener listener = seekListener;
+            replay.seek(() -> {
+                replayReader.seek(frameIndex + 1);
+                if (listener != null) {
+                    listener.seeked(roombaMapData, replay.getSeekGeneration());
+                }
+            });
+            return true;
         }
-
-        replaySensorDataThread.start();
-        return true;
     }
 
     public void disconnect() {
-        replaySensorDataThread.interrupt();
+        if (replaySensorDataThread != null) {
+            replaySensorDataThread.interrupt();
+        }
+        synchronized (seekMonitor) {
+            if (seekReader != null) {
+                seekReader.close();
+                seekReader = null;
+            }
+        }
     }
 
     public boolean send(byte[] bytes) {
@@ -106,6 +163,4 @@ public class RoombaCommPlaybackMode extends RoombaComm {
     public void setReadRequestLength(int readRequestLength) {
         // This is not applicable when replaying from a file as everything that was recorded will be returned
     }
-
-
 }
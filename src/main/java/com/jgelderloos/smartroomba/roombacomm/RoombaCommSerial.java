@@ -23,15 +23,21 @@
 
 package com.jgelderloos.smartroomba.roombacomm;
 
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.BaudRate;
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
 import com.jgelderloos.smartroomba.roomba.RoombaUtilities;
 import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue.OverflowPolicy;
 import gnu.io.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
@@ -61,7 +67,33 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
     static final int parity   = SerialPort.PARITY_NONE;
     static final int stopbits = SerialPort.STOPBITS_1;
     private String protocol = "OI";
-    private Queue<SensorData> sensorDataQueue;
+    private SpscRingQueue<SensorData> sensorDataQueue;
+    private SensorFrameReceiver sensorFrameReceiver;
+    private Map<BaudRate, Double> measuredThroughput = new EnumMap<>(BaudRate.class);
+
+    /**
+     * How bytes are read from the serial port. EVENT_LISTENER reads inside RXTX's data available events,
+     * BLOCKING_READ has a thread of its own doing blocking bulk reads with a receive timeout.
+     */
+    public enum IoModel {
+        EVENT_LISTENER,
+        BLOCKING_READ
+    }
+
+    public static final int DEFAULT_RECEIVE_TIMEOUT_MILLIS = 20;
+    private static final long READER_STOP_MILLIS = 1000;
+    private IoModel ioModel = IoModel.EVENT_LISTENER;
+    private int receiveTimeoutMillis = DEFAULT_RECEIVE_TIMEOUT_MILLIS;
+    private BlockingSerialReader blockingSerialReader;
+    private Thread readerThread;
+
+    /** the Roomba needs this long after a BAUD command before it talks at the new rate */
+    private static final int BAUD_SWITCH_MILLIS = 100;
+    /** sensor group requested to check a link, P0 works with both SCI and OI */
+    private static final SensorPacketGroup VERIFY_PACKET_GROUP = SensorPacketGroup.P0;
+    private static final int VERIFY_REQUESTS = 10;
+    private static final long VERIFY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long VERIFY_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
 
     /**
      * contains a list of all the ports
@@ -84,6 +116,11 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
     public InputStream input;
     /** the serial output stream, normally you don't need access to this */
     public OutputStream output;
+    /**
+     * Held for every write to output. Commands come from the caller's thread and from listeners on the thread that
+     * receives the sensor data, like the SafetyInterlock, so without it their bytes could interleave on the wire.
+     */
+    private final Object writeLock = new Object();
 
     /** 
      * RXTX bombs when flushing output sometimes, so by default do not
@@ -106,9 +143,6 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
      */
     public boolean waitForDSR = false;		// Warning: public attribute - setting won't trigger config file write
 
-    byte buffer[] = new byte[32768];
-    int bufferLast;
-
     //int bufferSize = 26;  // how big before reset or event firing
     //boolean bufferUntil;
     //int bufferUntilByte;
@@ -132,8 +166,9 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
         super();
         // TODO: fix config file
         //readConfigFile();
-        sensorDataQueue = new ConcurrentLinkedQueue<>();
+        sensorDataQueue = new SpscRingQueue<>(defaultSensorDataQueueCapacity, OverflowPolicy.DROP_OLDEST, SensorData::release);
         roombaUtilities = new RoombaUtilities();
+        sensorFrameReceiver = new SensorFrameReceiver(this::publishSensorData);
     }
 
     /*
@@ -149,10 +184,107 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
         sensorDataQueue = new ConcurrentLinkedQueue<>();
     }
     */
-    public Queue<SensorData> getSensorDataQueue() {
+    public SpscRingQueue<SensorData> getSensorDataQueue() {
         return sensorDataQueue;
     }
 
+    /**
+     * Start streaming the packet group. From now on serialEvent() parses stream frames instead of waiting for
+     * readRequestLength bytes.
+     */
+    @Override
+    public void startStream(SensorPacketGroup packetGroup) {
+        synchronized (this) {
+            sensorFrameReceiver.startStream(packetGroup);
+        }
+        super.startStream(packetGroup);
+    }
+
+    /**
+     * Start streaming a list of packets. Frames are decoded following the layout.
+     */
+    @Override
+    public void startStream(SensorPacketLayout layout) {
+        synchronized (this) {
+            sensorFrameReceiver.startStream(layout);
+        }
+        super.startStream(layout);
+    }
+
+    @Override
+    public void stopStream() {
+        super.stopStream();
+        synchronized (this) {
+            sensorFrameReceiver.stopStream();
+        }
+    }
+
+    public boolean isStreaming() {
+        return sensorFrameReceiver.isStreaming();
+    }
+
+    @Override
+    public synchronized void setReadRequestLength(int readRequestLength) {
+        super.setReadRequestLength(readRequestLength);
+        sensorFrameReceiver.setReadRequestLength(readRequestLength);
+    }
+
+    @Override
+    public synchronized void setReplyLayout(SensorPacketLayout layout) {
+        super.setReplyLayout(layout);
+        sensorFrameReceiver.setReplyLayout(layout);
+    }
+
+    /**
+     * Send the request only if there is room in the pipeline. The reply is expected before the request is sent so
+     * serialEvent() can not see the reply first.
+     */
+    @Override
+    public synchronized boolean requestSensors(SensorPacketGroup packetGroup) {
+        if (!sensorFrameReceiver.addRequest(packetGroup.getReplyLength(), packetGroup.getLayout())) {
+            return false;
+        }
+        setSensorLayout(packetGroup.getLayout());
+        byte[] cmd = {(byte) SENSORS, (byte) packetGroup.getId()};
+        return send(cmd);
+    }
+
+    @Override
+    public synchronized boolean requestSensors(SensorPacketLayout layout) {
+        if (!sensorFrameReceiver.addRequest(layout.getReplyLength(), layout)) {
+            return false;
+        }
+        setSensorLayout(layout);
+        return send(layout.getCommand(QUERYLIST));
+    }
+
+    @Override
+    public synchronized void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        sensorFrameReceiver.setMaxRequestsInFlight(maxRequestsInFlight);
+        super.setMaxRequestsInFlight(maxRequestsInFlight);
+    }
+
+    /**
+     * @return the number of sensor requests given up on because no reply arrived in time
+     */
+    @Override
+    public synchronized long getRequestTimeoutCount() {
+        return sensorFrameReceiver.getRequestTimeoutCount();
+    }
+
+    /**
+     * @return the number of stream frames that were dropped because of a bad checksum
+     */
+    @Override
+    public long getChecksumErrorCount() {
+        return sensorFrameReceiver.getChecksumErrorCount();
+    }
+
+    @Override
+    public synchronized long getDiscardedByteCount() {
+        return sensorFrameReceiver.getDiscardedByteCount();
+    }
+
     /**
      * Connect to a serial port specified by portid
      * doesn't guarantee connection to Roomba, just to serial port
@@ -165,6 +297,10 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
 
 		//writeConfigFile(portname, protocol, waitForDSR?'Y':'N');
 
+        // nothing received or requested on an earlier connection can be matched up any more
+        synchronized (this) {
+            sensorFrameReceiver.reset();
+        }
         connected = open_port();
 
         if (connected) {
@@ -182,6 +318,9 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
      */
     public void disconnect() {
         connected = false;
+        if (blockingSerialReader != null) {
+            blockingSerialReader.stop();
+        }
 
         try {
             // do io streams need to be closed first?
@@ -192,34 +331,68 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
             LOGGER.error("Error closing input. ", e);
         }
 
-        try {
-            if (output != null) {
-                output.close();
+        synchronized (writeLock) {
+            try {
+                if (output != null) {
+                    output.close();
+                }
+            } catch (IOException e) {
+                LOGGER.error("Error closing output. ", e);
             }
-        } catch (IOException e) {
-            LOGGER.error("Error closing output. ", e);
+            output = null;
         }
         input = null;
-        output = null;
     
         if (port != null) {
             port.close();  // close the port
         }
 
         port = null;
+
+        if (readerThread != null) {
+            try {
+                readerThread.join(READER_STOP_MILLIS);
+            } catch (InterruptedException e) {
+                LOGGER.info("Interrupted while stopping the serial reader.", e);
+                Thread.currentThread().interrupt();
+            }
+            readerThread = null;
+            blockingSerialReader = null;
+        }
+    }
+
+    /**
+     * Choose how bytes are read from the port, takes effect on the next connect()
+     */
+    public void setIoModel(IoModel ioModel) {
+        this.ioModel = ioModel;
+    }
+
+    public IoModel getIoModel() {
+        return ioModel;
+    }
+
+    /**
+     * @param receiveTimeoutMillis the longest a blocking read waits when nothing arrives, takes effect on the next
+     *                             connect()
+     */
+    public void setReceiveTimeoutMillis(int receiveTimeoutMillis) {
+        this.receiveTimeoutMillis = receiveTimeoutMillis;
     }
 
     /**
      * subclassed.  FIXME: 
      */
     public boolean send(byte[] bytes) {
-        try {
-            output.write(bytes);
-            if (flushOutput) {
-                output.flush();   // hmm, not sure if a good idea
+        synchronized (writeLock) {
+            try {
+                output.write(bytes);
+                if (flushOutput) {
+                    output.flush();   // hmm, not sure if a good idea
+                }
+            } catch (IOException e) { // null pointer or serial port dead
+                LOGGER.error("Error writing to output. ", e);
             }
-        } catch (IOException e) { // null pointer or serial port dead
-            LOGGER.error("Error writing to output. ", e);
         }
         return true;
     }
@@ -229,13 +402,15 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
      */
     // probably get rid of this so we dont have to worry about losing data in the bitwise &
     public boolean send(int b) {  // will also cover char or byte
-        try {
-            output.write(b & 0xff);  // for good measure do the &
-            if (flushOutput) {
-                output.flush();   // hmm, not sure if a good idea
+        synchronized (writeLock) {
+            try {
+                output.write(b & 0xff);  // for good measure do the &
+                if (flushOutput) {
+                    output.flush();   // hmm, not sure if a good idea
+                }
+            } catch (IOException e) { // null pointer or serial port dead
+                LOGGER.error("Error writing to output. ", e);
             }
-        } catch (IOException e) { // null pointer or serial port dead
-            LOGGER.error("Error writing to output. ", e);
         }
         return true;
     }
@@ -389,6 +564,132 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
 		//writeConfigFile(portname, protocol, waitForDSR?'Y':'N');
 	}
 
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * Switch the Roomba and the serial port to a new baud rate. The BAUD command is sent at the current rate, then
+     * after the 100 ms the Roomba needs to switch the port is reconfigured and the link is checked by requesting
+     * sensor data. If no replies come back the Roomba is told to go back to the old rate, the port follows and the
+     * old rate is checked again.
+     * <p>
+     * The throughput seen while checking a rate is remembered, see getMeasuredThroughput().
+     *
+     * @return true if the link works at the new rate
+     */
+    public boolean negotiateBaudRate(BaudRate target) {
+        if (!connected || isStreaming()) {
+            LOGGER.warn("Can only change baud rate while connected and not streaming");
+            return false;
+        }
+        BaudRate previous = BaudRate.fromRate(rate);
+        if (target.getRate() == rate) {
+            return measureThroughput(target) > 0;
+        }
+        LOGGER.info("Switching baud rate from {} to {}", rate, target.getRate());
+        if (switchBaudRate(target) && measureThroughput(target) > 0) {
+            LOGGER.info("Link verified at {} baud", target.getRate());
+            return true;
+        }
+
+        LOGGER.warn("No sensor replies at {} baud, falling back to {}", target.getRate(), previous.getRate());
+        switchBaudRate(previous);
+        if (measureThroughput(previous) <= 0) {
+            LOGGER.error("No sensor replies after falling back to {} baud", previous.getRate());
+        }
+        return false;
+    }
+
+    /**
+     * Try each baud rate from the fastest down and stay at the first one where the link works.
+     *
+     * @return the rate the link ended up at, or null if none of them worked
+     */
+    public BaudRate negotiateFastestBaudRate(BaudRate... candidates) {
+        BaudRate[] sorted = candidates.clone();
+        Arrays.sort(sorted, Collections.reverseOrder());
+        for (BaudRate candidate : sorted) {
+            if (negotiateBaudRate(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return sensor reply bytes per second measured at each baud rate that has been checked, 0 if no replies came
+     * back at that rate
+     */
+    public synchronized Map<BaudRate, Double> getMeasuredThroughput() {
+        return Collections.unmodifiableMap(new EnumMap<>(measuredThroughput));
+    }
+
+    /**
+     * Pipeline sensor requests at the current rate and time the replies.
+     *
+     * @return reply bytes per second, or 0 if they did not all come back in time
+     */
+    private double measureThroughput(BaudRate baudRate) {
+        int replyLength = VERIFY_PACKET_GROUP.getReplyLength();
+        long startFrames = getReceivedFrameCount();
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + VERIFY_TIMEOUT_NANOS;
+        int sent = 0;
+        double throughput = 0;
+        while (System.nanoTime() - deadline < 0) {
+            long received = getReceivedFrameCount() - startFrames;
+            if (received >= VERIFY_REQUESTS) {
+                double seconds = (System.nanoTime() - startNanos) / 1e9;
+                throughput = received * replyLength / seconds;
+                break;
+            }
+            if (sent >= VERIFY_REQUESTS || !requestSensors(VERIFY_PACKET_GROUP)) {
+                LockSupport.parkNanos(VERIFY_POLL_NANOS);
+            } else {
+                sent++;
+            }
+        }
+        synchronized (this) {
+            measuredThroughput.put(baudRate, throughput);
+        }
+        LOGGER.info("Throughput at {} baud: {} bytes/s", baudRate.getRate(), (long) throughput);
+        return throughput;
+    }
+
+    /**
+     * Send BAUD at the current rate, wait for the Roomba to switch and then switch the port.
+     */
+    private boolean switchBaudRate(BaudRate baudRate) {
+        byte[] cmd = {(byte) BAUD, (byte) baudRate.getCode()};
+        send(cmd);
+        synchronized (writeLock) {
+            try {
+                output.flush();
+            } catch (IOException e) {
+                LOGGER.error("Error flushing BAUD command. ", e);
+            }
+        }
+        roombaUtilities.sleep(BAUD_SWITCH_MILLIS, "waiting for the Roomba to change baud rate");
+        synchronized (this) {
+            try {
+                port.setSerialPortParams(baudRate.getRate(), databits, stopbits, parity);
+                rate = baudRate.getRate();
+                return true;
+            } catch (UnsupportedCommOperationException e) {
+                LOGGER.error("Serial port does not support {} baud. ", baudRate.getRate(), e);
+                return false;
+            } finally {
+                // anything received around the switch is garbage
+                sensorFrameReceiver.reset();
+            }
+        }
+    }
+
+    private synchronized long getReceivedFrameCount() {
+        return sensorFrameReceiver.getFrameCount();
+    }
+
 	public boolean isWaitForDSR() {
 		return waitForDSR;
 	}
@@ -431,8 +732,15 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
                         input  = port.getInputStream();
                         output = port.getOutputStream();
                         port.setSerialPortParams(rate,databits,stopbits,parity);
-                        port.addEventListener(this);
-                        port.notifyOnDataAvailable(true);
+                        if (ioModel == IoModel.BLOCKING_READ) {
+                            // return as soon as anything arrives, or after the timeout so the reader can be stopped
+                            port.enableReceiveThreshold(1);
+                            port.enableReceiveTimeout(receiveTimeoutMillis);
+                            startReader();
+                        } else {
+                            port.addEventListener(this);
+                            port.notifyOnDataAvailable(true);
+                        }
                         LOGGER.debug("Port {} open successfully", portname);
 
                         if( waitForDSR ) {
@@ -459,34 +767,27 @@ public class RoombaCommSerial extends RoombaComm implements SerialPortEventListe
         return success;
     }
 
+    private void startReader() {
+        blockingSerialReader = new BlockingSerialReader(input, sensorFrameReceiver, this);
+        readerThread = new Thread(blockingSerialReader, "RoombaSerialReader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
     /**
      * callback for SerialPortEventListener
-     * (from processing.serial.Serial)
+     * Everything available is read in bulk into the receive ring buffer and complete frames are cut out of it, so
+     * there is only a couple of calls into RXTX per event instead of two per byte.
      */
     synchronized public void serialEvent(SerialPortEvent serialEvent) {
-        try {
-            LOGGER.debug("SerialEvent: {}, available: {}", serialEvent, input.available());
-            if (serialEvent.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
-                logmsg("data available");
-                LOGGER.debug("Data available");
-                // input.available does not always add up to the total bytes being read, sometime more data becomes available
-                // during the while loop
-                while (input.available() > 0) {
-                    buffer[bufferLast++] = (byte) input.read();
-                    if( bufferLast == super.readRequestLength) {
-                        bufferLast = 0;
-                        System.arraycopy(buffer, 0, sensor_bytes, 0, super.readRequestLength);
-                        // TODO: possibly think of a way to init SensorData when we get the first packet so
-                        // the timestamp is more accurate
-                        SensorData sensorData = new SensorData(buffer, super.readRequestLength);
-                        sensorDataQueue.add(sensorData);
-                        //computeSensors();
-                    }
-                }
+        if (serialEvent.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+            try {
+                int bytesRead = sensorFrameReceiver.receive(input);
+                LOGGER.trace("Data available, read {} bytes", bytesRead);
+            } catch (IOException e) {
+                LOGGER.error("Exception caught in serialEvent. ", e);
+                throw new RuntimeException("Error inside serialEvent");
             }
-        } catch (IOException e) {
-            LOGGER.error("Exception caught in serialEvent. ", e);
-            throw new RuntimeException("Error inside serialEvent");
         }
     }
     
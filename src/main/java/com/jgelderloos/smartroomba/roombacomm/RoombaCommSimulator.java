@@ -0,0 +1,304 @@
+/*
+ *  SmartRoomba - RoombaCommSimulator
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import com.jgelderloos.smartroomba.simulator.OISimulator;
+import com.jgelderloos.smartroomba.simulator.SimulatedRoom;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue.OverflowPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A RoombaComm that talks to an OISimulator instead of a serial port. Commands are interpreted by the simulator and
+ * its replies come back through the same SensorFrameReceiver the serial connection uses, no faster than they would
+ * over a serial link at the simulated baud rate. The simulation runs at timeScale times real time, or as fast as it
+ * can with MAX_SPEED. Sensor data is stamped with the simulated time since connecting.
+ */
+public class RoombaCommSimulator extends RoombaComm {
+    private static final Logger LOGGER = LogManager.getLogger(RoombaCommSimulator.class);
+    public static final String PORT_NAME = "simulator";
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+    public static final double DEFAULT_ROOM_WIDTH = 5000;
+    public static final double DEFAULT_ROOM_HEIGHT = 4000;
+    // a start bit, 8 data bits and a stop bit
+    private static final int BITS_PER_BYTE = 10;
+
+    private final OISimulator simulator;
+    private final SensorFrameReceiver sensorFrameReceiver;
+    private final SpscRingQueue<SensorData> sensorDataQueue;
+    private final ByteRingBuffer linkBuffer = new ByteRingBuffer(SensorFrameReceiver.DEFAULT_BUFFER_SIZE);
+    private final byte[] deliveryBuffer = new byte[SensorFrameReceiver.DEFAULT_BUFFER_SIZE];
+    private final double timeScale;
+    private final ScheduledExecutorService scheduler;
+    private long tickNanos = OISimulator.DEFAULT_TICK_NANOS;
+    private double linkBytesDue = 0;
+    private long connectNanos;
+    private volatile boolean running = false;
+    private Thread simulatorThread;
+    private ScheduledFuture<?> scheduledTicks;
+
+    public RoombaCommSimulator() {
+        this(new SimulatedRoom(DEFAULT_ROOM_WIDTH, DEFAULT_ROOM_HEIGHT), 1);
+    }
+
+    /**
+     * @param timeScale how many times faster than real time to run, MAX_SPEED to not wait at all
+     */
+    public RoombaCommSimulator(SimulatedRoom room, double timeScale) {
+        this(room, timeScale, null);
+    }
+
+    /**
+     * Run the simulation as a repeating task on a shared scheduler instead of a thread of its own, so many simulated
+     * Roombas can share a few threads.
+     *
+     * @param timeScale how many times faster than real time to run, can not be MAX_SPEED with a scheduler
+     * @param scheduler runs the ticks, or null to use a thread of its own
+     */
+    public RoombaCommSimulator(SimulatedRoom room, double timeScale, ScheduledExecutorService scheduler) {
+        super();
+        if (!(timeScale > 0) || (scheduler != null && timeScale == MAX_SPEED)) {
+            throw new IllegalArgumentException("Time scale must be positive and finite with a scheduler, was " + timeScale);
+        }
+        this.timeScale = timeScale;
+        this.scheduler = scheduler;
+        sensorDataQueue = new SpscRingQueue<>(defaultSensorDataQueueCapacity, OverflowPolicy.DROP_OLDEST, SensorData::release);
+        sensorFrameReceiver = new SensorFrameReceiver(this::publishSensorData);
+        // replies are written while holding the simulator lock, they wait on the link until the simulator thread sends them
+        simulator = new OISimulator(room, linkBuffer::write);
+    }
+
+    /**
+     * @return the simulator, synchronize on it before touching it while connected
+     */
+    public OISimulator getSimulator() {
+        return simulator;
+    }
+
+    /**
+     * @param tickNanos simulated time per tick, longer ticks cost less CPU but deliver data in bigger bursts. Takes
+     *                  effect on the next connect()
+     */
+    public void setTickNanos(long tickNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick must be positive, was " + tickNanos);
+        }
+        this.tickNanos = tickNanos;
+    }
+
+    public String[] listPorts() {
+        return new String[] {PORT_NAME};
+    }
+
+    public SpscRingQueue<SensorData> getSensorDataQueue() {
+        return sensorDataQueue;
+    }
+
+    /**
+     * Start the simulation, the port name is ignored
+     */
+    public boolean connect(String portId) {
+        if (running) {
+            return true;
+        }
+        connectNanos = System.nanoTime();
+        running = true;
+        if (scheduler != null) {
+            long periodNanos = Math.max(1, (long) (tickNanos / timeScale));
+            scheduledTicks = scheduler.scheduleAtFixedRate(this::tick, 0, periodNanos, TimeUnit.NANOSECONDS);
+        } else {
+            simulatorThread = new Thread(this::runSimulation, "RoombaSimulator");
+            simulatorThread.setDaemon(true);
+            simulatorThread.start();
+        }
+        connected = true;
+        return true;
+    }
+
+    public void disconnect() {
+        connected = false;
+        running = false;
+        if (scheduledTicks != null) {
+            scheduledTicks.cancel(false);
+            scheduledTicks = null;
+        }
+        if (simulatorThread != null) {
+            simulatorThread.interrupt();
+            try {
+                simulatorThread.join();
+            } catch (InterruptedException e) {
+                LOGGER.info("Interrupted while stopping the simulator.", e);
+                Thread.currentThread().interrupt();
+            }
+            simulatorThread = null;
+        }
+    }
+
+    public boolean send(byte[] bytes) {
+        synchronized (simulator) {
+            simulator.receive(bytes, 0, bytes.length);
+        }
+        return true;
+    }
+
+    public boolean send(int b) {
+        synchronized (simulator) {
+            simulator.receive(b);
+        }
+        return true;
+    }
+
+    public boolean updateSensors() {
+        return false;
+    }
+
+    @Override
+    public void startStream(SensorPacketGroup packetGroup) {
+        synchronized (this) {
+            sensorFrameReceiver.startStream(packetGroup);
+        }
+        super.startStream(packetGroup);
+    }
+
+    @Override
+    public void startStream(SensorPacketLayout layout) {
+        synchronized (this) {
+            sensorFrameReceiver.startStream(layout);
+        }
+        super.startStream(layout);
+    }
+
+    @Override
+    public void stopStream() {
+        super.stopStream();
+        synchronized (this) {
+            sensorFrameReceiver.stopStream();
+        }
+    }
+
+    @Override
+    public synchronized void setReadRequestLength(int readRequestLength) {
+        super.setReadRequestLength(readRequestLength);
+        sensorFrameReceiver.setReadRequestLength(readRequestLength);
+    }
+
+    @Override
+    public synchronized void setReplyLayout(SensorPacketLayout layout) {
+        super.setReplyLayout(layout);
+        sensorFrameReceiver.setReplyLayout(layout);
+    }
+
+    @Override
+    public synchronized boolean requestSensors(SensorPacketGroup packetGroup) {
+        if (!sensorFrameReceiver.addRequest(packetGroup.getReplyLength(), packetGroup.getLayout())) {
+            return false;
+        }
+        setSensorLayout(packetGroup.getLayout());
+        byte[] cmd = {(byte) SENSORS, (byte) packetGroup.getId()};
+        return send(cmd);
+    }
+
+    @Override
+    public synchronized boolean requestSensors(SensorPacketLayout layout) {
+        if (!sensorFrameReceiver.addRequest(layout.getReplyLength(), layout)) {
+            return false;
+        }
+        setSensorLayout(layout);
+        return send(layout.getCommand(QUERYLIST));
+    }
+
+    @Override
+    public synchronized void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        sensorFrameReceiver.setMaxRequestsInFlight(maxRequestsInFlight);
+        super.setMaxRequestsInFlight(maxRequestsInFlight);
+    }
+
+    @Override
+    public synchronized long getRequestTimeoutCount() {
+        return sensorFrameReceiver.getRequestTimeoutCount();
+    }
+
+    @Override
+    public long getChecksumErrorCount() {
+        return sensorFrameReceiver.getChecksumErrorCount();
+    }
+
+    @Override
+    public synchronized long getDiscardedByteCount() {
+        return sensorFrameReceiver.getDiscardedByteCount();
+    }
+
+    /**
+     * Advance the simulator a tick at a time, waiting between ticks to keep to the time scale.
+     */
+    private void runSimulation() {
+        long startNanos = System.nanoTime();
+        long ticks = 0;
+        while (running) {
+            tick();
+            ticks++;
+            if (timeScale != MAX_SPEED) {
+                long waitNanos = startNanos + (long) (ticks * tickNanos / timeScale) - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(this, waitNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Advance the simulator one tick and hand the bytes the link could have carried in that time to the receiver.
+     */
+    private void tick() {
+        int length = 0;
+        long simNanos;
+        synchronized (simulator) {
+            simulator.advance(tickNanos);
+            simNanos = simulator.getSimNanos();
+            double bytesPerNano = simulator.getBaudRate().getRate() / (BITS_PER_BYTE * 1e9);
+            // an idle link can not save up time to send faster later
+            linkBytesDue = Math.min(linkBytesDue + bytesPerNano * tickNanos, linkBuffer.size());
+            if (linkBytesDue >= 1) {
+                length = (int) Math.min(linkBytesDue, deliveryBuffer.length);
+                linkBuffer.copy(0, deliveryBuffer, 0, length);
+                linkBuffer.skip(length);
+                linkBytesDue -= length;
+            }
+        }
+        if (length > 0) {
+            synchronized (this) {
+                sensorFrameReceiver.receive(deliveryBuffer, 0, length, connectNanos + simNanos);
+            }
+        }
+    }
+}
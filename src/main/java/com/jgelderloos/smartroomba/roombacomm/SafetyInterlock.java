@@ -0,0 +1,201 @@
+/*
+ *  SmartRoomba - SafetyInterlock
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stops the Roomba from the thread that receives the sensor data, as soon as a frame shows a fault, instead of waiting
+ * for whoever drains the sensor data queue to wake up. Each frame's flags are checked against the fault mask and when
+ * a fault that was not there in the last frame shows up the stop command is written straight to the port. The
+ * command is only sent again once a new fault appears, so a Roomba sitting on a cliff does not flood the link.
+ * <p>
+ * The time from seeing the fault to the command being written is recorded, along with the time from the first byte
+ * of the frame arriving to the command being written.
+ * <p>
+ * Frames only carry the packets that were asked for and every other flag reads as clear, so a stream or request
+ * without the cliff, wheel drop or over current packets would quietly never trip. A warning is logged whenever the
+ * connection's sensor layout cannot show one of the flags in the fault mask.
+ */
+public class SafetyInterlock implements SensorDataListener {
+    private static final Logger LOGGER = LogManager.getLogger(SafetyInterlock.class);
+
+    public enum Action {
+        /**
+         * DRIVE with velocity and radius 0, stops the wheels in safe and full mode
+         */
+        DRIVE_STOP(new byte[] {(byte) RoombaComm.DRIVE, 0, 0, 0, 0}),
+        /**
+         * START, drops the Roomba into passive mode which stops every motor
+         */
+        PASSIVE(new byte[] {(byte) RoombaComm.START});
+
+        private final byte[] command;
+
+        Action(byte[] command) {
+            this.command = command;
+        }
+
+        public byte[] getCommand() {
+            return command.clone();
+        }
+    }
+
+    private final RoombaComm roombaComm;
+    private volatile int faultMask = SensorData.UNSAFE_FLAGS;
+    private volatile Action action = Action.DRIVE_STOP;
+    // only written on the receiving thread
+    private int activeFaults = 0;
+    private volatile int lastFaults = 0;
+    private volatile long tripCount = 0;
+    private volatile long lastReactionNanos = 0;
+    private volatile long maxReactionNanos = 0;
+    private volatile long lastArrivalToCommandNanos = 0;
+    // the sensor layout last checked against the fault mask
+    private volatile SensorPacketLayout checkedLayout;
+    private volatile int hiddenFaults = 0;
+
+    public SafetyInterlock(RoombaComm roombaComm) {
+        this.roombaComm = roombaComm;
+    }
+
+    /**
+     * @param faultMask the SensorData flags that stop the Roomba, SensorData.UNSAFE_FLAGS by default
+     */
+    public void setFaultMask(int faultMask) {
+        this.faultMask = faultMask;
+        checkLayout(roombaComm.getSensorLayout());
+    }
+
+    public int getFaultMask() {
+        return faultMask;
+    }
+
+    public void setAction(Action action) {
+        this.action = action;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * Start checking every frame
+     */
+    public void start() {
+        checkLayout(roombaComm.getSensorLayout());
+        roombaComm.addSensorDataListener(this);
+    }
+
+    /**
+     * Log a warning if frames decoded with the layout cannot show every flag in the fault mask.
+     *
+     * @param layout the packets the frames hold, null if not known
+     * @return false if a fault in the mask would never be seen
+     */
+    public boolean checkLayout(SensorPacketLayout layout) {
+        checkedLayout = layout;
+        int hidden = layout == null ? 0 : faultMask & ~layout.getDecodedFlags();
+        hiddenFaults = hidden;
+        if (hidden != 0) {
+            LOGGER.warn("Fault flags 0x{} are not in the sensor layout {}, they will never stop the Roomba",
+                    Integer.toHexString(hidden), layout.getPackets());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the fault flags the connection's sensor layout cannot show, as of the last check
+     */
+    public int getHiddenFaults() {
+        return hiddenFaults;
+    }
+
+    public void stop() {
+        roombaComm.removeSensorDataListener(this);
+    }
+
+    @Override
+    public void sensorDataReceived(SensorData sensorData) {
+        SensorPacketLayout layout = roombaComm.getSensorLayout();
+        if (layout != checkedLayout) {
+            checkLayout(layout);
+        }
+        int faults = sensorData.getFlags() & faultMask;
+        int newFaults = faults & ~activeFaults;
+        activeFaults = faults;
+        if (newFaults == 0) {
+            return;
+        }
+        long detectedNanos = System.nanoTime();
+        Action currentAction = action;
+        roombaComm.send(currentAction.command);
+        long commandNanos = System.nanoTime();
+
+        long reactionNanos = commandNanos - detectedNanos;
+        lastReactionNanos = reactionNanos;
+        maxReactionNanos = Math.max(maxReactionNanos, reactionNanos);
+        lastArrivalToCommandNanos = commandNanos - sensorData.getTimestampNanos();
+        lastFaults = faults;
+        tripCount++;
+        LOGGER.warn("Fault flags 0x{} seen, sent {} in {} us", Integer.toHexString(faults), currentAction,
+                reactionNanos / 1000);
+    }
+
+    /**
+     * @return the number of times the stop command was sent
+     */
+    public long getTripCount() {
+        return tripCount;
+    }
+
+    /**
+     * @return the fault flags of the frame that last sent the stop command
+     */
+    public int getLastFaults() {
+        return lastFaults;
+    }
+
+    /**
+     * @return nanoseconds from the last fault being seen to the stop command being written
+     */
+    public long getLastReactionNanos() {
+        return lastReactionNanos;
+    }
+
+    public long getMaxReactionNanos() {
+        return maxReactionNanos;
+    }
+
+    /**
+     * @return nanoseconds from the first byte of the last faulty frame arriving to the stop command being written
+     */
+    public long getLastArrivalToCommandNanos() {
+        return lastArrivalToCommandNanos;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ *  SmartRoomba - SensorDataListener
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+
+/**
+ * Told about every frame of sensor data as soon as it is put on the sensor data queue. This is called on the thread
+ * receiving the data so it should return quickly, typically by waking up the thread that drains the queue. The
+ * SensorData is only valid during the call, retain() it to keep it longer.
+ */
+@FunctionalInterface
+public interface SensorDataListener {
+    void sensorDataReceived(SensorData sensorData);
+}
@@ -0,0 +1,326 @@
+/*
+ *  SmartRoomba - SensorFrameReceiver
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Turns the bytes received from the Roomba into SensorData. Bytes are read in bulk into a ring buffer and complete
+ * frames are cut out of it, either stream frames checked by the StreamFrameParser or fixed length replies to sensor
+ * requests.
+ * <p>
+ * Several requests can be waiting for replies at once. Each request is added with its reply length and layout before
+ * it is sent, and since the Roomba answers in order each reply is cut out and decoded following the oldest waiting
+ * request. A request that has not been answered within the request timeout is given up on, along with any partial
+ * reply, so one lost byte does not shift every reply after it. The timeout runs from when the request was sent or
+ * from when the reply before it finished arriving, whichever is later, so replies queued behind others on a slow link
+ * are not given up on while the ones ahead of them are still coming in. Every complete frame is handed to the sink as a
+ * pooled SensorData which the sink is responsible for releasing, stamped with the System.nanoTime() at which its
+ * first byte was read.
+ */
+public class SensorFrameReceiver {
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+    public static final int MAX_REQUESTS_IN_FLIGHT = 32;
+    public static final long DEFAULT_REQUEST_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private ByteRingBuffer ringBuffer;
+    private StreamFrameParser streamFrameParser;
+    private SensorDataPool sensorDataPool;
+    private Consumer<SensorData> sink;
+    private byte[] replyData = new byte[256];
+    private byte[] decodedData = new byte[SensorData.MAX_SENSOR_BYTES];
+    private SensorPacketLayout replyLayout;
+    private SensorPacketLayout decodedLayout;
+    private int readRequestLength;
+    private volatile boolean streaming = false;
+    private long frameCount = 0;
+    // requests waiting for a reply, oldest first
+    private final int[] requestLengths = new int[MAX_REQUESTS_IN_FLIGHT];
+    private final SensorPacketLayout[] requestLayouts = new SensorPacketLayout[MAX_REQUESTS_IN_FLIGHT];
+    // when each request started waiting for its own reply, the request timeout runs from here
+    private final long[] requestWaitNanos = new long[MAX_REQUESTS_IN_FLIGHT];
+    private int requestHead = 0;
+    private int requestCount = 0;
+    private int maxRequestsInFlight = 1;
+    private long requestTimeoutNanos = DEFAULT_REQUEST_TIMEOUT_NANOS;
+    private long requestTimeoutCount = 0;
+
+    public SensorFrameReceiver(Consumer<SensorData> sink) {
+        this(sink, new SensorDataPool(), DEFAULT_BUFFER_SIZE);
+    }
+
+    public SensorFrameReceiver(Consumer<SensorData> sink, SensorDataPool sensorDataPool, int bufferSize) {
+        this.sink = sink;
+        this.sensorDataPool = sensorDataPool;
+        ringBuffer = new ByteRingBuffer(bufferSize);
+        streamFrameParser = new StreamFrameParser(sensorDataPool);
+    }
+
+    /**
+     * Expect replies of the given length from now on, copied as is to the start of the SensorData.
+     */
+    public void setReadRequestLength(int readRequestLength) {
+        if (readRequestLength > replyData.length) {
+            replyData = new byte[readRequestLength];
+        }
+        this.readRequestLength = readRequestLength;
+        replyLayout = null;
+    }
+
+    /**
+     * Expect QUERY_LIST replies with the packets in the layout from now on.
+     */
+    public void setReplyLayout(SensorPacketLayout layout) {
+        setReadRequestLength(layout.getReplyLength());
+        replyLayout = layout;
+    }
+
+    /**
+     * @param maxRequestsInFlight how many requests can wait for a reply at once, up to MAX_REQUESTS_IN_FLIGHT
+     */
+    public void setMaxRequestsInFlight(int maxRequestsInFlight) {
+        if (maxRequestsInFlight < 1 || maxRequestsInFlight > MAX_REQUESTS_IN_FLIGHT) {
+            throw new IllegalArgumentException("Requests in flight must be between 1 and " + MAX_REQUESTS_IN_FLIGHT
+                    + ", was " + maxRequestsInFlight);
+        }
+        this.maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    public int getMaxRequestsInFlight() {
+        return maxRequestsInFlight;
+    }
+
+    public void setRequestTimeoutNanos(long requestTimeoutNanos) {
+        this.requestTimeoutNanos = requestTimeoutNanos;
+    }
+
+    /**
+     * Get ready for the reply to a request that is about to be sent. This has to be called before sending so the
+     * reply can not arrive first.
+     *
+     * @param replyLength the number of bytes in the reply
+     * @param layout how to decode the reply, or null to copy it as is to the start of the SensorData
+     * @return false if maxRequestsInFlight requests are already waiting, the request should not be sent
+     */
+    public boolean addRequest(int replyLength, SensorPacketLayout layout) {
+        long now = System.nanoTime();
+        expireRequests(now);
+        if (requestCount >= maxRequestsInFlight) {
+            return false;
+        }
+        if (replyLength > replyData.length) {
+            replyData = new byte[replyLength];
+        }
+        int index = (requestHead + requestCount) % MAX_REQUESTS_IN_FLIGHT;
+        requestLengths[index] = replyLength;
+        requestLayouts[index] = layout;
+        requestWaitNanos[index] = now;
+        requestCount++;
+        return true;
+    }
+
+    /**
+     * @return the number of requests waiting for a reply
+     */
+    public int getRequestsInFlight() {
+        return requestCount;
+    }
+
+    /**
+     * @return the number of requests given up on because no reply arrived in time
+     */
+    public long getRequestTimeoutCount() {
+        return requestTimeoutCount;
+    }
+
+    /**
+     * Expect stream frames with the given packet from now on. Any partial data in the buffer is thrown away.
+     */
+    public void startStream(int packetId, int dataLength) {
+        streamFrameParser.setPacket(packetId, dataLength);
+        ringBuffer.clear();
+        streaming = true;
+    }
+
+    /**
+     * Expect stream frames with the packet group from now on. Any partial data in the buffer is thrown away.
+     */
+    public void startStream(SensorPacketGroup group) {
+        streamFrameParser.setGroup(group);
+        ringBuffer.clear();
+        streaming = true;
+    }
+
+    /**
+     * Expect stream frames with the packets in the layout from now on. Any partial data in the buffer is thrown away.
+     */
+    public void startStream(SensorPacketLayout layout) {
+        streamFrameParser.setLayout(layout);
+        ringBuffer.clear();
+        streaming = true;
+    }
+
+    public void stopStream() {
+        streaming = false;
+        ringBuffer.clear();
+    }
+
+    /**
+     * Throw away any received bytes and forget the requests waiting for a reply, for when the link has been
+     * reconfigured and nothing in flight can be trusted.
+     */
+    public void reset() {
+        ringBuffer.clear();
+        while (requestCount > 0) {
+            requestLayouts[requestHead] = null;
+            requestHead = (requestHead + 1) % MAX_REQUESTS_IN_FLIGHT;
+            requestCount--;
+        }
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Read everything that is available from the stream and hand off every complete frame.
+     *
+     * @return the number of bytes read
+     */
+    public int receive(InputStream inputStream) throws IOException {
+        int total = 0;
+        int available;
+        // more data can become available while processing, so keep going until the stream is drained
+        while ((available = inputStream.available()) > 0) {
+            int read = ringBuffer.readFrom(inputStream, available);
+            if (read <= 0) {
+                break;
+            }
+            total += read;
+            processFrames();
+        }
+        return total;
+    }
+
+    /**
+     * Add received bytes and hand off every complete frame.
+     */
+    public void receive(byte[] bytes, int offset, int length) {
+        receive(bytes, offset, length, System.nanoTime());
+    }
+
+    /**
+     * Add bytes that arrived at the given System.nanoTime() and hand off every complete frame.
+     */
+    public void receive(byte[] bytes, int offset, int length, long nanos) {
+        ringBuffer.write(bytes, offset, length, nanos);
+        processFrames();
+    }
+
+    public SensorDataPool getSensorDataPool() {
+        return sensorDataPool;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getChecksumErrorCount() {
+        return streamFrameParser.getChecksumErrorCount();
+    }
+
+    public long getDiscardedByteCount() {
+        return streamFrameParser.getDiscardedByteCount() + ringBuffer.getOverflowByteCount();
+    }
+
+    private void processFrames() {
+        if (streaming) {
+            SensorData sensorData;
+            while ((sensorData = streamFrameParser.parse(ringBuffer)) != null) {
+                frameCount++;
+                sink.accept(sensorData);
+            }
+        } else if (requestCount > 0) {
+            while (requestCount > 0 && ringBuffer.size() >= requestLengths[requestHead]) {
+                SensorPacketLayout layout = requestLayouts[requestHead];
+                int length = requestLengths[requestHead];
+                long completedNanos = ringBuffer.getArrivalNanos(length - 1);
+                requestLayouts[requestHead] = null;
+                requestHead = (requestHead + 1) % MAX_REQUESTS_IN_FLIGHT;
+                requestCount--;
+                if (requestCount > 0 && completedNanos - requestWaitNanos[requestHead] > 0) {
+                    // the next reply can only start arriving now
+                    requestWaitNanos[requestHead] = completedNanos;
+                }
+                sendReply(length, layout);
+            }
+            expireRequests(System.nanoTime());
+        } else if (readRequestLength > 0) {
+            while (ringBuffer.size() >= readRequestLength) {
+                sendReply(readRequestLength, replyLayout);
+            }
+        }
+    }
+
+    private void sendReply(int length, SensorPacketLayout layout) {
+        long timestampNanos = ringBuffer.getArrivalNanos(0);
+        ringBuffer.copy(0, replyData, 0, length);
+        ringBuffer.skip(length);
+        frameCount++;
+        if (layout == null) {
+            sink.accept(sensorDataPool.acquire(replyData, 0, length, timestampNanos));
+        } else {
+            if (layout != decodedLayout) {
+                // Packets not in the layout are never written so they have to start out as zero
+                Arrays.fill(decodedData, (byte) 0);
+                decodedLayout = layout;
+            }
+            layout.decode(replyData, 0, decodedData);
+            sink.accept(sensorDataPool.acquire(decodedData, 0, layout.getDataExtent(), timestampNanos));
+        }
+    }
+
+    private void expireRequests(long now) {
+        boolean expired = false;
+        while (requestCount > 0 && now - requestWaitNanos[requestHead] > requestTimeoutNanos) {
+            requestLayouts[requestHead] = null;
+            requestHead = (requestHead + 1) % MAX_REQUESTS_IN_FLIGHT;
+            requestCount--;
+            requestTimeoutCount++;
+            expired = true;
+        }
+        if (expired) {
+            // whatever part of a reply has arrived can not be matched to a request any more
+            ringBuffer.clear();
+        }
+    }
+}
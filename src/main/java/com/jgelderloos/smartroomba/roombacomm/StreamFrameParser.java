@@ -0,0 +1,195 @@
+/*
+ *  SmartRoomba - StreamFrameParser
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants;
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Arrays;
+
+/**
+ * Parses the frames the Roomba sends while in stream mode (opcode 148).
+ * <p>
+ * Every frame looks like: [19][n][packet id][packet data...][checksum] where n is the number of bytes between n and
+ * the checksum, and the low byte of the sum of every byte in the frame (including the checksum) is 0. When a list of
+ * packets is streamed each packet id is followed by that packet's data. Both packet groups and lists of packets are
+ * decoded to the packet 100 offsets following their SensorPacketLayout. Frames are
+ * checked in place in the receive ring buffer. A frame with the wrong length, packet id or checksum has its header
+ * byte dropped so the parser resynchronizes on the next header byte, which may be inside the rejected frame. Each
+ * frame is stamped with the time its header byte arrived.
+ */
+public class StreamFrameParser {
+    private static final Logger LOGGER = LogManager.getLogger(StreamFrameParser.class);
+    private static final int HEADER_SIZE = 3;
+
+    private byte[] packetData = new byte[256];
+    private SensorDataPool sensorDataPool;
+    private SensorPacketLayout layout;
+    private SensorPacketLayout groupLayout;
+    private int packetId;
+    private int dataLength;
+    private int decodedLength;
+    private long checksumErrorCount = 0;
+    private long discardedByteCount = 0;
+
+    public StreamFrameParser(SensorDataPool sensorDataPool) {
+        this(sensorDataPool, RoombaConstants.SensorPacketGroup.P100.getId(), SensorData.MAX_SENSOR_BYTES);
+    }
+
+    public StreamFrameParser(SensorDataPool sensorDataPool, int packetId, int dataLength) {
+        this.sensorDataPool = sensorDataPool;
+        setPacket(packetId, dataLength);
+    }
+
+    /**
+     * Set the packet that is expected in each frame.
+     */
+    public void setPacket(int packetId, int dataLength) {
+        if (dataLength < 1 || dataLength + 1 > 255) {
+            throw new IllegalArgumentException("Stream data length must be between 1 and 254 bytes, was " + dataLength);
+        }
+        this.packetId = packetId;
+        this.dataLength = dataLength;
+        decodedLength = dataLength;
+        layout = null;
+        groupLayout = null;
+    }
+
+    /**
+     * Expect each frame to hold the packet group.
+     */
+    public void setGroup(SensorPacketGroup group) {
+        setPacket(group.getId(), group.getReplyLength());
+        groupLayout = group.getLayout();
+        decodedLength = groupLayout.getDataExtent();
+        // Packets not in the group are never written so they have to start out as zero
+        Arrays.fill(packetData, (byte) 0);
+    }
+
+    /**
+     * Expect each frame to hold the packets in the layout, in order.
+     */
+    public void setLayout(SensorPacketLayout layout) {
+        if (layout.getStreamDataLength() + 1 > 255) {
+            throw new IllegalArgumentException("Stream data length must be at most 254 bytes, was " + layout.getStreamDataLength());
+        }
+        // The first id is checked along with the header, the rest once the whole frame is here
+        this.packetId = layout.getPackets().get(0).getId();
+        this.dataLength = layout.getStreamDataLength() - 1;
+        this.layout = layout;
+        groupLayout = null;
+        decodedLength = layout.getDataExtent();
+        // Packets not in the layout are never written so they have to start out as zero
+        Arrays.fill(packetData, (byte) 0);
+    }
+
+    /**
+     * @return the number of bytes in a complete frame, including the header and checksum
+     */
+    public int getFrameLength() {
+        return dataLength + HEADER_SIZE + 1;
+    }
+
+    /**
+     * Look for the next valid frame in the ring. Bytes that can not be the start of a valid frame are removed, and
+     * when a frame is found it is removed from the ring.
+     *
+     * @return the sensor data from the next valid frame, or null if the ring does not hold a complete frame yet
+     */
+    public SensorData parse(ByteRingBuffer ringBuffer) {
+        int frameLength = getFrameLength();
+        while (!ringBuffer.isEmpty()) {
+            int available = ringBuffer.size();
+            if (ringBuffer.peek(0) != RoombaConstants.STREAM_HEADER
+                    || (available > 1 && ringBuffer.peek(1) != dataLength + 1)
+                    || (available > 2 && ringBuffer.peek(2) != packetId)) {
+                discard(ringBuffer);
+            } else if (available < frameLength) {
+                return null;
+            } else if ((ringBuffer.sum(0, frameLength) & 0xFF) != 0) {
+                checksumErrorCount++;
+                LOGGER.debug("Stream frame failed checksum, sum: {}", ringBuffer.sum(0, frameLength) & 0xFF);
+                discard(ringBuffer);
+            } else if (layout != null && !isLayoutMatch(ringBuffer)) {
+                discard(ringBuffer);
+            } else {
+                long timestampNanos = ringBuffer.getArrivalNanos(0);
+                if (layout != null) {
+                    decodeLayout(ringBuffer);
+                } else if (groupLayout != null) {
+                    decodeGroup(ringBuffer);
+                } else {
+                    ringBuffer.copy(HEADER_SIZE, packetData, 0, dataLength);
+                }
+                ringBuffer.skip(frameLength);
+                return sensorDataPool.acquire(packetData, 0, decodedLength, timestampNanos);
+            }
+        }
+        return null;
+    }
+
+    public long getChecksumErrorCount() {
+        return checksumErrorCount;
+    }
+
+    public long getDiscardedByteCount() {
+        return discardedByteCount;
+    }
+
+    private boolean isLayoutMatch(ByteRingBuffer ringBuffer) {
+        int offset = HEADER_SIZE - 1;
+        for (SensorPacket packet : layout.getPackets()) {
+            if (ringBuffer.peek(offset) != packet.getId()) {
+                return false;
+            }
+            offset += packet.getSize() + 1;
+        }
+        return true;
+    }
+
+    private void decodeLayout(ByteRingBuffer ringBuffer) {
+        int offset = HEADER_SIZE;
+        for (SensorPacket packet : layout.getPackets()) {
+            ringBuffer.copy(offset, packetData, packet.getOffset(), packet.getSize());
+            offset += packet.getSize() + 1;
+        }
+    }
+
+    private void decodeGroup(ByteRingBuffer ringBuffer) {
+        for (int i = 0; i < groupLayout.getRunCount(); i++) {
+            ringBuffer.copy(HEADER_SIZE + groupLayout.getRunSource(i), packetData, groupLayout.getRunTarget(i),
+                    groupLayout.getRunLength(i));
+        }
+    }
+
+    private void discard(ByteRingBuffer ringBuffer) {
+        ringBuffer.skip(1);
+        discardedByteCount++;
+    }
+}
@@ -0,0 +1,715 @@
+/*
+ *  SmartRoomba - OISimulator
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.simulator;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants;
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.BaudRate;
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roombacomm.RoombaComm;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a Roomba at the Open Interface level. Bytes sent to the Roomba are fed to receive() and interpreted as OI
+ * commands, and the replies and stream frames the Roomba would send back are written to the ByteSink byte for byte.
+ * <p>
+ * The Roomba is a differential drive robot in a SimulatedRoom. Time only moves when advance() is called, so the
+ * simulation can run as fast as the caller likes. The encoders count the commanded wheel travel even when the Roomba
+ * is pushing against a wall, like real wheels slipping, and roll over at 65535. The bumpers, cliff sensors, wheel
+ * drops and light bumpers are worked out from the room around the Roomba's position. In safe mode a cliff or wheel
+ * drop stops the wheels and drops to passive mode, like the real OI.
+ * <p>
+ * This class is not thread safe, callers sharing a simulator have to synchronize on it.
+ */
+public class OISimulator {
+    private static final Logger LOGGER = LogManager.getLogger(OISimulator.class);
+    public static final long STREAM_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(15);
+    public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /**
+     * radius of the round body of the Roomba, in millimeters
+     */
+    public static final double ROBOT_RADIUS = 170;
+    public static final int MAX_VELOCITY = 500;
+    public static final int MAX_RADIUS = 2000;
+    public static final int STOP = 173;
+
+    private static final double MILLIMETERS_PER_ENCODER_COUNT =
+            Math.PI * RoombaConstants.MILLIMETERS_PER_WHEEL_TURN / RoombaConstants.ENCODER_COUNTS_PER_WHEEL_TURN;
+    private static final double BUMP_MARGIN = 2;
+    private static final double LIGHT_BUMP_RANGE = 200;
+    private static final double LIGHT_BUMP_DETECT_DISTANCE = 100;
+    private static final double WALL_DETECT_DISTANCE = 50;
+    private static final int MAX_LIGHT_BUMP_SIGNAL = 4095;
+    private static final int CLIFF_SIGNAL = 2800;
+    private static final int BATTERY_CAPACITY = 2696;
+    private static final int COLLISION_SEARCH_STEPS = 10;
+    // Angles from the front of the Roomba, counterclockwise is positive like the angle packet
+    private static final double[] CLIFF_SENSOR_DEGREES = {70, 20, -20, -70};
+    private static final double[] LIGHT_BUMP_DEGREES = {70, 40, 12, -12, -40, -70};
+    private static final double BUMPER_CENTER_DEGREES = 20;
+    // Bytes after the opcode for each command, -1 for commands whose length depends on their first argument
+    private static final int[] ARGUMENT_COUNTS = new int[256];
+
+    static {
+        ARGUMENT_COUNTS[RoombaComm.BAUD] = 1;
+        ARGUMENT_COUNTS[RoombaComm.DRIVE] = 4;
+        ARGUMENT_COUNTS[RoombaComm.MOTORS] = 1;
+        ARGUMENT_COUNTS[RoombaComm.LEDS] = 3;
+        ARGUMENT_COUNTS[RoombaComm.SONG] = -1;
+        ARGUMENT_COUNTS[RoombaComm.PLAY] = 1;
+        ARGUMENT_COUNTS[RoombaComm.SENSORS] = 1;
+        ARGUMENT_COUNTS[RoombaComm.PWMMOTORS] = 3;
+        ARGUMENT_COUNTS[RoombaComm.DRIVEWHEELS] = 4;
+        ARGUMENT_COUNTS[RoombaComm.DRIVEPWM] = 4;
+        ARGUMENT_COUNTS[RoombaComm.STREAM] = -1;
+        ARGUMENT_COUNTS[RoombaComm.QUERYLIST] = -1;
+        ARGUMENT_COUNTS[RoombaComm.STOPSTARTSTREAM] = 1;
+        ARGUMENT_COUNTS[RoombaComm.SCHEDULINGLEDS] = 2;
+        ARGUMENT_COUNTS[RoombaComm.DIGITLEDSRAW] = 4;
+        ARGUMENT_COUNTS[RoombaComm.DIGITLEDSASCII] = 4;
+        ARGUMENT_COUNTS[RoombaComm.BUTTONSCMD] = 1;
+        ARGUMENT_COUNTS[RoombaComm.SCHEDULE] = 15;
+        ARGUMENT_COUNTS[RoombaComm.SETDAYTIME] = 3;
+    }
+
+    /**
+     * OI modes, the ordinal is the value of the OI mode packet
+     */
+    public enum Mode {
+        OFF,
+        PASSIVE,
+        SAFE,
+        FULL
+    }
+
+    private final SimulatedRoom room;
+    private final ByteSink sink;
+    private long tickNanos = DEFAULT_TICK_NANOS;
+    private long simNanos = 0;
+
+    // command being received, the longest is a SONG with 255 notes: opcode, song number, length and two bytes a note
+    private final byte[] command = new byte[3 + 2 * 255];
+    private int commandLength = 0;
+
+    // bytes being sent back
+    private byte[] output = new byte[256];
+    private int outputLength = 0;
+
+    private Mode mode = Mode.OFF;
+    private BaudRate baudRate = BaudRate.B115200;
+    private double x;
+    private double y;
+    private double heading;
+    private int requestedVelocity = 0;
+    private int requestedRadius = 0;
+    private int leftVelocity = 0;
+    private int rightVelocity = 0;
+    private double leftEncoderCounts = 0;
+    private double rightEncoderCounts = 0;
+    private double distance = 0;
+    private double angle = 0;
+    private double batteryCharge = 2600;
+    private boolean stalled = false;
+    private boolean makingProgress = false;
+
+    // sensors, worked out after every tick
+    private boolean bumpLeft = false;
+    private boolean bumpRight = false;
+    private boolean wheelDropLeft = false;
+    private boolean wheelDropRight = false;
+    private final boolean[] cliffs = new boolean[CLIFF_SENSOR_DEGREES.length];
+    private final int[] lightBumpSignals = new int[LIGHT_BUMP_DEGREES.length];
+    private int lightBumper = 0;
+    private int wallSignal = 0;
+
+    // streaming
+    private final int[] streamPacketIds = new int[255];
+    private int streamPacketCount = 0;
+    private boolean streaming = false;
+    private long nextStreamNanos = 0;
+
+    /**
+     * Start in the middle of the room facing along the x axis
+     */
+    public OISimulator(SimulatedRoom room, ByteSink sink) {
+        this.room = room;
+        this.sink = sink;
+        setPose(room.getWidth() / 2, room.getHeight() / 2, 0);
+    }
+
+    /**
+     * Put the Roomba somewhere in the room. Heading is in radians counterclockwise from the x axis.
+     */
+    public void setPose(double x, double y, double heading) {
+        this.x = x;
+        this.y = y;
+        this.heading = heading;
+        updateSensors();
+    }
+
+    /**
+     * Set the raw encoder counts, for example just below 65535 to see them roll over
+     */
+    public void setEncoderCounts(int left, int right) {
+        leftEncoderCounts = left;
+        rightEncoderCounts = right;
+    }
+
+    /**
+     * @param tickNanos the longest step the physics takes at once, smaller is more accurate and slower
+     */
+    public void setTickNanos(long tickNanos) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick must be positive, was " + tickNanos);
+        }
+        this.tickNanos = tickNanos;
+    }
+
+    /**
+     * Interpret bytes sent to the Roomba. Replies are written to the sink before this returns.
+     */
+    public void receive(byte[] bytes, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            receive(bytes[i]);
+        }
+    }
+
+    public void receive(int b) {
+        command[commandLength++] = (byte) b;
+        int expectedLength = getCommandLength();
+        if (expectedLength > 0 && commandLength >= expectedLength) {
+            execute();
+            commandLength = 0;
+        }
+    }
+
+    /**
+     * Move simulated time forward, driving the Roomba and sending stream frames as they come due.
+     */
+    public void advance(long nanos) {
+        long end = simNanos + nanos;
+        while (simNanos < end) {
+            long step = Math.min(tickNanos, end - simNanos);
+            move(step / 1e9);
+            simNanos += step;
+            while (streaming && simNanos - nextStreamNanos >= 0) {
+                sendStreamFrame();
+                nextStreamNanos += STREAM_PERIOD_NANOS;
+            }
+        }
+    }
+
+    public long getSimNanos() {
+        return simNanos;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the baud rate last selected with the BAUD command
+     */
+    public BaudRate getBaudRate() {
+        return baudRate;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getHeading() {
+        return heading;
+    }
+
+    public int getLeftEncoderCount() {
+        return toEncoderCount(leftEncoderCounts);
+    }
+
+    public int getRightEncoderCount() {
+        return toEncoderCount(rightEncoderCounts);
+    }
+
+    public boolean isBumpLeft() {
+        return bumpLeft;
+    }
+
+    public boolean isBumpRight() {
+        return bumpRight;
+    }
+
+    /**
+     * @return the number of bytes the whole command will have, or 0 if that is not known until more bytes arrive
+     */
+    private int getCommandLength() {
+        int opCode = command[0] & 0xFF;
+        int argumentCount = ARGUMENT_COUNTS[opCode];
+        if (argumentCount >= 0) {
+            return 1 + argumentCount;
+        }
+        if (opCode == RoombaComm.SONG) {
+            return commandLength < 3 ? 0 : 3 + 2 * (command[2] & 0xFF);
+        }
+        // STREAM and QUERY_LIST are followed by the number of packets and then the packet ids
+        return commandLength < 2 ? 0 : 2 + (command[1] & 0xFF);
+    }
+
+    private void execute() {
+        int opCode = command[0] & 0xFF;
+        if (mode == Mode.OFF && opCode != RoombaComm.START) {
+            LOGGER.trace("Ignoring opcode {} until the OI is started", opCode);
+            return;
+        }
+        switch (opCode) {
+            case RoombaComm.START:
+                mode = Mode.PASSIVE;
+                stopWheels();
+                break;
+            case RoombaComm.BAUD:
+                setBaudRate(command[1] & 0xFF);
+                break;
+            case RoombaComm.SAFE:
+                mode = Mode.SAFE;
+                break;
+            case RoombaComm.FULL:
+                mode = Mode.FULL;
+                break;
+            case RoombaComm.POWER:
+                mode = Mode.OFF;
+                streaming = false;
+                stopWheels();
+                break;
+            case RoombaComm.SPOT:
+            case RoombaComm.CLEAN:
+            case RoombaComm.MAX:
+            case RoombaComm.DOCK:
+                mode = Mode.PASSIVE;
+                stopWheels();
+                break;
+            case STOP:
+                mode = Mode.OFF;
+                streaming = false;
+                stopWheels();
+                break;
+            case RoombaComm.DRIVE:
+                if (canDrive()) {
+                    drive(getShort(1), getShort(3));
+                }
+                break;
+            case RoombaComm.DRIVEWHEELS:
+                if (canDrive()) {
+                    driveWheels(getShort(3), getShort(1));
+                }
+                break;
+            case RoombaComm.SENSORS:
+                outputLength = 0;
+                putPacket(command[1] & 0xFF);
+                flush();
+                break;
+            case RoombaComm.QUERYLIST:
+                outputLength = 0;
+                for (int i = 0; i < (command[1] & 0xFF); i++) {
+                    putPacket(command[2 + i] & 0xFF);
+                }
+                flush();
+                break;
+            case RoombaComm.STREAM:
+                streamPacketCount = command[1] & 0xFF;
+                for (int i = 0; i < streamPacketCount; i++) {
+                    streamPacketIds[i] = command[2 + i] & 0xFF;
+                }
+                startStream(streamPacketCount > 0);
+                break;
+            case RoombaComm.STOPSTARTSTREAM:
+                startStream(command[1] != 0 && streamPacketCount > 0);
+                break;
+            default:
+                LOGGER.trace("Opcode {} has no effect in the simulator", opCode);
+        }
+    }
+
+    private boolean canDrive() {
+        return mode == Mode.SAFE || mode == Mode.FULL;
+    }
+
+    private void startStream(boolean start) {
+        if (start && !streaming) {
+            nextStreamNanos = simNanos + STREAM_PERIOD_NANOS;
+        }
+        streaming = start;
+    }
+
+    private void setBaudRate(int code) {
+        for (BaudRate rate : BaudRate.values()) {
+            if (rate.getCode() == code) {
+                baudRate = rate;
+            }
+        }
+    }
+
+    private void stopWheels() {
+        requestedVelocity = 0;
+        requestedRadius = 0;
+        leftVelocity = 0;
+        rightVelocity = 0;
+    }
+
+    private void drive(int velocity, int radius) {
+        velocity = clamp(velocity, MAX_VELOCITY);
+        requestedVelocity = velocity;
+        requestedRadius = radius;
+        if (radius == Short.MAX_VALUE || radius == Short.MIN_VALUE) {
+            leftVelocity = velocity;
+            rightVelocity = velocity;
+        } else if (radius == -1) {
+            // spin clockwise in place
+            leftVelocity = velocity;
+            rightVelocity = -velocity;
+        } else if (radius == 1) {
+            // spin counterclockwise in place
+            leftVelocity = -velocity;
+            rightVelocity = velocity;
+        } else {
+            double r = clamp(radius, MAX_RADIUS);
+            leftVelocity = (int) Math.round(velocity * (r - RoombaConstants.WHEELBASE / 2) / r);
+            rightVelocity = (int) Math.round(velocity * (r + RoombaConstants.WHEELBASE / 2) / r);
+        }
+    }
+
+    private void driveWheels(int left, int right) {
+        requestedVelocity = 0;
+        requestedRadius = 0;
+        leftVelocity = clamp(left, MAX_VELOCITY);
+        rightVelocity = clamp(right, MAX_VELOCITY);
+    }
+
+    private void move(double seconds) {
+        double left = leftVelocity * seconds;
+        double right = rightVelocity * seconds;
+        // the encoders and the distance and angle packets follow the wheels, not where the Roomba really went
+        leftEncoderCounts += left / MILLIMETERS_PER_ENCODER_COUNT;
+        rightEncoderCounts += right / MILLIMETERS_PER_ENCODER_COUNT;
+        distance += (left + right) / 2;
+        angle += Math.toDegrees((right - left) / RoombaConstants.WHEELBASE);
+        double batteryCurrent = getBatteryCurrent();
+        batteryCharge = Math.max(0, batteryCharge + batteryCurrent * seconds / 3600);
+
+        double turn = (right - left) / RoombaConstants.WHEELBASE;
+        double forward = (left + right) / 2;
+        double direction = heading + turn / 2;
+        heading = normalize(heading + turn);
+        makingProgress = false;
+        stalled = false;
+        if (forward != 0) {
+            double facing = forward > 0 ? heading : heading + Math.PI;
+            double moved = 1;
+            if (isBodyBlocked(x + Math.cos(direction) * forward, y + Math.sin(direction) * forward, facing)) {
+                // only move as far along the step as the room allows
+                stalled = true;
+                double clear = 0;
+                double blocked = 1;
+                for (int i = 0; i < COLLISION_SEARCH_STEPS; i++) {
+                    double fraction = (clear + blocked) / 2;
+                    if (isBodyBlocked(x + Math.cos(direction) * forward * fraction, y + Math.sin(direction) * forward * fraction, facing)) {
+                        blocked = fraction;
+                    } else {
+                        clear = fraction;
+                    }
+                }
+                moved = clear;
+            }
+            x += Math.cos(direction) * forward * moved;
+            y += Math.sin(direction) * forward * moved;
+            makingProgress = forward > 0 && moved > 0;
+        }
+        updateSensors();
+
+        if (mode == Mode.SAFE && (wheelDropLeft || wheelDropRight || (isCliff() && leftVelocity + rightVelocity > 0))) {
+            LOGGER.debug("Safety fault in safe mode, switching to passive");
+            mode = Mode.PASSIVE;
+            stopWheels();
+        }
+    }
+
+    /**
+     * @return true if the half of the Roomba facing the direction of travel overlaps a wall or obstacle
+     */
+    private boolean isBodyBlocked(double centerX, double centerY, double facing) {
+        for (int degrees = -90; degrees <= 90; degrees += 10) {
+            double radians = facing + Math.toRadians(degrees);
+            if (room.isBlocked(centerX + Math.cos(radians) * ROBOT_RADIUS, centerY + Math.sin(radians) * ROBOT_RADIUS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateSensors() {
+        bumpLeft = false;
+        bumpRight = false;
+        double bumperRadius = ROBOT_RADIUS + BUMP_MARGIN;
+        for (int degrees = -90; degrees <= 90; degrees += 10) {
+            double radians = heading + Math.toRadians(degrees);
+            if (room.isBlocked(x + Math.cos(radians) * bumperRadius, y + Math.sin(radians) * bumperRadius)) {
+                bumpLeft |= degrees >= -BUMPER_CENTER_DEGREES;
+                bumpRight |= degrees <= BUMPER_CENTER_DEGREES;
+            }
+        }
+
+        double wheelRadius = RoombaConstants.WHEELBASE / 2;
+        wheelDropLeft = room.isCliff(x + Math.cos(heading + Math.PI / 2) * wheelRadius, y + Math.sin(heading + Math.PI / 2) * wheelRadius);
+        wheelDropRight = room.isCliff(x + Math.cos(heading - Math.PI / 2) * wheelRadius, y + Math.sin(heading - Math.PI / 2) * wheelRadius);
+
+        double cliffRadius = ROBOT_RADIUS - 10;
+        for (int i = 0; i < CLIFF_SENSOR_DEGREES.length; i++) {
+            double radians = heading + Math.toRadians(CLIFF_SENSOR_DEGREES[i]);
+            cliffs[i] = room.isCliff(x + Math.cos(radians) * cliffRadius, y + Math.sin(radians) * cliffRadius);
+        }
+
+        lightBumper = 0;
+        for (int i = 0; i < LIGHT_BUMP_DEGREES.length; i++) {
+            double radians = heading + Math.toRadians(LIGHT_BUMP_DEGREES[i]);
+            double range = room.distanceToBlocked(x + Math.cos(radians) * ROBOT_RADIUS, y + Math.sin(radians) * ROBOT_RADIUS,
+                    radians, LIGHT_BUMP_RANGE, 1);
+            double closeness = 1 - range / LIGHT_BUMP_RANGE;
+            lightBumpSignals[i] = (int) Math.round(MAX_LIGHT_BUMP_SIGNAL * closeness * closeness);
+            if (range < LIGHT_BUMP_DETECT_DISTANCE) {
+                // bit 0 is the left light bumper
+                lightBumper |= 1 << i;
+            }
+        }
+        // the wall sensor looks out the right side like the right light bumper
+        double wallRadians = heading + Math.toRadians(LIGHT_BUMP_DEGREES[LIGHT_BUMP_DEGREES.length - 1]);
+        double wallRange = room.distanceToBlocked(x + Math.cos(wallRadians) * ROBOT_RADIUS, y + Math.sin(wallRadians) * ROBOT_RADIUS,
+                wallRadians, LIGHT_BUMP_RANGE, 1);
+        wallSignal = wallRange < WALL_DETECT_DISTANCE ? (int) Math.round(MAX_LIGHT_BUMP_SIGNAL * (1 - wallRange / WALL_DETECT_DISTANCE)) : 0;
+    }
+
+    private boolean isCliff() {
+        for (boolean cliff : cliffs) {
+            if (cliff) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendStreamFrame() {
+        outputLength = 0;
+        putByte(RoombaConstants.STREAM_HEADER);
+        putByte(0);
+        for (int i = 0; i < streamPacketCount; i++) {
+            putByte(streamPacketIds[i]);
+            putPacket(streamPacketIds[i]);
+        }
+        output[1] = (byte) (outputLength - 2);
+        int sum = 0;
+        for (int i = 0; i < outputLength; i++) {
+            sum += output[i];
+        }
+        putByte(-sum);
+        flush();
+    }
+
+    /**
+     * Add a packet or packet group to the output. Groups are padded to the length the rest of the code expects.
+     */
+    private void putPacket(int id) {
+        SensorPacket packet = SensorPacket.fromId(id);
+        if (packet != null) {
+            putPacket(packet);
+            return;
+        }
+        SensorPacketGroup group = SensorPacketGroup.fromId(id);
+        if (group == null) {
+            LOGGER.debug("Unknown sensor packet {}", id);
+            return;
+        }
+        int start = outputLength;
+        for (int packetId = group.getFirstPacketId(); packetId <= group.getLastPacketId(); packetId++) {
+            putPacket(SensorPacket.fromId(packetId));
+        }
+        while (outputLength - start < group.getReplyLength()) {
+            putByte(0);
+        }
+    }
+
+    private void putPacket(SensorPacket packet) {
+        switch (packet) {
+            case BUMPS_WHEEL_DROPS:
+                putByte((bumpRight ? 0x01 : 0) | (bumpLeft ? 0x02 : 0) | (wheelDropRight ? 0x04 : 0) | (wheelDropLeft ? 0x08 : 0));
+                break;
+            case WALL:
+                putByte(wallSignal > 0 ? 1 : 0);
+                break;
+            case CLIFF_LEFT:
+            case CLIFF_FRONT_LEFT:
+            case CLIFF_FRONT_RIGHT:
+            case CLIFF_RIGHT:
+                putByte(cliffs[packet.getId() - SensorPacket.CLIFF_LEFT.getId()] ? 1 : 0);
+                break;
+            case DISTANCE:
+                int distanceRead = clamp((int) distance, Short.MAX_VALUE);
+                distance -= distanceRead;
+                putShort(distanceRead);
+                break;
+            case ANGLE:
+                int angleRead = clamp((int) angle, Short.MAX_VALUE);
+                angle -= angleRead;
+                putShort(angleRead);
+                break;
+            case VOLTAGE:
+                putShort(16000);
+                break;
+            case CURRENT:
+                putShort((int) Math.round(getBatteryCurrent()));
+                break;
+            case TEMPERATURE:
+                putByte(25);
+                break;
+            case BATTERY_CHARGE:
+                putShort((int) batteryCharge);
+                break;
+            case BATTERY_CAPACITY:
+                putShort(BATTERY_CAPACITY);
+                break;
+            case WALL_SIGNAL:
+                putShort(wallSignal);
+                break;
+            case CLIFF_LEFT_SIGNAL:
+            case CLIFF_FRONT_LEFT_SIGNAL:
+            case CLIFF_FRONT_RIGHT_SIGNAL:
+            case CLIFF_RIGHT_SIGNAL:
+                putShort(cliffs[packet.getId() - SensorPacket.CLIFF_LEFT_SIGNAL.getId()] ? 0 : CLIFF_SIGNAL);
+                break;
+            case OI_MODE:
+                putByte(mode.ordinal());
+                break;
+            case NUMBER_OF_STREAM_PACKETS:
+                putByte(streamPacketCount);
+                break;
+            case REQUESTED_VELOCITY:
+                putShort(requestedVelocity);
+                break;
+            case REQUESTED_RADIUS:
+                putShort(requestedRadius);
+                break;
+            case REQUESTED_RIGHT_VELOCITY:
+                putShort(rightVelocity);
+                break;
+            case REQUESTED_LEFT_VELOCITY:
+                putShort(leftVelocity);
+                break;
+            case LEFT_ENCODER_COUNTS:
+                putShort(getLeftEncoderCount());
+                break;
+            case RIGHT_ENCODER_COUNTS:
+                putShort(getRightEncoderCount());
+                break;
+            case LIGHT_BUMPER:
+                putByte(lightBumper);
+                break;
+            case LIGHT_BUMP_LEFT_SIGNAL:
+            case LIGHT_BUMP_FRONT_LEFT_SIGNAL:
+            case LIGHT_BUMP_CENTER_LEFT_SIGNAL:
+            case LIGHT_BUMP_CENTER_RIGHT_SIGNAL:
+            case LIGHT_BUMP_FRONT_RIGHT_SIGNAL:
+            case LIGHT_BUMP_RIGHT_SIGNAL:
+                putShort(lightBumpSignals[packet.getId() - SensorPacket.LIGHT_BUMP_LEFT_SIGNAL.getId()]);
+                break;
+            case LEFT_MOTOR_CURRENT:
+                putShort(getMotorCurrent(leftVelocity));
+                break;
+            case RIGHT_MOTOR_CURRENT:
+                putShort(getMotorCurrent(rightVelocity));
+                break;
+            case STASIS:
+                putByte(makingProgress ? 1 : 0);
+                break;
+            default:
+                for (int i = 0; i < packet.getSize(); i++) {
+                    putByte(0);
+                }
+        }
+    }
+
+    private double getBatteryCurrent() {
+        return -(150 + Math.abs(leftVelocity) + Math.abs(rightVelocity));
+    }
+
+    private int getMotorCurrent(int velocity) {
+        if (velocity == 0) {
+            return 0;
+        }
+        return stalled ? 1000 : 100 + Math.abs(velocity) / 2;
+    }
+
+    private void putByte(int b) {
+        if (outputLength == output.length) {
+            byte[] larger = new byte[output.length * 2];
+            System.arraycopy(output, 0, larger, 0, outputLength);
+            output = larger;
+        }
+        output[outputLength++] = (byte) b;
+    }
+
+    private void putShort(int value) {
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    private int getShort(int index) {
+        return (short) (((command[index] & 0xFF) << 8) | (command[index + 1] & 0xFF));
+    }
+
+    private void flush() {
+        if (outputLength > 0) {
+            sink.write(output, 0, outputLength);
+            outputLength = 0;
+        }
+    }
+
+    private static int toEncoderCount(double counts) {
+        return (int) (((long) Math.floor(counts)) & RoombaConstants.MAX_ENCODER_COUNT);
+    }
+
+    private static int clamp(int value, int limit) {
+        return Math.max(-limit, Math.min(limit, value));
+    }
+
+    private static double normalize(double radians) {
+        return Math.atan2(Math.sin(radians), Math.cos(radians));
+    }
+}
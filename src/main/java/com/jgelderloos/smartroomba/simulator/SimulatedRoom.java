@@ -0,0 +1,109 @@
+/*
+ *  SmartRoomba - SimulatedRoom
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.simulator;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A rectangular room for the simulator with walls all around it. Obstacles are rectangles the Roomba bumps into and
+ * cliffs are rectangles its cliff sensors see as a drop. All positions are in millimeters with the origin in the
+ * corner of the room.
+ */
+public class SimulatedRoom {
+    private final double width;
+    private final double height;
+    private final List<Rectangle2D> obstacles = new ArrayList<>();
+    private final List<Rectangle2D> cliffs = new ArrayList<>();
+
+    public SimulatedRoom(double width, double height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Room size must be positive, was " + width + " x " + height);
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    public SimulatedRoom addObstacle(double x, double y, double width, double height) {
+        obstacles.add(new Rectangle2D.Double(x, y, width, height));
+        return this;
+    }
+
+    public SimulatedRoom addCliff(double x, double y, double width, double height) {
+        cliffs.add(new Rectangle2D.Double(x, y, width, height));
+        return this;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the point is inside a wall or an obstacle
+     */
+    public boolean isBlocked(double x, double y) {
+        if (x <= 0 || y <= 0 || x >= width || y >= height) {
+            return true;
+        }
+        for (Rectangle2D obstacle : obstacles) {
+            if (obstacle.contains(x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the point is over a drop
+     */
+    public boolean isCliff(double x, double y) {
+        for (Rectangle2D cliff : cliffs) {
+            if (cliff.contains(x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walk along a ray until it hits a wall or obstacle.
+     *
+     * @return the distance to the first blocked point, or maxDistance if nothing is that close
+     */
+    public double distanceToBlocked(double x, double y, double radians, double maxDistance, double step) {
+        double dx = Math.cos(radians);
+        double dy = Math.sin(radians);
+        for (double distance = 0; distance < maxDistance; distance += step) {
+            if (isBlocked(x + dx * distance, y + dy * distance)) {
+                return distance;
+            }
+        }
+        return maxDistance;
+    }
+}
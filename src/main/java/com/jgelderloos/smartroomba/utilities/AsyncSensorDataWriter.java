@@ -0,0 +1,391 @@
+/*
+ *  SmartRoomba - AsyncSensorDataWriter
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue.OverflowPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records sensor data in the same CSV format as DataCSVWriter, but on a thread of its own so a slow disk never holds
+ * up the thread handing over the data. writeData() only retains the frame and offers it to a bounded queue, when the
+ * queue is full the frame is dropped and counted. The writer thread encodes every queued frame into one reused buffer
+ * and writes the buffer out once it holds flushChars characters or its oldest line is flushIntervalNanos old.
+ * <p>
+ * Only one thread may call writeData(). close() stops taking frames, writes out everything still queued and closes
+ * the writer. Frames handed over while close() is running are released and counted as dropped instead of being left
+ * in the queue.
+ * <p>
+ * Given a SensorDataBinaryWriter instead of a Writer, frames are recorded in the binary format. The binary writer
+ * keeps its own buffer and writes it out when it fills, so only the flush interval applies.
+ */
+public class AsyncSensorDataWriter implements SensorDataRecorder, Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(AsyncSensorDataWriter.class);
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_FLUSH_CHARS = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    // the longest LocalDateTime string, a comma and 0xNN, for every byte
+    private static final int MAX_LINE_CHARS = 32 + SensorData.MAX_SENSOR_BYTES * 5 + 1;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long SECONDS_PER_DAY = 86_400L;
+
+    private final Writer writer;
+    private final SensorDataBinaryWriter binaryWriter;
+    private final SpscRingQueue<SensorData> queue;
+    private final int flushChars;
+    private final long flushIntervalNanos;
+    private final char[] buffer;
+    private final byte[] rawData = new byte[SensorData.MAX_SENSOR_BYTES];
+    private int bufferLength = 0;
+    private long oldestBufferedNanos;
+    private boolean headerWritten = false;
+    private Thread thread;
+    private volatile boolean running = false;
+    private volatile boolean closed = false;
+    private volatile boolean failed = false;
+    private volatile long writtenCount = 0;
+    private volatile long flushCount = 0;
+    private volatile long failedCount = 0;
+    // only changed by the thread calling writeData()
+    private volatile long closedDropCount = 0;
+
+    public AsyncSensorDataWriter(Writer writer) {
+        this(writer, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_CHARS, DEFAULT_FLUSH_INTERVAL_NANOS);
+    }
+
+    /**
+     * @param queueCapacity how many frames can wait to be written before new ones are dropped
+     * @param flushChars write the buffer out once it holds this many characters
+     * @param flushIntervalNanos write the buffer out once its oldest line has waited this long
+     */
+    public AsyncSensorDataWriter(Writer writer, int queueCapacity, int flushChars, long flushIntervalNanos) {
+        this(writer, null, queueCapacity, flushChars, flushIntervalNanos);
+    }
+
+    public AsyncSensorDataWriter(SensorDataBinaryWriter binaryWriter) {
+        this(binaryWriter, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_INTERVAL_NANOS);
+    }
+
+    public AsyncSensorDataWriter(SensorDataBinaryWriter binaryWriter, int queueCapacity, long flushIntervalNanos) {
+        this(null, binaryWriter, queueCapacity, 0, flushIntervalNanos);
+    }
+
+    private AsyncSensorDataWriter(Writer writer, SensorDataBinaryWriter binaryWriter, int queueCapacity, int flushChars,
+                                  long flushIntervalNanos) {
+        this.writer = writer;
+        this.binaryWriter = binaryWriter;
+        this.flushChars = flushChars;
+        this.flushIntervalNanos = flushIntervalNanos;
+        queue = new SpscRingQueue<>(queueCapacity, OverflowPolicy.DROP_NEWEST, SensorData::release);
+        buffer = binaryWriter == null ? new char[flushChars + MAX_LINE_CHARS] : null;
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public synchronized void start() {
+        if (thread == null && !closed) {
+            running = true;
+            thread = new Thread(this, "SensorDataWriter");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public boolean writeData(SensorData data) {
+        if (closed || failed) {
+            return false;
+        }
+        if (!queue.offer(data.retain())) {
+            return false;
+        }
+        if (closed) {
+            // close() raced this frame in, the writer may already have drained the queue for the last time
+            SensorData late;
+            while ((late = queue.poll()) != null) {
+                late.release();
+                closedDropCount++;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        Thread writerThread;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            running = false;
+            writerThread = thread;
+        }
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                LOGGER.info("Interrupted while waiting for the sensor data writer to finish.", e);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        } else {
+            finish();
+        }
+        return !failed;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            boolean wrote = drain();
+            if (bufferLength > 0 && System.nanoTime() - oldestBufferedNanos >= flushIntervalNanos) {
+                flush();
+            }
+            if (!wrote && running) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        finish();
+    }
+
+    /**
+     * @return the number of frames written out, or waiting in the buffer to be
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return the number of frames that were not recorded, because the queue was full, writing failed or they
+     * arrived while closing
+     */
+    public long getDroppedCount() {
+        return queue.getDropCount() + failedCount + closedDropCount;
+    }
+
+    /**
+     * @return the number of frames waiting in the queue
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    public int getHighWaterMark() {
+        return queue.getHighWaterMark();
+    }
+
+    /**
+     * @return the number of times the buffer was written out
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    private void finish() {
+        drain();
+        flush();
+        if (binaryWriter != null) {
+            if (!binaryWriter.close()) {
+                failed = true;
+            }
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            LOGGER.error("Error while closing CSV data file. {}", e);
+            failed = true;
+        }
+    }
+
+    /**
+     * @return true if anything was taken off the queue
+     */
+    private boolean drain() {
+        boolean any = false;
+        SensorData data;
+        while ((data = queue.poll()) != null) {
+            any = true;
+            try {
+                if (!failed) {
+                    encode(data);
+                }
+                if (failed) {
+                    failedCount++;
+                } else {
+                    writtenCount++;
+                }
+            } finally {
+                data.release();
+            }
+            if (writer != null && bufferLength >= flushChars) {
+                flush();
+            }
+        }
+        return any;
+    }
+
+    private void encode(SensorData data) {
+        if (bufferLength == 0) {
+            oldestBufferedNanos = System.nanoTime();
+        }
+        if (binaryWriter != null) {
+            try {
+                binaryWriter.write(data);
+                bufferLength = binaryWriter.getBufferedBytes();
+            } catch (IOException e) {
+                fail(e);
+            }
+            return;
+        }
+        if (!headerWritten) {
+            // nothing is buffered before the first frame, so the header can go straight out
+            headerWritten = true;
+            write("TIME," + data.getDataHeaderAsCSVString() + "\n");
+        }
+        putDateTime(data.getLocalEpochNanos());
+        data.copyRawData(rawData, 0);
+        for (byte b : rawData) {
+            buffer[bufferLength++] = ',';
+            buffer[bufferLength++] = '0';
+            buffer[bufferLength++] = 'x';
+            buffer[bufferLength++] = HEX_DIGITS[(b >> 4) & 0x0F];
+            buffer[bufferLength++] = HEX_DIGITS[b & 0x0F];
+        }
+        buffer[bufferLength++] = '\n';
+    }
+
+    /**
+     * Format the time the same as LocalDateTime.toString(), yyyy-MM-ddTHH:mm[:ss[.fraction]], straight into the buffer.
+     * This is the reverse of DataCSVStreamReader's parser.
+     */
+    private void putDateTime(long localEpochNanos) {
+        long seconds = Math.floorDiv(localEpochNanos, NANOS_PER_SECOND);
+        int nanos = (int) Math.floorMod(localEpochNanos, NANOS_PER_SECOND);
+        long epochDay = Math.floorDiv(seconds, SECONDS_PER_DAY);
+        int secondOfDay = (int) Math.floorMod(seconds, SECONDS_PER_DAY);
+
+        // days since 1970-01-01 to year, month and day in the proleptic Gregorian calendar, like LocalDate.ofEpochDay()
+        long days = epochDay + 719468;
+        long era = Math.floorDiv(days, 146097);
+        long dayOfEra = days - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+        int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        if (year < 0 || year > 9999) {
+            // LocalDateTime adds a sign to these, they never come from a real clock
+            String time = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC).toString();
+            time.getChars(0, time.length(), buffer, bufferLength);
+            bufferLength += time.length();
+            return;
+        }
+
+        putDigits((int) year, 4);
+        buffer[bufferLength++] = '-';
+        putDigits(month, 2);
+        buffer[bufferLength++] = '-';
+        putDigits(day, 2);
+        buffer[bufferLength++] = 'T';
+        putDigits(secondOfDay / 3600, 2);
+        buffer[bufferLength++] = ':';
+        putDigits(secondOfDay / 60 % 60, 2);
+        int second = secondOfDay % 60;
+        if (second > 0 || nanos > 0) {
+            buffer[bufferLength++] = ':';
+            putDigits(second, 2);
+            if (nanos > 0) {
+                buffer[bufferLength++] = '.';
+                // as few digits as LocalTime would use: milliseconds, microseconds or nanoseconds
+                if (nanos % 1_000_000 == 0) {
+                    putDigits(nanos / 1_000_000, 3);
+                } else if (nanos % 1000 == 0) {
+                    putDigits(nanos / 1000, 6);
+                } else {
+                    putDigits(nanos, 9);
+                }
+            }
+        }
+    }
+
+    private void putDigits(int value, int count) {
+        for (int i = bufferLength + count - 1; i >= bufferLength; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        bufferLength += count;
+    }
+
+    private void write(String text) {
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void flush() {
+        if (failed) {
+            bufferLength = 0;
+            return;
+        }
+        try {
+            if (binaryWriter != null) {
+                binaryWriter.flush();
+                bufferLength = 0;
+            } else {
+                if (bufferLength > 0) {
+                    writer.write(buffer, 0, bufferLength);
+                    bufferLength = 0;
+                }
+                writer.flush();
+            }
+            flushCount++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        LOGGER.error("Error while writing sensor data. {}", e);
+        failed = true;
+        bufferLength = 0;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *  SmartRoomba - BatchOdometry
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaMapData;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Works out the pose track of recordings without replaying them. Every frame is run through RoombaMapData as fast as
+ * it can be read, with no timing, queues or threads in between, and the pose after each frame is handed to a PoseSink.
+ * Several recordings can be processed at once, one per thread.
+ */
+public class BatchOdometry {
+    private static final Logger LOGGER = LogManager.getLogger(BatchOdometry.class);
+    public static final String POSE_TRACK_SUFFIX = ".poses.csv";
+
+    /**
+     * Given the pose after every frame
+     */
+    @FunctionalInterface
+    public interface PoseSink {
+        /**
+         * @param offsetNanos nanoseconds from the first frame of the recording to this one
+         */
+        void pose(long offsetNanos, double x, double y, double radians);
+    }
+
+    private BatchOdometry() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            LOGGER.error("Usage: BatchOdometry <recording>..., each pose track is written next to its recording");
+            System.exit(1);
+        }
+        List<Path> recordings = new ArrayList<>();
+        for (String arg : args) {
+            recordings.add(Paths.get(arg));
+        }
+        try {
+            long start = System.nanoTime();
+            long frames = 0;
+            for (long count : processAll(recordings, Runtime.getRuntime().availableProcessors())) {
+                frames += count;
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            LOGGER.info("Processed {} frames from {} recordings in {} s, {} frames/s", frames, recordings.size(),
+                    String.format("%.3f", seconds), String.format("%.0f", frames / seconds));
+        } catch (IOException e) {
+            LOGGER.error("Could not process recordings.", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run every frame of the source through a new RoombaMapData. The frames are released as they are used.
+     *
+     * @return the number of frames processed
+     */
+    public static long process(SensorDataSource source, PoseSink sink) {
+        RoombaMapData roombaMapData = new RoombaMapData();
+        // the pose track already has every position
+        roombaMapData.setDebugLogging(false);
+        long frames = 0;
+        long firstTimestampNanos = 0;
+        SensorData sensorData;
+        while ((sensorData = source.readData()) != null) {
+            try {
+                if (frames == 0) {
+                    firstTimestampNanos = sensorData.getTimestampNanos();
+                }
+                roombaMapData.update(sensorData);
+                sink.pose(sensorData.getTimestampNanos() - firstTimestampNanos, roombaMapData.getX(),
+                        roombaMapData.getY(), roombaMapData.getRadians());
+            } finally {
+                sensorData.release();
+            }
+            frames++;
+        }
+        return frames;
+    }
+
+    /**
+     * Write the pose track of a recording as CSV with the columns NANOS,X,Y,RADIANS
+     *
+     * @return the number of frames processed
+     */
+    public static long process(Path recording, Path poseTrack) throws IOException {
+        try (SensorDataSource source = SensorDataSource.open(recording);
+             Writer writer = Files.newBufferedWriter(poseTrack)) {
+            writer.write("NANOS,X,Y,RADIANS\n");
+            StringBuilder line = new StringBuilder(64);
+            try {
+                return process(source, (offsetNanos, x, y, radians) -> {
+                    line.setLength(0);
+                    line.append(offsetNanos).append(',').append(x).append(',').append(y).append(',').append(radians)
+                            .append('\n');
+                    try {
+                        writer.append(line);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Process the recordings in parallel, writing each pose track next to its recording with POSE_TRACK_SUFFIX
+     *
+     * @return the number of frames processed from each recording, in order
+     */
+    public static List<Long> processAll(List<Path> recordings, int threads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, recordings.size())));
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (Path recording : recordings) {
+                Path poseTrack = recording.resolveSibling(recording.getFileName() + POSE_TRACK_SUFFIX);
+                futures.add(executor.submit(() -> process(recording, poseTrack)));
+            }
+            List<Long> counts = new ArrayList<>();
+            for (Future<Long> future : futures) {
+                counts.add(future.get());
+            }
+            return counts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing recordings", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not process recordings", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ *  SmartRoomba - DataCSVStreamReader
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Reads a recording made by DataCSVWriter a line at a time, so only a window of the file is ever held in memory and
+ * the first frame is ready as soon as its line has been read.
+ * <p>
+ * Lines are found and parsed in place in one reused character buffer. The TIME column and the hex bytes are parsed
+ * by hand and frames come from a SensorDataPool, so once the pool has warmed up reading a frame does not allocate.
+ * Lines that can not be parsed are skipped and counted.
+ */
+public class DataCSVStreamReader implements SensorDataSource {
+    private static final Logger LOGGER = LogManager.getLogger(DataCSVStreamReader.class);
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long SECONDS_PER_DAY = 86_400L;
+
+    private final Reader reader;
+    private final SensorDataPool sensorDataPool;
+    private char[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfFile = false;
+    private final byte[] frame = new byte[SensorData.MAX_SENSOR_BYTES];
+    private int frameLength;
+    private long localEpochNanos;
+    // Adds to the local wall clock time of a line to get its System.nanoTime() timestamp, set from the first frame
+    private long nanoTimeOffset;
+    private boolean firstFrame = true;
+    private long skippedLineCount = 0;
+
+    public DataCSVStreamReader(Reader reader) {
+        this(reader, new SensorDataPool(), DEFAULT_BUFFER_SIZE);
+    }
+
+    public DataCSVStreamReader(Reader reader, SensorDataPool sensorDataPool, int bufferSize) {
+        this.reader = reader;
+        this.sensorDataPool = sensorDataPool;
+        buffer = new char[Math.max(bufferSize, 1024)];
+    }
+
+    @Override
+    public SensorData readData() {
+        int lineStart;
+        while ((lineStart = nextLine()) >= 0) {
+            int lineEnd = position - 1;
+            if (lineEnd > lineStart && buffer[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == lineStart || buffer[lineStart] == 'T') {
+                // blank lines and the header
+                continue;
+            }
+            if (parseLine(lineStart, lineEnd)) {
+                if (firstFrame) {
+                    firstFrame = false;
+                    LocalDateTime dateTime = LocalDateTime.ofEpochSecond(Math.floorDiv(localEpochNanos, NANOS_PER_SECOND),
+                            (int) Math.floorMod(localEpochNanos, NANOS_PER_SECOND), ZoneOffset.UTC);
+                    nanoTimeOffset = sensorDataPool.getSessionClock().toNanoTime(dateTime) - localEpochNanos;
+                }
+                return sensorDataPool.acquire(frame, 0, frameLength, localEpochNanos + nanoTimeOffset);
+            }
+            skippedLineCount++;
+            LOGGER.debug("Skipping CSV line that could not be parsed: {}", new String(buffer, lineStart, lineEnd - lineStart));
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of lines that could not be parsed
+     */
+    public long getSkippedLineCount() {
+        return skippedLineCount;
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            LOGGER.error("Error while closing CSV data file. {}", e);
+        }
+    }
+
+    /**
+     * Find the next line in the buffer, reading more of the file when needed. On return position is just past the
+     * line's newline, or one past its end at the end of the file.
+     *
+     * @return where the line starts in the buffer, or -1 at the end of the file
+     */
+    private int nextLine() {
+        int scan = position;
+        while (true) {
+            for (; scan < limit; scan++) {
+                if (buffer[scan] == '\n') {
+                    int lineStart = position;
+                    position = scan + 1;
+                    return lineStart;
+                }
+            }
+            if (endOfFile) {
+                if (position < limit) {
+                    // the last line has no newline
+                    int lineStart = position;
+                    buffer[limit] = '\n';
+                    position = limit + 1;
+                    limit = position;
+                    return lineStart;
+                }
+                return -1;
+            }
+            scan -= position;
+            fill();
+        }
+    }
+
+    /**
+     * Move the partial line to the front of the buffer and read more after it
+     */
+    private void fill() {
+        int length = limit - position;
+        if (length + 1 >= buffer.length) {
+            char[] larger = new char[buffer.length * 2];
+            System.arraycopy(buffer, position, larger, 0, length);
+            buffer = larger;
+        } else {
+            System.arraycopy(buffer, position, buffer, 0, length);
+        }
+        position = 0;
+        limit = length;
+        try {
+            // leave room for the newline added to a last line that has none
+            int read = reader.read(buffer, limit, buffer.length - limit - 1);
+            if (read < 0) {
+                endOfFile = true;
+            } else {
+                limit += read;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error while reading CSV data. {}", e);
+            endOfFile = true;
+        }
+    }
+
+    private boolean parseLine(int start, int end) {
+        int comma = indexOf(',', start, end);
+        if (comma < 0 || !parseDateTime(start, comma)) {
+            return false;
+        }
+        frameLength = 0;
+        int fieldStart = comma + 1;
+        while (fieldStart <= end && frameLength < frame.length) {
+            int fieldEnd = indexOf(',', fieldStart, end);
+            if (fieldEnd < 0) {
+                fieldEnd = end;
+            }
+            int value = parseByte(fieldStart, fieldEnd);
+            if (value == Integer.MIN_VALUE) {
+                return false;
+            }
+            frame[frameLength++] = (byte) value;
+            fieldStart = fieldEnd + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Parse a byte written as 0xNN like DataCSVWriter writes them, or as a decimal number
+     *
+     * @return the value, or Integer.MIN_VALUE if the field is not a number
+     */
+    private int parseByte(int start, int end) {
+        boolean negative = start < end && buffer[start] == '-';
+        if (negative) {
+            start++;
+        }
+        int radix = 10;
+        if (end - start > 2 && buffer[start] == '0' && (buffer[start + 1] == 'x' || buffer[start + 1] == 'X')) {
+            radix = 16;
+            start += 2;
+        }
+        if (start == end) {
+            return Integer.MIN_VALUE;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(buffer[i], radix);
+            if (digit < 0 || value > 0xFFFF) {
+                return Integer.MIN_VALUE;
+            }
+            value = value * radix + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a LocalDateTime.toString() date and time, yyyy-MM-ddTHH:mm[:ss[.fraction]], into localEpochNanos
+     */
+    private boolean parseDateTime(int start, int end) {
+        if (end - start < 16 || buffer[start + 4] != '-' || buffer[start + 7] != '-' || buffer[start + 10] != 'T'
+                || buffer[start + 13] != ':') {
+            return false;
+        }
+        int year = parseDigits(start, start + 4);
+        int month = parseDigits(start + 5, start + 7);
+        int day = parseDigits(start + 8, start + 10);
+        int hour = parseDigits(start + 11, start + 13);
+        int minute = parseDigits(start + 14, start + 16);
+        int second = 0;
+        long nanos = 0;
+        if (end - start > 16) {
+            if (end - start < 19 || buffer[start + 16] != ':') {
+                return false;
+            }
+            second = parseDigits(start + 17, start + 19);
+            if (end - start > 19) {
+                if (buffer[start + 19] != '.' || end - start > 29) {
+                    return false;
+                }
+                long scale = NANOS_PER_SECOND;
+                for (int i = start + 20; i < end; i++) {
+                    int digit = Character.digit(buffer[i], 10);
+                    if (digit < 0) {
+                        return false;
+                    }
+                    scale /= 10;
+                    nanos += digit * scale;
+                }
+            }
+        }
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0 || hour > 23 || minute < 0
+                || minute > 59 || second < 0 || second > 59) {
+            return false;
+        }
+        long seconds = epochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600L + minute * 60L + second;
+        localEpochNanos = seconds * NANOS_PER_SECOND + nanos;
+        return true;
+    }
+
+    /**
+     * @return the non negative number in the range, or -1 if it holds anything but digits
+     */
+    private int parseDigits(int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(buffer[i], 10);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return days since 1970-01-01 in the proleptic Gregorian calendar, like LocalDate.toEpochDay()
+     */
+    static long epochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
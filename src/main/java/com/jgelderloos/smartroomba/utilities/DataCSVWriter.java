@@ -29,7 +29,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.FileWriter;
 import java.io.IOException;
 
-public class DataCSVWriter {
+public class DataCSVWriter implements SensorDataRecorder {
     private static final Logger LOGGER = LogManager.getLogger(DataCSVWriter.class);
     private FileWriter fileWriter;
     private boolean isHeaderWritten = false;
@@ -38,6 +38,7 @@ public class DataCSVWriter {
         this.fileWriter = fileWriter;
     }
 
+    @Override
     public boolean writeData(SensorData data) {
         boolean wasSuccess = false;
         if (fileWriter != null) {
@@ -60,6 +61,7 @@ public class DataCSVWriter {
         return wasSuccess;
     }
 
+    @Override
     public boolean close() {
         boolean wasSuccess = false;
         try {
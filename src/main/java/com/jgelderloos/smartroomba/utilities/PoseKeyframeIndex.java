@@ -0,0 +1,217 @@
+/*
+ *  SmartRoomba - PoseKeyframeIndex
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaMapData;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Odometry keyframes for a binary recording, so a pose anywhere in the recording can be worked out without
+ * integrating every frame from the start. Every interval frames the index keeps the RoombaMapData position and encoder
+ * baselines after that frame. Its record in the file and its time come from the frame number, since binary records
+ * are a fixed size. To resume at a frame, odometry starts from the keyframe at or before it and only integrates the
+ * frames in between.
+ * <p>
+ * The index is kept in a sidecar file next to the recording so it only has to be built once.
+ */
+public class PoseKeyframeIndex {
+    private static final Logger LOGGER = LogManager.getLogger(PoseKeyframeIndex.class);
+    public static final String SIDECAR_SUFFIX = ".keyframes";
+    public static final int DEFAULT_INTERVAL = 256;
+    private static final int MAGIC = 0x53524B49;
+    private static final short VERSION = 1;
+
+    private final int interval;
+    private final int frameCount;
+    private final double[] x;
+    private final double[] y;
+    private final double[] radians;
+    private final int[] leftEncoderCounts;
+    private final int[] rightEncoderCounts;
+
+    private PoseKeyframeIndex(int interval, int frameCount) {
+        this.interval = interval;
+        this.frameCount = frameCount;
+        int keyframeCount = (frameCount + interval - 1) / interval;
+        x = new double[keyframeCount];
+        y = new double[keyframeCount];
+        radians = new double[keyframeCount];
+        leftEncoderCounts = new int[keyframeCount];
+        rightEncoderCounts = new int[keyframeCount];
+    }
+
+    /**
+     * Integrate the whole recording once, keeping a keyframe every interval frames
+     */
+    public static PoseKeyframeIndex build(SensorDataBinaryReader reader, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Keyframe interval must be at least 1, was " + interval);
+        }
+        PoseKeyframeIndex index = new PoseKeyframeIndex(interval, reader.getFrameCount());
+        RoombaMapData roombaMapData = new RoombaMapData();
+        roombaMapData.setDebugLogging(false);
+        FrameReader frameReader = new FrameReader(reader);
+        for (int i = 0; i < reader.getFrameCount(); i++) {
+            frameReader.update(roombaMapData, i);
+            if (i % interval == 0) {
+                int keyframe = i / interval;
+                index.x[keyframe] = roombaMapData.getX();
+                index.y[keyframe] = roombaMapData.getY();
+                index.radians[keyframe] = roombaMapData.getRadians();
+                index.leftEncoderCounts[keyframe] = roombaMapData.getLastLeftEncoderCount();
+                index.rightEncoderCounts[keyframe] = roombaMapData.getLastRightEncoderCount();
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Load the recording's sidecar index, or build it and save the sidecar if there is none that matches
+     */
+    public static PoseKeyframeIndex forRecording(Path recording, SensorDataBinaryReader reader) {
+        Path sidecar = getSidecar(recording);
+        if (Files.exists(sidecar)) {
+            try {
+                PoseKeyframeIndex index = load(sidecar);
+                if (index.frameCount == reader.getFrameCount()) {
+                    return index;
+                }
+                LOGGER.info("Keyframe index {} is out of date, rebuilding it", sidecar);
+            } catch (IOException e) {
+                LOGGER.warn("Could not read keyframe index {}, rebuilding it", sidecar, e);
+            }
+        }
+        PoseKeyframeIndex index = build(reader, DEFAULT_INTERVAL);
+        try {
+            index.save(sidecar);
+        } catch (IOException e) {
+            LOGGER.warn("Could not save keyframe index {}", sidecar, e);
+        }
+        return index;
+    }
+
+    public static Path getSidecar(Path recording) {
+        return recording.resolveSibling(recording.getFileName() + SIDECAR_SUFFIX);
+    }
+
+    public static PoseKeyframeIndex load(Path path) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC || input.readShort() != VERSION) {
+                throw new IOException(path + " is not a keyframe index");
+            }
+            int interval = input.readInt();
+            int frameCount = input.readInt();
+            if (interval < 1 || frameCount < 0) {
+                throw new IOException(path + " is not a keyframe index");
+            }
+            PoseKeyframeIndex index = new PoseKeyframeIndex(interval, frameCount);
+            for (int i = 0; i < index.getKeyframeCount(); i++) {
+                index.x[i] = input.readDouble();
+                index.y[i] = input.readDouble();
+                index.radians[i] = input.readDouble();
+                index.leftEncoderCounts[i] = input.readInt();
+                index.rightEncoderCounts[i] = input.readInt();
+            }
+            return index;
+        }
+    }
+
+    public void save(Path path) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            output.writeInt(MAGIC);
+            output.writeShort(VERSION);
+            output.writeInt(interval);
+            output.writeInt(frameCount);
+            for (int i = 0; i < getKeyframeCount(); i++) {
+                output.writeDouble(x[i]);
+                output.writeDouble(y[i]);
+                output.writeDouble(radians[i]);
+                output.writeInt(leftEncoderCounts[i]);
+                output.writeInt(rightEncoderCounts[i]);
+            }
+        }
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getKeyframeCount() {
+        return x.length;
+    }
+
+    /**
+     * Set roombaMapData to the position after the given frame, starting from the keyframe at or before it
+     */
+    public void restore(SensorDataBinaryReader reader, int frameIndex, RoombaMapData roombaMapData) {
+        if (frameIndex < 0 || frameIndex >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + frameIndex + " of " + frameCount);
+        }
+        int keyframe = frameIndex / interval;
+        roombaMapData.restore(x[keyframe], y[keyframe], radians[keyframe], leftEncoderCounts[keyframe],
+                rightEncoderCounts[keyframe]);
+        FrameReader frameReader = new FrameReader(reader);
+        for (int i = keyframe * interval + 1; i <= frameIndex; i++) {
+            frameReader.update(roombaMapData, i);
+        }
+    }
+
+    /**
+     * Runs frames read by index through odometry, reusing one pooled SensorData
+     */
+    private static class FrameReader {
+        private final SensorDataBinaryReader reader;
+        private final SensorDataPool sensorDataPool = new SensorDataPool(1);
+        private final byte[] frame;
+
+        FrameReader(SensorDataBinaryReader reader) {
+            this.reader = reader;
+            frame = new byte[reader.getFrameLength()];
+        }
+
+        void update(RoombaMapData roombaMapData, int index) {
+            reader.copyFrame(index, frame, 0);
+            SensorData sensorData = sensorDataPool.acquire(frame, 0, Math.min(frame.length, SensorData.MAX_SENSOR_BYTES), 0);
+            try {
+                roombaMapData.update(sensorData);
+            } finally {
+                sensorData.release();
+            }
+        }
+    }
+}
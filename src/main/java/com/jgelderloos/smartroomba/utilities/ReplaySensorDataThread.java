@@ -24,43 +24,198 @@ package com.jgelderloos.smartroomba.utilities;
 
 import com.jgelderloos.smartroomba.roomba.SensorData;
 
-import java.time.Duration;
-import java.time.LocalDateTime;
 import java.util.Queue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
+/**
+ * Replays recorded frames with the same spacing they were recorded with, scaled by the replay speed. Between frames
+ * the thread is parked until the next one is due, so replaying costs next to no CPU. At AS_FAST_AS_POSSIBLE frames are
+ * handed over back to back. Interrupting the thread stops the replay, and seek() moves it.
+ */
 public class ReplaySensorDataThread implements Runnable {
-    private Queue<SensorData> sensorDataQueue;
-    private Queue<SensorData> replayDataQueue;
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    private Consumer<SensorData> sensorDataSink;
+    private SensorDataSource replayDataSource;
+    private boolean releaseUnsent = false;
+    private volatile double speed = 1.0;
+    private volatile long replayedCount = 0;
+    private volatile long maxLatenessNanos = 0;
+    private final Object seekLock = new Object();
+    private volatile long seekGeneration = 0;
+    private volatile Thread replayThread;
 
     public ReplaySensorDataThread(Queue<SensorData> sensorDataQueue, Queue<SensorData> replayDataQueue) {
-        this.sensorDataQueue = sensorDataQueue;
-        this.replayDataQueue = replayDataQueue;
+        this.sensorDataSink = sensorDataQueue == null ? null : sensorDataQueue::add;
+        this.replayDataSource = replayDataQueue == null ? null : new QueueSource(replayDataQueue);
+    }
+
+    /**
+     * Replay into something other than a queue, like RoombaComm.publishSensorData().
+     *
+     * @param sensorDataSink given each frame of replay data when it is due
+     */
+    public static ReplaySensorDataThread toSink(Consumer<SensorData> sensorDataSink, Queue<SensorData> replayDataQueue) {
+        ReplaySensorDataThread replaySensorDataThread = new ReplaySensorDataThread(null, replayDataQueue);
+        replaySensorDataThread.sensorDataSink = sensorDataSink;
+        return replaySensorDataThread;
+    }
+
+    /**
+     * Replay frames as they are read from the source, which is closed once it runs out. The sink takes over the
+     * reference to each frame it is given and has to release it once done, frames that are never handed over because
+     * of a seek or an interrupt are released here.
+     *
+     * @param sensorDataSink given each frame of replay data when it is due
+     */
+    public static ReplaySensorDataThread toSink(Consumer<SensorData> sensorDataSink, SensorDataSource replayDataSource) {
+        ReplaySensorDataThread replaySensorDataThread = new ReplaySensorDataThread(null, null);
+        replaySensorDataThread.sensorDataSink = sensorDataSink;
+        replaySensorDataThread.replayDataSource = replayDataSource;
+        replaySensorDataThread.releaseUnsent = true;
+        return replaySensorDataThread;
+    }
+
+    /**
+     * Set before the replay starts, changing it part way through makes the replay jump.
+     *
+     * @param speed how many times faster than recorded to replay, or AS_FAST_AS_POSSIBLE
+     */
+    public void setSpeed(double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Replay speed must be greater than 0, was " + speed);
+        }
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return the number of frames handed to the sink so far
+     */
+    public long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /**
+     * @return the longest a frame was handed over after it was due, which grows if the sink can not keep up
+     */
+    public long getMaxLatenessNanos() {
+        return maxLatenessNanos;
+    }
+
+    /**
+     * Move the replay somewhere else in the source. reposition is run while no frame is being read, and
+     * getSeekGeneration() already returns the generation the frames after it will be stamped with. Frames read before
+     * it are dropped, and the pace starts over from the first frame read after it. Frames are handed to the sink
+     * without holding the seek lock, so this can be called from the thread that drains the sink even when the sink
+     * blocks. A frame that was already being handed over still arrives after this returns, stamped with the old
+     * generation so it can be told apart.
+     */
+    public void seek(Runnable reposition) {
+        synchronized (seekLock) {
+            seekGeneration++;
+            reposition.run();
+        }
+        Thread thread = replayThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return how many times the replay has been seeked, every frame handed to the sink is stamped with this
+     */
+    public long getSeekGeneration() {
+        return seekGeneration;
     }
 
     public void run() {
-        if (sensorDataQueue == null || replayDataQueue == null) {
+        if (sensorDataSink == null || replayDataSource == null) {
             return;
         }
 
-        LocalDateTime dataStartTime = null;
-        LocalDateTime startTime = LocalDateTime.now();
-        while (!replayDataQueue.isEmpty()) {
-            SensorData replayData = replayDataQueue.poll();
-            if (dataStartTime == null) {
-                dataStartTime = replayData.getDateTime();
-            }
-
-            boolean dataAdded = false;
-            while (!dataAdded) {
-                LocalDateTime currentTime = LocalDateTime.now();
-                Duration elapsedTime = Duration.between(startTime, currentTime);
-                Duration nextDataElapsedTime = Duration.between(dataStartTime, replayData.getDateTime());
+        replayThread = Thread.currentThread();
+        try {
+            long dataStartNanos = 0;
+            long startNanos = 0;
+            long pacedGeneration = -1;
+            while (!Thread.currentThread().isInterrupted()) {
+                SensorData replayData;
+                long generation;
+                // the next frame is read while waiting for it to be due, so reading never delays a frame
+                synchronized (seekLock) {
+                    generation = seekGeneration;
+                    replayData = replayDataSource.readData();
+                }
+                if (replayData == null) {
+                    return;
+                }
+                if (generation != pacedGeneration) {
+                    // the first frame, or the first since a seek, sets the pace from now on
+                    pacedGeneration = generation;
+                    startNanos = System.nanoTime();
+                    dataStartNanos = replayData.getTimestampNanos();
+                }
 
-                if (elapsedTime.compareTo(nextDataElapsedTime) > 0) {
-                    sensorDataQueue.add(replayData);
-                    dataAdded = true;
+                if (waitUntilDue(startNanos, replayData.getTimestampNanos() - dataStartNanos, generation)
+                        && generation == seekGeneration) {
+                    // not under the seek lock, the sink may block until whoever drains it gets round to a seek
+                    replayData.setReplayGeneration(generation);
+                    sensorDataSink.accept(replayData);
+                    replayedCount++;
+                } else if (releaseUnsent) {
+                    replayData.release();
                 }
             }
+        } finally {
+            replayThread = null;
+            replayDataSource.close();
+        }
+    }
+
+    /**
+     * Park until the frame recorded dataElapsedNanos after the first one is due
+     *
+     * @return false if the thread was interrupted or the replay was moved by a seek
+     */
+    private boolean waitUntilDue(long startNanos, long dataElapsedNanos, long generation) {
+        double currentSpeed = speed;
+        if (currentSpeed == AS_FAST_AS_POSSIBLE) {
+            return !Thread.currentThread().isInterrupted();
+        }
+        long dueNanos = startNanos + (long) (dataElapsedNanos / currentSpeed);
+        long remainingNanos;
+        while ((remainingNanos = dueNanos - System.nanoTime()) > 0) {
+            if (Thread.currentThread().isInterrupted() || generation != seekGeneration) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remainingNanos);
+        }
+        if (-remainingNanos > maxLatenessNanos) {
+            maxLatenessNanos = -remainingNanos;
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    private static class QueueSource implements SensorDataSource {
+        private final Queue<SensorData> queue;
+
+        QueueSource(Queue<SensorData> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public SensorData readData() {
+            return queue.poll();
+        }
+
+        @Override
+        public void close() {
+            // nothing to close, frames left in the queue stay there
         }
     }
 }
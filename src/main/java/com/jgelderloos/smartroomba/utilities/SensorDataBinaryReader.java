@@ -0,0 +1,271 @@
+/*
+ *  SmartRoomba - SensorDataBinaryReader
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.Model;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import com.jgelderloos.smartroomba.roomba.SessionClock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a recording made by SensorDataBinaryWriter. The file is mapped into memory and records are read in place by
+ * index, so opening a recording only reads the header no matter how long it is. A record cut short at the end of the
+ * file, from a recording that did not finish, is left out.
+ * <p>
+ * As a SensorDataSource the frames are read in order, as pooled SensorData stamped with the time they were recorded
+ * at: the recording's start time converted to System.nanoTime() by the default SessionClock, plus each frame's offset.
+ */
+public class SensorDataBinaryReader implements SensorDataSource {
+    private static final Logger LOGGER = LogManager.getLogger(SensorDataBinaryReader.class);
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    // positioned for bulk copies, so the shared buffer's position is never touched
+    private final ByteBuffer frameView;
+    private final int headerLength;
+    private final int frameLength;
+    private final int recordLength;
+    private final int frameCount;
+    private final Model model;
+    private final SensorPacketLayout layout;
+    private final long startLocalEpochNanos;
+    private SensorDataPool sensorDataPool;
+    private byte[] frame;
+    private int nextIndex = 0;
+    private volatile long startNanoTime;
+    private volatile boolean startNanoTimeSet = false;
+
+    public SensorDataBinaryReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Recordings over 2 GB can not be mapped, " + path + " is " + size + " bytes");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            frameView = buffer.duplicate();
+            if (size < SensorDataBinaryWriter.FIXED_HEADER_LENGTH || buffer.getInt(0) != SensorDataBinaryWriter.MAGIC) {
+                throw new IOException(path + " is not a binary sensor data recording");
+            }
+            int version = buffer.getShort(4);
+            if (version != SensorDataBinaryWriter.VERSION) {
+                throw new IOException("Unknown binary sensor data version " + version + " in " + path);
+            }
+            headerLength = buffer.getShort(6);
+            int modelOrdinal = buffer.get(8);
+            model = modelOrdinal >= 0 && modelOrdinal < Model.values().length ? Model.values()[modelOrdinal] : null;
+            int packetCount = buffer.get(9) & 0xFF;
+            frameLength = buffer.getShort(10);
+            startLocalEpochNanos = buffer.getLong(12);
+            layout = readLayout(packetCount);
+            recordLength = Long.BYTES + frameLength;
+            frameCount = (int) ((size - headerLength) / recordLength);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the file starts like a binary recording
+     */
+    public static boolean isBinaryRecording(Path path) {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && fileChannel.read(magic) >= 0) {
+                // keep reading until the magic is in or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == SensorDataBinaryWriter.MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * @return the Roomba that was recorded, or null if it was not known
+     */
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * @return the packets that were requested, or null for the full packet 100 group
+     */
+    public SensorPacketLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return the last frame recorded at or before offsetNanos from the first frame, or 0 if offsetNanos is before it
+     */
+    public int findFrame(long offsetNanos) {
+        int low = 0;
+        int high = frameCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (getOffsetNanos(middle) <= offsetNanos) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Make readData() carry on from the given frame
+     */
+    public void seek(int index) {
+        if (index < 0 || index > frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+        }
+        nextIndex = index;
+    }
+
+    /**
+     * @return the System.nanoTime() timestamp readData() gives the frame
+     */
+    public long getTimestampNanos(int index) {
+        return getStartNanoTime() + getOffsetNanos(index);
+    }
+
+    /**
+     * @return nanoseconds from the first frame to this one
+     */
+    public long getOffsetNanos(int index) {
+        return buffer.getLong(recordPosition(index));
+    }
+
+    public LocalDateTime getDateTime(int index) {
+        long localEpochNanos = startLocalEpochNanos + getOffsetNanos(index);
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(localEpochNanos, NANOS_PER_SECOND),
+                (int) Math.floorMod(localEpochNanos, NANOS_PER_SECOND), ZoneOffset.UTC);
+    }
+
+    /**
+     * Copy a frame's sensor data, getFrameLength() bytes laid out like packet 100
+     */
+    public void copyFrame(int index, byte[] destination, int offset) {
+        frameView.position(recordPosition(index) + Long.BYTES);
+        frameView.get(destination, offset, frameLength);
+    }
+
+    /**
+     * Read one packet's value straight from the mapped file
+     */
+    public int getValue(int index, SensorPacket packet) {
+        int position = recordPosition(index) + Long.BYTES + packet.getOffset();
+        if (packet.getSize() == 1) {
+            return packet.isSigned() ? buffer.get(position) : buffer.get(position) & 0xFF;
+        }
+        int value = buffer.getShort(position);
+        return packet.isSigned() ? value : value & 0xFFFF;
+    }
+
+    /**
+     * @return the frame as SensorData, stamped with its recorded wall clock time
+     */
+    public SensorData toSensorData(int index) {
+        byte[] frame = new byte[frameLength];
+        copyFrame(index, frame, 0);
+        return new SensorData(frame, Math.min(frameLength, SensorData.MAX_SENSOR_BYTES), getDateTime(index));
+    }
+
+    @Override
+    public SensorData readData() {
+        if (nextIndex >= frameCount) {
+            return null;
+        }
+        if (sensorDataPool == null) {
+            sensorDataPool = new SensorDataPool();
+            frame = new byte[frameLength];
+        }
+        int index = nextIndex++;
+        copyFrame(index, frame, 0);
+        return sensorDataPool.acquire(frame, 0, Math.min(frameLength, SensorData.MAX_SENSOR_BYTES),
+                getTimestampNanos(index));
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.error("Error while closing binary sensor data file. {}", e);
+        }
+    }
+
+    private long getStartNanoTime() {
+        if (!startNanoTimeSet) {
+            startNanoTime = SessionClock.getDefault().toNanoTime(getDateTime(0));
+            startNanoTimeSet = true;
+        }
+        return startNanoTime;
+    }
+
+    private int recordPosition(int index) {
+        if (index < 0 || index >= frameCount) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+        }
+        return headerLength + index * recordLength;
+    }
+
+    private SensorPacketLayout readLayout(int packetCount) throws IOException {
+        if (packetCount == 0) {
+            return null;
+        }
+        List<SensorPacket> packets = new ArrayList<>();
+        for (int i = 0; i < packetCount; i++) {
+            SensorPacket packet = SensorPacket.fromId(buffer.get(SensorDataBinaryWriter.FIXED_HEADER_LENGTH + i) & 0xFF);
+            if (packet == null) {
+                throw new IOException("Unknown packet id in binary sensor data header");
+            }
+            packets.add(packet);
+        }
+        return new SensorPacketLayout(packets);
+    }
+}
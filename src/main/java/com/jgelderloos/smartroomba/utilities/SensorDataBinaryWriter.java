@@ -0,0 +1,197 @@
+/*
+ *  SmartRoomba - SensorDataBinaryWriter
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.Model;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records sensor data in a compact binary format that SensorDataBinaryReader can map straight into memory.
+ * <p>
+ * The file starts with a header:
+ * <pre>
+ * int    magic, "SRSD"
+ * short  version
+ * short  header length, where the first record starts
+ * byte   Model ordinal, or -1 if the model is not known
+ * byte   number of packet ids that follow, 0 for the full packet 100 group
+ * short  frame length, the bytes of sensor data in every record
+ * long   wall clock time of the first frame, nanoseconds since 1970-01-01T00:00 in local time like the CSV TIME column
+ * byte[] the packet ids that were requested, in order
+ * </pre>
+ * followed by fixed size records, each a long of nanoseconds since the first frame and the frame's sensor data laid
+ * out like packet 100. Everything is big endian. A record is 101 bytes where a CSV line is around 500 characters.
+ * <p>
+ * Records are collected in a buffer and written out when it fills or flush() is called, so a half written record can
+ * only be at the end of the file, where the reader ignores it.
+ */
+public class SensorDataBinaryWriter implements SensorDataRecorder {
+    private static final Logger LOGGER = LogManager.getLogger(SensorDataBinaryWriter.class);
+    public static final int MAGIC = 0x53525344;
+    public static final short VERSION = 1;
+    public static final int FIXED_HEADER_LENGTH = 20;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream outputStream;
+    private final Model model;
+    private final SensorPacketLayout layout;
+    private final ByteBuffer buffer;
+    private final byte[] frame = new byte[SensorData.MAX_SENSOR_BYTES];
+    private boolean headerWritten = false;
+    private long firstTimestampNanos;
+    private boolean failed = false;
+
+    public SensorDataBinaryWriter(OutputStream outputStream) {
+        this(outputStream, null, null);
+    }
+
+    /**
+     * @param model the Roomba being recorded, or null if it is not known
+     * @param layout the packets that were requested, or null for the full packet 100 group
+     */
+    public SensorDataBinaryWriter(OutputStream outputStream, Model model, SensorPacketLayout layout) {
+        this(outputStream, model, layout, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SensorDataBinaryWriter(OutputStream outputStream, Model model, SensorPacketLayout layout, int bufferSize) {
+        this.outputStream = outputStream;
+        this.model = model;
+        this.layout = layout;
+        buffer = ByteBuffer.allocate(Math.max(bufferSize, FIXED_HEADER_LENGTH + 255 + getRecordLength()));
+    }
+
+    /**
+     * @return the bytes in every record
+     */
+    public static int getRecordLength() {
+        return Long.BYTES + SensorData.MAX_SENSOR_BYTES;
+    }
+
+    @Override
+    public boolean writeData(SensorData data) {
+        if (failed) {
+            return false;
+        }
+        try {
+            write(data);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Error while writing binary sensor data. {}", e);
+            failed = true;
+            return false;
+        }
+    }
+
+    /**
+     * Add a record to the buffer, writing the buffer out first if it is full
+     */
+    public void write(SensorData data) throws IOException {
+        if (!headerWritten) {
+            writeHeader(data);
+        }
+        if (buffer.remaining() < getRecordLength()) {
+            writeBuffer();
+        }
+        data.copyRawData(frame, 0);
+        buffer.putLong(data.getTimestampNanos() - firstTimestampNanos);
+        buffer.put(frame);
+    }
+
+    /**
+     * @return the number of bytes waiting in the buffer
+     */
+    public int getBufferedBytes() {
+        return buffer.position();
+    }
+
+    /**
+     * Write out the buffer and flush the stream
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+        outputStream.flush();
+    }
+
+    @Override
+    public boolean close() {
+        boolean wasSuccess = !failed;
+        try {
+            if (!failed) {
+                flush();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error while writing binary sensor data. {}", e);
+            wasSuccess = false;
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            LOGGER.error("Error while closing binary sensor data file. {}", e);
+            wasSuccess = false;
+        }
+        return wasSuccess;
+    }
+
+    /**
+     * @return a wall clock time as nanoseconds since 1970-01-01T00:00, ignoring time zones
+     */
+    static long toLocalEpochNanos(LocalDateTime dateTime) {
+        return TimeUnit.SECONDS.toNanos(dateTime.toEpochSecond(ZoneOffset.UTC)) + dateTime.getNano();
+    }
+
+    private void writeHeader(SensorData data) {
+        headerWritten = true;
+        firstTimestampNanos = data.getTimestampNanos();
+        int packetCount = layout == null ? 0 : layout.getPackets().size();
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) (FIXED_HEADER_LENGTH + packetCount));
+        buffer.put((byte) (model == null ? -1 : model.ordinal()));
+        buffer.put((byte) packetCount);
+        buffer.putShort((short) SensorData.MAX_SENSOR_BYTES);
+        buffer.putLong(toLocalEpochNanos(data.getDateTime()));
+        if (layout != null) {
+            for (SensorPacket packet : layout.getPackets()) {
+                buffer.put((byte) packet.getId());
+            }
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        if (buffer.position() > 0) {
+            outputStream.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  SmartRoomba - SensorDataFileConverter
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Converts recordings between the CSV format of DataCSVWriter and the binary format of SensorDataBinaryWriter. The
+ * direction is picked from the input file, so running it twice gets back to the original format.
+ */
+public class SensorDataFileConverter {
+    private static final Logger LOGGER = LogManager.getLogger(SensorDataFileConverter.class);
+
+    private SensorDataFileConverter() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            LOGGER.error("Usage: SensorDataFileConverter <input file> <output file>");
+            System.exit(1);
+        }
+        Path input = Paths.get(args[0]);
+        Path output = Paths.get(args[1]);
+        try {
+            int frames;
+            if (SensorDataBinaryReader.isBinaryRecording(input)) {
+                frames = binaryToCsv(input, output);
+            } else {
+                frames = csvToBinary(input, output);
+            }
+            LOGGER.info("Converted {} frames from {} to {}", frames, input, output);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Could not convert {}", input, e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return the number of frames converted
+     */
+    public static int csvToBinary(Path csv, Path binary) throws IOException {
+        int frames = 0;
+        try (DataCSVStreamReader reader = new DataCSVStreamReader(Files.newBufferedReader(csv));
+             OutputStream outputStream = Files.newOutputStream(binary)) {
+            SensorDataBinaryWriter writer = new SensorDataBinaryWriter(outputStream);
+            SensorData sensorData;
+            while ((sensorData = reader.readData()) != null) {
+                try {
+                    writer.write(sensorData);
+                } finally {
+                    sensorData.release();
+                }
+                frames++;
+            }
+            writer.flush();
+        }
+        return frames;
+    }
+
+    /**
+     * @return the number of frames converted
+     */
+    public static int binaryToCsv(Path binary, Path csv) throws IOException {
+        int frames = 0;
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(binary)) {
+            DataCSVWriter writer = new DataCSVWriter(new FileWriter(csv.toFile()));
+            try {
+                for (int i = 0; i < reader.getFrameCount(); i++) {
+                    SensorData sensorData = reader.toSensorData(i);
+                    if (!writer.writeData(sensorData)) {
+                        throw new IOException("Could not write " + csv);
+                    }
+                    frames++;
+                }
+            } finally {
+                writer.close();
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ *  SmartRoomba - SensorDataRecorder
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+
+/**
+ * Somewhere to record sensor data. The caller still owns the SensorData after writeData() returns, a recorder that
+ * needs it longer retains it.
+ */
+public interface SensorDataRecorder {
+    /**
+     * @return false if the data was not recorded
+     */
+    boolean writeData(SensorData data);
+
+    /**
+     * Finish recording, anything still buffered is written first
+     *
+     * @return false if there was nothing to close or closing failed
+     */
+    boolean close();
+}
@@ -0,0 +1,52 @@
+/*
+ *  SmartRoomba - SensorDataSource
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Somewhere recorded sensor data can be read back from, one frame at a time.
+ */
+public interface SensorDataSource extends AutoCloseable {
+    /**
+     * Open a recording made by DataCSVWriter or SensorDataBinaryWriter, whichever it is
+     */
+    static SensorDataSource open(Path path) throws IOException {
+        if (SensorDataBinaryReader.isBinaryRecording(path)) {
+            return new SensorDataBinaryReader(path);
+        }
+        return new DataCSVStreamReader(Files.newBufferedReader(path));
+    }
+
+    /**
+     * @return the next frame, owned by the caller until it is released, or null once there are no more
+     */
+    SensorData readData();
+
+    @Override
+    void close();
+}
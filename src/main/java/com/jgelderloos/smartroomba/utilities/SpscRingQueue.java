@@ -0,0 +1,244 @@
+/*
+ *  SmartRoomba - SpscRingQueue
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A bounded, lock free queue for one producer thread and one consumer thread. What happens when the producer gets
+ * ahead of the consumer is decided by the OverflowPolicy:
+ * <ul>
+ *     <li>DROP_OLDEST throws away the oldest element so the consumer always sees the freshest data</li>
+ *     <li>DROP_NEWEST rejects the new element and offer() returns false</li>
+ *     <li>BLOCK parks the producer until the consumer makes room</li>
+ * </ul>
+ * Dropped elements are handed to the drop listener, if there is one, so they can be cleaned up. Dropping the oldest
+ * element races with the consumer for the head of the queue, so both sides claim an element by moving the head with
+ * a compare and set and only one of them gets it.
+ */
+public class SpscRingQueue<E> extends AbstractQueue<E> {
+    public enum OverflowPolicy {
+        DROP_OLDEST,
+        DROP_NEWEST,
+        BLOCK
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final Consumer<? super E> dropListener;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long dropCount = 0;
+    private volatile int highWaterMark = 0;
+
+    public SpscRingQueue(int capacity, OverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, null);
+    }
+
+    /**
+     * @param capacity the most elements the queue holds, rounded up to the next power of two
+     * @param dropListener called on the producer thread with every element that is dropped, may be null
+     */
+    public SpscRingQueue(int capacity, OverflowPolicy overflowPolicy, Consumer<? super E> dropListener) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30, was " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Add an element, only ever call this from the producer thread.
+     *
+     * @return false if the element was rejected because the queue was full, or the producer was interrupted while
+     * blocked waiting for room
+     */
+    @Override
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long currentTail = tail.get();
+        while (currentTail - head.get() > mask) {
+            if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+                E dropped = claimHead();
+                if (dropped != null) {
+                    dropped(dropped);
+                }
+            } else if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                dropped(element);
+                return false;
+            } else {
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                if (Thread.currentThread().isInterrupted()) {
+                    dropped(element);
+                    return false;
+                }
+            }
+        }
+        slots.lazySet((int) (currentTail & mask), element);
+        tail.lazySet(currentTail + 1);
+        int currentSize = (int) (currentTail + 1 - head.get());
+        if (currentSize > highWaterMark) {
+            highWaterMark = currentSize;
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest element, only ever call this from the consumer thread.
+     */
+    @Override
+    public E poll() {
+        return claimHead();
+    }
+
+    @Override
+    public E peek() {
+        while (true) {
+            long currentHead = head.get();
+            if (currentHead >= tail.get()) {
+                return null;
+            }
+            E element = slots.get((int) (currentHead & mask));
+            // if the head moved the element may have been dropped and its slot reused, so look again
+            if (element != null && head.get() == currentHead) {
+                return element;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        // read head first so a concurrent poll can only make the size look too big, then clamp it
+        long currentHead = head.get();
+        long size = tail.get() - currentHead;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * A weakly consistent view of the queue from oldest to newest. Elements may be dropped or consumed while
+     * iterating, and remove() is not supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+            private long position = head.get();
+            private E nextElement = advance();
+
+            private E advance() {
+                while (position < tail.get()) {
+                    position = Math.max(position, head.get());
+                    E element = position < tail.get() ? slots.get((int) (position & mask)) : null;
+                    position++;
+                    if (element != null) {
+                        return element;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return nextElement != null;
+            }
+
+            @Override
+            public E next() {
+                if (nextElement == null) {
+                    throw new NoSuchElementException();
+                }
+                E element = nextElement;
+                nextElement = advance();
+                return element;
+            }
+        };
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the number of elements dropped or rejected because the queue was full
+     */
+    public long getDropCount() {
+        return dropCount;
+    }
+
+    /**
+     * @return the most elements that have been in the queue at once
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    private E claimHead() {
+        while (true) {
+            long currentHead = head.get();
+            if (currentHead >= tail.get()) {
+                return null;
+            }
+            int index = (int) (currentHead & mask);
+            E element = slots.get(index);
+            if (element != null && head.compareAndSet(currentHead, currentHead + 1)) {
+                // only clear the slot if the producer has not already refilled it
+                slots.compareAndSet(index, element, null);
+                return element;
+            }
+        }
+    }
+
+    private void dropped(E element) {
+        // only the producer drops elements so this does not need to be atomic
+        dropCount++;
+        if (dropListener != null) {
+            dropListener.accept(element);
+        }
+    }
+}
@@ -25,6 +25,7 @@ package com.jgelderloos.smartroomba;
 import com.jgelderloos.smartroomba.roomba.RoombaConstants;
 import com.jgelderloos.smartroomba.roomba.RoombaInfo;
 import com.jgelderloos.smartroomba.roomba.RoombaMapData;
+import com.jgelderloos.smartroomba.roomba.RoombaUtilities;
 import com.jgelderloos.smartroomba.roomba.SensorData;
 import org.junit.Assert;
 import org.junit.Before;
@@ -191,4 +192,77 @@ public class RoombaMapDataTest {
         Assert.assertEquals(Math.toDegrees(expectedRadians), degrees, tolerance);
     }
 
+    private void setEncoderCounts(int leftEncoderCounts, int rightEncoderCounts) {
+        byteArray[SensorData.PacketOffsets.LEFT_ENCODER_COUNTS_HI.ordinal()] = (byte) (leftEncoderCounts >> 8);
+        byteArray[SensorData.PacketOffsets.LEFT_ENCODER_COUNTS_LO.ordinal()] = (byte) leftEncoderCounts;
+        byteArray[SensorData.PacketOffsets.RIGHT_ENCODER_COUNTS_HI.ordinal()] = (byte) (rightEncoderCounts >> 8);
+        byteArray[SensorData.PacketOffsets.RIGHT_ENCODER_COUNTS_LO.ordinal()] = (byte) rightEncoderCounts;
+        sensorData = new SensorData(byteArray, SensorData.MAX_SENSOR_BYTES);
+    }
+
+    /**
+     * Turn left 90 degrees and then drive straight, which should carry on in the direction the turn ended in.
+     */
+    @Test
+    public void straightAfterTurnLeft() {
+        setEncoderCounts(RoombaConstants.WHEELBASE, Math.PI * 2 / 4, false, false);
+        sensorData = new SensorData(byteArray, SensorData.MAX_SENSOR_BYTES);
+        Point2D.Double turned = roombaMapData.processSensorData(sensorData).getPosition().getPosition();
+        int left = sensorData.getLeftEncoderCount();
+        int right = sensorData.getRightEncoderCount();
+
+        setEncoderCounts(left + 1000, right + 1000);
+        Point2D.Double position = roombaMapData.processSensorData(sensorData).getPosition().getPosition();
+
+        double distance = new RoombaUtilities().getMilimetersFromEncoderCounts(1000);
+        Assert.assertEquals(turned.x - distance, position.x, tolerance);
+        Assert.assertEquals(turned.y, position.y, tolerance);
+    }
+
+    /**
+     * The closed form arc has to land where following the turn circle with RoombaUtilities does, for every mix of
+     * wheel directions.
+     */
+    @Test
+    public void arcMatchesTurnCircle() {
+        RoombaUtilities roombaUtilities = new RoombaUtilities();
+        int[] changes = {-700, -250, -3, 0, 5, 120, 640};
+        // start away from zero so the counts never roll over
+        int left = 30000;
+        int right = 30000;
+        roombaMapData.restore(0, 0, 0, left, right);
+        double radians = 0;
+        double x = 0;
+        double y = 0;
+        for (int leftChange : changes) {
+            for (int rightChange : changes) {
+                if (leftChange == rightChange) {
+                    continue;
+                }
+                left += leftChange;
+                right += rightChange;
+                setEncoderCounts(left, right);
+                roombaMapData.update(sensorData);
+
+                double leftDistance = roombaUtilities.getMilimetersFromEncoderCounts(leftChange);
+                double rightDistance = roombaUtilities.getMilimetersFromEncoderCounts(rightChange);
+                double changeInRadians = roombaUtilities.getRadiansFromWheelDistance(leftDistance, rightDistance);
+                boolean forwards = leftDistance > 0 && rightDistance > 0;
+                double outerDistance = (leftDistance > rightDistance) == forwards ? leftDistance : rightDistance;
+                double centerRadius = roombaUtilities.getRadius(Math.abs(changeInRadians), Math.abs(outerDistance))
+                        - RoombaConstants.WHEELBASE / 2;
+                RoombaConstants.Side side = changeInRadians < 0 ? RoombaConstants.Side.RIGHT : RoombaConstants.Side.LEFT;
+                RoombaConstants.Direction direction = forwards ? RoombaConstants.Direction.FORWARDS : RoombaConstants.Direction.BACKWARDS;
+                double before = roombaUtilities.getRadiansOnCircle(radians, side, direction);
+                double after = roombaUtilities.getRadiansOnCircle(radians + changeInRadians, side, direction);
+                x += roombaUtilities.getLength(after, centerRadius) - roombaUtilities.getLength(before, centerRadius);
+                y += roombaUtilities.getHeight(after, centerRadius) - roombaUtilities.getHeight(before, centerRadius);
+                radians += changeInRadians;
+
+                Assert.assertEquals(x, roombaMapData.getX(), 1e-6);
+                Assert.assertEquals(y, roombaMapData.getY(), 1e-6);
+                Assert.assertEquals(radians, roombaMapData.getRadians(), 1e-9);
+            }
+        }
+    }
 }
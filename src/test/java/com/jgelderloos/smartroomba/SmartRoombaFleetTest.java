@@ -0,0 +1,119 @@
+/*
+ *  SmartRoomba - SmartRoombaFleetTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba;
+
+import com.jgelderloos.smartroomba.SmartRoombaFleet.RobotMetrics;
+import com.jgelderloos.smartroomba.SmartRoombaFleet.State;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommSimulator;
+import com.jgelderloos.smartroomba.simulator.SimulatedRoom;
+import com.jgelderloos.smartroomba.utilities.DataCSVWriter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class SmartRoombaFleetTest {
+    private static final int ROBOTS = 20;
+    private SmartRoombaFleet fleet;
+
+    private SmartRoomba createSimulatedRoomba(boolean stream) {
+        RoombaCommSimulator roombaCommSimulator = new RoombaCommSimulator(new SimulatedRoom(4000, 4000), 1, fleet.getScheduler());
+        roombaCommSimulator.setTickNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        return new SmartRoomba(roombaCommSimulator, RoombaCommSimulator.PORT_NAME, 50, false, false, stream, null,
+                new DataCSVWriter(null), null);
+    }
+
+    private boolean allHaveData(long dataCount) {
+        for (RobotMetrics metrics : fleet.getMetrics().values()) {
+            if (metrics.getDataCount() <= dataCount) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Before
+    public void setup() {
+        fleet = new SmartRoombaFleet(2);
+    }
+
+    @After
+    public void teardown() {
+        fleet.close();
+    }
+
+    @Test
+    public void robotsShareTheScheduler() throws Exception {
+        for (int i = 0; i < ROBOTS; i++) {
+            fleet.add("robot" + i, createSimulatedRoomba(i % 2 == 0));
+        }
+
+        fleet.startAll();
+        // 20 robots on 2 threads start slowly on a busy machine, so wait for them instead of sleeping a fixed time
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!allHaveData(5) && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+
+        for (RobotMetrics metrics : fleet.getMetrics().values()) {
+            Assert.assertEquals(metrics.toString(), State.RUNNING, metrics.getState());
+            Assert.assertTrue(metrics.toString(), metrics.getDataCount() > 5);
+        }
+
+        fleet.stopAll().get(5, TimeUnit.SECONDS);
+        for (RobotMetrics metrics : fleet.getMetrics().values()) {
+            Assert.assertEquals(State.STOPPED, metrics.getState());
+        }
+    }
+
+    @Test
+    public void stopOneRobot() throws Exception {
+        fleet.add("first", createSimulatedRoomba(true));
+        fleet.add("second", createSimulatedRoomba(true));
+        fleet.startAll();
+
+        fleet.stop("first").get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(State.STOPPED, fleet.getState("first"));
+        Assert.assertNotEquals(State.STOPPED, fleet.getState("second"));
+        Assert.assertNotEquals(State.FAILED, fleet.getState("second"));
+    }
+
+    @Test
+    public void stopBeforeStarting() throws Exception {
+        fleet.add("idle", createSimulatedRoomba(true));
+
+        fleet.stop("idle").get(1, TimeUnit.SECONDS);
+
+        Assert.assertEquals(State.STOPPED, fleet.getState("idle"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateName() {
+        fleet.add("robot", createSimulatedRoomba(true));
+        fleet.add("robot", createSimulatedRoomba(true));
+    }
+}
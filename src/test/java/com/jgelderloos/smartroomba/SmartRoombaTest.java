@@ -0,0 +1,130 @@
+/*
+ *  SmartRoomba - SmartRoombaTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba;
+
+import com.jgelderloos.smartroomba.roomba.RoombaInfo;
+import com.jgelderloos.smartroomba.roomba.RoombaMapData;
+import com.jgelderloos.smartroomba.roombacomm.RoombaCommPlaybackMode;
+import com.jgelderloos.smartroomba.utilities.DataCSVWriter;
+import com.jgelderloos.smartroomba.utilities.EncoderRecording;
+import com.jgelderloos.smartroomba.utilities.ReplaySensorDataThread;
+import com.jgelderloos.smartroomba.utilities.SensorDataBinaryReader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+public class SmartRoombaTest {
+    private static final int FRAMES = 400;
+    private static final long FRAME_NANOS = EncoderRecording.FRAME_NANOS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path recording;
+    private RoombaCommPlaybackMode playback;
+    private SmartRoomba smartRoomba;
+    private Queue<RoombaInfo> roombaInfoQueue;
+
+    @Before
+    public void setup() throws IOException {
+        // a slow curve, so every frame is at a different position and heading
+        recording = folder.getRoot().toPath().resolve("curve.srsd");
+        EncoderRecording.write(recording, FRAMES, 1000, i -> 9, i -> 11);
+
+        playback = new RoombaCommPlaybackMode();
+        roombaInfoQueue = new ConcurrentLinkedQueue<>();
+        smartRoomba = new SmartRoomba(playback, recording.toString(), 50, false, false, true, null,
+                new DataCSVWriter(null), roombaInfoQueue);
+    }
+
+    @After
+    public void teardown() {
+        if (smartRoomba.isRunning()) {
+            smartRoomba.shutdown();
+        }
+    }
+
+    @Test
+    public void seekCarriesOnFromTheRestoredPosition() throws Exception {
+        Assert.assertTrue(smartRoomba.start(() -> { }));
+        // let frames from before the seek pile up in the queue without processing them
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (playback.getSensorDataQueue().size() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(smartRoomba.seek(300 * FRAME_NANOS));
+
+        while (roombaInfoQueue.isEmpty() && System.nanoTime() < deadline) {
+            smartRoomba.step();
+            Thread.sleep(1);
+        }
+
+        // the first position is frame 301, the first one replayed after the seek, worked out from the start
+        RoombaInfo roombaInfo = roombaInfoQueue.poll();
+        Assert.assertNotNull(roombaInfo);
+        RoombaMapData expected = new RoombaMapData();
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(recording)) {
+            for (int i = 0; i <= 301; i++) {
+                expected.update(reader.toSensorData(i));
+            }
+        }
+        Assert.assertEquals(expected.getX(), roombaInfo.getPosition().getPosition().x, 1e-6);
+        Assert.assertEquals(expected.getY(), roombaInfo.getPosition().getPosition().y, 1e-6);
+        Assert.assertEquals(expected.getRadians(), roombaInfo.getPosition().getRadians(), 1e-9);
+    }
+
+    @Test(timeout = 10000)
+    public void seekWhileTheReplayWaitsForRoomInTheQueue() throws Exception {
+        playback.setReplaySpeed(ReplaySensorDataThread.AS_FAST_AS_POSSIBLE);
+        Assert.assertTrue(smartRoomba.start(() -> { }));
+        // fill the queue so the replay is blocked handing over the next frame
+        while (playback.getSensorDataQueue().size() < playback.getSensorDataQueue().capacity()) {
+            Thread.sleep(1);
+        }
+
+        // this thread is the one that drains the queue, so the seek must not wait for the replay
+        Assert.assertTrue(smartRoomba.seek(300 * FRAME_NANOS));
+
+        while (roombaInfoQueue.isEmpty()) {
+            smartRoomba.step();
+        }
+        RoombaInfo roombaInfo = roombaInfoQueue.poll();
+        RoombaMapData expected = new RoombaMapData();
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(recording)) {
+            for (int i = 0; i <= 301; i++) {
+                expected.update(reader.toSensorData(i));
+            }
+        }
+        Assert.assertEquals(expected.getX(), roombaInfo.getPosition().getPosition().x, 1e-6);
+        Assert.assertEquals(expected.getRadians(), roombaInfo.getPosition().getRadians(), 1e-9);
+    }
+}
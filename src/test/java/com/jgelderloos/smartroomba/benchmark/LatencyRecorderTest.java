@@ -0,0 +1,59 @@
+/*
+ *  SmartRoomba - LatencyRecorderTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.benchmark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyRecorderTest {
+    @Test
+    public void percentiles() {
+        LatencyRecorder latencyRecorder = new LatencyRecorder(100);
+        for (int i = 100; i >= 1; i--) {
+            latencyRecorder.record(i);
+        }
+
+        Assert.assertEquals(50, latencyRecorder.getPercentile(50));
+        Assert.assertEquals(99, latencyRecorder.getPercentile(99));
+        Assert.assertEquals(100, latencyRecorder.getPercentile(100));
+        Assert.assertEquals(1, latencyRecorder.getPercentile(0));
+    }
+
+    @Test
+    public void samplesPastCapacityAreCounted() {
+        LatencyRecorder latencyRecorder = new LatencyRecorder(2);
+        latencyRecorder.record(1);
+        latencyRecorder.record(2);
+        latencyRecorder.record(3);
+
+        Assert.assertEquals(2, latencyRecorder.getCount());
+        Assert.assertEquals(1, latencyRecorder.getDroppedCount());
+        Assert.assertEquals(2, latencyRecorder.getPercentile(100));
+    }
+
+    @Test
+    public void noSamples() {
+        Assert.assertEquals(0, new LatencyRecorder(10).getPercentile(50));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *  SmartRoomba - OccupancyGridTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OccupancyGridTest {
+    private OccupancyGrid occupancyGrid;
+    private byte[] data;
+
+    @Before
+    public void setup() {
+        occupancyGrid = new OccupancyGrid();
+        data = new byte[SensorData.MAX_SENSOR_BYTES];
+    }
+
+    private void update(double x, double y, double radians, int times) {
+        SensorData sensorData = new SensorData(data, data.length);
+        for (int i = 0; i < times; i++) {
+            occupancyGrid.update(x, y, radians, sensorData);
+        }
+    }
+
+    @Test
+    public void unknownUntilSeen() {
+        Assert.assertEquals(0, occupancyGrid.getLogOdds(0, 0));
+        Assert.assertEquals(0, occupancyGrid.getTileCount());
+        Assert.assertFalse(occupancyGrid.isFree(0, 0));
+        Assert.assertFalse(occupancyGrid.isOccupied(0, 0));
+    }
+
+    @Test
+    public void footprintIsFree() {
+        update(0, 0, 0, 5);
+
+        Assert.assertTrue(occupancyGrid.isFree(0, 0));
+        Assert.assertTrue(occupancyGrid.isFree(80, -80));
+        Assert.assertEquals(0, occupancyGrid.getLogOdds(500, 0));
+        // the footprint straddles the four tiles around the origin
+        Assert.assertEquals(4, occupancyGrid.getTileCount());
+    }
+
+    @Test
+    public void bumpLeftMarksTheLeftOfTheBumper() {
+        data[SensorPacket.BUMPS_WHEEL_DROPS.getOffset()] = 0x02;
+        update(0, 0, 0, 2);
+
+        double edge = OccupancyGrid.ROBOT_RADIUS + 10;
+        // facing +y, left is -x
+        Assert.assertTrue(occupancyGrid.isOccupied(0, edge));
+        Assert.assertTrue(occupancyGrid.isOccupied(-edge * Math.sin(Math.PI / 4), edge * Math.cos(Math.PI / 4)));
+        Assert.assertFalse(occupancyGrid.isOccupied(edge * Math.sin(Math.PI / 4), edge * Math.cos(Math.PI / 4)));
+        Assert.assertFalse(occupancyGrid.isOccupied(0, -edge));
+    }
+
+    @Test
+    public void bumpFollowsHeading() {
+        data[SensorPacket.BUMPS_WHEEL_DROPS.getOffset()] = 0x03;
+        update(1000, 2000, Math.PI / 2, 2);
+
+        double edge = OccupancyGrid.ROBOT_RADIUS + 10;
+        // facing -x
+        Assert.assertTrue(occupancyGrid.isOccupied(1000 - edge, 2000));
+        Assert.assertFalse(occupancyGrid.isOccupied(1000, 2000 + edge));
+    }
+
+    @Test
+    public void cliffAndLightBump() {
+        data[SensorPacket.CLIFF_RIGHT.getOffset()] = 1;
+        int signalOffset = SensorPacket.LIGHT_BUMP_CENTER_LEFT_SIGNAL.getOffset();
+        data[signalOffset] = (byte) (2000 >> 8);
+        data[signalOffset + 1] = (byte) 2000;
+        update(0, 0, 0, 2);
+
+        double edge = OccupancyGrid.ROBOT_RADIUS + 10;
+        Assert.assertTrue(occupancyGrid.isOccupied(edge * Math.sin(Math.toRadians(60)), edge * Math.cos(Math.toRadians(60))));
+        Assert.assertTrue(occupancyGrid.isOccupied(-edge * Math.sin(Math.toRadians(12)), edge * Math.cos(Math.toRadians(12))));
+        Assert.assertFalse(occupancyGrid.isOccupied(-edge * Math.sin(Math.toRadians(60)), edge * Math.cos(Math.toRadians(60))));
+    }
+
+    @Test
+    public void logOddsAreClamped() {
+        update(0, 0, 0, 1000);
+
+        Assert.assertEquals(-OccupancyGrid.LOG_ODDS_LIMIT, occupancyGrid.getLogOdds(0, 0));
+        update(0, 0, 0, 1);
+        Assert.assertEquals(-OccupancyGrid.LOG_ODDS_LIMIT, occupancyGrid.getLogOdds(0, 0));
+    }
+
+    @Test
+    public void tilesAreBounded() {
+        occupancyGrid = new OccupancyGrid(OccupancyGrid.DEFAULT_CELL_MILLIMETERS, 8);
+        // a drive far enough to need many more tiles than allowed
+        for (int i = 0; i < 100; i++) {
+            update(i * 200, 0, 0, 5);
+        }
+
+        Assert.assertEquals(8, occupancyGrid.getTileCount());
+        Assert.assertTrue(occupancyGrid.getDroppedUpdateCount() > 0);
+        Assert.assertTrue(occupancyGrid.isFree(0, 0));
+        Assert.assertEquals(0, occupancyGrid.getLogOdds(19800, 0));
+    }
+
+    @Test
+    public void negativeCoordinates() {
+        update(-5000, -7000, 0, 5);
+
+        Assert.assertTrue(occupancyGrid.isFree(-5000, -7000));
+        Assert.assertEquals(0, occupancyGrid.getLogOdds(5000, 7000));
+
+        int[] count = new int[1];
+        occupancyGrid.forEachCell((cellX, cellY, logOdds) -> {
+            Assert.assertTrue(cellX < 0 && cellY < 0);
+            count[0]++;
+        });
+        Assert.assertTrue(count[0] > 100);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  SmartRoomba - SensorDataPoolTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SensorDataPoolTest {
+    private SensorDataPool sensorDataPool;
+
+    @Before
+    public void setup() {
+        sensorDataPool = new SensorDataPool(2);
+    }
+
+    @Test
+    public void releasedFrameIsReused() {
+        SensorData first = sensorDataPool.acquire(new byte[] {0x01}, 0, 1);
+        first.release();
+        SensorData second = sensorDataPool.acquire(new byte[] {0x02}, 0, 1);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, sensorDataPool.getCreatedCount());
+        Assert.assertTrue(second.isBumpLeft());
+        Assert.assertFalse(second.isBumpRight());
+    }
+
+    @Test
+    public void retainedFrameIsNotReused() {
+        SensorData first = sensorDataPool.acquire(new byte[] {0x01}, 0, 1);
+        first.retain();
+        first.release();
+        SensorData second = sensorDataPool.acquire(new byte[] {0x02}, 0, 1);
+
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(first.isBumpRight());
+        first.release();
+        Assert.assertEquals(1, sensorDataPool.getFreeCount());
+    }
+
+    @Test
+    public void refillClearsOldData() {
+        SensorData sensorData = sensorDataPool.acquire(new byte[] {0x03, 0x01}, 0, 2);
+        sensorData.release();
+        sensorData = sensorDataPool.acquire(new byte[] {0x00}, 0, 1);
+
+        Assert.assertFalse(sensorData.isBumpLeft());
+        Assert.assertTrue(sensorData.getRawDataAsCSVString().startsWith("0x00,0x00,"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void releasedTooManyTimes() {
+        SensorData sensorData = sensorDataPool.acquire(new byte[] {0x01}, 0, 1);
+        sensorData.release();
+        sensorData.release();
+    }
+}
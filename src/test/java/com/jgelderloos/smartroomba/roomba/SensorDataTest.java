@@ -0,0 +1,103 @@
+/*
+ *  SmartRoomba - SensorDataTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roomba;
+
+import com.jgelderloos.smartroomba.roomba.SensorData.PacketOffsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensorDataTest {
+
+    private byte[] emptyBytes() {
+        return new byte[SensorData.MAX_SENSOR_BYTES];
+    }
+
+    @Test
+    public void flagsDecoded() {
+        byte[] bytes = emptyBytes();
+        bytes[PacketOffsets.BUMPS_WHEEL_DROPS.ordinal()] = 0x02;
+        bytes[PacketOffsets.LIGHT_BUMPER.ordinal()] = 0x21;
+        bytes[PacketOffsets.BUTTONS.ordinal()] = 0x04;
+
+        SensorData sensorData = new SensorData(bytes, bytes.length);
+
+        Assert.assertEquals(SensorData.BUMP_LEFT | SensorData.LIGHT_BUMPER_LEFT | SensorData.LIGHT_BUMPER_RIGHT
+                | SensorData.DOCK_BUTTON, sensorData.getFlags());
+        Assert.assertTrue(sensorData.isBumpLeft());
+        Assert.assertFalse(sensorData.isBumpRight());
+        Assert.assertTrue(sensorData.isDockButton());
+        Assert.assertFalse(sensorData.isUnsafe());
+    }
+
+    @Test
+    public void everySafetyConditionIsUnsafe() {
+        int[][] conditions = {
+                {PacketOffsets.BUMPS_WHEEL_DROPS.ordinal(), 0x04},
+                {PacketOffsets.BUMPS_WHEEL_DROPS.ordinal(), 0x08},
+                {PacketOffsets.CLIFF_LEFT.ordinal(), 0x01},
+                {PacketOffsets.CLIFF_FRONT_LEFT.ordinal(), 0x01},
+                {PacketOffsets.CLIFF_FRONT_RIGHT.ordinal(), 0x01},
+                {PacketOffsets.CLIFF_RIGHT.ordinal(), 0x01},
+                {PacketOffsets.WHEEL_OVER_CURRENTS.ordinal(), 0x10},
+                {PacketOffsets.WHEEL_OVER_CURRENTS.ordinal(), 0x08},
+                {PacketOffsets.WHEEL_OVER_CURRENTS.ordinal(), 0x04},
+                {PacketOffsets.WHEEL_OVER_CURRENTS.ordinal(), 0x01}};
+        for (int[] condition : conditions) {
+            byte[] bytes = emptyBytes();
+            bytes[condition[0]] = (byte) condition[1];
+            Assert.assertTrue(new SensorData(bytes, bytes.length).isUnsafe());
+        }
+    }
+
+    @Test
+    public void refillClearsDecodedFields() {
+        SensorDataPool pool = new SensorDataPool();
+        byte[] bytes = emptyBytes();
+        bytes[PacketOffsets.CLIFF_LEFT.ordinal()] = 0x01;
+        SensorData sensorData = pool.acquire(bytes, 0, bytes.length, 0);
+        Assert.assertTrue(sensorData.isCliffLeft());
+
+        sensorData.set(emptyBytes(), 0, SensorData.MAX_SENSOR_BYTES, 0);
+
+        Assert.assertFalse(sensorData.isCliffLeft());
+        Assert.assertFalse(sensorData.isUnsafe());
+    }
+
+    @Test
+    public void twoByteFields() {
+        byte[] bytes = emptyBytes();
+        bytes[PacketOffsets.DISTANCE_HI.ordinal()] = 0x00;
+        bytes[PacketOffsets.DISTANCE_LO.ordinal()] = (byte) 0x80;
+        bytes[PacketOffsets.ANGLE_HI.ordinal()] = (byte) 0xFF;
+        bytes[PacketOffsets.ANGLE_LO.ordinal()] = (byte) 0xFF;
+        bytes[PacketOffsets.RIGHT_ENCODER_COUNTS_HI.ordinal()] = (byte) 0xFF;
+        bytes[PacketOffsets.RIGHT_ENCODER_COUNTS_LO.ordinal()] = (byte) 0x01;
+
+        SensorData sensorData = new SensorData(bytes, bytes.length);
+
+        Assert.assertEquals(128, sensorData.getDistance());
+        Assert.assertEquals(-1, sensorData.getAngle());
+        Assert.assertEquals(0xFF01, sensorData.getRightEncoderCount());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ *  SmartRoomba - SensorPacketLayoutTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.Model;
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
+import com.jgelderloos.smartroomba.roomba.SensorData.PacketOffsets;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensorPacketLayoutTest {
+
+    @Test
+    public void packetOffsetsMatchSensorData() {
+        Assert.assertEquals(PacketOffsets.DISTANCE_HI.ordinal(), SensorPacket.DISTANCE.getOffset());
+        Assert.assertEquals(PacketOffsets.CHARGING_SOURCES_AVAILABLE.ordinal(), SensorPacket.CHARGING_SOURCES_AVAILABLE.getOffset());
+        Assert.assertEquals(PacketOffsets.LEFT_ENCODER_COUNTS_HI.ordinal(), SensorPacket.LEFT_ENCODER_COUNTS.getOffset());
+        Assert.assertEquals(PacketOffsets.LIGHT_BUMPER.ordinal(), SensorPacket.LIGHT_BUMPER.getOffset());
+        Assert.assertEquals(PacketOffsets.STASIS.ordinal(), SensorPacket.STASIS.getOffset());
+    }
+
+    @Test
+    public void allPacketsAreEightyBytes() {
+        Assert.assertEquals(80, new SensorPacketLayout(SensorPacket.values()).getReplyLength());
+    }
+
+    @Test
+    public void decodedFlags() {
+        Assert.assertEquals(SensorData.UNSAFE_FLAGS,
+                SensorPacketLayout.ODOMETRY_AND_SAFETY.getDecodedFlags() & SensorData.UNSAFE_FLAGS);
+        Assert.assertEquals(SensorData.CLIFF_LEFT | SensorData.VIRTUAL_WALL,
+                new SensorPacketLayout(SensorPacket.CLIFF_LEFT, SensorPacket.LEFT_ENCODER_COUNTS,
+                        SensorPacket.VIRTUAL_WALL).getDecodedFlags());
+        Assert.assertEquals(0, new SensorPacketLayout(SensorPacket.DISTANCE).getDecodedFlags());
+    }
+
+    @Test
+    public void fromId() {
+        Assert.assertEquals(SensorPacket.RIGHT_ENCODER_COUNTS, SensorPacket.fromId(44));
+        Assert.assertNull(SensorPacket.fromId(100));
+    }
+
+    @Test
+    public void odometryAndSafetyReplyLength() {
+        Assert.assertEquals(11, SensorPacketLayout.ODOMETRY_AND_SAFETY.getReplyLength());
+        Assert.assertEquals(20, SensorPacketLayout.ODOMETRY_AND_SAFETY.getStreamDataLength());
+    }
+
+    @Test
+    public void command() {
+        SensorPacketLayout layout = new SensorPacketLayout(SensorPacket.LEFT_ENCODER_COUNTS, SensorPacket.BUMPS_WHEEL_DROPS);
+
+        Assert.assertArrayEquals(new byte[] {(byte) 149, 2, 43, 7}, layout.getCommand(149));
+        Assert.assertEquals(3, layout.getReplyLength());
+    }
+
+    @Test
+    public void decodeToPacketOffsets() {
+        SensorPacketLayout layout = new SensorPacketLayout(SensorPacket.LEFT_ENCODER_COUNTS, SensorPacket.BUMPS_WHEEL_DROPS);
+        byte[] sensorBytes = new byte[SensorData.MAX_SENSOR_BYTES];
+
+        layout.decode(new byte[] {0x01, 0x02, 0x03}, 0, sensorBytes);
+        SensorData sensorData = new SensorData(sensorBytes, layout.getDataExtent());
+
+        Assert.assertEquals(0x0102, sensorData.getLeftEncoderCount());
+        Assert.assertTrue(sensorData.isBumpLeft());
+        Assert.assertTrue(sensorData.isBumpRight());
+    }
+
+    @Test
+    public void groupReplyLengths() {
+        Assert.assertEquals(26, SensorPacketGroup.P0.getReplyLength());
+        Assert.assertEquals(10, SensorPacketGroup.P1.getReplyLength());
+        Assert.assertEquals(6, SensorPacketGroup.P2.getReplyLength());
+        Assert.assertEquals(10, SensorPacketGroup.P3.getReplyLength());
+        Assert.assertEquals(14, SensorPacketGroup.P4.getReplyLength());
+        Assert.assertEquals(12, SensorPacketGroup.P5.getReplyLength());
+        Assert.assertEquals(52, SensorPacketGroup.P6.getReplyLength());
+        Assert.assertEquals(93, SensorPacketGroup.P100.getReplyLength());
+        Assert.assertEquals(28, SensorPacketGroup.P101.getReplyLength());
+        Assert.assertEquals(12, SensorPacketGroup.P106.getReplyLength());
+        Assert.assertEquals(9, SensorPacketGroup.P107.getReplyLength());
+    }
+
+    @Test
+    public void groupDecodesInOneRun() {
+        for (SensorPacketGroup group : SensorPacketGroup.values()) {
+            SensorPacketLayout layout = group.getLayout();
+            Assert.assertEquals(1, layout.getRunCount());
+            Assert.assertEquals(SensorPacket.fromId(group.getFirstPacketId()).getOffset(), layout.getRunTarget(0));
+            Assert.assertEquals(group.getReplyLength(), layout.getRunLength(0));
+        }
+        Assert.assertEquals(SensorData.MAX_SENSOR_BYTES, SensorPacketGroup.P100.getLayout().getDataExtent());
+    }
+
+    @Test
+    public void decodeGroupAwayFromTheStart() {
+        byte[] reply = new byte[SensorPacketGroup.P101.getReplyLength()];
+        reply[0] = 0x01;
+        reply[1] = 0x02;
+        reply[4] = 0x21;
+        byte[] sensorBytes = new byte[SensorData.MAX_SENSOR_BYTES];
+
+        SensorPacketGroup.P101.getLayout().decode(reply, 0, sensorBytes);
+        SensorData sensorData = new SensorData(sensorBytes, SensorData.MAX_SENSOR_BYTES);
+
+        Assert.assertEquals(0x0102, sensorData.getLeftEncoderCount());
+        Assert.assertTrue(sensorData.isLightBumperRight());
+        Assert.assertTrue(sensorData.isLightBumperLeft());
+        Assert.assertFalse(sensorData.isBumpLeft());
+    }
+
+    @Test
+    public void neighbouringPacketsShareARun() {
+        // bumps, the four cliffs, over currents and the encoders with the light bumper
+        Assert.assertEquals(4, SensorPacketLayout.ODOMETRY_AND_SAFETY.getRunCount());
+        // out of order packets can not be copied together
+        Assert.assertEquals(2, new SensorPacketLayout(SensorPacket.RIGHT_ENCODER_COUNTS, SensorPacket.LEFT_ENCODER_COUNTS).getRunCount());
+    }
+
+    @Test
+    public void signedValues() {
+        byte[] sensorBytes = new byte[SensorData.MAX_SENSOR_BYTES];
+        sensorBytes[SensorPacket.DISTANCE.getOffset()] = (byte) 0xFF;
+        sensorBytes[SensorPacket.DISTANCE.getOffset() + 1] = (byte) 0xFE;
+        sensorBytes[SensorPacket.VOLTAGE.getOffset()] = (byte) 0xFF;
+        sensorBytes[SensorPacket.VOLTAGE.getOffset() + 1] = (byte) 0xFE;
+        sensorBytes[SensorPacket.TEMPERATURE.getOffset()] = (byte) 0xF6;
+        SensorData sensorData = new SensorData(sensorBytes, SensorData.MAX_SENSOR_BYTES);
+
+        Assert.assertEquals(-2, sensorData.getValue(SensorPacket.DISTANCE));
+        Assert.assertEquals(0xFFFE, sensorData.getValue(SensorPacket.VOLTAGE));
+        Assert.assertEquals(-10, sensorData.getValue(SensorPacket.TEMPERATURE));
+        Assert.assertEquals(SensorPacket.Unit.MILLIVOLTS, SensorPacket.VOLTAGE.getUnit());
+    }
+
+    @Test
+    public void modelSupport() {
+        Assert.assertTrue(Model.SCI_400.supports(SensorPacketGroup.P3));
+        Assert.assertFalse(Model.SCI_400.supports(SensorPacketGroup.P6));
+        Assert.assertFalse(Model.SCI_400.supports(SensorPacket.BUMPS_WHEEL_DROPS));
+        Assert.assertTrue(Model.OI_500.supports(SensorPacketGroup.P6));
+        Assert.assertFalse(Model.OI_500.supports(SensorPacketGroup.P100));
+        Assert.assertFalse(Model.OI_500.supports(SensorPacketLayout.ODOMETRY_AND_SAFETY));
+        Assert.assertTrue(Model.OI_600.supports(SensorPacketLayout.ODOMETRY_AND_SAFETY));
+        Assert.assertTrue(Model.OI_600.supports(SensorPacketGroup.P107));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyLayout() {
+        new SensorPacketLayout();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  SmartRoomba - SessionClockTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roomba;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+public class SessionClockTest {
+    private SessionClock sessionClock;
+
+    @Before
+    public void setup() {
+        sessionClock = new SessionClock(Instant.parse("2018-03-01T12:00:00Z"), 500L, ZoneOffset.UTC);
+    }
+
+    @Test
+    public void dateTimeFromNanoTime() {
+        Assert.assertEquals(LocalDateTime.of(2018, 3, 1, 12, 0, 0, 1_500),
+                sessionClock.toLocalDateTime(2_000L));
+    }
+
+    @Test
+    public void dateTimeBeforeAnchor() {
+        Assert.assertEquals(LocalDateTime.of(2018, 3, 1, 11, 59, 59, 999_999_500),
+                sessionClock.toLocalDateTime(0L));
+    }
+
+    @Test
+    public void roundTrip() {
+        LocalDateTime dateTime = LocalDateTime.of(2018, 3, 1, 12, 0, 15, 123_456_789);
+
+        Assert.assertEquals(dateTime, sessionClock.toLocalDateTime(sessionClock.toNanoTime(dateTime)));
+    }
+
+    @Test
+    public void localEpochNanosAcrossADaylightSavingChange() {
+        // clocks in Amsterdam went from 02:00 to 03:00 at 01:00 UTC on 2018-03-25
+        SessionClock amsterdam = new SessionClock(Instant.parse("2018-03-25T00:59:59Z"), 0L, ZoneId.of("Europe/Amsterdam"));
+        long[] nanoTimes = {0L, 999_999_999L, 1_000_000_000L, 3_600_000_000_000L, 0L};
+
+        for (long nanoTime : nanoTimes) {
+            LocalDateTime dateTime = amsterdam.toLocalDateTime(nanoTime);
+            long expected = dateTime.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + dateTime.getNano();
+            Assert.assertEquals(dateTime.toString(), expected, amsterdam.toLocalEpochNanos(nanoTime));
+        }
+    }
+}
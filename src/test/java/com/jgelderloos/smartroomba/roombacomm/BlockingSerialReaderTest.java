@@ -0,0 +1,69 @@
+/*
+ *  SmartRoomba - BlockingSerialReaderTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class BlockingSerialReaderTest {
+    @Test
+    public void framesAreHandedOffAsTheyAreRead() throws IOException, InterruptedException {
+        List<SensorData> received = new ArrayList<>();
+        SensorFrameReceiver sensorFrameReceiver = new SensorFrameReceiver(received::add);
+        sensorFrameReceiver.setReadRequestLength(2);
+        PipedOutputStream serialOutput = new PipedOutputStream();
+        PipedInputStream serialInput = new PipedInputStream(serialOutput);
+        BlockingSerialReader blockingSerialReader = new BlockingSerialReader(serialInput, sensorFrameReceiver, sensorFrameReceiver);
+        Thread readerThread = new Thread(blockingSerialReader);
+        readerThread.start();
+
+        serialOutput.write(new byte[] {0x02, 0x00, 0x01});
+        serialOutput.flush();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (blockingSerialReader.getByteCount() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        serialOutput.write(0x00);
+        // the reader stops when the input is closed
+        serialOutput.close();
+        readerThread.join(5000);
+
+        Assert.assertFalse(readerThread.isAlive());
+        Assert.assertFalse(blockingSerialReader.isRunning());
+        Assert.assertEquals(4, blockingSerialReader.getByteCount());
+        synchronized (sensorFrameReceiver) {
+            Assert.assertEquals(2, received.size());
+            Assert.assertTrue(received.get(0).isBumpLeft());
+            Assert.assertTrue(received.get(1).isBumpRight());
+        }
+    }
+}
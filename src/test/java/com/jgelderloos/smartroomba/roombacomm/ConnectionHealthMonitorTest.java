@@ -0,0 +1,158 @@
+/*
+ *  SmartRoomba - ConnectionHealthMonitorTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ConnectionHealthMonitorTest {
+    private static final long TIMEOUT = 1000;
+    private RoombaComm roombaComm;
+    private ConnectionHealthMonitor monitor;
+
+    @Before
+    public void setup() {
+        roombaComm = mock(RoombaComm.class);
+        monitor = new ConnectionHealthMonitor(roombaComm, "COM1");
+        monitor.setFrameTimeoutNanos(TIMEOUT);
+        monitor.setBackoffNanos(100, 400);
+        monitor.frameReceived(0);
+    }
+
+    @Test
+    public void noTimeoutWhileFramesArrive() {
+        monitor.frameReceived(600);
+        monitor.check(1500);
+
+        Assert.assertEquals(ConnectionHealthMonitor.State.CONNECTED, monitor.getState());
+        verify(roombaComm, never()).disconnect();
+    }
+
+    @Test
+    public void timeoutReconnectsAndRestoresStream() {
+        doReturn(true).when(roombaComm).connect("COM1");
+
+        monitor.check(TIMEOUT + 1);
+
+        InOrder inOrder = inOrder(roombaComm);
+        inOrder.verify(roombaComm).disconnect();
+        inOrder.verify(roombaComm).connect("COM1");
+        inOrder.verify(roombaComm).send(128);
+        inOrder.verify(roombaComm).restoreStream();
+        Assert.assertEquals(ConnectionHealthMonitor.State.CONNECTED, monitor.getState());
+        LinkQuality linkQuality = monitor.getLinkQuality();
+        Assert.assertEquals(1, linkQuality.getFrameTimeoutCount());
+        Assert.assertEquals(1, linkQuality.getReconnectCount());
+    }
+
+    @Test
+    public void failedReconnectsBackOff() {
+        doReturn(false).when(roombaComm).connect(anyString());
+
+        // attempts at the timeout and then 100, 200, 400 and 400 later
+        long[] attempts = {1001, 1101, 1301, 1701, 2101};
+        int attemptCount = 0;
+        for (long nanos = 1001; nanos <= 2101; nanos++) {
+            monitor.check(nanos);
+            if (attemptCount < attempts.length && nanos == attempts[attemptCount]) {
+                attemptCount++;
+            }
+            verify(roombaComm, times(attemptCount)).connect("COM1");
+        }
+
+        Assert.assertEquals(ConnectionHealthMonitor.State.RECONNECTING, monitor.getState());
+        Assert.assertEquals(5, monitor.getLinkQuality().getReconnectAttemptCount());
+        Assert.assertEquals(0, monitor.getLinkQuality().getReconnectCount());
+    }
+
+    @Test
+    public void silentReconnectsBackOff() {
+        // the port opens every time but the Roomba never sends anything
+        doReturn(true).when(roombaComm).connect(anyString());
+        monitor.setBackoffNanos(2000, 8000);
+
+        // attempts at the timeout and then 2000 and 4000 later, the timeouts in between do not cut the wait short
+        long[] attempts = {1001, 3001, 7001};
+        int attemptCount = 0;
+        for (long nanos = 1001; nanos <= 7001; nanos++) {
+            monitor.check(nanos);
+            if (attemptCount < attempts.length && nanos == attempts[attemptCount]) {
+                attemptCount++;
+            }
+            verify(roombaComm, times(attemptCount)).connect("COM1");
+        }
+        Assert.assertEquals(3, monitor.getLinkQuality().getReconnectCount());
+
+        // once a frame gets through the next timeout reconnects right away
+        monitor.frameReceived(7500);
+        monitor.check(8501);
+        verify(roombaComm, times(4)).connect("COM1");
+    }
+
+    @Test
+    public void timeoutOnlyWarnsWithReconnectOff() {
+        monitor.setReconnectEnabled(false);
+
+        monitor.check(TIMEOUT + 1);
+        monitor.check(TIMEOUT + 2);
+
+        verify(roombaComm, never()).disconnect();
+        Assert.assertEquals(ConnectionHealthMonitor.State.CONNECTED, monitor.getState());
+        Assert.assertEquals(1, monitor.getLinkQuality().getFrameTimeoutCount());
+    }
+
+    @Test
+    public void gapStatistics() {
+        monitor.frameReceived(10);
+        monitor.frameReceived(40);
+
+        LinkQuality linkQuality = monitor.getLinkQuality();
+        Assert.assertEquals(3, linkQuality.getFrameCount());
+        Assert.assertEquals(20, linkQuality.getMeanGapNanos());
+        Assert.assertEquals(30, linkQuality.getMaxGapNanos());
+    }
+
+    @Test
+    public void linkCountersComeFromTheComm() {
+        doReturn(3L).when(roombaComm).getChecksumErrorCount();
+        doReturn(2L).when(roombaComm).getRequestTimeoutCount();
+        doReturn(7L).when(roombaComm).getDiscardedByteCount();
+
+        LinkQuality linkQuality = monitor.getLinkQuality();
+
+        Assert.assertEquals(3, linkQuality.getChecksumErrorCount());
+        Assert.assertEquals(2, linkQuality.getRequestTimeoutCount());
+        Assert.assertEquals(7, linkQuality.getDiscardedByteCount());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  SmartRoomba - RoombaCommPlaybackModeTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.utilities.ReplaySensorDataThread;
+import com.jgelderloos.smartroomba.utilities.SensorDataBinaryWriter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+public class RoombaCommPlaybackModeTest {
+    private static final int FRAMES = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path recording;
+    private RoombaCommPlaybackMode playback;
+
+    @Before
+    public void setup() throws IOException {
+        recording = folder.getRoot().toPath().resolve("count.srsd");
+        SensorDataBinaryWriter writer = new SensorDataBinaryWriter(new FileOutputStream(recording.toFile()));
+        byte[] data = new byte[SensorData.MAX_SENSOR_BYTES];
+        int offset = SensorPacket.LEFT_ENCODER_COUNTS.getOffset();
+        for (int i = 0; i < FRAMES; i++) {
+            data[offset] = (byte) (i >> 8);
+            data[offset + 1] = (byte) i;
+            writer.write(new SensorData(data, data.length, LocalDateTime.of(2018, 6, 1, 12, 0).plusNanos(i * 15_000_000L)));
+        }
+        Assert.assertTrue(writer.close());
+        playback = new RoombaCommPlaybackMode();
+    }
+
+    @After
+    public void teardown() {
+        playback.disconnect();
+    }
+
+    /**
+     * Take every frame off the queue and release it like SmartRoomba does, checking each one is the next recorded
+     * frame and has not been recycled while it was queued.
+     */
+    private int consumeAll(long timeoutMillis) throws InterruptedException {
+        Queue<SensorData> queue = playback.getSensorDataQueue();
+        int received = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (received < FRAMES && System.nanoTime() < deadline) {
+            SensorData sensorData = queue.poll();
+            if (sensorData == null) {
+                Thread.sleep(1);
+                continue;
+            }
+            Assert.assertEquals(received, sensorData.getLeftEncoderCount());
+            sensorData.release();
+            received++;
+        }
+        return received;
+    }
+
+    @Test
+    public void queuedFramesAreNotRecycled() throws InterruptedException {
+        playback.setReplaySpeed(20);
+        Assert.assertTrue(playback.connect(recording.toString()));
+
+        Assert.assertEquals(FRAMES, consumeAll(10_000));
+    }
+
+    @Test
+    public void noFramesLostAsFastAsPossible() throws InterruptedException {
+        playback.setReplaySpeed(ReplaySensorDataThread.AS_FAST_AS_POSSIBLE);
+        Assert.assertTrue(playback.connect(recording.toString()));
+
+        Assert.assertEquals(FRAMES, consumeAll(10_000));
+        Assert.assertEquals(0, playback.getSensorDataQueue().getDropCount());
+    }
+}
@@ -22,7 +22,14 @@
 
 package com.jgelderloos.smartroomba.roombacomm;
 
+import com.jgelderloos.smartroomba.roomba.SensorData;
 import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class RoombaCommSerialTest {
@@ -30,4 +37,61 @@ public class RoombaCommSerialTest {
         RoombaCommSerial roombaSerial = new RoombaCommSerial();
         assertNotNull("Serial should have an interface defined", roombaSerial.getProtocol());
     }
+
+    @Test public void listenerToldAboutQueuedData() {
+        RoombaCommSerial roombaSerial = new RoombaCommSerial();
+        List<SensorData> received = new ArrayList<>();
+        SensorDataListener listener = sensorData -> {
+            assertSame("Data should be queued before listeners are told", sensorData, roombaSerial.getSensorDataQueue().peek());
+            received.add(sensorData);
+        };
+        roombaSerial.addSensorDataListener(listener);
+        SensorData sensorData = new SensorData(new byte[1], 1);
+
+        roombaSerial.publishSensorData(sensorData);
+        roombaSerial.removeSensorDataListener(listener);
+        roombaSerial.publishSensorData(new SensorData(new byte[1], 1));
+
+        assertEquals(1, received.size());
+        assertSame(sensorData, roombaSerial.getSensorDataQueue().poll());
+    }
+
+    @Test public void concurrentCommandsDoNotInterleave() throws InterruptedException {
+        RoombaCommSerial roombaSerial = new RoombaCommSerial();
+        ByteArrayOutputStream written = new ByteArrayOutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) {
+                // a slow port, one byte at a time
+                for (int i = 0; i < len; i++) {
+                    write(b[off + i]);
+                    Thread.yield();
+                }
+            }
+        };
+        roombaSerial.output = written;
+        int commands = 2000;
+        Thread stopper = new Thread(() -> {
+            for (int i = 0; i < commands; i++) {
+                roombaSerial.send(new byte[] {(byte) 137, 0, 0, 0, 0});
+            }
+        });
+        stopper.start();
+        for (int i = 0; i < commands; i++) {
+            roombaSerial.send(new byte[] {(byte) 149, 2, 43, 44});
+        }
+        stopper.join();
+
+        byte[] bytes = written.toByteArray();
+        int index = 0;
+        while (index < bytes.length) {
+            if (bytes[index] == (byte) 137) {
+                assertArrayEquals(new byte[] {(byte) 137, 0, 0, 0, 0}, Arrays.copyOfRange(bytes, index, index + 5));
+                index += 5;
+            } else {
+                assertArrayEquals(new byte[] {(byte) 149, 2, 43, 44}, Arrays.copyOfRange(bytes, index, index + 4));
+                index += 4;
+            }
+        }
+        assertEquals(commands * 9, bytes.length);
+    }
 }
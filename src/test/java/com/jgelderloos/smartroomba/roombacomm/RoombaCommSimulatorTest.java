@@ -0,0 +1,71 @@
+/*
+ *  SmartRoomba - RoombaCommSimulatorTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.simulator.SimulatedRoom;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup.P100;
+
+public class RoombaCommSimulatorTest {
+    private RoombaCommSimulator roombaCommSimulator;
+
+    @Before
+    public void setup() {
+        roombaCommSimulator = new RoombaCommSimulator(new SimulatedRoom(4000, 4000), RoombaCommSimulator.MAX_SPEED);
+        roombaCommSimulator.connect(RoombaCommSimulator.PORT_NAME);
+    }
+
+    @After
+    public void teardown() {
+        roombaCommSimulator.disconnect();
+    }
+
+    @Test
+    public void requestedSensorDataArrives() throws InterruptedException {
+        roombaCommSimulator.send(RoombaComm.START);
+        roombaCommSimulator.send(RoombaComm.FULL);
+        roombaCommSimulator.send(new byte[] {(byte) RoombaComm.DRIVE, 0, (byte) 200, (byte) 0x80, 0});
+
+        Assert.assertTrue(roombaCommSimulator.requestSensors(P100));
+
+        SensorData sensorData = roombaCommSimulator.getSensorDataQueue().poll();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sensorData == null && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+            sensorData = roombaCommSimulator.getSensorDataQueue().poll();
+        }
+
+        Assert.assertNotNull(sensorData);
+        Assert.assertFalse(sensorData.isBumpLeft());
+        Assert.assertEquals(0, roombaCommSimulator.getRequestTimeoutCount());
+        sensorData.release();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  SmartRoomba - SafetyInterlockTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorData.PacketOffsets;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SafetyInterlockTest {
+    private static final byte[] DRIVE_STOP = {(byte) 137, 0, 0, 0, 0};
+    private RoombaComm roombaComm;
+    private SafetyInterlock safetyInterlock;
+
+    private SensorData createSensorData(PacketOffsets packet, int value) {
+        byte[] bytes = new byte[SensorData.MAX_SENSOR_BYTES];
+        bytes[packet.ordinal()] = (byte) value;
+        return new SensorData(bytes, bytes.length);
+    }
+
+    private SensorData safe() {
+        return createSensorData(PacketOffsets.CLIFF_LEFT, 0);
+    }
+
+    @Before
+    public void setup() {
+        roombaComm = mock(RoombaComm.class);
+        safetyInterlock = new SafetyInterlock(roombaComm);
+    }
+
+    @Test
+    public void safeFramesSendNothing() {
+        safetyInterlock.sensorDataReceived(safe());
+        // bumps are not a fault
+        safetyInterlock.sensorDataReceived(createSensorData(PacketOffsets.BUMPS_WHEEL_DROPS, 0x03));
+
+        verify(roombaComm, never()).send(any(byte[].class));
+        Assert.assertEquals(0, safetyInterlock.getTripCount());
+    }
+
+    @Test
+    public void faultSendsDriveStop() {
+        safetyInterlock.sensorDataReceived(createSensorData(PacketOffsets.CLIFF_FRONT_RIGHT, 0x01));
+
+        verify(roombaComm).send(DRIVE_STOP);
+        Assert.assertEquals(1, safetyInterlock.getTripCount());
+        Assert.assertEquals(SensorData.CLIFF_FRONT_RIGHT, safetyInterlock.getLastFaults());
+        Assert.assertTrue(safetyInterlock.getLastReactionNanos() >= 0);
+        Assert.assertTrue(safetyInterlock.getMaxReactionNanos() >= safetyInterlock.getLastReactionNanos());
+    }
+
+    @Test
+    public void onlyNewFaultsSendAgain() {
+        SensorData cliff = createSensorData(PacketOffsets.CLIFF_LEFT, 0x01);
+        byte[] cliffAndDropBytes = new byte[SensorData.MAX_SENSOR_BYTES];
+        cliffAndDropBytes[PacketOffsets.CLIFF_LEFT.ordinal()] = 0x01;
+        cliffAndDropBytes[PacketOffsets.BUMPS_WHEEL_DROPS.ordinal()] = 0x04;
+        SensorData cliffAndDrop = new SensorData(cliffAndDropBytes, cliffAndDropBytes.length);
+
+        safetyInterlock.sensorDataReceived(cliff);
+        safetyInterlock.sensorDataReceived(cliff);
+        verify(roombaComm, times(1)).send(DRIVE_STOP);
+
+        safetyInterlock.sensorDataReceived(cliffAndDrop);
+        verify(roombaComm, times(2)).send(DRIVE_STOP);
+
+        // once clear the same fault trips it again
+        safetyInterlock.sensorDataReceived(safe());
+        safetyInterlock.sensorDataReceived(cliff);
+        verify(roombaComm, times(3)).send(DRIVE_STOP);
+        Assert.assertEquals(3, safetyInterlock.getTripCount());
+    }
+
+    @Test
+    public void configurableMaskAndAction() {
+        safetyInterlock.setFaultMask(SensorData.BUMP_LEFT);
+        safetyInterlock.setAction(SafetyInterlock.Action.PASSIVE);
+
+        safetyInterlock.sensorDataReceived(createSensorData(PacketOffsets.CLIFF_LEFT, 0x01));
+        verify(roombaComm, never()).send(any(byte[].class));
+
+        safetyInterlock.sensorDataReceived(createSensorData(PacketOffsets.BUMPS_WHEEL_DROPS, 0x02));
+        verify(roombaComm).send(new byte[] {(byte) 128});
+    }
+
+    @Test
+    public void startAndStopListening() {
+        safetyInterlock.start();
+        verify(roombaComm).addSensorDataListener(safetyInterlock);
+
+        safetyInterlock.stop();
+        verify(roombaComm).removeSensorDataListener(safetyInterlock);
+    }
+
+    @Test
+    public void layoutWithoutFaultPacketsIsCaught() {
+        SensorPacketLayout encodersOnly = new SensorPacketLayout(SensorPacket.BUMPS_WHEEL_DROPS,
+                SensorPacket.LEFT_ENCODER_COUNTS, SensorPacket.RIGHT_ENCODER_COUNTS);
+
+        Assert.assertTrue(safetyInterlock.checkLayout(null));
+        Assert.assertTrue(safetyInterlock.checkLayout(SensorPacketLayout.ODOMETRY_AND_SAFETY));
+        Assert.assertFalse(safetyInterlock.checkLayout(encodersOnly));
+        Assert.assertEquals(SensorData.UNSAFE_FLAGS & ~(SensorData.WHEEL_DROP_LEFT | SensorData.WHEEL_DROP_RIGHT),
+                safetyInterlock.getHiddenFaults());
+
+        // a mask the layout can show is fine
+        safetyInterlock.setFaultMask(SensorData.WHEEL_DROP_LEFT | SensorData.WHEEL_DROP_RIGHT);
+        Assert.assertTrue(safetyInterlock.checkLayout(encodersOnly));
+    }
+
+    @Test
+    public void startChecksTheConnectionsLayout() {
+        SensorPacketLayout noCliffs = new SensorPacketLayout(SensorPacket.BUMPS_WHEEL_DROPS,
+                SensorPacket.WHEEL_OVER_CURRENTS);
+        when(roombaComm.getSensorLayout()).thenReturn(noCliffs);
+
+        safetyInterlock.start();
+        Assert.assertEquals(SensorData.CLIFF_LEFT | SensorData.CLIFF_FRONT_LEFT | SensorData.CLIFF_FRONT_RIGHT
+                | SensorData.CLIFF_RIGHT, safetyInterlock.getHiddenFaults());
+
+        // switching to a full layout is noticed on the next frame
+        when(roombaComm.getSensorLayout()).thenReturn(SensorPacketLayout.ODOMETRY_AND_SAFETY);
+        safetyInterlock.sensorDataReceived(safe());
+        Assert.assertEquals(0, safetyInterlock.getHiddenFaults());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  SmartRoomba - SensorFrameReceiverTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SensorFrameReceiverTest {
+    private SensorFrameReceiver sensorFrameReceiver;
+    private List<SensorData> received;
+
+    @Before
+    public void setup() {
+        received = new ArrayList<>();
+        sensorFrameReceiver = new SensorFrameReceiver(received::add);
+    }
+
+    @Test
+    public void interleavedRequests() {
+        SensorPacketLayout encoders = new SensorPacketLayout(SensorPacket.LEFT_ENCODER_COUNTS);
+        sensorFrameReceiver.setMaxRequestsInFlight(3);
+        Assert.assertTrue(sensorFrameReceiver.addRequest(1, null));
+        Assert.assertTrue(sensorFrameReceiver.addRequest(encoders.getReplyLength(), encoders));
+        Assert.assertTrue(sensorFrameReceiver.addRequest(1, null));
+
+        // all three replies arrive back to back in one read
+        byte[] replies = {0x01, 0x12, 0x34, 0x02};
+        sensorFrameReceiver.receive(replies, 0, replies.length);
+
+        Assert.assertEquals(3, received.size());
+        Assert.assertTrue(received.get(0).isBumpRight());
+        Assert.assertEquals(0x1234, received.get(1).getLeftEncoderCount());
+        Assert.assertFalse(received.get(1).isBumpRight());
+        Assert.assertTrue(received.get(2).isBumpLeft());
+        Assert.assertEquals(0, sensorFrameReceiver.getRequestsInFlight());
+    }
+
+    @Test
+    public void replySplitAcrossReads() {
+        sensorFrameReceiver.addRequest(2, null);
+
+        sensorFrameReceiver.receive(new byte[] {0x01}, 0, 1);
+        Assert.assertTrue(received.isEmpty());
+        sensorFrameReceiver.receive(new byte[] {0x01}, 0, 1);
+
+        Assert.assertEquals(1, received.size());
+    }
+
+    @Test
+    public void pipelineFull() {
+        sensorFrameReceiver.setMaxRequestsInFlight(2);
+
+        Assert.assertTrue(sensorFrameReceiver.addRequest(1, null));
+        Assert.assertTrue(sensorFrameReceiver.addRequest(1, null));
+        Assert.assertFalse(sensorFrameReceiver.addRequest(1, null));
+
+        sensorFrameReceiver.receive(new byte[] {0x00}, 0, 1);
+        Assert.assertTrue(sensorFrameReceiver.addRequest(1, null));
+    }
+
+    @Test
+    public void unansweredRequestTimesOut() {
+        sensorFrameReceiver.setRequestTimeoutNanos(-1);
+        sensorFrameReceiver.addRequest(2, null);
+        sensorFrameReceiver.receive(new byte[] {0x01}, 0, 1);
+
+        // the partial reply is thrown away along with the request
+        Assert.assertEquals(0, sensorFrameReceiver.getRequestsInFlight());
+        Assert.assertEquals(1, sensorFrameReceiver.getRequestTimeoutCount());
+        Assert.assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void deepPipelineOnASlowLink() throws InterruptedException {
+        // 60 byte replies at 9600 baud take about 60 ms each, so the last of 8 queued requests is answered long after
+        // the timeout from when it was sent, but never more than one reply's time after the one before it
+        sensorFrameReceiver.setRequestTimeoutNanos(TimeUnit.MILLISECONDS.toNanos(200));
+        sensorFrameReceiver.setMaxRequestsInFlight(8);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(sensorFrameReceiver.addRequest(60, null));
+        }
+
+        byte[] reply = new byte[60];
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(60);
+            sensorFrameReceiver.receive(reply, 0, 30);
+            sensorFrameReceiver.receive(reply, 30, 30);
+        }
+
+        Assert.assertEquals(8, received.size());
+        Assert.assertEquals(0, sensorFrameReceiver.getRequestTimeoutCount());
+    }
+
+    @Test
+    public void resetForgetsRequestsAndBytes() {
+        sensorFrameReceiver.setMaxRequestsInFlight(2);
+        sensorFrameReceiver.addRequest(2, null);
+        sensorFrameReceiver.addRequest(2, null);
+        sensorFrameReceiver.receive(new byte[] {0x01}, 0, 1);
+
+        sensorFrameReceiver.reset();
+        sensorFrameReceiver.addRequest(1, null);
+        sensorFrameReceiver.receive(new byte[] {0x02}, 0, 1);
+
+        Assert.assertEquals(1, received.size());
+        Assert.assertTrue(received.get(0).isBumpLeft());
+        Assert.assertEquals(0, sensorFrameReceiver.getRequestsInFlight());
+    }
+}
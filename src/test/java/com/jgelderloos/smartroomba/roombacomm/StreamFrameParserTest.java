@@ -0,0 +1,215 @@
+/*
+ *  SmartRoomba - StreamFrameParserTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.roombacomm;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.SensorPacketGroup;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamFrameParserTest {
+    private static final int PACKET_ID = 7;
+    private StreamFrameParser streamFrameParser;
+    private ByteRingBuffer ringBuffer;
+
+    private byte[] createFrame(byte... data) {
+        byte[] frame = new byte[data.length + 4];
+        frame[0] = 19;
+        frame[1] = (byte) (data.length + 1);
+        frame[2] = PACKET_ID;
+        System.arraycopy(data, 0, frame, 3, data.length);
+        int sum = 0;
+        for (int i = 0; i < frame.length - 1; i++) {
+            sum += frame[i];
+        }
+        frame[frame.length - 1] = (byte) -sum;
+        return frame;
+    }
+
+    private List<SensorData> parse(byte[]... chunks) {
+        List<SensorData> sensorDataList = new ArrayList<>();
+        for (byte[] chunk : chunks) {
+            ringBuffer.write(chunk, 0, chunk.length);
+            SensorData sensorData;
+            while ((sensorData = streamFrameParser.parse(ringBuffer)) != null) {
+                sensorDataList.add(sensorData);
+            }
+        }
+        return sensorDataList;
+    }
+
+    @Before
+    public void setup() {
+        streamFrameParser = new StreamFrameParser(new SensorDataPool(), PACKET_ID, 2);
+        ringBuffer = new ByteRingBuffer(16);
+    }
+
+    @Test
+    public void validFrames() {
+        List<SensorData> sensorDataList = parse(createFrame((byte) 0x03, (byte) 0x00), createFrame((byte) 0x01, (byte) 0x00));
+
+        Assert.assertEquals(2, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(0).isBumpLeft());
+        Assert.assertTrue(sensorDataList.get(0).isBumpRight());
+        Assert.assertFalse(sensorDataList.get(1).isBumpLeft());
+        Assert.assertTrue(sensorDataList.get(1).isBumpRight());
+        Assert.assertEquals(0, streamFrameParser.getChecksumErrorCount());
+    }
+
+    @Test
+    public void garbageBeforeHeader() {
+        List<SensorData> sensorDataList = parse(new byte[] {0x01, 0x02, 0x7F}, createFrame((byte) 0x02, (byte) 0x00));
+
+        Assert.assertEquals(1, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(0).isBumpLeft());
+        Assert.assertEquals(3, streamFrameParser.getDiscardedByteCount());
+    }
+
+    @Test
+    public void badChecksumResyncs() {
+        byte[] badFrame = createFrame((byte) 0x01, (byte) 0x00);
+        badFrame[badFrame.length - 1]++;
+
+        List<SensorData> sensorDataList = parse(badFrame, createFrame((byte) 0x02, (byte) 0x00));
+
+        Assert.assertEquals(1, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(0).isBumpLeft());
+        Assert.assertEquals(1, streamFrameParser.getChecksumErrorCount());
+    }
+
+    @Test
+    public void headerInsideBadFrame() {
+        // A frame cut short by a dropped byte is followed by a good frame, the good frame's header is found while
+        // rescanning the bytes of the bad one
+        byte[] goodFrame = createFrame((byte) 0x02, (byte) 0x00);
+        byte[] shortFrame = {19, 3, PACKET_ID, 0x01};
+
+        List<SensorData> sensorDataList = parse(shortFrame, goodFrame);
+
+        Assert.assertEquals(1, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(0).isBumpLeft());
+    }
+
+    @Test
+    public void frameSplitAcrossReads() {
+        byte[] frame = createFrame((byte) 0x02, (byte) 0x00);
+        byte[] firstPart = {frame[0], frame[1], frame[2]};
+        byte[] secondPart = {frame[3], frame[4], frame[5]};
+
+        Assert.assertTrue(parse(firstPart).isEmpty());
+        List<SensorData> sensorDataList = parse(secondPart);
+
+        Assert.assertEquals(1, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(0).isBumpLeft());
+    }
+
+    @Test
+    public void frameWrapsAroundRing() {
+        // 16 byte ring and 6 byte frames, so the third frame wraps around the end of the ring
+        List<SensorData> sensorDataList = parse(createFrame((byte) 0x01, (byte) 0x00), createFrame((byte) 0x01, (byte) 0x00),
+                createFrame((byte) 0x02, (byte) 0x00));
+
+        Assert.assertEquals(3, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(2).isBumpLeft());
+        Assert.assertFalse(sensorDataList.get(2).isBumpRight());
+    }
+
+    @Test
+    public void timestampIsFirstByteArrival() {
+        byte[] frame = createFrame((byte) 0x02, (byte) 0x00);
+        ringBuffer.write(frame, 0, 2, 1000L);
+        Assert.assertNull(streamFrameParser.parse(ringBuffer));
+        ringBuffer.write(frame, 2, frame.length - 2, 5000L);
+
+        SensorData sensorData = streamFrameParser.parse(ringBuffer);
+
+        Assert.assertNotNull(sensorData);
+        Assert.assertEquals(1000L, sensorData.getTimestampNanos());
+    }
+
+    @Test
+    public void packetListFrame() {
+        streamFrameParser.setLayout(new SensorPacketLayout(SensorPacket.BUMPS_WHEEL_DROPS, SensorPacket.LEFT_ENCODER_COUNTS));
+        byte[] frame = {19, 5, 7, 0x02, 43, 0x01, 0x02, 0};
+        int sum = 0;
+        for (byte b : frame) {
+            sum += b;
+        }
+        frame[frame.length - 1] = (byte) -sum;
+
+        List<SensorData> sensorDataList = parse(frame);
+
+        Assert.assertEquals(1, sensorDataList.size());
+        Assert.assertTrue(sensorDataList.get(0).isBumpLeft());
+        Assert.assertEquals(0x0102, sensorDataList.get(0).getLeftEncoderCount());
+    }
+
+    @Test
+    public void packetListFrameWithWrongId() {
+        streamFrameParser.setLayout(new SensorPacketLayout(SensorPacket.BUMPS_WHEEL_DROPS, SensorPacket.LEFT_ENCODER_COUNTS));
+        byte[] frame = {19, 5, 7, 0x02, 44, 0x01, 0x02, 0};
+        int sum = 0;
+        for (byte b : frame) {
+            sum += b;
+        }
+        frame[frame.length - 1] = (byte) -sum;
+
+        Assert.assertTrue(parse(frame).isEmpty());
+    }
+
+    @Test
+    public void packetGroupFrame() {
+        streamFrameParser.setGroup(SensorPacketGroup.P107);
+        byte[] frame = {19, 10, 107, 0x00, 0x10, 0, 0, 0, 0, 0, 0, 0x01, 0};
+        int sum = 0;
+        for (byte b : frame) {
+            sum += b;
+        }
+        frame[frame.length - 1] = (byte) -sum;
+        ringBuffer = new ByteRingBuffer(32);
+
+        List<SensorData> sensorDataList = parse(frame);
+
+        Assert.assertEquals(1, sensorDataList.size());
+        Assert.assertEquals(0x10, sensorDataList.get(0).getValue(SensorPacket.LEFT_MOTOR_CURRENT));
+        Assert.assertEquals(1, sensorDataList.get(0).getValue(SensorPacket.STASIS));
+        Assert.assertEquals(0, sensorDataList.get(0).getValue(SensorPacket.BUMPS_WHEEL_DROPS));
+    }
+
+    @Test
+    public void wrongPacketId() {
+        byte[] frame = createFrame((byte) 0x01, (byte) 0x00);
+        frame[2] = PACKET_ID + 1;
+
+        List<SensorData> sensorDataList = parse(frame);
+
+        Assert.assertTrue(sensorDataList.isEmpty());
+    }
+}
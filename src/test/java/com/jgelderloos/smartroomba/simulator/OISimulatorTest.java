@@ -0,0 +1,190 @@
+/*
+ *  SmartRoomba - OISimulatorTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.simulator;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants;
+import com.jgelderloos.smartroomba.roombacomm.RoombaComm;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+public class OISimulatorTest {
+    private static final double MILLIMETERS_PER_ENCODER_COUNT =
+            Math.PI * RoombaConstants.MILLIMETERS_PER_WHEEL_TURN / RoombaConstants.ENCODER_COUNTS_PER_WHEEL_TURN;
+    private ByteArrayOutputStream output;
+    private OISimulator simulator;
+
+    private void send(int... bytes) {
+        for (int b : bytes) {
+            simulator.receive(b);
+        }
+    }
+
+    private void startDriving(int velocity, int radius) {
+        send(RoombaComm.START, RoombaComm.SAFE);
+        send(RoombaComm.DRIVE, velocity >> 8 & 0xFF, velocity & 0xFF, radius >> 8 & 0xFF, radius & 0xFF);
+    }
+
+    private byte[] readPacket(int id) {
+        output.reset();
+        send(RoombaComm.SENSORS, id);
+        return output.toByteArray();
+    }
+
+    private int readShort(int id) {
+        byte[] reply = readPacket(id);
+        return (short) (((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+    }
+
+    @Before
+    public void setup() {
+        output = new ByteArrayOutputStream();
+        simulator = new OISimulator(new SimulatedRoom(4000, 4000), output::write);
+    }
+
+    @Test
+    public void ignoresCommandsUntilStarted() {
+        Assert.assertEquals(0, readPacket(7).length);
+        send(RoombaComm.START);
+        Assert.assertEquals(OISimulator.Mode.PASSIVE, simulator.getMode());
+        Assert.assertEquals(1, readPacket(7).length);
+    }
+
+    @Test
+    public void packetGroupReplyLengths() {
+        send(RoombaComm.START);
+        Assert.assertEquals(26, readPacket(0).length);
+        Assert.assertEquals(52, readPacket(6).length);
+        Assert.assertEquals(93, readPacket(100).length);
+        Assert.assertEquals(9, readPacket(107).length);
+    }
+
+    @Test
+    public void queryListRepliesBackToBack() {
+        send(RoombaComm.START, RoombaComm.QUERYLIST, 3, 35, 43, 7);
+        byte[] reply = output.toByteArray();
+
+        Assert.assertEquals(4, reply.length);
+        Assert.assertEquals(OISimulator.Mode.PASSIVE.ordinal(), reply[0]);
+    }
+
+    @Test
+    public void longestSongIsSkipped() {
+        send(RoombaComm.START, RoombaComm.SONG, 0, 255);
+        for (int i = 0; i < 255; i++) {
+            send(60, 32);
+        }
+        // the next command is read as a command, not as part of the song
+        Assert.assertEquals(1, readPacket(7).length);
+    }
+
+    @Test
+    public void driveStraight() {
+        startDriving(200, 0x8000);
+        simulator.advance(TimeUnit.SECONDS.toNanos(1));
+
+        Assert.assertEquals(2200, simulator.getX(), 0.5);
+        Assert.assertEquals(2000, simulator.getY(), 0.5);
+        int expectedCounts = (int) Math.floor(200 / MILLIMETERS_PER_ENCODER_COUNT);
+        Assert.assertEquals(expectedCounts, simulator.getLeftEncoderCount(), 1);
+        Assert.assertEquals(expectedCounts, simulator.getRightEncoderCount(), 1);
+        Assert.assertEquals(200, readShort(19), 1);
+        // distance resets every time it is read
+        Assert.assertEquals(0, readShort(19));
+    }
+
+    @Test
+    public void spinInPlace() {
+        startDriving(100, 1);
+        simulator.advance(TimeUnit.SECONDS.toNanos(1));
+
+        Assert.assertEquals(2000, simulator.getX(), 0.001);
+        Assert.assertEquals(200 / RoombaConstants.WHEELBASE, simulator.getHeading(), 0.001);
+        Assert.assertEquals(Math.toDegrees(200 / RoombaConstants.WHEELBASE), readShort(20), 1);
+    }
+
+    @Test
+    public void encodersRollOver() {
+        simulator.setEncoderCounts(65530, 65530);
+        startDriving(200, 0x8000);
+        simulator.advance(TimeUnit.SECONDS.toNanos(1));
+
+        int expectedCounts = (65530 + (int) Math.floor(200 / MILLIMETERS_PER_ENCODER_COUNT)) & 0xFFFF;
+        Assert.assertEquals(expectedCounts, simulator.getLeftEncoderCount(), 1);
+        byte[] reply = readPacket(43);
+        Assert.assertEquals(simulator.getLeftEncoderCount(), ((reply[0] & 0xFF) << 8) | (reply[1] & 0xFF));
+    }
+
+    @Test
+    public void bumpIntoWall() {
+        simulator.setPose(3500, 2000, 0);
+        startDriving(300, 0x8000);
+        simulator.advance(TimeUnit.SECONDS.toNanos(2));
+
+        Assert.assertEquals(4000 - OISimulator.ROBOT_RADIUS, simulator.getX(), 1);
+        Assert.assertTrue(simulator.isBumpLeft());
+        Assert.assertTrue(simulator.isBumpRight());
+        Assert.assertEquals(0x03, readPacket(7)[0]);
+        // the wheels keep turning against the wall
+        Assert.assertEquals(600, simulator.getLeftEncoderCount() * MILLIMETERS_PER_ENCODER_COUNT, 1);
+    }
+
+    @Test
+    public void cliffStopsSafeMode() {
+        simulator = new OISimulator(new SimulatedRoom(4000, 4000).addCliff(2500, 0, 100, 4000), output::write);
+        startDriving(200, 0x8000);
+        simulator.advance(TimeUnit.SECONDS.toNanos(5));
+
+        Assert.assertEquals(OISimulator.Mode.PASSIVE, simulator.getMode());
+        Assert.assertTrue(simulator.getX() < 2500 - OISimulator.ROBOT_RADIUS + 20);
+        Assert.assertEquals(1, readPacket(10)[0]);
+        Assert.assertEquals(1, readPacket(11)[0]);
+    }
+
+    @Test
+    public void streamFrames() {
+        send(RoombaComm.START, RoombaComm.STREAM, 2, 7, 43);
+        simulator.advance(TimeUnit.MILLISECONDS.toNanos(45));
+
+        byte[] frames = output.toByteArray();
+        Assert.assertEquals(3 * 8, frames.length);
+        for (int frame = 0; frame < 3; frame++) {
+            int sum = 0;
+            for (int i = 0; i < 8; i++) {
+                sum += frames[frame * 8 + i];
+            }
+            Assert.assertEquals(RoombaConstants.STREAM_HEADER, frames[frame * 8]);
+            Assert.assertEquals(5, frames[frame * 8 + 1]);
+            Assert.assertEquals(0, sum & 0xFF);
+        }
+
+        output.reset();
+        send(RoombaComm.STOPSTARTSTREAM, 0);
+        simulator.advance(TimeUnit.MILLISECONDS.toNanos(45));
+        Assert.assertEquals(0, output.size());
+    }
+}
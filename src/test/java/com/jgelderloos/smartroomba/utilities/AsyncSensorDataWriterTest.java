@@ -0,0 +1,169 @@
+/*
+ *  SmartRoomba - AsyncSensorDataWriterTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncSensorDataWriterTest {
+
+    private SensorData createSensorData(int value) {
+        byte[] bytes = new byte[SensorData.MAX_SENSOR_BYTES];
+        bytes[0] = (byte) value;
+        bytes[SensorData.MAX_SENSOR_BYTES - 1] = (byte) 0xAB;
+        return new SensorData(bytes, bytes.length, LocalDateTime.of(2018, 3, 4, 5, 6, 7, 8000));
+    }
+
+    @Test
+    public void sameFormatAsDataCSVWriter() {
+        StringWriter stringWriter = new StringWriter();
+        AsyncSensorDataWriter writer = new AsyncSensorDataWriter(stringWriter);
+        writer.start();
+        SensorData first = createSensorData(0x01);
+        SensorData second = createSensorData(0xF0);
+
+        Assert.assertTrue(writer.writeData(first));
+        Assert.assertTrue(writer.writeData(second));
+        Assert.assertTrue(writer.close());
+
+        String expected = "TIME," + first.getDataHeaderAsCSVString() + "\n"
+                + first.getDateTime() + "," + first.getRawDataAsCSVString() + "\n"
+                + second.getDateTime() + "," + second.getRawDataAsCSVString() + "\n";
+        Assert.assertEquals(expected, stringWriter.toString());
+        Assert.assertEquals(2, writer.getWrittenCount());
+        Assert.assertEquals(0, writer.getDroppedCount());
+    }
+
+    @Test
+    public void framesAreBatched() {
+        StringWriter stringWriter = new StringWriter();
+        AsyncSensorDataWriter writer = new AsyncSensorDataWriter(stringWriter, 256, 1 << 20, TimeUnit.HOURS.toNanos(1));
+
+        for (int i = 0; i < 200; i++) {
+            writer.writeData(createSensorData(i));
+        }
+        writer.start();
+        writer.close();
+
+        Assert.assertEquals(200, writer.getWrittenCount());
+        Assert.assertEquals(201, stringWriter.toString().split("\n").length);
+        // everything fits in one buffer, so it is written out once on close
+        Assert.assertEquals(1, writer.getFlushCount());
+    }
+
+    @Test
+    public void flushAfterInterval() throws InterruptedException {
+        StringWriter stringWriter = new StringWriter();
+        AsyncSensorDataWriter writer = new AsyncSensorDataWriter(stringWriter, 16, 1 << 20, TimeUnit.MILLISECONDS.toNanos(10));
+        writer.start();
+
+        writer.writeData(createSensorData(1));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (writer.getFlushCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+
+        Assert.assertTrue(writer.getFlushCount() > 0);
+        writer.close();
+    }
+
+    @Test
+    public void fullQueueDropsAndReleases() {
+        SensorDataPool pool = new SensorDataPool();
+        byte[] bytes = new byte[SensorData.MAX_SENSOR_BYTES];
+        AsyncSensorDataWriter writer = new AsyncSensorDataWriter(new StringWriter(), 2, 1024, TimeUnit.SECONDS.toNanos(1));
+
+        for (int i = 0; i < 3; i++) {
+            SensorData sensorData = pool.acquire(bytes, 0, bytes.length);
+            writer.writeData(sensorData);
+            sensorData.release();
+        }
+
+        Assert.assertEquals(1, writer.getDroppedCount());
+        Assert.assertEquals(2, writer.getBacklog());
+        Assert.assertEquals(1, pool.getFreeCount());
+        writer.close();
+        Assert.assertEquals(3, pool.getFreeCount());
+        Assert.assertFalse(writer.writeData(createSensorData(1)));
+    }
+
+    @Test
+    public void writeErrorStopsRecording() {
+        Writer failingWriter = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        AsyncSensorDataWriter writer = new AsyncSensorDataWriter(failingWriter);
+        writer.writeData(createSensorData(1));
+        writer.writeData(createSensorData(2));
+
+        Assert.assertFalse(writer.close());
+        Assert.assertEquals(0, writer.getWrittenCount());
+        Assert.assertEquals(2, writer.getDroppedCount());
+    }
+
+    @Test
+    public void timesWrittenLikeLocalDateTime() {
+        LocalDateTime[] times = {
+                LocalDateTime.of(2018, 3, 4, 5, 6),
+                LocalDateTime.of(2018, 3, 4, 5, 6, 7),
+                LocalDateTime.of(2018, 3, 4, 5, 6, 0, 120_000_000),
+                LocalDateTime.of(2020, 2, 29, 23, 59, 59, 123_456_000),
+                LocalDateTime.of(1999, 12, 31, 0, 0, 1, 1),
+                LocalDateTime.of(1970, 1, 1, 0, 0),
+                LocalDateTime.of(1901, 6, 15, 12, 30, 45, 999_999_999)};
+        StringWriter stringWriter = new StringWriter();
+        AsyncSensorDataWriter writer = new AsyncSensorDataWriter(stringWriter);
+        writer.start();
+        byte[] bytes = new byte[SensorData.MAX_SENSOR_BYTES];
+        for (LocalDateTime time : times) {
+            writer.writeData(new SensorData(bytes, bytes.length, time));
+        }
+        Assert.assertTrue(writer.close());
+
+        String[] lines = stringWriter.toString().split("\n");
+        Assert.assertEquals(times.length + 1, lines.length);
+        for (int i = 0; i < times.length; i++) {
+            Assert.assertEquals(times[i].toString(), lines[i + 1].substring(0, lines[i + 1].indexOf(',')));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  SmartRoomba - BatchOdometryTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaUtilities;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchOdometryTest {
+    private static final int COUNTS_PER_FRAME = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SensorData createSensorData(int frame) {
+        byte[] data = new byte[SensorData.MAX_SENSOR_BYTES];
+        int counts = frame * COUNTS_PER_FRAME;
+        int left = SensorPacket.LEFT_ENCODER_COUNTS.getOffset();
+        int right = SensorPacket.RIGHT_ENCODER_COUNTS.getOffset();
+        data[left] = (byte) (counts >> 8);
+        data[left + 1] = (byte) counts;
+        data[right] = (byte) (counts >> 8);
+        data[right + 1] = (byte) counts;
+        return new SensorData(data, data.length, LocalDateTime.of(2018, 6, 1, 12, 0).plusNanos(frame * 15_000_000L));
+    }
+
+    private Path record(String name, int frames) throws IOException {
+        Path path = folder.getRoot().toPath().resolve(name);
+        SensorDataBinaryWriter writer = new SensorDataBinaryWriter(new FileOutputStream(path.toFile()));
+        for (int i = 0; i < frames; i++) {
+            writer.write(createSensorData(i));
+        }
+        Assert.assertTrue(writer.close());
+        return path;
+    }
+
+    @Test
+    public void straightLine() throws IOException {
+        List<double[]> poses = new ArrayList<>();
+        long frames;
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(record("straight.srsd", 11))) {
+            frames = BatchOdometry.process(reader, (offsetNanos, x, y, radians) ->
+                    poses.add(new double[] {offsetNanos, x, y, radians}));
+        }
+
+        Assert.assertEquals(11, frames);
+        Assert.assertEquals(11, poses.size());
+        double[] last = poses.get(10);
+        Assert.assertEquals(150_000_000L, last[0], 0);
+        Assert.assertEquals(0, last[1], 1e-9);
+        Assert.assertEquals(new RoombaUtilities().getMilimetersFromEncoderCounts(10 * COUNTS_PER_FRAME), last[2], 1e-9);
+        Assert.assertEquals(0, last[3], 1e-9);
+    }
+
+    @Test
+    public void processAllWritesPoseTracks() throws IOException {
+        Path first = record("first.srsd", 5);
+        Path second = record("second.srsd", 8);
+
+        List<Long> counts = BatchOdometry.processAll(Arrays.asList(first, second), 2);
+
+        Assert.assertEquals(Arrays.asList(5L, 8L), counts);
+        List<String> lines = Files.readAllLines(folder.getRoot().toPath().resolve("second.srsd" + BatchOdometry.POSE_TRACK_SUFFIX));
+        Assert.assertEquals("NANOS,X,Y,RADIANS", lines.get(0));
+        Assert.assertEquals(9, lines.size());
+        Assert.assertTrue(lines.get(8).startsWith("105000000,0.0,"));
+    }
+
+    @Test(expected = IOException.class)
+    public void missingRecording() throws IOException {
+        BatchOdometry.processAll(Arrays.asList(folder.getRoot().toPath().resolve("missing.srsd")), 1);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *  SmartRoomba - DataCSVStreamReaderTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorDataPool;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+public class DataCSVStreamReaderTest {
+    private static final String HEADER = "TIME,BUMPS_WHEEL_DROPS,WALL\n";
+
+    private DataCSVStreamReader createReader(String text, int bufferSize) {
+        return new DataCSVStreamReader(new StringReader(text), new SensorDataPool(4), bufferSize);
+    }
+
+    @Test
+    public void readsLinesInOrder() {
+        DataCSVStreamReader reader = createReader(HEADER
+                + "2018-06-01T12:30:15.123,0x03,0x01\n"
+                + "2018-06-01T12:30:15.138,0xFF,0x00\n", 1024);
+
+        SensorData first = reader.readData();
+        SensorData second = reader.readData();
+
+        Assert.assertEquals(LocalDateTime.of(2018, 6, 1, 12, 30, 15, 123_000_000), first.getDateTime());
+        Assert.assertTrue(first.isBumpLeft());
+        Assert.assertTrue(first.isBumpRight());
+        Assert.assertEquals(15_000_000L, second.getTimestampNanos() - first.getTimestampNanos());
+        byte[] raw = new byte[SensorData.MAX_SENSOR_BYTES];
+        second.copyRawData(raw, 0);
+        Assert.assertEquals((byte) 0xFF, raw[0]);
+        Assert.assertNull(reader.readData());
+    }
+
+    @Test
+    public void linesLongerThanTheBuffer() {
+        StringBuilder text = new StringBuilder(HEADER);
+        for (int i = 0; i < 20; i++) {
+            text.append("2018-06-01T12:30:").append(10 + i).append(".5");
+            for (int b = 0; b < SensorData.MAX_SENSOR_BYTES; b++) {
+                text.append(",0x").append(String.format("%02X", (i + b) & 0xFF));
+            }
+            text.append("\r\n");
+        }
+        DataCSVStreamReader reader = createReader(text.toString(), 0);
+
+        int count = 0;
+        SensorData sensorData;
+        byte[] raw = new byte[SensorData.MAX_SENSOR_BYTES];
+        while ((sensorData = reader.readData()) != null) {
+            sensorData.copyRawData(raw, 0);
+            Assert.assertEquals((byte) (count + 92), raw[92]);
+            Assert.assertEquals(LocalDateTime.of(2018, 6, 1, 12, 30, 10 + count, 500_000_000), sensorData.getDateTime());
+            sensorData.release();
+            count++;
+        }
+        Assert.assertEquals(20, count);
+    }
+
+    @Test
+    public void lastLineWithoutNewline() {
+        DataCSVStreamReader reader = createReader(HEADER + "2018-06-01T12:30,0x02,1", 1024);
+
+        SensorData sensorData = reader.readData();
+
+        Assert.assertEquals(LocalDateTime.of(2018, 6, 1, 12, 30), sensorData.getDateTime());
+        Assert.assertTrue(sensorData.isBumpLeft());
+        Assert.assertEquals(1, sensorData.getValue(SensorPacket.WALL));
+        Assert.assertNull(reader.readData());
+    }
+
+    @Test
+    public void badLinesAreSkipped() {
+        DataCSVStreamReader reader = createReader(HEADER
+                + "not a time,0x01,0x00\n"
+                + "2018-06-01T12:30:15,0xZZ,0x00\n"
+                + "\n"
+                + "2018-06-01T12:30:16,0x02,0x00\n", 1024);
+
+        SensorData sensorData = reader.readData();
+
+        Assert.assertEquals(LocalDateTime.of(2018, 6, 1, 12, 30, 16), sensorData.getDateTime());
+        Assert.assertEquals(2, reader.getSkippedLineCount());
+        Assert.assertNull(reader.readData());
+    }
+
+    @Test
+    public void releasedFramesAreReused() {
+        StringBuilder text = new StringBuilder(HEADER);
+        for (int i = 0; i < 100; i++) {
+            text.append("2018-06-01T12:30:15.").append(String.format("%03d", i)).append(",0x01,0x00\n");
+        }
+        SensorDataPool pool = new SensorDataPool(4);
+        DataCSVStreamReader reader = new DataCSVStreamReader(new StringReader(text.toString()), pool, 1024);
+
+        SensorData sensorData;
+        while ((sensorData = reader.readData()) != null) {
+            sensorData.release();
+        }
+
+        Assert.assertEquals(1, pool.getCreatedCount());
+    }
+
+    @Test
+    public void epochDayMatchesLocalDate() {
+        for (LocalDate date = LocalDate.of(1899, 12, 25); date.isBefore(LocalDate.of(2101, 3, 5)); date = date.plusDays(13)) {
+            Assert.assertEquals(date.toEpochDay(),
+                    DataCSVStreamReader.epochDay(date.getYear(), date.getMonthValue(), date.getDayOfMonth()));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *  SmartRoomba - EncoderRecording
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import org.junit.Assert;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Writes binary recordings of a Roomba driving, for tests that replay or seek in them. Only the wheel encoders move,
+ * and frames are 15 ms apart like a stream.
+ */
+public final class EncoderRecording {
+    public static final long FRAME_NANOS = 15_000_000L;
+    private static final LocalDateTime START = LocalDateTime.of(2018, 6, 1, 12, 0);
+
+    private EncoderRecording() {
+    }
+
+    /**
+     * @param startCount both encoder counts before the first frame
+     * @param leftStep how far the left encoder moves up to frame i
+     * @param rightStep how far the right encoder moves up to frame i
+     */
+    public static void write(Path recording, int frames, int startCount, IntUnaryOperator leftStep,
+                             IntUnaryOperator rightStep) throws IOException {
+        SensorDataBinaryWriter writer = new SensorDataBinaryWriter(new FileOutputStream(recording.toFile()));
+        byte[] data = new byte[SensorData.MAX_SENSOR_BYTES];
+        int left = startCount;
+        int right = startCount;
+        for (int i = 0; i < frames; i++) {
+            left += leftStep.applyAsInt(i);
+            right += rightStep.applyAsInt(i);
+            putShort(data, SensorPacket.LEFT_ENCODER_COUNTS.getOffset(), left);
+            putShort(data, SensorPacket.RIGHT_ENCODER_COUNTS.getOffset(), right);
+            writer.write(new SensorData(data, data.length, START.plusNanos(i * FRAME_NANOS)));
+        }
+        Assert.assertTrue(writer.close());
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 8);
+        data[offset + 1] = (byte) value;
+    }
+}
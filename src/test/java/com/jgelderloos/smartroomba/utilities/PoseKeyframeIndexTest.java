@@ -0,0 +1,116 @@
+/*
+ *  SmartRoomba - PoseKeyframeIndexTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaMapData;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class PoseKeyframeIndexTest {
+    private static final int FRAMES = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path recording;
+    private SensorDataBinaryReader reader;
+
+    @Before
+    public void setup() throws IOException {
+        // a curve to the left, then straight, then a curve to the right
+        recording = folder.getRoot().toPath().resolve("curve.srsd");
+        EncoderRecording.write(recording, FRAMES, 100, i -> i < 20 ? 8 : (i < 30 ? 10 : 12),
+                i -> i < 20 ? 12 : (i < 30 ? 10 : 8));
+        reader = new SensorDataBinaryReader(recording);
+    }
+
+    private RoombaMapData integrateTo(int frameIndex) {
+        RoombaMapData roombaMapData = new RoombaMapData();
+        for (int i = 0; i <= frameIndex; i++) {
+            roombaMapData.update(reader.toSensorData(i));
+        }
+        return roombaMapData;
+    }
+
+    private void assertRestoresLikeIntegrating(PoseKeyframeIndex index) {
+        for (int frameIndex = 0; frameIndex < FRAMES; frameIndex++) {
+            RoombaMapData expected = integrateTo(frameIndex);
+            RoombaMapData restored = new RoombaMapData();
+            index.restore(reader, frameIndex, restored);
+
+            Assert.assertEquals(expected.getX(), restored.getX(), 1e-9);
+            Assert.assertEquals(expected.getY(), restored.getY(), 1e-9);
+            Assert.assertEquals(expected.getRadians(), restored.getRadians(), 1e-12);
+            Assert.assertEquals(expected.getLastLeftEncoderCount(), restored.getLastLeftEncoderCount());
+        }
+    }
+
+    @Test
+    public void restoreMatchesIntegratingFromTheStart() {
+        PoseKeyframeIndex index = PoseKeyframeIndex.build(reader, 8);
+
+        Assert.assertEquals(7, index.getKeyframeCount());
+        Assert.assertNotEquals(0, integrateTo(FRAMES - 1).getRadians(), 1e-6);
+        assertRestoresLikeIntegrating(index);
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        Path sidecar = folder.getRoot().toPath().resolve("index");
+        PoseKeyframeIndex.build(reader, 8).save(sidecar);
+
+        PoseKeyframeIndex index = PoseKeyframeIndex.load(sidecar);
+
+        Assert.assertEquals(8, index.getInterval());
+        Assert.assertEquals(FRAMES, index.getFrameCount());
+        assertRestoresLikeIntegrating(index);
+    }
+
+    @Test
+    public void sidecarIsBuiltOnceAndReused() throws IOException {
+        Path sidecar = PoseKeyframeIndex.getSidecar(recording);
+        Assert.assertFalse(Files.exists(sidecar));
+
+        PoseKeyframeIndex.forRecording(recording, reader);
+        Assert.assertTrue(Files.exists(sidecar));
+        PoseKeyframeIndex.build(reader, 5).save(sidecar);
+
+        Assert.assertEquals(5, PoseKeyframeIndex.forRecording(recording, reader).getInterval());
+    }
+
+    @Test
+    public void findFrame() {
+        Assert.assertEquals(0, reader.findFrame(-1));
+        Assert.assertEquals(0, reader.findFrame(14_999_999L));
+        Assert.assertEquals(1, reader.findFrame(15_000_000L));
+        Assert.assertEquals(33, reader.findFrame(33 * 15_000_000L + 7));
+        Assert.assertEquals(FRAMES - 1, reader.findFrame(Long.MAX_VALUE));
+    }
+}
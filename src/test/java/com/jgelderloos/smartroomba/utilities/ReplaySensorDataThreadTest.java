@@ -2,11 +2,15 @@ package com.jgelderloos.smartroomba.utilities;
 
 import com.jgelderloos.smartroomba.roomba.SensorData;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.time.LocalDateTime;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.mock;
 
@@ -52,4 +56,105 @@ public class ReplaySensorDataThreadTest {
         Assert.assertEquals(sensorData2, sensorDataQueue.poll());
     }
 
+    private Queue<SensorData> createReplayData(int frames, long spacingMillis) {
+        Queue<SensorData> replayDataQueue = new ConcurrentLinkedQueue<>();
+        LocalDateTime start = LocalDateTime.now();
+        for (int i = 0; i < frames; i++) {
+            replayDataQueue.add(new SensorData(new byte[2], 2, start.plusNanos(TimeUnit.MILLISECONDS.toNanos(i * spacingMillis))));
+        }
+        return replayDataQueue;
+    }
+
+    @Test
+    public void speedFactor() {
+        Queue<SensorData> sensorDataQueue = new ConcurrentLinkedQueue<>();
+        replaySensorDataThread = new ReplaySensorDataThread(sensorDataQueue, createReplayData(5, 100));
+        replaySensorDataThread.setSpeed(4);
+
+        long start = System.nanoTime();
+        replaySensorDataThread.run();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(5, sensorDataQueue.size());
+        Assert.assertTrue("took " + elapsedMillis + " ms", elapsedMillis >= 100 && elapsedMillis < 400);
+    }
+
+    @Test
+    public void asFastAsPossible() {
+        Queue<SensorData> sensorDataQueue = new ConcurrentLinkedQueue<>();
+        replaySensorDataThread = new ReplaySensorDataThread(sensorDataQueue, createReplayData(100, 1000));
+        replaySensorDataThread.setSpeed(ReplaySensorDataThread.AS_FAST_AS_POSSIBLE);
+
+        long start = System.nanoTime();
+        replaySensorDataThread.run();
+
+        Assert.assertEquals(100, sensorDataQueue.size());
+        Assert.assertEquals(100, replaySensorDataThread.getReplayedCount());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void parksBetweenFrames() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isCurrentThreadCpuTimeSupported());
+        Queue<SensorData> sensorDataQueue = new ConcurrentLinkedQueue<>();
+        replaySensorDataThread = new ReplaySensorDataThread(sensorDataQueue, createReplayData(3, 150));
+
+        long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        replaySensorDataThread.run();
+        long cpuMillis = TimeUnit.NANOSECONDS.toMillis(threadMXBean.getCurrentThreadCpuTime() - startCpuNanos);
+
+        Assert.assertEquals(3, sensorDataQueue.size());
+        // spinning would burn the whole 300 ms
+        Assert.assertTrue("used " + cpuMillis + " ms of CPU", cpuMillis < 150);
+    }
+
+    @Test
+    public void interruptStopsReplay() throws InterruptedException {
+        Queue<SensorData> sensorDataQueue = new ConcurrentLinkedQueue<>();
+        replaySensorDataThread = new ReplaySensorDataThread(sensorDataQueue, createReplayData(3, 60_000));
+        Thread thread = new Thread(replaySensorDataThread);
+        thread.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sensorDataQueue.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        thread.interrupt();
+        thread.join(5000);
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(1, sensorDataQueue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void speedMustBePositive() {
+        new ReplaySensorDataThread(null, null).setSpeed(0);
+    }
+
+    @Test
+    public void seekDropsTheWaitingFrame() throws InterruptedException {
+        Queue<SensorData> sensorDataQueue = new ConcurrentLinkedQueue<>();
+        Queue<SensorData> replayDataQueue = createReplayData(3, 60_000);
+        replaySensorDataThread = new ReplaySensorDataThread(sensorDataQueue, replayDataQueue);
+        Thread thread = new Thread(replaySensorDataThread);
+        thread.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sensorDataQueue.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        // the second frame is waiting a minute to be due, seek to a single frame instead
+        SensorData seekedTo = new SensorData(new byte[2], 2, LocalDateTime.now());
+        replaySensorDataThread.seek(() -> {
+            replayDataQueue.clear();
+            replayDataQueue.add(seekedTo);
+        });
+        thread.join(5000);
+
+        Assert.assertFalse(thread.isAlive());
+        Assert.assertEquals(2, sensorDataQueue.size());
+        sensorDataQueue.poll();
+        Assert.assertSame(seekedTo, sensorDataQueue.poll());
+    }
 }
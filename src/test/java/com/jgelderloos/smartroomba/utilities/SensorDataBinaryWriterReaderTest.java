@@ -0,0 +1,131 @@
+/*
+ *  SmartRoomba - SensorDataBinaryWriterReaderTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.roomba.RoombaConstants.Model;
+import com.jgelderloos.smartroomba.roomba.SensorData;
+import com.jgelderloos.smartroomba.roomba.SensorPacket;
+import com.jgelderloos.smartroomba.roomba.SensorPacketLayout;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+public class SensorDataBinaryWriterReaderTest {
+    private static final LocalDateTime START = LocalDateTime.of(2018, 6, 1, 12, 30, 15, 123_456_789);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SensorData createSensorData(int value, long offsetMillis) {
+        byte[] data = new byte[SensorData.MAX_SENSOR_BYTES];
+        data[SensorPacket.BUMPS_WHEEL_DROPS.getOffset()] = (byte) value;
+        data[SensorPacket.LEFT_ENCODER_COUNTS.getOffset()] = (byte) 0xFF;
+        data[SensorPacket.LEFT_ENCODER_COUNTS.getOffset() + 1] = (byte) value;
+        return new SensorData(data, data.length, START.plusNanos(offsetMillis * 1_000_000L));
+    }
+
+    private Path record(SensorPacketLayout layout, SensorData... frames) throws IOException {
+        Path path = folder.newFile("session.srsd").toPath();
+        SensorDataBinaryWriter writer = new SensorDataBinaryWriter(new FileOutputStream(path.toFile()), Model.OI_500,
+                layout, 0);
+        for (SensorData frame : frames) {
+            Assert.assertTrue(writer.writeData(frame));
+        }
+        Assert.assertTrue(writer.close());
+        return path;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        SensorPacketLayout layout = new SensorPacketLayout(SensorPacket.BUMPS_WHEEL_DROPS, SensorPacket.LEFT_ENCODER_COUNTS);
+        Path path = record(layout, createSensorData(1, 0), createSensorData(2, 15), createSensorData(3, 30));
+
+        Assert.assertEquals(SensorDataBinaryWriter.FIXED_HEADER_LENGTH + 2 + 3 * SensorDataBinaryWriter.getRecordLength(),
+                Files.size(path));
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(path)) {
+            Assert.assertEquals(3, reader.getFrameCount());
+            Assert.assertEquals(Model.OI_500, reader.getModel());
+            Assert.assertEquals(layout.getPackets(), reader.getLayout().getPackets());
+            Assert.assertEquals(START, reader.getDateTime(0));
+            Assert.assertEquals(START.plusNanos(30_000_000L), reader.getDateTime(2));
+            Assert.assertEquals(15_000_000L, reader.getOffsetNanos(1));
+            Assert.assertEquals(2, reader.getValue(1, SensorPacket.BUMPS_WHEEL_DROPS));
+            Assert.assertEquals(0xFF03, reader.getValue(2, SensorPacket.LEFT_ENCODER_COUNTS));
+
+            SensorData sensorData = reader.toSensorData(2);
+            Assert.assertTrue(sensorData.isBumpLeft());
+            Assert.assertTrue(sensorData.isBumpRight());
+            Assert.assertEquals(START.plusNanos(30_000_000L), sensorData.getDateTime());
+        }
+    }
+
+    @Test
+    public void partialRecordIsIgnored() throws IOException {
+        Path path = record(null, createSensorData(1, 0), createSensorData(2, 10));
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(file.length() - 5);
+        }
+
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(path)) {
+            Assert.assertEquals(1, reader.getFrameCount());
+            Assert.assertNull(reader.getLayout());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notABinaryRecording() throws IOException {
+        Path path = folder.newFile("session.csv").toPath();
+        Files.write(path, "TIME,BUMPS\n".getBytes("UTF-8"));
+
+        Assert.assertFalse(SensorDataBinaryReader.isBinaryRecording(path));
+        new SensorDataBinaryReader(path).close();
+    }
+
+    @Test
+    public void convertBothWays() throws IOException {
+        Path binary = record(null, createSensorData(1, 0), createSensorData(2, 20));
+        Path csv = folder.getRoot().toPath().resolve("session.csv");
+        Path binaryAgain = folder.getRoot().toPath().resolve("again.srsd");
+
+        Assert.assertEquals(2, SensorDataFileConverter.binaryToCsv(binary, csv));
+        List<String> lines = Files.readAllLines(csv);
+        Assert.assertEquals(3, lines.size());
+        Assert.assertTrue(lines.get(1).startsWith(START.toString() + ",0x01"));
+
+        Assert.assertEquals(2, SensorDataFileConverter.csvToBinary(csv, binaryAgain));
+        try (SensorDataBinaryReader reader = new SensorDataBinaryReader(binaryAgain)) {
+            Assert.assertEquals(2, reader.getFrameCount());
+            Assert.assertEquals(START.plusNanos(20_000_000L), reader.getDateTime(1));
+            Assert.assertEquals(2, reader.getValue(1, SensorPacket.BUMPS_WHEEL_DROPS));
+        }
+    }
+}
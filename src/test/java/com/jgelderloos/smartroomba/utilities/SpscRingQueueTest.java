@@ -0,0 +1,133 @@
+/*
+ *  SmartRoomba - SpscRingQueueTest
+ *
+ *  Copyright (c) 2018 Jon Gelderloos
+ *
+ *  This library is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public
+ *  License as published by the Free Software Foundation; either
+ *  version 2.1 of the License, or (at your option) any later version.
+ *
+ *  This library is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *  Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General
+ *  Public License along with this library; if not, write to the
+ *  Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA  02111-1307  USA
+ *
+ */
+
+package com.jgelderloos.smartroomba.utilities;
+
+import com.jgelderloos.smartroomba.utilities.SpscRingQueue.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpscRingQueueTest {
+
+    @Test
+    public void fifoOrder() {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4, OverflowPolicy.DROP_OLDEST);
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+
+        Assert.assertEquals(3, queue.size());
+        Assert.assertEquals(Integer.valueOf(1), queue.peek());
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertEquals(Integer.valueOf(2), queue.poll());
+        Assert.assertEquals(Integer.valueOf(3), queue.poll());
+        Assert.assertNull(queue.poll());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropOldest() {
+        List<Integer> dropped = new ArrayList<>();
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(2, OverflowPolicy.DROP_OLDEST, dropped::add);
+        for (int i = 1; i <= 5; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+
+        Assert.assertEquals(Integer.valueOf(4), queue.poll());
+        Assert.assertEquals(Integer.valueOf(5), queue.poll());
+        Assert.assertEquals(3, queue.getDropCount());
+        Assert.assertEquals(2, queue.getHighWaterMark());
+        Assert.assertEquals(3, dropped.size());
+        Assert.assertEquals(Integer.valueOf(1), dropped.get(0));
+    }
+
+    @Test
+    public void dropNewest() {
+        List<Integer> dropped = new ArrayList<>();
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(2, OverflowPolicy.DROP_NEWEST, dropped::add);
+        Assert.assertTrue(queue.offer(1));
+        Assert.assertTrue(queue.offer(2));
+        Assert.assertFalse(queue.offer(3));
+
+        Assert.assertEquals(Integer.valueOf(1), queue.poll());
+        Assert.assertEquals(Integer.valueOf(2), queue.poll());
+        Assert.assertEquals(1, queue.getDropCount());
+        Assert.assertEquals(Integer.valueOf(3), dropped.get(0));
+    }
+
+    @Test
+    public void capacityRoundsUp() {
+        Assert.assertEquals(8, new SpscRingQueue<Integer>(5, OverflowPolicy.BLOCK).capacity());
+    }
+
+    @Test(timeout = 10000)
+    public void blockKeepsEverything() throws InterruptedException {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4, OverflowPolicy.BLOCK);
+        int count = 10000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer(i);
+            }
+        });
+        producer.start();
+
+        int expected = 0;
+        while (expected < count) {
+            Integer value = queue.poll();
+            if (value != null) {
+                Assert.assertEquals(expected++, value.intValue());
+            }
+        }
+        producer.join();
+        Assert.assertEquals(0, queue.getDropCount());
+    }
+
+    @Test(timeout = 10000)
+    public void dropOldestWithConcurrentConsumer() throws InterruptedException {
+        SpscRingQueue<Integer> queue = new SpscRingQueue<>(4, OverflowPolicy.DROP_OLDEST);
+        int count = 100000;
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                queue.offer(i);
+            }
+            queue.offer(-1);
+        });
+        producer.start();
+
+        // whatever gets through has to be in order and never seen twice
+        int last = -1;
+        int received = 0;
+        Integer value;
+        while ((value = queue.poll()) == null || value != -1) {
+            if (value != null) {
+                Assert.assertTrue(value > last);
+                last = value;
+                received++;
+            }
+        }
+        producer.join();
+        Assert.assertEquals(count, received + queue.getDropCount());
+    }
+}